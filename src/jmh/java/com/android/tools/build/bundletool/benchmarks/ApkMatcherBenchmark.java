@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import static com.android.tools.build.bundletool.testing.DeviceFactory.abis;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.density;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.locales;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.mergeSpecs;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.sdkVersion;
+import static com.google.common.collect.ImmutableListMultimap.toImmutableListMultimap;
+
+import com.android.bundle.Commands.ApkDescription;
+import com.android.bundle.Commands.ApkSet;
+import com.android.bundle.Commands.BuildApksResult;
+import com.android.bundle.Commands.SplitApkMetadata;
+import com.android.bundle.Commands.Variant;
+import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
+import com.android.bundle.Targeting.VariantTargeting;
+import com.android.tools.build.bundletool.device.ApkMatcher;
+import com.android.tools.build.bundletool.io.ApkPathManager;
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.BundleModuleName;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.splitters.SplitApksGenerator;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the selection of the APKs to install on a device from the split APKs of a bundle. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ApkMatcherBenchmark extends SyntheticBundleState {
+
+  private BuildApksResult buildApksResult;
+  private ApkMatcher apkMatcher;
+
+  @Setup
+  public void generateBundle() throws IOException {
+    AppBundle appBundle = bundleGenerator().generate();
+    ImmutableList<ModuleSplit> splits =
+        new SplitApksGenerator(
+                ImmutableList.copyOf(appBundle.getModules().values()),
+                BundleToolVersion.getVersionFromBundleConfig(appBundle.getBundleConfig()),
+                SplitApksGeneratorBenchmark.ALL_DIMENSIONS)
+            .generateSplits();
+    buildApksResult = createBuildApksResult(appBundle, splits);
+    apkMatcher =
+        new ApkMatcher(
+            mergeSpecs(
+                sdkVersion(21), abis("arm64-v8a"), density(DensityAlias.XHDPI), locales("fr-FR")));
+  }
+
+  @Benchmark
+  public ImmutableList<ZipPath> getMatchingApks() {
+    return apkMatcher.getMatchingApks(buildApksResult);
+  }
+
+  /** Creates the table of contents that build-apks would write for the given splits. */
+  private static BuildApksResult createBuildApksResult(
+      AppBundle appBundle, ImmutableList<ModuleSplit> splits) {
+    ApkPathManager apkPathManager = new ApkPathManager();
+    ImmutableListMultimap<VariantTargeting, ModuleSplit> splitsByVariant =
+        splits.stream()
+            .collect(
+                toImmutableListMultimap(ModuleSplit::getVariantTargeting, Function.identity()));
+
+    BuildApksResult.Builder result = BuildApksResult.newBuilder();
+    int variantNumber = 0;
+    for (VariantTargeting variantTargeting : splitsByVariant.keySet()) {
+      Variant.Builder variant =
+          result
+              .addVariantBuilder()
+              .setVariantNumber(variantNumber++)
+              .setTargeting(variantTargeting);
+      ImmutableListMultimap<BundleModuleName, ModuleSplit> splitsByModule =
+          splitsByVariant.get(variantTargeting).stream()
+              .collect(toImmutableListMultimap(ModuleSplit::getModuleName, Function.identity()));
+      for (BundleModuleName moduleName : splitsByModule.keySet()) {
+        BundleModule module = appBundle.getModule(moduleName);
+        ApkSet.Builder apkSet =
+            variant.addApkSetBuilder().setModuleMetadata(module.getModuleMetadata());
+        for (ModuleSplit split : splitsByModule.get(moduleName)) {
+          apkSet.addApkDescription(
+              ApkDescription.newBuilder()
+                  .setTargeting(split.getApkTargeting())
+                  .setPath(apkPathManager.getApkPath(split).toString())
+                  .setSplitApkMetadata(
+                      SplitApkMetadata.newBuilder()
+                          .setSplitId(split.getSuffix())
+                          .setIsMasterSplit(split.isMasterSplit())));
+        }
+      }
+    }
+    return result.build();
+  }
+}
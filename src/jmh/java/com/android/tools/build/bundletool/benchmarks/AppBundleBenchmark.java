@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the parsing of a bundle file into an {@link AppBundle}. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AppBundleBenchmark extends SyntheticBundleState {
+
+  private Path bundlePath;
+
+  @Setup
+  public void writeBundle() throws IOException {
+    bundlePath = bundleGenerator().writeTo(getTempDir().resolve("bundle.aab"));
+  }
+
+  @Benchmark
+  public AppBundle buildFromZip() throws IOException {
+    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+      return AppBundle.buildFromZip(bundleZip);
+    }
+  }
+
+  @Benchmark
+  public AppBundle buildFromMappedZip() throws IOException {
+    try (MappedZipFile bundleZip = MappedZipFile.open(bundlePath)) {
+      return AppBundle.buildFromZip(bundleZip);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import com.android.tools.build.bundletool.commands.BuildApksCommand;
+import com.android.tools.build.bundletool.commands.BuildApksCommand.Aapt2Mode;
+import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.Aapt2DaemonPool;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks a full run of the build-apks command on a synthetic bundle.
+ *
+ * <p>Requires the environment variable AAPT2_PATH to point to the aapt2 binary, which the "jmh"
+ * Gradle task takes care of.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class BuildApksBenchmark extends SyntheticBundleState {
+
+  @Param({"PROCESS", "IN_PROCESS", "DAEMON"})
+  public Aapt2Mode aapt2Mode;
+
+  private BuildApksCommand command;
+  private Optional<Aapt2DaemonPool> daemonPool = Optional.empty();
+
+  @Setup
+  public void createCommand() throws IOException {
+    Path bundlePath = bundleGenerator().writeTo(getTempDir().resolve("bundle.aab"));
+    Aapt2Command aapt2Command = Aapt2Helper.getAapt2Command();
+    if (aapt2Mode.equals(Aapt2Mode.DAEMON)) {
+      // The pool is shared by all iterations, as it would be by the runs of a long-lived process.
+      Aapt2DaemonPool pool =
+          new Aapt2DaemonPool(
+              Paths.get(Aapt2Helper.AAPT2_PATH), Runtime.getRuntime().availableProcessors());
+      daemonPool = Optional.of(pool);
+      aapt2Command = pool;
+    }
+    command =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(getTempDir().resolve("output.apks"))
+            .setOverwriteOutput(true)
+            .setAapt2Command(aapt2Command)
+            .setAapt2Mode(aapt2Mode)
+            .build();
+  }
+
+  @Benchmark
+  public Path execute() {
+    return command.execute();
+  }
+
+  @TearDown
+  public void stopDaemons() {
+    daemonPool.ifPresent(Aapt2DaemonPool::close);
+  }
+}
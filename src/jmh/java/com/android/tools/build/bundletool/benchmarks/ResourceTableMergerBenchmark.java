@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.android.aapt.Resources.ResourceTable;
+import com.android.tools.build.bundletool.mergers.ResourceTableMerger;
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.splitters.ScreenDensityResourcesSplitter;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the merging of the resource tables of the density splits of the base module, as done
+ * when fusing splits into standalone APKs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ResourceTableMergerBenchmark extends SyntheticBundleState {
+
+  private ImmutableList<ResourceTable> resourceTables;
+
+  @Setup
+  public void generateBundle() throws IOException {
+    AppBundle appBundle = bundleGenerator().generate();
+    resourceTables =
+        new ScreenDensityResourcesSplitter(
+                BundleToolVersion.getVersionFromBundleConfig(appBundle.getBundleConfig()))
+            .split(ModuleSplit.forResources(appBundle.getBaseModule()))
+            .stream()
+            .map(ModuleSplit::getResourceTable)
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .collect(toImmutableList());
+  }
+
+  @Benchmark
+  public ResourceTable merge() {
+    ResourceTableMerger merger = new ResourceTableMerger();
+    ResourceTable merged = resourceTables.get(0);
+    for (ResourceTable resourceTable : resourceTables.subList(1, resourceTables.size())) {
+      merged = merger.merge(merged, resourceTable);
+    }
+    return merged;
+  }
+
+  @Benchmark
+  public ResourceTable mergeAll() {
+    return new ResourceTableMerger().mergeAll(resourceTables);
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.splitters.ScreenDensityResourcesSplitter;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.google.common.collect.ImmutableCollection;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the splitting of the resources of the base module by screen density. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScreenDensityResourcesSplitterBenchmark extends SyntheticBundleState {
+
+  private ModuleSplit resourcesSplit;
+  private ScreenDensityResourcesSplitter splitter;
+
+  @Setup
+  public void generateBundle() throws IOException {
+    AppBundle appBundle = bundleGenerator().generate();
+    resourcesSplit = ModuleSplit.forResources(appBundle.getBaseModule());
+    splitter =
+        new ScreenDensityResourcesSplitter(
+            BundleToolVersion.getVersionFromBundleConfig(appBundle.getBundleConfig()));
+  }
+
+  @Benchmark
+  public ImmutableCollection<ModuleSplit> split() {
+    return splitter.split(resourcesSplit);
+  }
+}
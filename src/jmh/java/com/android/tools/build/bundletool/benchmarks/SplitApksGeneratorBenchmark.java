@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.OptimizationDimension;
+import com.android.tools.build.bundletool.splitters.ApkGenerationConfiguration;
+import com.android.tools.build.bundletool.splitters.SplitApksGenerator;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.android.tools.build.bundletool.version.Version;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the generation of the split APKs of all modules, for all dimensions. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SplitApksGeneratorBenchmark extends SyntheticBundleState {
+
+  static final ApkGenerationConfiguration ALL_DIMENSIONS =
+      ApkGenerationConfiguration.builder()
+          .setOptimizationDimensions(
+              ImmutableSet.of(
+                  OptimizationDimension.ABI,
+                  OptimizationDimension.SCREEN_DENSITY,
+                  OptimizationDimension.LANGUAGE))
+          .build();
+
+  private ImmutableList<BundleModule> modules;
+  private Version bundleVersion;
+
+  @Setup
+  public void generateBundle() throws IOException {
+    AppBundle appBundle = bundleGenerator().generate();
+    modules = ImmutableList.copyOf(appBundle.getModules().values());
+    bundleVersion = BundleToolVersion.getVersionFromBundleConfig(appBundle.getBundleConfig());
+  }
+
+  @Benchmark
+  public ImmutableList<ModuleSplit> generateSplits() {
+    return new SplitApksGenerator(modules, bundleVersion, ALL_DIMENSIONS).generateSplits();
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifestForFeature;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.android.tools.build.bundletool.io.AppBundleSerializer;
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.testing.AppBundleBuilder;
+import com.android.tools.build.bundletool.testing.BundleModuleBuilder;
+import com.android.tools.build.bundletool.testing.ResourceTableBuilder;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates app bundles of a configurable size for the benchmarks.
+ *
+ * <p>The generated content only depends on the parameters of the generator, so that benchmark
+ * results are reproducible and comparable across commits.
+ *
+ * <p>Each module contains, for each resource index: a drawable declined in each density and a
+ * string translated in each language. Only the base module contains dex code, so that no dex
+ * merging is needed when generating standalone APKs.
+ */
+@AutoValue
+public abstract class SyntheticBundleGenerator {
+
+  static final String PACKAGE_NAME = "com.synthetic.app";
+
+  /** Density qualifiers and their dpi value, in the order in which they are added to modules. */
+  private static final ImmutableMap<String, Integer> DENSITIES =
+      ImmutableMap.<String, Integer>builder()
+          .put("mdpi", 160)
+          .put("xhdpi", 320)
+          .put("hdpi", 240)
+          .put("xxhdpi", 480)
+          .put("ldpi", 120)
+          .put("xxxhdpi", 640)
+          .put("tvdpi", 213)
+          .build();
+
+  private static final ImmutableList<String> LANGUAGES =
+      ImmutableList.of(
+          "en", "fr", "de", "es", "it", "pt", "ru", "ja", "ko", "zh", "ar", "hi", "tr", "pl", "nl",
+          "sv", "da", "fi", "nb", "cs", "el", "he", "hu", "id", "th", "uk", "vi", "ro", "ms", "ca");
+
+  private static final int DEX_SIZE_BYTES = 256 * 1024;
+  private static final int DRAWABLE_SIZE_BYTES = 2 * 1024;
+
+  /** Number of modules, including the base module. */
+  public abstract int getModuleCount();
+
+  /** Number of drawables and of strings in each module. */
+  public abstract int getResourcesPerModule();
+
+  /** Number of densities in which each drawable is declined. */
+  public abstract int getDensityCount();
+
+  /** Number of languages in which each string is translated, on top of the default value. */
+  public abstract int getLanguageCount();
+
+  public abstract int getAssetsPerModule();
+
+  public abstract int getAssetSizeBytes();
+
+  public static Builder builder() {
+    return new AutoValue_SyntheticBundleGenerator.Builder()
+        .setModuleCount(3)
+        .setResourcesPerModule(100)
+        .setDensityCount(4)
+        .setLanguageCount(5)
+        .setAssetsPerModule(20)
+        .setAssetSizeBytes(8 * 1024);
+  }
+
+  /** Generates the bundle in memory. */
+  public AppBundle generate() throws IOException {
+    AppBundleBuilder bundleBuilder = new AppBundleBuilder();
+    for (int moduleIndex = 0; moduleIndex < getModuleCount(); moduleIndex++) {
+      int index = moduleIndex;
+      bundleBuilder.addModule(getModuleName(index), builder -> populateModule(builder, index));
+    }
+    return bundleBuilder.build();
+  }
+
+  /** Generates the bundle and writes it at the given location. */
+  public Path writeTo(Path bundlePath) throws IOException {
+    new AppBundleSerializer().writeToDisk(generate(), bundlePath);
+    return bundlePath;
+  }
+
+  static String getModuleName(int moduleIndex) {
+    return moduleIndex == 0 ? "base" : "feature" + moduleIndex;
+  }
+
+  private void populateModule(BundleModuleBuilder module, int moduleIndex) {
+    // Each module gets its own random sequence so that adding modules doesn't change the others.
+    Random random = new Random(moduleIndex);
+
+    module.setManifest(
+        moduleIndex == 0
+            ? androidManifest(PACKAGE_NAME)
+            : androidManifestForFeature(PACKAGE_NAME));
+    if (moduleIndex == 0) {
+      module.addFile("dex/classes.dex", randomBytes(random, DEX_SIZE_BYTES));
+    }
+
+    ResourceTableBuilder resourceTable =
+        new ResourceTableBuilder().addPackage(PACKAGE_NAME, 0x7F + moduleIndex);
+    ImmutableList<String> densities = DENSITIES.keySet().asList().subList(0, getDensityCount());
+    ImmutableList<String> languages = LANGUAGES.subList(0, getLanguageCount());
+    for (int i = 0; i < getResourcesPerModule(); i++) {
+      ImmutableMap.Builder<Integer, String> drawablesByDensity = ImmutableMap.builder();
+      for (String density : densities) {
+        String path = String.format("res/drawable-%s/image%d.png", density, i);
+        module.addFile(path, randomBytes(random, DRAWABLE_SIZE_BYTES));
+        drawablesByDensity.put(DENSITIES.get(density), path);
+      }
+      resourceTable.addDrawableResourceForMultipleDensities(
+          "image" + i, drawablesByDensity.build());
+
+      ImmutableMap.Builder<String, String> stringsByLocale = ImmutableMap.builder();
+      stringsByLocale.put("", "text " + i);
+      for (String language : languages) {
+        stringsByLocale.put(language, language + " text " + i);
+      }
+      resourceTable.addStringResourceForMultipleLocales("text" + i, stringsByLocale.build());
+    }
+    module.setResourceTable(resourceTable.build());
+
+    for (int i = 0; i < getAssetsPerModule(); i++) {
+      module.addFile(
+          String.format("assets/data/file%d.bin", i), randomBytes(random, getAssetSizeBytes()));
+    }
+  }
+
+  /** Half random, half zeros, so that the content is neither incompressible nor trivial. */
+  private static byte[] randomBytes(Random random, int size) {
+    byte[] bytes = new byte[size];
+    byte[] randomHalf = new byte[size / 2];
+    random.nextBytes(randomHalf);
+    System.arraycopy(randomHalf, 0, bytes, 0, randomHalf.length);
+    return bytes;
+  }
+
+  /** Builder for the {@link SyntheticBundleGenerator}. */
+  @AutoValue.Builder
+  public abstract static class Builder {
+    public abstract Builder setModuleCount(int moduleCount);
+
+    public abstract Builder setResourcesPerModule(int resourcesPerModule);
+
+    public abstract Builder setDensityCount(int densityCount);
+
+    public abstract Builder setLanguageCount(int languageCount);
+
+    public abstract Builder setAssetsPerModule(int assetsPerModule);
+
+    public abstract Builder setAssetSizeBytes(int assetSizeBytes);
+
+    abstract SyntheticBundleGenerator autoBuild();
+
+    public SyntheticBundleGenerator build() {
+      SyntheticBundleGenerator generator = autoBuild();
+      checkArgument(generator.getModuleCount() > 0, "At least the base module is required.");
+      checkArgument(
+          generator.getDensityCount() <= DENSITIES.size(),
+          "At most %s densities are supported.",
+          DENSITIES.size());
+      checkArgument(
+          generator.getLanguageCount() <= LANGUAGES.size(),
+          "At most %s languages are supported.",
+          LANGUAGES.size());
+      return generator;
+    }
+  }
+}
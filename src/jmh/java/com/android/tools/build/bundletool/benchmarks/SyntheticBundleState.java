@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Base state of the benchmarks operating on a synthetic bundle.
+ *
+ * <p>The shape of the bundle can be changed from the command line, e.g. {@code -p
+ * moduleCount=1,10}.
+ */
+@State(Scope.Benchmark)
+public abstract class SyntheticBundleState {
+
+  @Param("3")
+  public int moduleCount;
+
+  @Param("100")
+  public int resourcesPerModule;
+
+  @Param("4")
+  public int densityCount;
+
+  @Param("5")
+  public int languageCount;
+
+  @Param("20")
+  public int assetsPerModule;
+
+  private Path tempDir;
+
+  protected SyntheticBundleGenerator bundleGenerator() {
+    return SyntheticBundleGenerator.builder()
+        .setModuleCount(moduleCount)
+        .setResourcesPerModule(resourcesPerModule)
+        .setDensityCount(densityCount)
+        .setLanguageCount(languageCount)
+        .setAssetsPerModule(assetsPerModule)
+        .build();
+  }
+
+  /** Returns a directory which is deleted at the end of the trial. */
+  protected Path getTempDir() throws IOException {
+    if (tempDir == null) {
+      tempDir = Files.createTempDirectory("bundletool-benchmark");
+    }
+    return tempDir;
+  }
+
+  @TearDown
+  public void deleteTempDir() throws IOException {
+    if (tempDir != null) {
+      MoreFiles.deleteRecursively(tempDir, RecursiveDeleteOption.ALLOW_INSECURE);
+      tempDir = null;
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.benchmarks;
+
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmarks the writing of the content of all modules of a bundle into a zip file. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ZipBuilderBenchmark extends SyntheticBundleState {
+
+  /** Number of threads compressing the entries, 0 meaning that they are compressed in order. */
+  @Param({"0", "4"})
+  public int threadCount;
+
+  private ZipBuilder zipBuilder;
+  private Path outputPath;
+  private Optional<ListeningExecutorService> executorService = Optional.empty();
+
+  @Setup
+  public void generateBundle() throws IOException {
+    AppBundle appBundle = bundleGenerator().generate();
+    zipBuilder = new ZipBuilder();
+    for (BundleModule module : appBundle.getModules().values()) {
+      ZipPath moduleDir = ZipPath.create(module.getName().getName());
+      for (ModuleEntry entry : module.getEntries()) {
+        // Content is loaded in memory so that only the writing of the zip file is measured.
+        try (InputStream content = entry.getContent()) {
+          zipBuilder.addFileWithContent(
+              moduleDir.resolve(entry.getPath()), ByteStreams.toByteArray(content));
+        }
+      }
+    }
+    outputPath = getTempDir().resolve("output.zip");
+    if (threadCount > 0) {
+      executorService =
+          Optional.of(
+              MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount)));
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void deleteOutput() throws IOException {
+    Files.deleteIfExists(outputPath);
+  }
+
+  @Benchmark
+  public Path writeTo() throws IOException {
+    return executorService.isPresent()
+        ? zipBuilder.writeTo(outputPath, executorService.get())
+        : zipBuilder.writeTo(outputPath);
+  }
+
+  @TearDown
+  public void shutdownExecutor() {
+    executorService.ifPresent(ListeningExecutorService::shutdown);
+  }
+}
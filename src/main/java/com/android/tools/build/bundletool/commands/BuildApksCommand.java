@@ -23,8 +23,11 @@ import com.android.tools.build.bundletool.commands.CommandHelp.FlagDescription;
 import com.android.tools.build.bundletool.device.AdbServer;
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.exceptions.ValidationException;
+import com.android.tools.build.bundletool.io.ApkCache;
 import com.android.tools.build.bundletool.io.TempFiles;
+import com.android.tools.build.bundletool.mergers.DexMergeCache;
 import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.Aapt2DaemonPool;
 import com.android.tools.build.bundletool.model.ApkListener;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.OptimizationDimension;
@@ -32,11 +35,14 @@ import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.splitters.DexCompressionSplitter;
 import com.android.tools.build.bundletool.splitters.NativeLibrariesCompressionSplitter;
 import com.android.tools.build.bundletool.utils.EnvironmentVariableProvider;
+import com.android.tools.build.bundletool.utils.MemoryBudget;
 import com.android.tools.build.bundletool.utils.SdkToolsLocator;
 import com.android.tools.build.bundletool.utils.SystemEnvironmentVariableProvider;
 import com.android.tools.build.bundletool.utils.flags.Flag;
 import com.android.tools.build.bundletool.utils.flags.Flag.Password;
 import com.android.tools.build.bundletool.utils.flags.ParsedFlags;
+import com.android.tools.build.bundletool.utils.tracing.RecordingTracer;
+import com.android.tools.build.bundletool.utils.tracing.Tracer;
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.MoreFiles;
@@ -56,16 +62,44 @@ public abstract class BuildApksCommand {
 
   private static final int DEFAULT_THREAD_POOL_SIZE = 4;
 
+  private static final int DEFAULT_APK_CACHE_MAX_SIZE_MB = 2048;
+
+  private static final int DEFAULT_DEX_CACHE_MAX_SIZE_MB = 512;
+
   public static final String COMMAND_NAME = "build-apks";
 
+  /** How proto APKs are converted to binary APKs. */
+  public enum Aapt2Mode {
+    /** Runs the aapt2 binary once per APK. */
+    PROCESS,
+    /**
+     * Encodes the resources in the current JVM, falling back to the aapt2 binary for inputs that
+     * cannot be encoded in-process.
+     */
+    IN_PROCESS,
+    /** Sends the commands to a pool of long-running aapt2 daemon processes. */
+    DAEMON
+  }
+
   private static final Flag<Path> BUNDLE_LOCATION_FLAG = Flag.path("bundle");
   private static final Flag<Path> OUTPUT_FILE_FLAG = Flag.path("output");
   private static final Flag<Boolean> OVERWRITE_OUTPUT_FLAG = Flag.booleanFlag("overwrite");
   private static final Flag<ImmutableSet<OptimizationDimension>> OPTIMIZE_FOR_FLAG =
       Flag.enumSet("optimize-for", OptimizationDimension.class);
   private static final Flag<Path> AAPT2_PATH_FLAG = Flag.path("aapt2");
+  private static final Flag<Aapt2Mode> AAPT2_MODE_FLAG =
+      Flag.enumFlag("aapt2-mode", Aapt2Mode.class);
   private static final Flag<Boolean> GENERATE_UNIVERSAL_APK_FLAG = Flag.booleanFlag("universal");
   private static final Flag<Integer> MAX_THREADS_FLAG = Flag.positiveInteger("max-threads");
+  private static final Flag<Path> APK_CACHE_DIR_FLAG = Flag.path("apk-cache-dir");
+  private static final Flag<Integer> APK_CACHE_MAX_SIZE_FLAG =
+      Flag.positiveInteger("apk-cache-max-size-mb");
+  private static final Flag<Path> DEX_CACHE_DIR_FLAG = Flag.path("dex-cache-dir");
+  private static final Flag<Integer> DEX_CACHE_MAX_SIZE_FLAG =
+      Flag.positiveInteger("dex-cache-max-size-mb");
+  private static final Flag<Path> TRACE_OUTPUT_FLAG = Flag.path("trace-output");
+  private static final Flag<Integer> SERIALIZATION_MEMORY_BUDGET_FLAG =
+      Flag.positiveInteger("serialization-memory-budget-mb");
 
   private static final Flag<Path> ADB_PATH_FLAG = Flag.path("adb");
   private static final Flag<Boolean> CONNECTED_DEVICE_FLAG = Flag.booleanFlag("connected-device");
@@ -110,8 +144,20 @@ public abstract class BuildApksCommand {
 
   public abstract Optional<Aapt2Command> getAapt2Command();
 
+  public abstract Aapt2Mode getAapt2Mode();
+
   public abstract Optional<SigningConfiguration> getSigningConfiguration();
 
+  public abstract Optional<ApkCache> getApkCache();
+
+  public abstract Optional<DexMergeCache> getDexMergeCache();
+
+  public abstract Optional<Tracer> getTracer();
+
+  public abstract Optional<Path> getTraceOutputDirectory();
+
+  public abstract Optional<MemoryBudget> getSerializationMemoryBudget();
+
   ListeningExecutorService getExecutorService() {
     return getExecutorServiceInternal();
   }
@@ -120,6 +166,9 @@ public abstract class BuildApksCommand {
 
   abstract boolean isExecutorServiceCreatedByBundleTool();
 
+  /** Number of threads of the executor service, when it was created by bundletool. */
+  abstract Optional<Integer> getExecutorServiceThreadCount();
+
   public abstract boolean getCreateApkSetArchive();
 
 
@@ -135,6 +184,7 @@ public abstract class BuildApksCommand {
         .setGenerateOnlyUniversalApk(false)
         .setGenerateOnlyForConnectedDevice(false)
         .setCreateApkSetArchive(true)
+        .setAapt2Mode(Aapt2Mode.PROCESS)
         .setOptimizationDimensions(ImmutableSet.of());
   }
 
@@ -190,6 +240,17 @@ public abstract class BuildApksCommand {
     /** Provides a wrapper around the execution of the aapt2 command. */
     public abstract Builder setAapt2Command(Aapt2Command aapt2Command);
 
+    /**
+     * Sets how proto APKs are converted to binary APKs.
+     *
+     * <p>In mode {@link Aapt2Mode#IN_PROCESS}, the aapt2 command (either set explicitly or
+     * extracted from the bundletool jar) is only used as a fallback. In mode {@link
+     * Aapt2Mode#DAEMON}, an {@link Aapt2DaemonPool} is created for the aapt2 binary extracted from
+     * the bundletool jar unless an aapt2 command is set; the pool in use is closed at the end of
+     * the command. Defaults to {@link Aapt2Mode#PROCESS}.
+     */
+    public abstract Builder setAapt2Mode(Aapt2Mode aapt2Mode);
+
     /**
      * Sets the signing configuration for the generated APKs.
      *
@@ -197,6 +258,49 @@ public abstract class BuildApksCommand {
      */
     public abstract Builder setSigningConfiguration(SigningConfiguration signingConfiguration);
 
+    /**
+     * Sets a cache of serialized APKs, possibly shared with other invocations of bundletool.
+     *
+     * <p>Optional. APKs identical to an APK of the cache are copied from the cache instead of being
+     * serialized again.
+     */
+    public abstract Builder setApkCache(ApkCache apkCache);
+
+    /**
+     * Sets a cache of merged dex files, possibly shared with other invocations of bundletool.
+     *
+     * <p>Optional. When generating standalone APKs, dex files identical to the inputs of a cached
+     * merge are not merged again.
+     */
+    public abstract Builder setDexMergeCache(DexMergeCache dexMergeCache);
+
+    /**
+     * Sets a {@link Tracer} notified of the phases of the command and of the serialization of
+     * each APK.
+     *
+     * <p>Optional. The {@link Tracer} must be thread-safe. Mutually exclusive with {@link
+     * #setTraceOutputDirectory(Path)}.
+     */
+    public abstract Builder setTracer(Tracer tracer);
+
+    /**
+     * Sets the directory where a trace of the command is written once it completes.
+     *
+     * <p>Optional. The directory receives a trace in the Chrome trace event format ({@value
+     * RecordingTracer#CHROME_TRACE_FILE_NAME}) and a {@link
+     * com.android.bundle.Trace.TraceSummary} ({@value RecordingTracer#SUMMARY_FILE_NAME}).
+     */
+    public abstract Builder setTraceOutputDirectory(Path traceOutputDirectory);
+
+    /**
+     * Sets the budget bounding the estimated memory footprint of the APKs serialized at the same
+     * time. APKs wait for enough of the budget to be available before being serialized.
+     *
+     * <p>Optional. Defaults to {@link MemoryBudget#fromMaxHeapSize()}. The statistics of the budget
+     * tell the peak reserved memory and the time spent waiting on the budget.
+     */
+    public abstract Builder setSerializationMemoryBudget(MemoryBudget memoryBudget);
+
     /**
      * Allows to set an executor service for parallelization.
      *
@@ -221,6 +325,8 @@ public abstract class BuildApksCommand {
      */
     abstract Builder setExecutorServiceCreatedByBundleTool(boolean value);
 
+    abstract Builder setExecutorServiceThreadCount(int threadCount);
+
     /**
      * If false will extract the APK set to the output directory without creating the final archive.
      * Important: if this mode is used, the caller should still provide a "apks file" as the output
@@ -260,6 +366,7 @@ public abstract class BuildApksCommand {
       if (!getExecutorServiceInternal().isPresent()) {
         setExecutorServiceInternal(createInternalExecutorService(DEFAULT_THREAD_POOL_SIZE));
         setExecutorServiceCreatedByBundleTool(true);
+        setExecutorServiceThreadCount(DEFAULT_THREAD_POOL_SIZE);
       }
 
       BuildApksCommand command = autoBuild();
@@ -289,6 +396,11 @@ public abstract class BuildApksCommand {
             "Setting --device-id requires using the --connected-device flag.");
       }
 
+      if (command.getTracer().isPresent() && command.getTraceOutputDirectory().isPresent()) {
+        throw new ValidationException(
+            "Cannot set a tracer and a trace output directory at the same time.");
+      }
+
       if (command.getCreateApkSetArchive()) {
         if (!APK_SET_ARCHIVE_EXTENSION.equals(
             MoreFiles.getFileExtension(command.getOutputFile()))) {
@@ -320,11 +432,18 @@ public abstract class BuildApksCommand {
 
     // Optional arguments.
     OVERWRITE_OUTPUT_FLAG.getValue(flags).ifPresent(buildApksCommand::setOverwriteOutput);
+    Optional<Aapt2Mode> aapt2Mode = AAPT2_MODE_FLAG.getValue(flags);
+    aapt2Mode.ifPresent(buildApksCommand::setAapt2Mode);
     AAPT2_PATH_FLAG
         .getValue(flags)
         .ifPresent(
             aapt2Path ->
-                buildApksCommand.setAapt2Command(Aapt2Command.createFromExecutablePath(aapt2Path)));
+                buildApksCommand.setAapt2Command(
+                    aapt2Mode.equals(Optional.of(Aapt2Mode.DAEMON))
+                        ? new Aapt2DaemonPool(
+                            aapt2Path,
+                            MAX_THREADS_FLAG.getValue(flags).orElse(DEFAULT_THREAD_POOL_SIZE))
+                        : Aapt2Command.createFromExecutablePath(aapt2Path)));
     GENERATE_UNIVERSAL_APK_FLAG
         .getValue(flags)
         .ifPresent(buildApksCommand::setGenerateOnlyUniversalApk);
@@ -334,8 +453,43 @@ public abstract class BuildApksCommand {
             maxThreads ->
                 buildApksCommand
                     .setExecutorService(createInternalExecutorService(maxThreads))
-                    .setExecutorServiceCreatedByBundleTool(true));
+                    .setExecutorServiceCreatedByBundleTool(true)
+                    .setExecutorServiceThreadCount(maxThreads));
     OPTIMIZE_FOR_FLAG.getValue(flags).ifPresent(buildApksCommand::setOptimizationDimensions);
+    Optional<Path> apkCacheDir = APK_CACHE_DIR_FLAG.getValue(flags);
+    Optional<Integer> apkCacheMaxSizeMb = APK_CACHE_MAX_SIZE_FLAG.getValue(flags);
+    if (apkCacheDir.isPresent()) {
+      long maxSizeBytes =
+          apkCacheMaxSizeMb.orElse(DEFAULT_APK_CACHE_MAX_SIZE_MB).longValue() * 1024 * 1024;
+      buildApksCommand.setApkCache(new ApkCache(apkCacheDir.get(), maxSizeBytes));
+    } else if (apkCacheMaxSizeMb.isPresent()) {
+      throw CommandExecutionException.builder()
+          .withMessage(
+              "Flag --%s requires the flag --%s.",
+              APK_CACHE_MAX_SIZE_FLAG.getName(), APK_CACHE_DIR_FLAG.getName())
+          .build();
+    }
+    Optional<Path> dexCacheDir = DEX_CACHE_DIR_FLAG.getValue(flags);
+    Optional<Integer> dexCacheMaxSizeMb = DEX_CACHE_MAX_SIZE_FLAG.getValue(flags);
+    if (dexCacheDir.isPresent()) {
+      long maxSizeBytes =
+          dexCacheMaxSizeMb.orElse(DEFAULT_DEX_CACHE_MAX_SIZE_MB).longValue() * 1024 * 1024;
+      buildApksCommand.setDexMergeCache(new DexMergeCache(dexCacheDir.get(), maxSizeBytes));
+    } else if (dexCacheMaxSizeMb.isPresent()) {
+      throw CommandExecutionException.builder()
+          .withMessage(
+              "Flag --%s requires the flag --%s.",
+              DEX_CACHE_MAX_SIZE_FLAG.getName(), DEX_CACHE_DIR_FLAG.getName())
+          .build();
+    }
+
+    TRACE_OUTPUT_FLAG.getValue(flags).ifPresent(buildApksCommand::setTraceOutputDirectory);
+    SERIALIZATION_MEMORY_BUDGET_FLAG
+        .getValue(flags)
+        .ifPresent(
+            budgetMb ->
+                buildApksCommand.setSerializationMemoryBudget(
+                    new MemoryBudget(budgetMb.longValue() * 1024 * 1024)));
 
     // Signing-related arguments.
     Optional<Path> keystorePath = KEYSTORE_FLAG.getValue(flags);
@@ -445,6 +599,18 @@ public abstract class BuildApksCommand {
                 .setOptional(true)
                 .setDescription("Path to the aapt2 binary to use.")
                 .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(AAPT2_MODE_FLAG.getName())
+                .setExampleValue("process|in_process|daemon")
+                .setOptional(true)
+                .setDescription(
+                    "How resources are converted to the binary format. 'process' (default) runs "
+                        + "the aapt2 binary for each APK; 'in_process' encodes them in the "
+                        + "bundletool JVM and only falls back to aapt2 for unsupported inputs; "
+                        + "'daemon' keeps one aapt2 daemon process per thread and reuses it "
+                        + "across APKs.")
+                .build())
         .addFlag(
             FlagDescription.builder()
                 .setFlagName(GENERATE_UNIVERSAL_APK_FLAG.getName())
@@ -463,6 +629,67 @@ public abstract class BuildApksCommand {
                     "Sets the maximum number of threads to use (default: %d).",
                     DEFAULT_THREAD_POOL_SIZE)
                 .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(APK_CACHE_DIR_FLAG.getName())
+                .setExampleValue("path/to/cache")
+                .setOptional(true)
+                .setDescription(
+                    "Directory where generated APKs are cached, keyed by their content. APKs "
+                        + "already present in the cache are copied instead of being generated "
+                        + "again. The directory can be shared by concurrent invocations.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(APK_CACHE_MAX_SIZE_FLAG.getName())
+                .setExampleValue("size-in-mb")
+                .setOptional(true)
+                .setDescription(
+                    "Maximum size of the APK cache set with --%s, beyond which the least "
+                        + "recently used APKs are evicted (default: %d).",
+                    APK_CACHE_DIR_FLAG.getName(), DEFAULT_APK_CACHE_MAX_SIZE_MB)
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(DEX_CACHE_DIR_FLAG.getName())
+                .setExampleValue("path/to/cache")
+                .setOptional(true)
+                .setDescription(
+                    "Directory where the dex files merged for standalone APKs are cached, keyed "
+                        + "by the content of the merged dex files. Identical merges are not run "
+                        + "again. The directory can be shared by concurrent invocations.")
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(DEX_CACHE_MAX_SIZE_FLAG.getName())
+                .setExampleValue("size-in-mb")
+                .setOptional(true)
+                .setDescription(
+                    "Maximum size of the dex cache set with --%s, beyond which the least "
+                        + "recently used merged dex files are evicted (default: %d).",
+                    DEX_CACHE_DIR_FLAG.getName(), DEFAULT_DEX_CACHE_MAX_SIZE_MB)
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(TRACE_OUTPUT_FLAG.getName())
+                .setExampleValue("path/to/trace-dir")
+                .setOptional(true)
+                .setDescription(
+                    "Directory where a trace of the time, CPU, memory and I/O spent in each phase "
+                        + "of the command is written: '%s' can be opened in chrome://tracing and "
+                        + "'%s' contains a TraceSummary proto to compare runs.",
+                    RecordingTracer.CHROME_TRACE_FILE_NAME, RecordingTracer.SUMMARY_FILE_NAME)
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(SERIALIZATION_MEMORY_BUDGET_FLAG.getName())
+                .setExampleValue("size-in-mb")
+                .setOptional(true)
+                .setDescription(
+                    "Memory available to the APKs serialized concurrently. APKs whose estimated "
+                        + "memory footprint does not fit wait for other APKs to complete, even "
+                        + "if threads are available (default: half of the maximum heap size).")
+                .build())
         .addFlag(
             FlagDescription.builder()
                 .setFlagName(OPTIMIZE_FOR_FLAG.getName())
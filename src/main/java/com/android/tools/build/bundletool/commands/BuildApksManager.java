@@ -22,6 +22,7 @@ import static com.android.tools.build.bundletool.utils.files.FilePreconditions.c
 import static com.android.tools.build.bundletool.utils.files.FilePreconditions.checkFileExistsAndReadable;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.android.bundle.Commands.BuildApksResult;
 import com.android.bundle.Commands.Variant;
@@ -42,7 +43,11 @@ import com.android.tools.build.bundletool.io.ApkSetBuilderFactory;
 import com.android.tools.build.bundletool.io.ApkSetBuilderFactory.ApkSetBuilder;
 import com.android.tools.build.bundletool.io.SplitApkSerializer;
 import com.android.tools.build.bundletool.io.StandaloneApkSerializer;
+import com.android.tools.build.bundletool.mergers.CachingDexMerger;
+import com.android.tools.build.bundletool.mergers.D8DexMerger;
+import com.android.tools.build.bundletool.mergers.DexMerger;
 import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.Aapt2DaemonPool;
 import com.android.tools.build.bundletool.model.ApkListener;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.AppBundle;
@@ -54,38 +59,95 @@ import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.optimizations.ApkOptimizations;
 import com.android.tools.build.bundletool.optimizations.OptimizationsMerger;
+import com.android.tools.build.bundletool.resources.InProcessAapt2Command;
 import com.android.tools.build.bundletool.splitters.ApkGenerationConfiguration;
 import com.android.tools.build.bundletool.splitters.BundleSharder;
 import com.android.tools.build.bundletool.splitters.SplitApksGenerator;
 import com.android.tools.build.bundletool.targeting.AlternativeVariantTargetingPopulator;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
+import com.android.tools.build.bundletool.utils.MemoryBudget;
 import com.android.tools.build.bundletool.utils.SdkToolsLocator;
 import com.android.tools.build.bundletool.utils.SplitsXmlInjector;
 import com.android.tools.build.bundletool.utils.Versions;
+import com.android.tools.build.bundletool.utils.tracing.RecordingTracer;
+import com.android.tools.build.bundletool.utils.tracing.TraceSpan;
+import com.android.tools.build.bundletool.utils.tracing.Tracer;
+import com.android.tools.build.bundletool.utils.tracing.TracingExecutorService;
 import com.android.tools.build.bundletool.validation.AppBundleValidator;
 import com.android.tools.build.bundletool.version.BundleToolVersion;
 import com.android.tools.build.bundletool.version.Version;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Optional;
-import java.util.zip.ZipFile;
+import java.util.logging.Logger;
 
 /** Executes the "build-apks" command. */
 final class BuildApksManager {
 
+  private static final Logger logger = Logger.getLogger(BuildApksManager.class.getName());
+
+  private static final long CANCELLATION_TIMEOUT_SECONDS = 30;
+
   private final BuildApksCommand command;
+  private final Optional<RecordingTracer> recordingTracer;
+  private final Tracer tracer;
+
+  /** Daemons started by bundletool, as opposed to a pool provided by the caller, to be stopped. */
+  private Optional<Aapt2DaemonPool> aapt2DaemonPoolCreatedByBundleTool = Optional.empty();
 
   BuildApksManager(BuildApksCommand command) {
     this.command = command;
+    this.recordingTracer = command.getTraceOutputDirectory().map(dir -> new RecordingTracer());
+    this.tracer =
+        recordingTracer.isPresent()
+            ? recordingTracer.get()
+            : command.getTracer().orElse(Tracer.NO_OP);
   }
 
+  @SuppressWarnings("try") // Spans that only time a step are not referenced.
   public Path execute(Path tempDir) {
+    Path outputFile;
+    boolean succeeded = false;
+    try {
+      try (TraceSpan span = tracer.startSpan("buildApks")) {
+        outputFile = executeInternal(tempDir);
+      }
+      succeeded = true;
+    } finally {
+      // The trace of a failed command is the most useful to understand what went wrong.
+      if (recordingTracer.isPresent()) {
+        writeTrace(recordingTracer.get(), succeeded);
+      }
+    }
+    return outputFile;
+  }
+
+  private void writeTrace(RecordingTracer recordingTracer, boolean commandSucceeded) {
+    Path traceOutputDirectory = command.getTraceOutputDirectory().get();
+    try {
+      recordingTracer.writeTo(traceOutputDirectory);
+    } catch (IOException e) {
+      if (commandSucceeded) {
+        throw new UncheckedIOException(
+            String.format("Failed to write the trace to '%s'.", traceOutputDirectory), e);
+      }
+      // Don't hide the error of the command.
+      logger.warning(
+          String.format(
+              "Failed to write the trace to '%s': %s", traceOutputDirectory, e.getMessage()));
+    }
+  }
+
+  @SuppressWarnings("try") // Spans that only time a step are not referenced.
+  private Path executeInternal(Path tempDir) {
     validateInput();
 
-    Aapt2Command aapt2Command =
-        command.getAapt2Command().orElseGet(() -> extractAapt2FromJar(tempDir));
+    Aapt2Command aapt2Command = createAapt2Command(tempDir);
 
     // Fail fast with ADB before generating any APKs.
     Optional<DeviceSpec> deviceSpec = Optional.empty();
@@ -95,12 +157,22 @@ final class BuildApksManager {
       deviceSpec = Optional.of(DeviceSpecParser.parseDeviceSpec(command.getDeviceSpecPath().get()));
     }
 
-    try (ZipFile bundleZip = new ZipFile(command.getBundlePath().toFile())) {
+    boolean succeeded = false;
+    Optional<ApkSetBuilder> apkSetBuilderToClose = Optional.empty();
+    try (MappedZipFile mappedBundleZip = MappedZipFile.open(command.getBundlePath())) {
       AppBundleValidator bundleValidator = new AppBundleValidator();
 
-      bundleValidator.validateFile(bundleZip);
-      AppBundle appBundle = AppBundle.buildFromZip(bundleZip);
-      bundleValidator.validate(appBundle);
+      try (TraceSpan span = tracer.startSpan("validateBundleFile")) {
+        bundleValidator.validateFile(mappedBundleZip);
+      }
+      AppBundle appBundle;
+      try (TraceSpan span = tracer.startSpan("buildFromZip")) {
+        appBundle = AppBundle.buildFromZip(mappedBundleZip);
+        span.addBytesRead(Files.size(command.getBundlePath()));
+      }
+      try (TraceSpan span = tracer.startSpan("validateBundle")) {
+        bundleValidator.validate(appBundle);
+      }
 
       BundleConfig bundleConfig = appBundle.getBundleConfig();
       Version bundleVersion = BundleToolVersion.getVersionFromBundleConfig(bundleConfig);
@@ -114,6 +186,7 @@ final class BuildApksManager {
               command.getSigningConfiguration(),
               bundleConfig.getCompression(),
               tempDir);
+      apkSetBuilderToClose = Optional.of(apkSetBuilder);
 
       ApkOptimizations apkOptimizations =
           command.getGenerateOnlyUniversalApk()
@@ -145,54 +218,33 @@ final class BuildApksManager {
 
       GeneratedApks.Builder generatedApksBuilder = GeneratedApks.builder();
       if (generateSplitApks) {
-        ApkGenerationConfiguration.Builder apkGenerationConfiguration =
-            ApkGenerationConfiguration.builder()
-                .setOptimizationDimensions(apkOptimizations.getSplitDimensions());
-        boolean enableNativeLibraryCompressionSplitter =
-            apkOptimizations.getUncompressNativeLibraries();
-        apkGenerationConfiguration.setEnableNativeLibraryCompressionSplitter(
-            enableNativeLibraryCompressionSplitter);
-        generatedApksBuilder.setSplitApks(
-            new SplitApksGenerator(
-                    allModules,
-                    bundleVersion,
-                    apkGenerationConfiguration.setForInstantAppVariants(false).build())
-                .generateSplits());
-
-        // Generate instant splits for any instant compatible modules.
-        ImmutableList<BundleModule> instantModules =
-            allModules.stream().filter(BundleModule::isInstantModule).collect(toImmutableList());
-        generatedApksBuilder.setInstantApks(
-            new SplitApksGenerator(
-                    instantModules,
-                    bundleVersion,
-                    apkGenerationConfiguration
-                        .setForInstantAppVariants(true)
-                        // We can't enable this splitter for instant APKs, as currently they only
-                        // support one variant.
-                        .setEnableDexCompressionSplitter(false)
-                        .build())
-                .generateSplits());
+        try (TraceSpan span = tracer.startSpan("generateSplitApks")) {
+          generateSplitApks(
+              generatedApksBuilder, allModules, apkOptimizations, bundleVersion, deviceSpec);
+        }
       }
       if (generateStandaloneApks) {
         // Note: Universal APK is a special type of standalone, with no optimization dimensions.
         ImmutableList<BundleModule> modulesForFusing =
             allModules.stream().filter(BundleModule::isIncludedInFusing).collect(toImmutableList());
-        generatedApksBuilder.setStandaloneApks(
-            generateStandaloneApks(
-                modulesForFusing,
-                appBundle.getBundleMetadata(),
-                tempDir,
-                apkOptimizations,
-                bundleVersion));
+        try (TraceSpan span = tracer.startSpan("generateStandaloneApks")) {
+          generatedApksBuilder.setStandaloneApks(
+              generateStandaloneApks(
+                  modulesForFusing,
+                  appBundle.getBundleMetadata(),
+                  tempDir,
+                  apkOptimizations,
+                  bundleVersion));
+        }
       }
       // Populate alternative targeting based on variant targeting of all APKs.
       GeneratedApks generatedApks =
           AlternativeVariantTargetingPopulator.populateAlternativeVariantTargeting(
               generatedApksBuilder.build());
 
-      SplitsXmlInjector splitsXmlInjector = new SplitsXmlInjector();
-      generatedApks = splitsXmlInjector.process(generatedApks);
+      try (TraceSpan span = tracer.startSpan("injectSplitsXml")) {
+        generatedApks = new SplitsXmlInjector().process(generatedApks);
+      }
 
       // Create variants and serialize APKs.
       ApkSerializerManager apkSerializerManager =
@@ -202,15 +254,19 @@ final class BuildApksManager {
               command.getExecutorService(),
               command.getApkListener().orElse(ApkListener.NO_OP),
               command.getApkModifier().orElse(ApkModifier.NO_OP),
-              command.getFirstVariantNumber().orElse(0));
+              command.getFirstVariantNumber().orElse(0),
+              tracer,
+              command.getSerializationMemoryBudget().orElseGet(MemoryBudget::fromMaxHeapSize));
       ImmutableList<Variant> allVariantsWithTargeting;
-      if (deviceSpec.isPresent()) {
-        allVariantsWithTargeting =
-            apkSerializerManager.serializeApksForDevice(generatedApks, deviceSpec.get());
-      } else if (command.getGenerateOnlyUniversalApk()) {
-        allVariantsWithTargeting = apkSerializerManager.serializeUniversalApk(generatedApks);
-      } else {
-        allVariantsWithTargeting = apkSerializerManager.serializeApks(generatedApks);
+      try (TraceSpan span = tracer.startSpan("serializeApks")) {
+        if (deviceSpec.isPresent()) {
+          allVariantsWithTargeting =
+              apkSerializerManager.serializeApksForDevice(generatedApks, deviceSpec.get());
+        } else if (command.getGenerateOnlyUniversalApk()) {
+          allVariantsWithTargeting = apkSerializerManager.serializeUniversalApk(generatedApks);
+        } else {
+          allVariantsWithTargeting = apkSerializerManager.serializeApks(generatedApks);
+        }
       }
       // Finalize the output archive.
       apkSetBuilder.setTableOfContentsFile(
@@ -223,7 +279,13 @@ final class BuildApksManager {
       if (command.getOverwriteOutput()) {
         Files.deleteIfExists(command.getOutputFile());
       }
-      apkSetBuilder.writeTo(command.getOutputFile());
+      try (TraceSpan span = tracer.startSpan("writeApkSet")) {
+        apkSetBuilder.writeTo(command.getOutputFile());
+        if (Files.isRegularFile(command.getOutputFile())) {
+          span.addBytesWritten(Files.size(command.getOutputFile()));
+        }
+      }
+      succeeded = true;
     } catch (IOException e) {
       throw new UncheckedIOException(
           String.format(
@@ -231,13 +293,39 @@ final class BuildApksManager {
           e);
     } finally {
       if (command.isExecutorServiceCreatedByBundleTool()) {
-        command.getExecutorService().shutdown();
+        if (succeeded) {
+          command.getExecutorService().shutdown();
+        } else {
+          // Interrupts the tasks still running, e.g. other APKs of a failed build-apks.
+          command.getExecutorService().shutdownNow();
+        }
+      }
+      // Also kills daemons still running commands of cancelled tasks.
+      aapt2DaemonPoolCreatedByBundleTool.ifPresent(Aapt2DaemonPool::close);
+      if (!succeeded && command.isExecutorServiceCreatedByBundleTool()) {
+        awaitCancelledTasks();
       }
+      // Deletes the partial APK Set archive once no task appends to it anymore.
+      apkSetBuilderToClose.ifPresent(ApkSetBuilder::close);
     }
 
     return command.getOutputFile();
   }
 
+  /**
+   * Waits for the cancelled tasks to stop, so that none of them writes to the temp directory while
+   * it is being deleted.
+   */
+  private void awaitCancelledTasks() {
+    try {
+      if (!command.getExecutorService().awaitTermination(CANCELLATION_TIMEOUT_SECONDS, SECONDS)) {
+        logger.warning("Some tasks did not stop after the failure of the command.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   private DeviceSpec getDeviceSpec() {
     AdbServer adbServer = command.getAdbServer().get();
     adbServer.init(command.getAdbPath().get());
@@ -252,10 +340,21 @@ final class BuildApksManager {
       Path tempDir) {
     ApkPathManager apkPathmanager = new ApkPathManager();
     SplitApkSerializer splitApkSerializer =
-        new SplitApkSerializer(apkPathmanager, aapt2Command, signingConfiguration, compression);
+        new SplitApkSerializer(
+            apkPathmanager,
+            aapt2Command,
+            signingConfiguration,
+            compression,
+            command.getApkCache(),
+            tracer);
     StandaloneApkSerializer standaloneApkSerializer =
         new StandaloneApkSerializer(
-            apkPathmanager, aapt2Command, signingConfiguration, compression);
+            apkPathmanager,
+            aapt2Command,
+            signingConfiguration,
+            compression,
+            command.getApkCache(),
+            tracer);
 
     if (!command.getCreateApkSetArchive()) {
       return ApkSetBuilderFactory.createApkSetWithoutArchiveBuilder(
@@ -265,10 +364,45 @@ final class BuildApksManager {
         splitApkSerializer, standaloneApkSerializer, tempDir);
   }
 
+  private Aapt2Command createAapt2Command(Path tempDir) {
+    switch (command.getAapt2Mode()) {
+      case PROCESS:
+        return command.getAapt2Command().orElseGet(() -> extractAapt2FromJar(tempDir));
+      case IN_PROCESS:
+        // The aapt2 binary is only extracted if an APK cannot be converted in-process. The one
+        // embedded in the jar is identified by the version of bundletool it ships with.
+        return new InProcessAapt2Command(
+            Suppliers.memoize(
+                () -> command.getAapt2Command().orElseGet(() -> extractAapt2FromJar(tempDir))),
+            () ->
+                command.getAapt2Command().isPresent()
+                    ? command.getAapt2Command().get().getIdentity()
+                    : Optional.of("embedded:" + BundleToolVersion.getCurrentVersion()));
+      case DAEMON:
+        if (command.getAapt2Command().isPresent()) {
+          return command.getAapt2Command().get();
+        }
+        Aapt2DaemonPool aapt2DaemonPool =
+            new Aapt2DaemonPool(
+                extractAapt2PathFromJar(tempDir),
+                // One daemon per thread converting APKs. Daemons are started on demand, so the
+                // bound only matters for executors provided by the caller.
+                command
+                    .getExecutorServiceThreadCount()
+                    .orElse(Runtime.getRuntime().availableProcessors()));
+        aapt2DaemonPoolCreatedByBundleTool = Optional.of(aapt2DaemonPool);
+        return aapt2DaemonPool;
+    }
+    throw new IllegalStateException("Unknown aapt2 mode: " + command.getAapt2Mode());
+  }
+
   private static Aapt2Command extractAapt2FromJar(Path tempDir) {
+    return Aapt2Command.createFromExecutablePath(extractAapt2PathFromJar(tempDir));
+  }
+
+  private static Path extractAapt2PathFromJar(Path tempDir) {
     return new SdkToolsLocator()
         .extractAapt2(tempDir)
-        .map(Aapt2Command::createFromExecutablePath)
         .orElseThrow(
             () ->
                 new CommandExecutionException(
@@ -297,6 +431,52 @@ final class BuildApksManager {
     }
   }
 
+  private void generateSplitApks(
+      GeneratedApks.Builder generatedApksBuilder,
+      ImmutableList<BundleModule> allModules,
+      ApkOptimizations apkOptimizations,
+      Version bundleVersion,
+      Optional<DeviceSpec> deviceSpec) {
+    ApkGenerationConfiguration.Builder apkGenerationConfiguration =
+        ApkGenerationConfiguration.builder()
+            .setOptimizationDimensions(apkOptimizations.getSplitDimensions());
+    // Variants and splits that can't be served to the device are not generated at all.
+    deviceSpec.ifPresent(apkGenerationConfiguration::setDeviceSpec);
+    boolean enableNativeLibraryCompressionSplitter =
+        apkOptimizations.getUncompressNativeLibraries();
+    apkGenerationConfiguration.setEnableNativeLibraryCompressionSplitter(
+        enableNativeLibraryCompressionSplitter);
+    generatedApksBuilder.setSplitApks(
+        new SplitApksGenerator(
+                allModules,
+                bundleVersion,
+                apkGenerationConfiguration.setForInstantAppVariants(false).build(),
+                tracingExecutorService("splitModule"))
+            .generateSplits());
+
+    // Generate instant splits for any instant compatible modules.
+    ImmutableList<BundleModule> instantModules =
+        allModules.stream().filter(BundleModule::isInstantModule).collect(toImmutableList());
+    generatedApksBuilder.setInstantApks(
+        new SplitApksGenerator(
+                instantModules,
+                bundleVersion,
+                apkGenerationConfiguration
+                    .setForInstantAppVariants(true)
+                    // We can't enable this splitter for instant APKs, as currently they only
+                    // support one variant.
+                    .setEnableDexCompressionSplitter(false)
+                    .build(),
+                tracingExecutorService("splitModule"))
+            .generateSplits());
+  }
+
+  /** Returns the executor of the command, tracing each of its tasks in a span of the given name. */
+  private ListeningExecutorService tracingExecutorService(String taskSpanName) {
+    return new TracingExecutorService(command.getExecutorService(), tracer, taskSpanName);
+  }
+
+  @SuppressWarnings("try") // Spans that only time a step are not referenced.
   private ImmutableList<ModuleSplit> generateStandaloneApks(
       ImmutableList<BundleModule> modules,
       BundleMetadata bundleMetadata,
@@ -304,8 +484,19 @@ final class BuildApksManager {
       ApkOptimizations apkOptimizations,
       Version bundleVersion) {
 
+    DexMerger untracedDexMerger =
+        command.getDexMergeCache().isPresent()
+            ? new CachingDexMerger(new D8DexMerger(), command.getDexMergeCache().get())
+            : new D8DexMerger();
+    DexMerger dexMerger =
+        (dexFiles, outputDir, mainDexListFile, isDebuggable, minSdkVersion) -> {
+          try (TraceSpan span = tracer.startSpan("mergeDex")) {
+            return untracedDexMerger.merge(
+                dexFiles, outputDir, mainDexListFile, isDebuggable, minSdkVersion);
+          }
+        };
     ImmutableList<ModuleSplit> standaloneApks =
-        new BundleSharder(tempDir, bundleVersion)
+        new BundleSharder(tempDir, bundleVersion, tracingExecutorService("mergeShard"), dexMerger)
             .shardBundle(modules, apkOptimizations.getSplitDimensions(), bundleMetadata);
 
     return standaloneApks.stream()
@@ -19,6 +19,7 @@ package com.android.tools.build.bundletool.commands;
 import static com.android.tools.build.bundletool.model.AppBundle.BUNDLE_CONFIG_FILE_NAME;
 import static com.android.tools.build.bundletool.model.AppBundle.METADATA_DIRECTORY;
 import static com.android.tools.build.bundletool.utils.files.FilePreconditions.checkFileDoesNotExist;
+import static com.google.common.base.Predicates.not;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.io.MoreFiles.getNameWithoutExtension;
 
@@ -37,7 +38,7 @@ import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.InputStreamSupplier;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.targeting.TargetingGenerator;
-import com.android.tools.build.bundletool.utils.ZipUtils;
+import com.android.tools.build.bundletool.utils.ConcurrencyUtils;
 import com.android.tools.build.bundletool.utils.files.BufferedIo;
 import com.android.tools.build.bundletool.utils.flags.Flag;
 import com.android.tools.build.bundletool.utils.flags.ParsedFlags;
@@ -46,16 +47,25 @@ import com.android.tools.build.bundletool.version.BundleToolVersion;
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Closer;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
 import com.google.protobuf.util.JsonFormat;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
@@ -65,12 +75,16 @@ public abstract class BuildBundleCommand {
 
   public static final String COMMAND_NAME = "build-bundle";
 
+  private static final int DEFAULT_THREAD_POOL_SIZE = 4;
+
   private static final Flag<Path> OUTPUT_FLAG = Flag.path("output");
   private static final Flag<Path> BUNDLE_CONFIG_FLAG = Flag.path("config");
   private static final Flag<ImmutableList<Path>> MODULES_FLAG = Flag.pathList("modules");
   private static final Flag<ImmutableMap<ZipPath, Path>> METADATA_FILES_FLAG =
       Flag.mapCollector("metadata-file", ZipPath.class, Path.class);
   private static final Flag<Boolean> UNCOMPRESSED_FLAG = Flag.booleanFlag("uncompressed");
+  private static final Flag<Integer> MAX_THREADS_FLAG = Flag.positiveInteger("max-threads");
+  private static final Flag<Path> PREVIOUS_BUNDLE_FLAG = Flag.path("previous-bundle");
 
   public abstract Path getOutputPath();
 
@@ -84,9 +98,19 @@ public abstract class BuildBundleCommand {
 
   abstract boolean getUncompressedBundle();
 
+  /** Returns the executor service on which the entries of the bundle are compressed, if any. */
+  public abstract Optional<ListeningExecutorService> getExecutorService();
+
+  abstract boolean isExecutorServiceCreatedByBundleTool();
+
+  /** Returns the App Bundle previously built from the same modules, if any. */
+  public abstract Optional<Path> getPreviousBundlePath();
+
   public static Builder builder() {
     // By default, everything is compressed.
-    return new AutoValue_BuildBundleCommand.Builder().setUncompressedBundle(false);
+    return new AutoValue_BuildBundleCommand.Builder()
+        .setUncompressedBundle(false)
+        .setExecutorServiceCreatedByBundleTool(false);
   }
 
   /** Builder for the {@link BuildBundleCommand}. */
@@ -148,6 +172,32 @@ public abstract class BuildBundleCommand {
      */
     public abstract Builder setUncompressedBundle(boolean uncompressed);
 
+    /**
+     * Sets the executor service on which the entries of the bundle are read and compressed.
+     *
+     * <p>Optional. If not set, the entries are compressed one after the other. The caller is
+     * responsible for shutting down the executor service.
+     */
+    public abstract Builder setExecutorService(ListeningExecutorService executorService);
+
+    /**
+     * Sets whether the executor service has been created by bundletool, in which case it is shut
+     * down at the end of the execution of the command.
+     */
+    abstract Builder setExecutorServiceCreatedByBundleTool(boolean value);
+
+    /**
+     * Sets the App Bundle previously built by this command from the same modules.
+     *
+     * <p>Optional. The modules that have not changed since are not validated again on their own,
+     * unless the previous bundle has been built by another version of bundletool. When written with
+     * an executor service, their compressed entries are also copied from the previous bundle if it
+     * has been compressed the same way, i.e. also written with an executor service and in the same
+     * Java runtime. The resulting bundle is the same as if it had been built without the previous
+     * bundle.
+     */
+    public abstract Builder setPreviousBundlePath(Path previousBundlePath);
+
     public abstract BuildBundleCommand build();
   }
 
@@ -165,6 +215,13 @@ public abstract class BuildBundleCommand {
         .getValue(flags)
         .ifPresent(metadataFiles -> metadataFiles.forEach(builder::addMetadataFileInternal));
     UNCOMPRESSED_FLAG.getValue(flags).ifPresent(builder::setUncompressedBundle);
+    PREVIOUS_BUNDLE_FLAG.getValue(flags).ifPresent(builder::setPreviousBundlePath);
+    builder
+        .setExecutorService(
+            MoreExecutors.listeningDecorator(
+                Executors.newFixedThreadPool(
+                    MAX_THREADS_FLAG.getValue(flags).orElse(DEFAULT_THREAD_POOL_SIZE))))
+        .setExecutorServiceCreatedByBundleTool(true);
 
     flags.checkNoUnknownFlags();
 
@@ -172,50 +229,84 @@ public abstract class BuildBundleCommand {
   }
 
   public void execute() {
-    validateInput();
+    checkFileDoesNotExist(getOutputPath());
 
-    ZipBuilder bundleBuilder = new ZipBuilder();
+    // The compression is recorded for the next builds to copy the entries of unchanged modules.
+    ZipBuilder bundleBuilder = new ZipBuilder().recordParallelCompression();
 
     try (Closer closer = Closer.create()) {
-    EntryOption[] compression =
-        getUncompressedBundle() ? new EntryOption[] {EntryOption.UNCOMPRESSED} : new EntryOption[0];
+      Optional<PreviousBundle> previousBundle =
+          getPreviousBundlePath().map(path -> closer.register(PreviousBundle.open(path)));
+      ImmutableSet<Path> unchangedModules =
+          previousBundle
+              .map(bundle -> bundle.findUnchangedModules(getModulesPaths()))
+              .orElse(ImmutableSet.of());
+
+      new BundleModulesValidator().validate(getModulesPaths(), unchangedModules);
+
+      EntryOption[] compression =
+          getUncompressedBundle()
+              ? new EntryOption[] {EntryOption.UNCOMPRESSED}
+              : new EntryOption[0];
+
+      // Modules are read concurrently, then added in order so that the bundle is deterministic.
+      ListeningExecutorService executorService =
+          getExecutorService().orElseGet(MoreExecutors::newDirectExecutorService);
+      ImmutableList<ListenableFuture<ModuleZip>> moduleZipFutures =
+          getModulesPaths().stream()
+              .map(module -> executorService.submit(() -> readModuleZip(module)))
+              .collect(toImmutableList());
+      // All modules are waited for before failing, so that all opened zip files get closed.
+      List<ModuleZip> openedModuleZips =
+          ConcurrencyUtils.waitFor(Futures.successfulAsList(moduleZipFutures));
+      for (ModuleZip moduleZip : openedModuleZips) {
+        if (moduleZip != null) {
+          closer.register(moduleZip.getZipFile());
+        }
+      }
 
       // Merge in all the modules, each module into its own sub-directory.
-      for (Path module : getModulesPaths()) {
-        try {
-          ZipFile moduleZipFile = closer.register(new ZipFile(module.toFile()));
-          ZipPath moduleDir = ZipPath.create(getNameWithoutExtension(module));
-
-          bundleBuilder.copyAllContentsFromZip(moduleDir, moduleZipFile, compression);
-
-          Optional<Assets> assetsTargeting = generateAssetsTargeting(moduleZipFile);
-          if (assetsTargeting.isPresent()) {
-            bundleBuilder.addFileWithProtoContent(
-                moduleDir.resolve("assets.pb"), assetsTargeting.get(), compression);
-          }
-
-          Optional<NativeLibraries> nativeLibrariesTargeting =
-              generateNativeLibrariesTargeting(moduleZipFile);
-          if (nativeLibrariesTargeting.isPresent()) {
-            bundleBuilder.addFileWithProtoContent(
-                moduleDir.resolve("native.pb"), nativeLibrariesTargeting.get(), compression);
+      for (ModuleZip moduleZip : ConcurrencyUtils.waitForAll(moduleZipFutures)) {
+        ZipPath moduleDir = ZipPath.create(getNameWithoutExtension(moduleZip.getPath()));
+        // Only the compressed entries of the previous bundle are worth copying, and only if this
+        // build would compress them the same way. Written sequentially, entries are all compressed
+        // again anyway.
+        Optional<PreviousBundle> reusedBundle =
+            unchangedModules.contains(moduleZip.getPath())
+                    && !getUncompressedBundle()
+                    && getExecutorService().isPresent()
+                ? previousBundle.filter(PreviousBundle::hasSameCompression)
+                : Optional.empty();
+
+        for (ZipEntry zipEntry : moduleZip.getFileEntries()) {
+          ZipPath entryPath = moduleDir.resolve(zipEntry.getName());
+          // Entries already compressed in the module zip file are copied from it as they are.
+          Optional<ZipEntry> previousEntry =
+              zipEntry.getMethod() == ZipEntry.DEFLATED
+                  ? Optional.empty()
+                  : reusedBundle.flatMap(bundle -> bundle.getCompressedEntry(entryPath));
+          if (previousEntry.isPresent()) {
+            bundleBuilder.addFileFromZip(
+                entryPath, reusedBundle.get().getZipFile(), previousEntry.get(), compression);
+          } else {
+            bundleBuilder.addFileFromZip(entryPath, moduleZip.getZipFile(), zipEntry, compression);
           }
-        } catch (ZipException e) {
-          throw CommandExecutionException.builder()
-              .withCause(e)
-              .withMessage("File '%s' does not seem to be a valid ZIP file.", module)
-              .build();
-        } catch (IOException e) {
-          throw CommandExecutionException.builder()
-              .withCause(e)
-              .withMessage("Unable to read file '%s'.", module)
-              .build();
-        } catch (CommandExecutionException e) {
-          // Re-throw with additional context.
-          throw CommandExecutionException.builder()
-              .withCause(e)
-              .withMessage("Error processing module file '%s'.", module)
-              .build();
+        }
+        if (moduleZip.getAssetsTargeting().isPresent()) {
+          addGeneratedFile(
+              bundleBuilder,
+              moduleDir.resolve("assets.pb"),
+              moduleZip.getAssetsTargeting().get(),
+              reusedBundle,
+              compression);
+        }
+        if (moduleZip.getNativeLibrariesTargeting().isPresent()) {
+          addGeneratedFile(
+              bundleBuilder,
+              moduleDir.resolve("native.pb"),
+              moduleZip.getNativeLibrariesTargeting().get(),
+              reusedBundle,
+              compression);
         }
       }
 
@@ -241,7 +332,11 @@ public abstract class BuildBundleCommand {
       }
 
       try {
-        bundleBuilder.writeTo(getOutputPath());
+        if (getExecutorService().isPresent()) {
+          bundleBuilder.writeTo(getOutputPath(), getExecutorService().get());
+        } else {
+          bundleBuilder.writeTo(getOutputPath());
+        }
       } catch (IOException e) {
         throw CommandExecutionException.builder()
             .withCause(e)
@@ -250,18 +345,88 @@ public abstract class BuildBundleCommand {
       }
     } catch (IOException e) {
       throw new UncheckedIOException(e);
+    } finally {
+      if (isExecutorServiceCreatedByBundleTool()) {
+        getExecutorService().ifPresent(ListeningExecutorService::shutdown);
+      }
     }
   }
 
-  private void validateInput() {
-    checkFileDoesNotExist(getOutputPath());
+  /**
+   * Adds a file generated from the module, copied from the previous bundle if the module is
+   * unchanged.
+   */
+  private static void addGeneratedFile(
+      ZipBuilder bundleBuilder,
+      ZipPath path,
+      MessageLite content,
+      Optional<PreviousBundle> reusedBundle,
+      EntryOption... compression) {
+    Optional<ZipEntry> previousEntry =
+        reusedBundle.flatMap(bundle -> bundle.getCompressedEntry(path));
+    if (previousEntry.isPresent()) {
+      bundleBuilder.addFileFromZip(
+          path, reusedBundle.get().getZipFile(), previousEntry.get(), compression);
+    } else {
+      bundleBuilder.addFileWithProtoContent(path, content, compression);
+    }
+  }
+
+  /**
+   * Opens the zip file of the given module and lists its files, from which the targeting of its
+   * assets and native libraries is generated.
+   */
+  private static ModuleZip readModuleZip(Path module) {
+    ZipFile moduleZipFile;
+    try {
+      moduleZipFile = new ZipFile(module.toFile());
+    } catch (ZipException e) {
+      throw CommandExecutionException.builder()
+          .withCause(e)
+          .withMessage("File '%s' does not seem to be a valid ZIP file.", module)
+          .build();
+    } catch (IOException e) {
+      throw CommandExecutionException.builder()
+          .withCause(e)
+          .withMessage("Unable to read file '%s'.", module)
+          .build();
+    }
 
-    new BundleModulesValidator().validate(getModulesPaths());
+    try {
+      // The central directory is scanned only once.
+      ImmutableList<ZipEntry> fileEntries =
+          moduleZipFile.stream().filter(not(ZipEntry::isDirectory)).collect(toImmutableList());
+      ImmutableList<ZipPath> filePaths =
+          fileEntries.stream()
+              .map(zipEntry -> ZipPath.create(zipEntry.getName()))
+              .collect(toImmutableList());
+      return ModuleZip.create(
+          module,
+          moduleZipFile,
+          fileEntries,
+          generateAssetsTargeting(filePaths),
+          generateNativeLibrariesTargeting(filePaths));
+    } catch (RuntimeException e) {
+      try {
+        moduleZipFile.close();
+      } catch (IOException closeException) {
+        e.addSuppressed(closeException);
+      }
+      if (e instanceof CommandExecutionException) {
+        // Re-throw with additional context.
+        throw CommandExecutionException.builder()
+            .withCause(e)
+            .withMessage("Error processing module file '%s'.", module)
+            .build();
+      }
+      throw e;
+    }
   }
 
-  private Optional<Assets> generateAssetsTargeting(ZipFile module) {
+  private static Optional<Assets> generateAssetsTargeting(ImmutableList<ZipPath> filePaths) {
     ImmutableList<ZipPath> assetDirectories =
-        ZipUtils.getFilesWithPathPrefix(module, BundleModule.ASSETS_DIRECTORY)
+        filePaths.stream()
+            .filter(path -> path.startsWith(BundleModule.ASSETS_DIRECTORY))
             .filter(path -> path.getNameCount() > 1)
             .map(ZipPath::getParent)
             .distinct()
@@ -274,11 +439,13 @@ public abstract class BuildBundleCommand {
     return Optional.of(new TargetingGenerator().generateTargetingForAssets(assetDirectories));
   }
 
-  private Optional<NativeLibraries> generateNativeLibrariesTargeting(ZipFile module) {
+  private static Optional<NativeLibraries> generateNativeLibrariesTargeting(
+      ImmutableList<ZipPath> filePaths) {
     // Validation ensures that files under "lib/" conform to pattern "lib/<abi-dir>/file.so".
     // We extract the distinct "lib/<abi-dir>" directories.
     ImmutableList<String> libAbiDirs =
-        ZipUtils.getFilesWithPathPrefix(module, BundleModule.LIB_DIRECTORY)
+        filePaths.stream()
+            .filter(path -> path.startsWith(BundleModule.LIB_DIRECTORY))
             .filter(path -> path.getNameCount() > 2)
             .map(path -> path.subpath(0, 2))
             .map(ZipPath::toString)
@@ -292,6 +459,30 @@ public abstract class BuildBundleCommand {
     return Optional.of(new TargetingGenerator().generateTargetingForNativeLibraries(libAbiDirs));
   }
 
+  /** A module zip file, with the files it contains and their targeting. */
+  @AutoValue
+  abstract static class ModuleZip {
+    abstract Path getPath();
+
+    abstract ZipFile getZipFile();
+
+    abstract ImmutableList<ZipEntry> getFileEntries();
+
+    abstract Optional<Assets> getAssetsTargeting();
+
+    abstract Optional<NativeLibraries> getNativeLibrariesTargeting();
+
+    static ModuleZip create(
+        Path path,
+        ZipFile zipFile,
+        ImmutableList<ZipEntry> fileEntries,
+        Optional<Assets> assetsTargeting,
+        Optional<NativeLibraries> nativeLibrariesTargeting) {
+      return new AutoValue_BuildBundleCommand_ModuleZip(
+          path, zipFile, fileEntries, assetsTargeting, nativeLibrariesTargeting);
+    }
+  }
+
   private static BundleConfig parseBundleConfigJson(Path bundleConfigJsonPath) {
     BundleConfig.Builder bundleConfig = BundleConfig.newBuilder();
     try (Reader bundleConfigReader = BufferedIo.reader(bundleConfigJsonPath)) {
@@ -357,6 +548,28 @@ public abstract class BuildBundleCommand {
                         + "the raw data to be stored. The flag can be repeated.")
                 .setOptional(true)
                 .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(MAX_THREADS_FLAG.getName())
+                .setExampleValue("num-threads")
+                .setDescription(
+                    "Sets the maximum number of threads on which the modules are read and the "
+                        + "entries of the App Bundle compressed (default: %d).",
+                    DEFAULT_THREAD_POOL_SIZE)
+                .setOptional(true)
+                .build())
+        .addFlag(
+            FlagDescription.builder()
+                .setFlagName(PREVIOUS_BUNDLE_FLAG.getName())
+                .setExampleValue("previous.aab")
+                .setDescription(
+                    "Path to the Android App Bundle previously built from the same modules. The "
+                        + "modules that have not changed since are copied from it instead of "
+                        + "being compressed and validated again, if it has been built by the "
+                        + "same version of bundletool and Java runtime. The resulting App Bundle "
+                        + "is identical to one built without this flag.")
+                .setOptional(true)
+                .build())
         .build();
   }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.commands;
+
+import static com.android.tools.build.bundletool.model.AppBundle.BUNDLE_CONFIG_FILE_NAME;
+import static com.google.common.base.Predicates.not;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static com.google.common.io.MoreFiles.getNameWithoutExtension;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.bundle.Config.BundleConfig;
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.ZipUtils;
+import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * App Bundle previously built by the build-bundle command, from which the compressed entries of
+ * the modules that have not changed since are copied.
+ *
+ * <p>A module is unchanged if the SHA-256 digest of the names and contents of its files is the same
+ * in the module zip file and in the previous bundle.
+ *
+ * <p>The modules of the previous bundle are only considered if it has been built by the current
+ * version of bundletool, which validates them the same way. Its compressed entries are only copied
+ * if they have been compressed as the current build would compress them: the comment of the
+ * previous bundle must be the one recorded by {@link ZipBuilder#recordParallelCompression} in the
+ * current Java runtime.
+ */
+final class PreviousBundle implements Closeable {
+
+  /** Files that build-bundle generates at the root of each module of the bundle. */
+  private static final ImmutableSet<String> GENERATED_FILE_NAMES =
+      ImmutableSet.of("assets.pb", "native.pb");
+
+  private final ZipFile bundleZip;
+  private final boolean builtByCurrentVersion;
+  private final boolean sameCompression;
+
+  private PreviousBundle(ZipFile bundleZip, boolean builtByCurrentVersion) {
+    this.bundleZip = bundleZip;
+    this.builtByCurrentVersion = builtByCurrentVersion;
+    this.sameCompression =
+        builtByCurrentVersion
+            && ZipBuilder.getParallelCompressionComment().equals(bundleZip.getComment());
+  }
+
+  static PreviousBundle open(Path bundlePath) {
+    ZipFile bundleZip = ZipUtils.openZipFile(bundlePath);
+    try {
+      return new PreviousBundle(bundleZip, isBuiltByCurrentVersion(bundleZip));
+    } catch (RuntimeException e) {
+      try {
+        bundleZip.close();
+      } catch (IOException closeException) {
+        e.addSuppressed(closeException);
+      }
+      throw e;
+    }
+  }
+
+  ZipFile getZipFile() {
+    return bundleZip;
+  }
+
+  /**
+   * Returns the modules whose files are the same as in the previous bundle.
+   *
+   * <p>Modules that cannot be read are considered changed, and left for the validation to report.
+   */
+  ImmutableSet<Path> findUnchangedModules(ImmutableList<Path> modulePaths) {
+    if (!builtByCurrentVersion) {
+      return ImmutableSet.of();
+    }
+    return modulePaths.stream().filter(this::isModuleUnchanged).collect(toImmutableSet());
+  }
+
+  /**
+   * Whether the entries of the previous bundle have been compressed as a bundle written by {@link
+   * ZipBuilder#writeTo(Path, ListeningExecutorService)} would be.
+   */
+  boolean hasSameCompression() {
+    return sameCompression;
+  }
+
+  /**
+   * Returns the entry of the previous bundle at the given path if it is compressed, in which case
+   * it can be copied as is instead of compressing the file again.
+   *
+   * <p>Should only be called for the files of unchanged modules, if {@link #hasSameCompression}.
+   */
+  Optional<ZipEntry> getCompressedEntry(ZipPath path) {
+    return Optional.ofNullable(bundleZip.getEntry(path.toString()))
+        .filter(zipEntry -> zipEntry.getMethod() == ZipEntry.DEFLATED);
+  }
+
+  private boolean isModuleUnchanged(Path modulePath) {
+    try (ZipFile moduleZip = new ZipFile(modulePath.toFile())) {
+      ImmutableList<ZipEntry> moduleEntries =
+          moduleZip.stream().filter(not(ZipEntry::isDirectory)).collect(toImmutableList());
+
+      String moduleDirectory = getNameWithoutExtension(modulePath) + "/";
+      ImmutableSet<String> moduleFileNames =
+          moduleEntries.stream().map(ZipEntry::getName).collect(toImmutableSet());
+      ImmutableList<ZipEntry> previousEntries =
+          bundleZip.stream()
+              .filter(not(ZipEntry::isDirectory))
+              .filter(zipEntry -> zipEntry.getName().startsWith(moduleDirectory))
+              // The generated files are not part of the module zip file.
+              .filter(
+                  zipEntry -> {
+                    String fileName = zipEntry.getName().substring(moduleDirectory.length());
+                    return !GENERATED_FILE_NAMES.contains(fileName)
+                        || moduleFileNames.contains(fileName);
+                  })
+              .collect(toImmutableList());
+
+      // The sizes are compared first, so that most changes are detected without reading the files.
+      return !previousEntries.isEmpty()
+          && listSizes(moduleEntries, "").equals(listSizes(previousEntries, moduleDirectory))
+          && computeDigest(moduleZip, moduleEntries, "")
+              .equals(computeDigest(bundleZip, previousEntries, moduleDirectory));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /** Names, relative to the given directory, and sizes of the entries. */
+  private static ImmutableList<String> listSizes(
+      ImmutableList<ZipEntry> zipEntries, String directory) {
+    return zipEntries.stream()
+        .map(
+            zipEntry ->
+                zipEntry.getName().substring(directory.length()) + ":" + zipEntry.getSize())
+        .collect(toImmutableList());
+  }
+
+  /** SHA-256 digest of the names, relative to the given directory, and contents of the entries. */
+  private static HashCode computeDigest(
+      ZipFile zipFile, ImmutableList<ZipEntry> zipEntries, String directory) throws IOException {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (ZipEntry zipEntry : zipEntries) {
+      String name = zipEntry.getName().substring(directory.length());
+      hasher.putInt(name.length()).putString(name, UTF_8).putLong(zipEntry.getSize());
+      try (InputStream content = zipFile.getInputStream(zipEntry)) {
+        ByteStreams.copy(content, Funnels.asOutputStream(hasher));
+      }
+    }
+    return hasher.hash();
+  }
+
+  private static boolean isBuiltByCurrentVersion(ZipFile bundleZip) {
+    ZipEntry bundleConfigEntry = bundleZip.getEntry(BUNDLE_CONFIG_FILE_NAME);
+    if (bundleConfigEntry == null) {
+      return false;
+    }
+    try (InputStream bundleConfigStream = BufferedIo.inputStream(bundleZip, bundleConfigEntry)) {
+      return BundleConfig.parseFrom(bundleConfigStream)
+          .getBundletool()
+          .getVersion()
+          .equals(BundleToolVersion.getCurrentVersion().toString());
+    } catch (InvalidProtocolBufferException e) {
+      return false;
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error reading file '%s' of the previous bundle.", BUNDLE_CONFIG_FILE_NAME),
+          e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    bundleZip.close();
+  }
+}
@@ -25,6 +25,7 @@ import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.BundleModuleName;
 import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import com.android.tools.build.bundletool.utils.flags.Flag;
 import com.android.tools.build.bundletool.utils.flags.ParsedFlags;
 import com.android.tools.build.bundletool.validation.AppBundleValidator;
@@ -33,7 +34,6 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Map.Entry;
-import java.util.zip.ZipFile;
 
 /** Validates and prints information about the bundle or returns AppBundle object. */
 @AutoValue
@@ -72,11 +72,11 @@ public abstract class ValidateBundleCommand {
   public void execute() throws CommandExecutionException {
     validateInput();
 
-    try (ZipFile bundleZip = new ZipFile(getBundlePath().toFile())) {
+    try (MappedZipFile mappedBundleZip = MappedZipFile.open(getBundlePath())) {
       AppBundleValidator bundleValidator = new AppBundleValidator();
 
-      bundleValidator.validateFile(bundleZip);
-      AppBundle appBundle = AppBundle.buildFromZip(bundleZip);
+      bundleValidator.validateFile(mappedBundleZip);
+      AppBundle appBundle = AppBundle.buildFromZip(mappedBundleZip);
       bundleValidator.validate(appBundle);
 
       if (getPrintOutput()) {
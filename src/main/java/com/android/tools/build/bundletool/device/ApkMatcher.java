@@ -26,6 +26,7 @@ import com.android.bundle.Commands.ModuleMetadata;
 import com.android.bundle.Commands.Variant;
 import com.android.bundle.Devices.DeviceSpec;
 import com.android.bundle.Targeting.ApkTargeting;
+import com.android.bundle.Targeting.VariantTargeting;
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.exceptions.ValidationException;
 import com.android.tools.build.bundletool.model.ModuleSplit;
@@ -96,7 +97,8 @@ public class ApkMatcher {
   }
 
   private ImmutableList<ZipPath> getMatchingApksFromVariant(Variant variant) {
-    ImmutableList.Builder<ZipPath> matchedApksBuilder = ImmutableList.builder();
+    // Identical APKs of different modules or variants may share the same path in the APK Set.
+    ImmutableSet.Builder<ZipPath> matchedApksBuilder = ImmutableSet.builder();
 
     Predicate<String> moduleNameMatcher = getModuleNameMatcher(variant);
 
@@ -115,7 +117,7 @@ public class ApkMatcher {
       }
     }
 
-    return matchedApksBuilder.build();
+    return matchedApksBuilder.build().asList();
   }
 
   private Predicate<String> getModuleNameMatcher(Variant variant) {
@@ -246,12 +248,21 @@ public class ApkMatcher {
    * @return whether the APK matches the device targeting
    */
   public boolean matchesModuleSplitByTargeting(ModuleSplit moduleSplit) {
+    return matchesTargeting(moduleSplit.getVariantTargeting(), moduleSplit.getApkTargeting());
+  }
+
+  /**
+   * Returns whether an APK with the given variant and APK targeting matches the device targeting.
+   *
+   * @see #matchesModuleSplitByTargeting(ModuleSplit)
+   */
+  public boolean matchesTargeting(VariantTargeting variantTargeting, ApkTargeting apkTargeting) {
     // Check device compatibility.
-    variantMatcher.checkCompatibleWithVariantTargeting(moduleSplit.getVariantTargeting());
-    checkCompatibleWithApkTargeting(moduleSplit.getApkTargeting());
+    variantMatcher.checkCompatibleWithVariantTargeting(variantTargeting);
+    checkCompatibleWithApkTargeting(apkTargeting);
 
-    return variantMatcher.matchesVariantTargeting(moduleSplit.getVariantTargeting())
-        && matchesApkTargeting(moduleSplit.getApkTargeting());
+    return variantMatcher.matchesVariantTargeting(variantTargeting)
+        && matchesApkTargeting(apkTargeting);
   }
 
   private void checkCompatibleWithApkTargeting(ApkTargeting apkTargeting) {
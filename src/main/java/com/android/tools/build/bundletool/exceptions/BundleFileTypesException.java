@@ -236,19 +236,23 @@ public class BundleFileTypesException extends ValidationException {
   /** self describing */
   public static class DirectoryInBundleException extends BundleFileTypesException {
 
-    private final ZipEntry directory;
+    private final String directoryName;
 
     public DirectoryInBundleException(ZipEntry directory) {
+      this(directory.getName());
+    }
+
+    public DirectoryInBundleException(String directoryName) {
       super(
           "The App Bundle zip file contains directory zip entry '%s' which is not allowed.",
-          directory.getName());
-      this.directory = directory;
+          directoryName);
+      this.directoryName = directoryName;
     }
 
     @Override
     protected void customizeProto(BundleToolError.Builder builder) {
       builder.setFileTypeDirectoryInBundle(
-          FileTypeDirectoryInBundleError.newBuilder().setInvalidDirectory(directory.getName()));
+          FileTypeDirectoryInBundleError.newBuilder().setInvalidDirectory(directoryName));
     }
   }
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.utils.HashingUtils.putProto;
+import static com.android.tools.build.bundletool.utils.HashingUtils.putString;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.android.bundle.Config.Compression;
+import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.SigningConfiguration;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Optional;
+
+/**
+ * On-disk cache of serialized APKs, shared across invocations of bundletool.
+ *
+ * <p>APKs are stored under a digest of everything that determines their content: the manifest,
+ * the resource table, the entries, the targeting of the split, the aapt2 conversion (see {@link
+ * Aapt2Command#getIdentity()}), the compression settings and the signing identity. See {@link
+ * FileCache} for the guarantees about concurrent use and eviction.
+ */
+public final class ApkCache {
+
+  /** Bumped whenever the content of the digest changes. */
+  private static final int CACHE_FORMAT_VERSION = 3;
+
+  private static final String APK_EXTENSION = ".apk";
+
+  private final FileCache fileCache;
+
+  public ApkCache(Path cacheDirectory, long maxSizeBytes) {
+    this.fileCache = new FileCache(cacheDirectory, maxSizeBytes, APK_EXTENSION);
+  }
+
+  /**
+   * Copies the APK cached under the given key to {@code destination}.
+   *
+   * @return whether the APK was found in the cache
+   */
+  boolean copyTo(String key, Path destination) {
+    return fileCache.copyTo(key, destination);
+  }
+
+  /** Stores a copy of the given APK under the given key, and evicts APKs if needed. */
+  void put(String key, Path apk) {
+    fileCache.put(key, cachedApk -> Files.copy(apk, cachedApk, REPLACE_EXISTING));
+  }
+
+  /** Returns statistics about the use of the cache by this instance. */
+  public FileCache.Statistics getStatistics() {
+    return fileCache.getStatistics();
+  }
+
+  /**
+   * Computes the key under which the APK serialized from the given split is cached.
+   *
+   * <p>The variant targeting is not part of the key since it is not reflected in the APK.
+   */
+  static String computeKey(
+      ModuleSplit split,
+      String aapt2Identity,
+      Compression compression,
+      Optional<SigningConfiguration> signingConfig) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putInt(CACHE_FORMAT_VERSION);
+    putString(hasher, BundleToolVersion.getCurrentVersion().toString());
+    putString(hasher, aapt2Identity);
+
+    // Covers the targeting, manifest and resource table, already hashed to deduplicate the APKs.
+    hasher.putBytes(split.getFingerprint().getDigest().asBytes());
+
+    hasher.putInt(split.getEntries().size());
+    for (ModuleEntry entry : split.getEntries()) {
+      putString(hasher, entry.getPath().toString());
+      hasher.putBoolean(entry.isDirectory());
+      hasher.putBoolean(entry.shouldCompress());
+      if (!entry.isDirectory()) {
+        putContent(hasher, entry);
+      }
+    }
+
+    putProto(hasher, compression);
+    hasher.putBoolean(signingConfig.isPresent());
+    if (signingConfig.isPresent()) {
+      ImmutableList<X509Certificate> certificates = signingConfig.get().getCertificates();
+      hasher.putInt(certificates.size());
+      for (X509Certificate certificate : certificates) {
+        try {
+          byte[] encoded = certificate.getEncoded();
+          hasher.putInt(encoded.length).putBytes(encoded);
+        } catch (CertificateEncodingException e) {
+          throw new IllegalStateException("Unable to encode the signing certificate.", e);
+        }
+      }
+      putString(hasher, signingConfig.get().getPrivateKey().getAlgorithm());
+    }
+    return hasher.hash().toString();
+  }
+
+  private static void putContent(Hasher hasher, ModuleEntry entry) {
+    Hasher contentHasher = Hashing.sha256().newHasher();
+    try (InputStream content = entry.getContent();
+        OutputStream contentHasherStream = Funnels.asOutputStream(contentHasher)) {
+      ByteStreams.copy(content, contentHasherStream);
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while reading entry '%s'.", entry.getPath()), e);
+    }
+    hasher.putBytes(contentHasher.hash().asBytes());
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.utils.MemoryBudget;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Orders the serialization of APKs so that the most expensive ones are started first, and
+ * estimates their memory footprint for the {@link MemoryBudget}.
+ *
+ * <p>APKs are serialized in parallel, so the build only ends when the last APK is written. Starting
+ * the APKs by decreasing estimated cost (longest-processing-time-first scheduling) prevents a large
+ * APK, such as the base master split or a universal APK, from being started last while the other
+ * threads are idle.
+ */
+final class ApkSerializationScheduler {
+
+  /** Cost of an entry regardless of its size: zip headers, alignment, signing digests... */
+  @VisibleForTesting static final long ENTRY_OVERHEAD_BYTES = 1024;
+
+  /** Size assumed for entries whose size is unknown without reading them. */
+  @VisibleForTesting static final long UNKNOWN_ENTRY_SIZE_BYTES = 16 * 1024;
+
+  /** The resource table is converted by aapt2, which is slower than copying bytes. */
+  @VisibleForTesting static final long RESOURCE_TABLE_WEIGHT = 4;
+
+  /** Memory used by any serialization regardless of the split: buffers, zip bookkeeping... */
+  @VisibleForTesting static final long BASE_MEMORY_FOOTPRINT_BYTES = 1024 * 1024;
+
+  /**
+   * A parsed resource table, with the copies made while converting it, takes several times its
+   * serialized size in memory.
+   */
+  @VisibleForTesting static final long RESOURCE_TABLE_MEMORY_FACTOR = 10;
+
+  /**
+   * Estimates the cost of serializing the given split, in bytes of content to process.
+   *
+   * <p>Only meaningful relative to the estimated cost of other splits.
+   */
+  static long estimateCost(ModuleSplit split) {
+    long cost = 0;
+    for (ModuleEntry entry : split.getEntries()) {
+      cost += ENTRY_OVERHEAD_BYTES + entry.getSize().orElse(UNKNOWN_ENTRY_SIZE_BYTES);
+    }
+    if (split.getResourceTable().isPresent()) {
+      cost += RESOURCE_TABLE_WEIGHT * split.getResourceTable().get().getSerializedSize();
+    }
+    return cost + split.getAndroidManifest().getManifestRoot().getProto().getSerializedSize();
+  }
+
+  /**
+   * Estimates the peak memory used while serializing the given split, in bytes.
+   *
+   * <p>Entries are counted at their uncompressed size, as an upper bound of the compressed
+   * entries buffered while writing the APK.
+   */
+  static long estimateMemoryFootprint(ModuleSplit split) {
+    long footprint = BASE_MEMORY_FOOTPRINT_BYTES;
+    for (ModuleEntry entry : split.getEntries()) {
+      footprint += entry.getSize().orElse(UNKNOWN_ENTRY_SIZE_BYTES);
+    }
+    if (split.getResourceTable().isPresent()) {
+      footprint +=
+          RESOURCE_TABLE_MEMORY_FACTOR * split.getResourceTable().get().getSerializedSize();
+    }
+    return footprint;
+  }
+
+  /**
+   * Returns the keys by decreasing estimated cost. Keys of equal cost keep their iteration order,
+   * so that the order is deterministic.
+   */
+  static <K> ImmutableList<K> largestFirst(Map<K, Long> estimatedCostByKey) {
+    return estimatedCostByKey.entrySet().stream()
+        .sorted(Entry.<K, Long>comparingByValue().reversed())
+        .map(Entry::getKey)
+        .collect(toImmutableList());
+  }
+
+  private ApkSerializationScheduler() {}
+}
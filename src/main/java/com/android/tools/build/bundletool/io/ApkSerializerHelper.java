@@ -44,10 +44,13 @@ import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.model.WearApkLocator;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.utils.files.FileUtils;
+import com.android.tools.build.bundletool.utils.tracing.TraceSpan;
+import com.android.tools.build.bundletool.utils.tracing.Tracer;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.io.InputStream;
@@ -108,14 +111,23 @@ final class ApkSerializerHelper {
 
   private final Aapt2Command aapt2Command;
   private final Optional<SigningConfiguration> signingConfig;
+  private final Compression compression;
   private final ImmutableList<PathMatcher> uncompressedPathMatchers;
+  private final Optional<ApkCache> apkCache;
+  private final Tracer tracer;
+  private final RawZipEntryWriter rawZipEntryWriter = new RawZipEntryWriter();
 
   ApkSerializerHelper(
       Aapt2Command aapt2Command,
       Optional<SigningConfiguration> signingConfig,
-      Compression compression) {
+      Compression compression,
+      Optional<ApkCache> apkCache,
+      Tracer tracer) {
     this.aapt2Command = aapt2Command;
     this.signingConfig = signingConfig;
+    this.compression = compression;
+    this.apkCache = apkCache;
+    this.tracer = tracer;
 
     // Using the default filesystem will work on Windows because the "/" of the glob are swapped
     // with "\" when the PathMatcher is constructed and the Path on Windows use this file separator.
@@ -132,7 +144,20 @@ final class ApkSerializerHelper {
   }
 
   Path writeToZipFile(ModuleSplit split, Path outputPath) {
-    TempFiles.withTempDirectory(tempDir -> writeToZipFile(split, outputPath, tempDir));
+    // The identity is only computed when caching, as it may require hashing the aapt2 binary.
+    Optional<String> aapt2Identity =
+        apkCache.isPresent() ? aapt2Command.getIdentity() : Optional.empty();
+    if (!aapt2Identity.isPresent()) {
+      TempFiles.withTempDirectory(tempDir -> writeToZipFile(split, outputPath, tempDir));
+      return outputPath;
+    }
+
+    String cacheKey =
+        ApkCache.computeKey(split, aapt2Identity.get(), compression, signingConfig);
+    if (!apkCache.get().copyTo(cacheKey, outputPath)) {
+      TempFiles.withTempDirectory(tempDir -> writeToZipFile(split, outputPath, tempDir));
+      apkCache.get().put(cacheKey, outputPath);
+    }
     return outputPath;
   }
 
@@ -142,14 +167,28 @@ final class ApkSerializerHelper {
 
     // Write a Proto-APK with only files that aapt2 requires as part of the convert command.
     Path partialProtoApk = tempDir.resolve("proto.apk");
-    writeProtoApk(split, partialProtoApk, tempDir);
+    try (TraceSpan span = tracer.startSpan("writeProtoApk")) {
+      writeProtoApk(split, partialProtoApk, tempDir);
+      span.addBytesWritten(fileSize(partialProtoApk));
+    }
 
     // Have aapt2 convert the Proto-APK to a Binary-APK.
     Path binaryApk = tempDir.resolve("binary.apk");
-    aapt2Command.convertApkProtoToBinary(partialProtoApk, binaryApk);
-    checkState(Files.exists(binaryApk), "No APK created by aapt2 convert command.");
+    try (TraceSpan span = tracer.startSpan("aapt2Convert")) {
+      span.addBytesRead(fileSize(partialProtoApk));
+      aapt2Command.convertApkProtoToBinary(partialProtoApk, binaryApk);
+      checkState(Files.exists(binaryApk), "No APK created by aapt2 convert command.");
+      span.addBytesWritten(fileSize(binaryApk));
+    }
 
     // Create a new APK that includes files processed by aapt2 and the other ones.
+    try (TraceSpan span = tracer.startSpan("writeSignedApk")) {
+      writeSignedApk(split, binaryApk, outputPath, tempDir);
+      span.addBytesWritten(fileSize(outputPath));
+    }
+  }
+
+  private void writeSignedApk(ModuleSplit split, Path binaryApk, Path outputPath, Path tempDir) {
     int minSdkVersion = split.getAndroidManifest().getEffectiveMinSdkVersion();
     try (ZFile zOutputApk =
             ZFiles.apk(
@@ -173,7 +212,7 @@ final class ApkSerializerHelper {
       zOutputApk.mergeFrom(zAapt2Files, /* ignoreFilter= */ Predicates.alwaysFalse());
 
       // Add the remaining files.
-      addNonAapt2Files(zOutputApk, split);
+      addNonAapt2Files(zOutputApk, split, tempDir);
       zOutputApk.sortZipContents();
     } catch (IOException e) {
       throw new UncheckedIOException(
@@ -271,21 +310,37 @@ final class ApkSerializerHelper {
   }
 
   /** Takes the given APK and adds the files that weren't processed by AAPT2. */
-  private void addNonAapt2Files(ZFile zFile, ModuleSplit split) throws IOException {
+  private void addNonAapt2Files(ZFile zFile, ModuleSplit split, Path tempDir)
+      throws IOException {
     boolean extractNativeLibs = split.getAndroidManifest().getExtractNativeLibsValue().orElse(true);
 
-    // Add the non-Aapt2 files.
+    // Add the non-Aapt2 files. Entries already deflated in the bundle are copied without being
+    // inflated and deflated again.
+    ImmutableMap.Builder<String, ModuleEntry> rawEntries = ImmutableMap.builder();
     for (ModuleEntry entry : split.getEntries()) {
       ZipPath pathInApk = toApkEntryPath(entry.getPath());
       if (!FILES_FOR_AAPT2.apply(pathInApk)) {
+        boolean compress = shouldCompress(pathInApk, !extractNativeLibs, entry.shouldCompress());
+        if (compress && rawZipEntryWriter.canCopyRaw(entry)) {
+          rawEntries.put(pathInApk.toString(), entry);
+          continue;
+        }
         try (InputStream entryInputStream = entry.getContent()) {
-          zFile.add(
-              pathInApk.toString(),
-              entryInputStream,
-              shouldCompress(pathInApk, !extractNativeLibs, entry.shouldCompress()));
+          zFile.add(pathInApk.toString(), entryInputStream, compress);
         }
       }
     }
+
+    ImmutableMap<String, ModuleEntry> rawEntriesByPath = rawEntries.build();
+    if (!rawEntriesByPath.isEmpty()) {
+      // apkzlib keeps the compressed data of the entries it merges from another zip file.
+      Path rawEntriesZip = tempDir.resolve("raw-entries.zip");
+      rawZipEntryWriter.write(rawEntriesByPath, rawEntriesZip);
+      try (ZFile zRawEntries =
+          new ZFile(rawEntriesZip.toFile(), createZFileOptions(tempDir), /* readOnly= */ true)) {
+        zFile.mergeFrom(zRawEntries, /* ignoreFilter= */ Predicates.alwaysFalse());
+      }
+    }
   }
 
   /**
@@ -353,6 +408,14 @@ final class ApkSerializerHelper {
     }
   }
 
+  private static long fileSize(Path path) {
+    try {
+      return Files.size(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   private static ZFileOptions createZFileOptions(Path tempDir) {
     ZFileOptions options = new ZFileOptions();
     return options;
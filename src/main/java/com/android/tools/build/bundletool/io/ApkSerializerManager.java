@@ -20,16 +20,17 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Predicates.alwaysTrue;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableMap.toImmutableMap;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static java.util.function.Function.identity;
 
 import com.android.bundle.Commands.ApkDescription;
 import com.android.bundle.Commands.ApkSet;
 import com.android.bundle.Commands.Variant;
 import com.android.bundle.Devices.DeviceSpec;
-import com.android.bundle.Targeting.VariantTargeting;
 import com.android.tools.build.bundletool.device.ApkMatcher;
 import com.android.tools.build.bundletool.io.ApkSetBuilderFactory.ApkSetBuilder;
 import com.android.tools.build.bundletool.model.ApkListener;
+import com.android.tools.build.bundletool.model.ApkListener.SerializationCost;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.ApkModifier.ApkDescription.ApkType;
 import com.android.tools.build.bundletool.model.AppBundle;
@@ -39,16 +40,22 @@ import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.android.tools.build.bundletool.model.VariantKey;
 import com.android.tools.build.bundletool.utils.ConcurrencyUtils;
+import com.android.tools.build.bundletool.utils.MemoryBudget;
+import com.android.tools.build.bundletool.utils.MemoryBudget.Reservation;
+import com.android.tools.build.bundletool.utils.tracing.TraceSpan;
+import com.android.tools.build.bundletool.utils.tracing.Tracer;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import java.time.Duration;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 /** Creates parts of table of contents and writes out APKs. */
 public class ApkSerializerManager {
@@ -59,6 +66,8 @@ public class ApkSerializerManager {
   private final int firstVariantNumber;
   private final AppBundle appBundle;
   private final ApkSetBuilder apkSetBuilder;
+  private final Tracer tracer;
+  private final MemoryBudget memoryBudget;
 
   public ApkSerializerManager(
       AppBundle appBundle,
@@ -67,12 +76,57 @@ public class ApkSerializerManager {
       ApkListener apkListener,
       ApkModifier apkModifier,
       int firstVariantNumber) {
+    this(
+        appBundle,
+        apkSetBuilder,
+        executorService,
+        apkListener,
+        apkModifier,
+        firstVariantNumber,
+        Tracer.NO_OP);
+  }
+
+  /** The serialization of each APK is traced as a "serializeApk" span of the given tracer. */
+  public ApkSerializerManager(
+      AppBundle appBundle,
+      ApkSetBuilder apkSetBuilder,
+      ListeningExecutorService executorService,
+      ApkListener apkListener,
+      ApkModifier apkModifier,
+      int firstVariantNumber,
+      Tracer tracer) {
+    this(
+        appBundle,
+        apkSetBuilder,
+        executorService,
+        apkListener,
+        apkModifier,
+        firstVariantNumber,
+        tracer,
+        MemoryBudget.unlimited());
+  }
+
+  /**
+   * Each APK is only serialized once its estimated memory footprint fits in the given budget. The
+   * wait is traced as an "awaitMemoryBudget" span.
+   */
+  public ApkSerializerManager(
+      AppBundle appBundle,
+      ApkSetBuilder apkSetBuilder,
+      ListeningExecutorService executorService,
+      ApkListener apkListener,
+      ApkModifier apkModifier,
+      int firstVariantNumber,
+      Tracer tracer,
+      MemoryBudget memoryBudget) {
     this.appBundle = appBundle;
     this.apkSetBuilder = apkSetBuilder;
     this.executorService = executorService;
     this.apkListener = apkListener;
     this.apkModifier = apkModifier;
     this.firstVariantNumber = firstVariantNumber;
+    this.tracer = tracer;
+    this.memoryBudget = memoryBudget;
   }
 
   public ImmutableList<Variant> serializeUniversalApk(GeneratedApks generatedApks) {
@@ -113,7 +167,7 @@ public class ApkSerializerManager {
     ApkSerializer apkSerializer = new ApkSerializer(apkListener, isUniversalApk);
 
     // Modifies the APK using APK modifier, then returns a map by extracting the variant
-    // of APK first and later clearing out its variant targeting.
+    // of APK first.
 
     ImmutableListMultimap<VariantKey, ModuleSplit> finalSplitsByVariant =
         splitsByVariant.entries().stream()
@@ -122,21 +176,27 @@ public class ApkSerializerManager {
                 groupingBySortedKeys(
                     Entry::getKey,
                     entry ->
-                        clearVariantTargeting(
-                            modifyApk(
-                                entry.getValue(), variantNumberByVariantKey.get(entry.getKey())))));
+                        modifyApk(
+                            entry.getValue(), variantNumberByVariantKey.get(entry.getKey()))));
 
-    // After variant targeting of APKs are cleared, there might be duplicate APKs
-    // which are removed and the distinct APKs are then serialized in parallel.
-    ImmutableMap<ModuleSplit, ApkDescription> apkDescriptionBySplit =
+    // APKs of different variants may be identical. Their fingerprints, which ignore the variant
+    // targeting, are used to serialize each distinct APK only once, in parallel, starting with the
+    // most expensive ones. The first split in table of contents order is kept, so that the path
+    // shared by identical APKs does not depend on the order in which they are serialized.
+    ImmutableMap<ModuleSplit.Fingerprint, ModuleSplit> distinctSplitByFingerprint =
         finalSplitsByVariant.values().stream()
-            .distinct()
             .collect(
-                Collectors.collectingAndThen(
-                    toImmutableMap(
-                        identity(),
-                        split -> executorService.submit(() -> apkSerializer.serialize(split))),
-                    ConcurrencyUtils::waitForAll));
+                toImmutableMap(ModuleSplit::getFingerprint, identity(), (first, second) -> first));
+    ImmutableMap<ModuleSplit.Fingerprint, Long> estimatedCostByFingerprint =
+        distinctSplitByFingerprint.entrySet().stream()
+            .collect(
+                toImmutableMap(
+                    Entry::getKey,
+                    entry -> ApkSerializationScheduler.estimateCost(entry.getValue())));
+    ImmutableMap<ModuleSplit.Fingerprint, ApkDescription> apkDescriptionByFingerprint =
+        ConcurrencyUtils.waitForAll(
+            submitSerializations(
+                apkSerializer, distinctSplitByFingerprint, estimatedCostByFingerprint));
 
     // Build the result proto.
     ImmutableList.Builder<Variant> variants = ImmutableList.builder();
@@ -158,7 +218,7 @@ public class ApkSerializerManager {
                     splitsByModuleName
                         .get(moduleName)
                         .stream()
-                        .map(apkDescriptionBySplit::get)
+                        .map(split -> apkDescriptionByFingerprint.get(split.getFingerprint()))
                         .collect(toImmutableList())));
       }
       variants.add(variant.build());
@@ -167,6 +227,62 @@ public class ApkSerializerManager {
     return variants.build();
   }
 
+  /**
+   * Submits the serialization of the given splits, largest first.
+   *
+   * <p>The estimated memory footprint of each split is reserved before its task is submitted, so
+   * that tasks start in the order of submission and a large split is not overtaken by smaller ones
+   * while waiting for the memory budget. The reservation is released once the task is done or
+   * cancelled. No more tasks are submitted once one of them failed.
+   */
+  @SuppressWarnings("try") // The span only times the wait.
+  private ImmutableMap<ModuleSplit.Fingerprint, ListenableFuture<ApkDescription>>
+      submitSerializations(
+          ApkSerializer apkSerializer,
+          ImmutableMap<ModuleSplit.Fingerprint, ModuleSplit> splitByFingerprint,
+          ImmutableMap<ModuleSplit.Fingerprint, Long> estimatedCostByFingerprint) {
+    ImmutableMap.Builder<ModuleSplit.Fingerprint, ListenableFuture<ApkDescription>> futures =
+        ImmutableMap.builder();
+    AtomicBoolean anyFailed = new AtomicBoolean();
+    for (ModuleSplit.Fingerprint fingerprint :
+        ApkSerializationScheduler.largestFirst(estimatedCostByFingerprint)) {
+      ModuleSplit split = splitByFingerprint.get(fingerprint);
+      long estimatedMemoryBytes = ApkSerializationScheduler.estimateMemoryFootprint(split);
+      Reservation reservation;
+      try (TraceSpan span = tracer.startSpan("awaitMemoryBudget")) {
+        reservation = memoryBudget.reserve(estimatedMemoryBytes);
+      } catch (InterruptedException e) {
+        for (ListenableFuture<ApkDescription> future : futures.build().values()) {
+          future.cancel(/* mayInterruptIfRunning= */ true);
+        }
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for the memory budget.", e);
+      }
+      if (anyFailed.get()) {
+        // The failure is reported when waiting for the submitted tasks.
+        reservation.close();
+        break;
+      }
+      ListenableFuture<ApkDescription> future =
+          executorService.submit(
+              () -> {
+                try {
+                  return apkSerializer.serialize(
+                      split,
+                      estimatedCostByFingerprint.get(fingerprint),
+                      estimatedMemoryBytes,
+                      reservation.getWaitTime());
+                } catch (RuntimeException | Error e) {
+                  anyFailed.set(true);
+                  throw e;
+                }
+              });
+      future.addListener(reservation::close, directExecutor());
+      futures.put(fingerprint, future);
+    }
+    return futures.build();
+  }
+
   private ModuleSplit modifyApk(ModuleSplit moduleSplit, int variantNumber) {
     ApkModifier.ApkDescription apkDescription =
         ApkModifier.ApkDescription.builder()
@@ -187,13 +303,6 @@ public class ApkSerializerManager {
         .build();
   }
 
-  private static ModuleSplit clearVariantTargeting(ModuleSplit moduleSplit) {
-    return moduleSplit
-        .toBuilder()
-        .setVariantTargeting(VariantTargeting.getDefaultInstance())
-        .build();
-  }
-
   private final class ApkSerializer {
     private final ApkListener apkListener;
     private final boolean isUniversalApk;
@@ -203,7 +312,32 @@ public class ApkSerializerManager {
       this.isUniversalApk = isUniversalApk;
     }
 
-    public ApkDescription serialize(ModuleSplit split) {
+    @SuppressWarnings("try") // The span only times the serialization.
+    public ApkDescription serialize(
+        ModuleSplit split,
+        long estimatedCost,
+        long estimatedMemoryBytes,
+        Duration memoryBudgetWaitTime) {
+      try (TraceSpan span = tracer.startSpan("serializeApk")) {
+        long startNanos = System.nanoTime();
+        ApkDescription apkDescription = serializeInternal(split);
+        Duration actualDuration = Duration.ofNanos(System.nanoTime() - startNanos);
+
+        apkListener.onApkFinalized(apkDescription);
+        apkListener.onApkSerialized(
+            apkDescription,
+            SerializationCost.builder()
+                .setEstimatedCost(estimatedCost)
+                .setActualDuration(actualDuration)
+                .setEstimatedMemoryBytes(estimatedMemoryBytes)
+                .setMemoryBudgetWaitTime(memoryBudgetWaitTime)
+                .build());
+
+        return apkDescription;
+      }
+    }
+
+    private ApkDescription serializeInternal(ModuleSplit split) {
       ApkDescription apkDescription;
       switch (split.getSplitType()) {
         case INSTANT:
@@ -221,9 +355,6 @@ public class ApkSerializerManager {
         default:
           throw new IllegalStateException("Unexpected splitType: " + split.getSplitType());
       }
-
-      apkListener.onApkFinalized(apkDescription);
-
       return apkDescription;
     }
   }
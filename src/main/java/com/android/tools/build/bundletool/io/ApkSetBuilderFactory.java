@@ -18,25 +18,35 @@ package com.android.tools.build.bundletool.io;
 
 import static com.android.tools.build.bundletool.utils.FileNames.TABLE_OF_CONTENTS_FILE;
 import static com.android.tools.build.bundletool.utils.files.FilePreconditions.checkFileExistsAndReadable;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 
 import com.android.bundle.Commands.ApkDescription;
 import com.android.bundle.Commands.BuildApksResult;
-import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
 import com.android.tools.build.bundletool.model.ModuleSplit;
-import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import com.google.common.io.ByteStreams;
 import com.google.protobuf.Message;
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /** Factory for {@link ApkSetBuilder}. */
 public final class ApkSetBuilderFactory {
 
   /** Handles adding of {@link ModuleSplit} to the APK Set archive. */
-  public interface ApkSetBuilder {
+  public interface ApkSetBuilder extends Closeable {
     /** Adds a split APK to the APK Set archive. */
     ApkDescription addSplitApk(ModuleSplit split);
 
@@ -54,13 +64,21 @@ public final class ApkSetBuilderFactory {
 
     /** Writes out the APK Set archive to the specified destination. */
     void writeTo(Path destinationPath);
+
+    /**
+     * Releases the resources held by the builder, discarding the APK Set archive if it wasn't
+     * written out, e.g. because the command failed.
+     */
+    @Override
+    default void close() {}
   }
 
   public static ApkSetBuilder createApkSetBuilder(
       SplitApkSerializer splitApkSerializer,
       StandaloneApkSerializer standaloneApkSerializer,
       Path tempDir) {
-    return new ApkSetArchiveBuilder(splitApkSerializer, standaloneApkSerializer, tempDir);
+    return new ApkSetStreamingArchiveBuilder(
+        splitApkSerializer, standaloneApkSerializer, tempDir);
   }
 
   public static ApkSetBuilder createApkSetWithoutArchiveBuilder(
@@ -70,75 +88,162 @@ public final class ApkSetBuilderFactory {
     return new ApkSetWithoutArchiveBuilder(splitApkSerializer, standaloneApkSerializer, outputDir);
   }
 
-  /** ApkSet builder that stores the generated APKs in the Apk Set archive. */
-  public static class ApkSetArchiveBuilder implements ApkSetBuilder {
+  /**
+   * ApkSet builder that appends each generated APK to the APK Set archive as soon as it is
+   * serialized.
+   *
+   * <p>APKs are stored uncompressed: their CRC is computed by streaming the APK from disk, then the
+   * APK is streamed into the archive, so no APK is ever held in memory. The archive is written to
+   * a temporary file and only moved to the destination by {@link #writeTo(Path)}, so that no
+   * partial output is left at the user-specified location if the command fails: the temporary
+   * file is then deleted by {@link #close()}.
+   *
+   * <p>Each APK is stored under its own path. APKs that are identical across modules or variants
+   * are expected to be serialized only once, before their tasks are submitted, so that the path
+   * they share does not depend on which APK finishes first.
+   *
+   * <p>Methods adding APKs can be called concurrently.
+   */
+  public static class ApkSetStreamingArchiveBuilder implements ApkSetBuilder {
     private final SplitApkSerializer splitApkSerializer;
     private final StandaloneApkSerializer standaloneApkSerializer;
-    private final ZipBuilder apkSetZipBuilder;
     private final Path tempDirectory;
+    private final Set<String> archivedPaths = new HashSet<>();
 
-    public ApkSetArchiveBuilder(
+    private Path stagingArchive;
+    private OutputStream stagingArchiveStream;
+    private ZipOutputStream archiveStream;
+    private boolean closed = false;
+
+    public ApkSetStreamingArchiveBuilder(
         SplitApkSerializer splitApkSerializer,
         StandaloneApkSerializer standaloneApkSerializer,
         Path tempDirectory) {
       this.splitApkSerializer = splitApkSerializer;
       this.standaloneApkSerializer = standaloneApkSerializer;
       this.tempDirectory = tempDirectory;
-      this.apkSetZipBuilder = new ZipBuilder();
     }
 
     @Override
     public ApkDescription addSplitApk(ModuleSplit split) {
       ApkDescription apkDescription = splitApkSerializer.writeSplitToDisk(split, tempDirectory);
-      addToApkSetArchive(apkDescription);
-      return apkDescription;
+      return appendToApkSetArchive(apkDescription);
     }
 
     @Override
     public ApkDescription addInstantApk(ModuleSplit split) {
       ApkDescription apkDescription =
           splitApkSerializer.writeInstantSplitToDisk(split, tempDirectory);
-      addToApkSetArchive(apkDescription);
-      return apkDescription;
+      return appendToApkSetArchive(apkDescription);
     }
 
     @Override
     public ApkDescription addStandaloneApk(ModuleSplit split) {
       ApkDescription apkDescription = standaloneApkSerializer.writeToDisk(split, tempDirectory);
-      addToApkSetArchive(apkDescription);
-      return apkDescription;
+      return appendToApkSetArchive(apkDescription);
     }
 
     @Override
     public ApkDescription addStandaloneUniversalApk(ModuleSplit split) {
       ApkDescription apkDescription =
           standaloneApkSerializer.writeToDiskAsUniversal(split, tempDirectory);
-      addToApkSetArchive(apkDescription);
-      return apkDescription;
+      return appendToApkSetArchive(apkDescription);
     }
 
-    private void addToApkSetArchive(ApkDescription apkDescription) {
+    private ApkDescription appendToApkSetArchive(ApkDescription apkDescription) {
       Path apkPath = tempDirectory.resolve(apkDescription.getPath());
       checkFileExistsAndReadable(apkPath);
-      apkSetZipBuilder.addFileFromDisk(
-          ZipPath.create(apkDescription.getPath()), apkPath.toFile(), EntryOption.UNCOMPRESSED);
+      try {
+        // Computed outside of the lock, so that other APKs can be appended in the meantime.
+        long size = Files.size(apkPath);
+        long crc = computeCrc32(apkPath);
+
+        ZipEntry zipEntry = new ZipEntry(apkDescription.getPath());
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(size);
+        zipEntry.setCompressedSize(size);
+        zipEntry.setCrc(crc);
+        synchronized (this) {
+          checkArgument(
+              archivedPaths.add(apkDescription.getPath()),
+              "Path '%s' is already taken.",
+              apkDescription.getPath());
+          ZipOutputStream out = getArchiveStream();
+          out.putNextEntry(zipEntry);
+          Files.copy(apkPath, out);
+          out.closeEntry();
+        }
+        // The APK is now only needed in the archive.
+        Files.delete(apkPath);
+        return apkDescription;
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            String.format("Error while adding APK '%s' to the APK Set archive.", apkPath), e);
+      }
     }
 
     @Override
-    public void setTableOfContentsFile(BuildApksResult tableOfContentsProto) {
-      apkSetZipBuilder.addFileWithProtoContent(
-          ZipPath.create(TABLE_OF_CONTENTS_FILE), tableOfContentsProto);
+    public synchronized void setTableOfContentsFile(BuildApksResult tableOfContentsProto) {
+      try {
+        ZipOutputStream out = getArchiveStream();
+        out.putNextEntry(new ZipEntry(TABLE_OF_CONTENTS_FILE));
+        tableOfContentsProto.writeTo(out);
+        out.closeEntry();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Error while writing the table of contents.", e);
+      }
     }
 
     @Override
-    public void writeTo(Path destinationPath) {
+    public synchronized void writeTo(Path destinationPath) {
       try {
-        apkSetZipBuilder.writeTo(destinationPath);
+        getArchiveStream().close();
+        // Fails if the destination file exists.
+        Files.move(stagingArchive, destinationPath);
+        closed = true;
       } catch (IOException e) {
         throw new UncheckedIOException(
             String.format("Error while writing the APK Set archive to '%s'.", destinationPath), e);
       }
     }
+
+    /** Deletes the temporary archive, unless {@link #writeTo} moved it to its destination. */
+    @Override
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (stagingArchive == null) {
+        return;
+      }
+      try {
+        // The archive is discarded, so the ZIP stream doesn't need to be finished.
+        stagingArchiveStream.close();
+        Files.deleteIfExists(stagingArchive);
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            String.format("Error while deleting the APK Set archive '%s'.", stagingArchive), e);
+      }
+    }
+
+    private ZipOutputStream getArchiveStream() throws IOException {
+      checkState(!closed, "The APK Set builder is closed.");
+      if (archiveStream == null) {
+        stagingArchive = Files.createTempFile(tempDirectory, "apkset-", ".apks.tmp");
+        stagingArchiveStream = BufferedIo.outputStream(stagingArchive);
+        archiveStream = new ZipOutputStream(stagingArchiveStream);
+      }
+      return archiveStream;
+    }
+
+    private static long computeCrc32(Path file) throws IOException {
+      CRC32 crc32 = new CRC32();
+      try (InputStream is = new CheckedInputStream(BufferedIo.inputStream(file), crc32)) {
+        ByteStreams.exhaust(is);
+      }
+      return crc32.getValue();
+    }
   }
 
   /** ApkSet builder that stores the generated APKs directly in the output directory. */
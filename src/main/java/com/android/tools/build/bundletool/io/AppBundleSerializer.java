@@ -24,13 +24,31 @@ import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.InputStreamSupplier;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Map.Entry;
+import java.util.Optional;
 
 /** Serializer of Bundle instances onto disk. */
 public class AppBundleSerializer {
 
+  private final Optional<ListeningExecutorService> executorService;
+
+  public AppBundleSerializer() {
+    this.executorService = Optional.empty();
+  }
+
+  /**
+   * Creates a serializer compressing the entries of the bundle on the given executor service.
+   *
+   * <p>See {@link ZipBuilder#writeTo(Path, ListeningExecutorService)} for the restrictions on the
+   * calling thread.
+   */
+  public AppBundleSerializer(ListeningExecutorService executorService) {
+    this.executorService = Optional.of(executorService);
+  }
+
   /** Writes the App Bundle on disk at the given location. */
   public void writeToDisk(AppBundle bundle, Path pathOnDisk) throws IOException {
     ZipBuilder zipBuilder = new ZipBuilder();
@@ -80,6 +98,10 @@ public class AppBundleSerializer {
                       moduleDir.resolve(BundleModule.RESOURCES_PROTO_PATH), resourceTable));
     }
 
-    zipBuilder.writeTo(pathOnDisk);
+    if (executorService.isPresent()) {
+      zipBuilder.writeTo(pathOnDisk, executorService.get());
+    } else {
+      zipBuilder.writeTo(pathOnDisk);
+    }
   }
 }
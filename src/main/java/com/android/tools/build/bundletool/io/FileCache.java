@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.utils.files.FilePreconditions.checkFileDoesNotExist;
+import static com.android.tools.build.bundletool.utils.files.FileUtils.createParentDirectories;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of files stored under a key, shared across invocations of bundletool.
+ *
+ * <p>The cache directory can be shared by several JVMs running concurrently: files are published
+ * with an atomic rename, so a partially written file is never visible. The least recently used
+ * files are evicted once the total size of the cache exceeds the given maximum size.
+ *
+ * <p>Computing the keys is the responsibility of the caller: two files stored under the same key
+ * are expected to be identical.
+ */
+public final class FileCache {
+
+  private static final String TEMP_FILE_EXTENSION = ".tmp";
+  private static final String LOCK_FILE_NAME = ".lock";
+
+  /** Temp files older than this are considered left over by a JVM that died while writing. */
+  private static final Duration STALE_TEMP_FILE_AGE = Duration.ofHours(1);
+
+  private final Path cacheDirectory;
+  private final long maxSizeBytes;
+  private final String fileExtension;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /**
+   * @param fileExtension extension of the cached files, e.g. ".apk"; only used to make the content
+   *     of the cache directory easier to inspect
+   */
+  public FileCache(Path cacheDirectory, long maxSizeBytes, String fileExtension) {
+    checkArgument(
+        maxSizeBytes > 0, "The maximum cache size must be positive, got %s.", maxSizeBytes);
+    checkArgument(
+        !fileExtension.equals(TEMP_FILE_EXTENSION),
+        "The extension '%s' is reserved.",
+        TEMP_FILE_EXTENSION);
+    this.cacheDirectory = cacheDirectory;
+    this.maxSizeBytes = maxSizeBytes;
+    this.fileExtension = fileExtension;
+    try {
+      Files.createDirectories(cacheDirectory);
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Unable to create the cache directory '%s'.", cacheDirectory), e);
+    }
+  }
+
+  /**
+   * Copies the file cached under the given key to {@code destination}.
+   *
+   * @return whether the file was found in the cache
+   */
+  public boolean copyTo(String key, Path destination) {
+    checkFileDoesNotExist(destination);
+    createParentDirectories(destination);
+    Path cachedFile = getCachedFilePath(key);
+    try {
+      Files.copy(cachedFile, destination);
+    } catch (NoSuchFileException e) {
+      // Not cached yet, or evicted in the meantime.
+      missCount.incrementAndGet();
+      return false;
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while copying the cached file '%s'.", cachedFile), e);
+    }
+    hitCount.incrementAndGet();
+    try {
+      Files.setLastModifiedTime(cachedFile, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // The file was evicted after being copied, which is harmless.
+    }
+    return true;
+  }
+
+  /**
+   * Stores the file written by the given writer under the given key, and evicts files if needed.
+   *
+   * <p>The writer is given an existing empty file to overwrite, located in the cache directory.
+   */
+  public void put(String key, ContentWriter writer) {
+    Path cachedFile = getCachedFilePath(key);
+    try {
+      Path tempFile = Files.createTempFile(cacheDirectory, key, TEMP_FILE_EXTENSION);
+      try {
+        writer.writeTo(tempFile);
+        // Another process may have cached the same file in the meantime: the content is identical.
+        Files.move(tempFile, cachedFile, ATOMIC_MOVE);
+      } catch (FileAlreadyExistsException e) {
+        Files.delete(tempFile);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(tempFile);
+        throw e;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while adding the file with key '%s' to the cache.", key), e);
+    }
+    evictIfNeeded();
+  }
+
+  /** Removes the file cached under the given key, e.g. because its content is corrupt. */
+  public void invalidate(String key) {
+    Path cachedFile = getCachedFilePath(key);
+    try {
+      Files.deleteIfExists(cachedFile);
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while removing the cached file '%s'.", cachedFile), e);
+    }
+  }
+
+  /** Returns statistics about the use of the cache by this instance. */
+  public Statistics getStatistics() {
+    return Statistics.create(hitCount.get(), missCount.get(), evictionCount.get());
+  }
+
+  private Path getCachedFilePath(String key) {
+    return cacheDirectory.resolve(key + fileExtension);
+  }
+
+  /**
+   * Deletes the least recently used files until the cache fits in its maximum size.
+   *
+   * <p>Eviction is serialized across JVMs with a lock on a file of the cache directory. A file lock
+   * is held on behalf of the whole JVM, hence the additional lock on this class.
+   */
+  @SuppressWarnings("try") // The lock is only held, never used.
+  private void evictIfNeeded() {
+    synchronized (FileCache.class) {
+      try (FileChannel lockChannel =
+              FileChannel.open(cacheDirectory.resolve(LOCK_FILE_NAME), CREATE, WRITE);
+          FileLock lock = lockChannel.lock()) {
+        ImmutableList<CacheFile> cacheFiles = listCacheFiles();
+        long totalSize = cacheFiles.stream().mapToLong(CacheFile::getSize).sum();
+        long staleTempFileTime = System.currentTimeMillis() - STALE_TEMP_FILE_AGE.toMillis();
+        for (CacheFile cacheFile : cacheFiles) {
+          boolean isTempFile = cacheFile.getPath().toString().endsWith(TEMP_FILE_EXTENSION);
+          if (isTempFile && cacheFile.getLastModifiedMillis() < staleTempFileTime) {
+            Files.deleteIfExists(cacheFile.getPath());
+            totalSize -= cacheFile.getSize();
+          } else if (!isTempFile && totalSize > maxSizeBytes) {
+            Files.deleteIfExists(cacheFile.getPath());
+            totalSize -= cacheFile.getSize();
+            evictionCount.incrementAndGet();
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(
+            String.format("Error while evicting files from the cache '%s'.", cacheDirectory), e);
+      }
+    }
+  }
+
+  /** Lists the files of the cache, least recently used first. */
+  private ImmutableList<CacheFile> listCacheFiles() throws IOException {
+    try (Stream<Path> files = Files.list(cacheDirectory)) {
+      return files
+          .filter(path -> !path.getFileName().toString().equals(LOCK_FILE_NAME))
+          .map(FileCache::readCacheFile)
+          .filter(Optional::isPresent)
+          .map(Optional::get)
+          .sorted(Comparator.comparingLong(CacheFile::getLastModifiedMillis))
+          .collect(toImmutableList());
+    }
+  }
+
+  private static Optional<CacheFile> readCacheFile(Path path) {
+    try {
+      return Optional.of(
+          CacheFile.create(path, Files.size(path), Files.getLastModifiedTime(path).toMillis()));
+    } catch (NoSuchFileException e) {
+      // Published or deleted by another process in the meantime.
+      return Optional.empty();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Writes the content of a file to be cached. */
+  public interface ContentWriter {
+    void writeTo(Path file) throws IOException;
+  }
+
+  @AutoValue
+  abstract static class CacheFile {
+    abstract Path getPath();
+
+    abstract long getSize();
+
+    abstract long getLastModifiedMillis();
+
+    static CacheFile create(Path path, long size, long lastModifiedMillis) {
+      return new AutoValue_FileCache_CacheFile(path, size, lastModifiedMillis);
+    }
+  }
+
+  /** Statistics about the use of a {@link FileCache}. */
+  @AutoValue
+  public abstract static class Statistics {
+    public abstract long getHitCount();
+
+    public abstract long getMissCount();
+
+    public abstract long getEvictionCount();
+
+    static Statistics create(long hitCount, long missCount, long evictionCount) {
+      return new AutoValue_FileCache_Statistics(hitCount, missCount, evictionCount);
+    }
+  }
+}
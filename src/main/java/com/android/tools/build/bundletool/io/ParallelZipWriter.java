@@ -0,0 +1,677 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.io.RawZipEntryWriter.ZIP64_MIN_ENTRY_COUNT;
+import static com.android.tools.build.bundletool.io.RawZipEntryWriter.ZIP64_MIN_SIZE;
+import static com.android.tools.build.bundletool.io.RawZipEntryWriter.centralDirectoryHeader;
+import static com.android.tools.build.bundletool.io.RawZipEntryWriter.endOfCentralDirectory;
+import static com.android.tools.build.bundletool.io.RawZipEntryWriter.localFileHeader;
+import static com.android.tools.build.bundletool.io.RawZipEntryWriter.writeFully;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.android.tools.build.bundletool.io.ZipBuilder.ContentChecksum;
+import com.android.tools.build.bundletool.io.ZipBuilder.Entry;
+import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.model.InputStreamSupplier;
+import com.android.tools.build.bundletool.model.ModuleZipEntry;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.auto.value.AutoValue;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Writes the entries of a {@link ZipBuilder} into a zip file, reading and compressing them on an
+ * executor service.
+ *
+ * <p>Entries larger than {@link #CHUNK_SIZE} are deflated in chunks in parallel. Each chunk is
+ * primed with the end of the previous one and flushed on a byte boundary, so the concatenated
+ * chunks form a single deflate stream. The compressed entries are written in order by the calling
+ * thread, with the records of {@link RawZipEntryWriter}.
+ *
+ * <p>Deflated entries copied from a zip file by {@link ZipBuilder#addFileFromZip} are copied raw by
+ * the calling thread, without being inflated and deflated again: see {@link RawZipEntryWriter}.
+ *
+ * <p>Uncompressed entries are streamed: their CRC is taken from the central directory of the zip
+ * file they are copied from or computed by a task reading their content, then the content is read
+ * again and copied into the zip file by the calling thread, so they are never held in memory.
+ *
+ * <p>Entries of at most {@link #IN_MEMORY_MAX_SIZE} bytes are compressed ahead of the one being
+ * written and held in memory until written, within {@link #MAX_PENDING_BYTES}. Larger entries are
+ * streamed: the calling thread reads them chunk by chunk when their turn comes, has a bounded
+ * number of chunks deflated at a time, and fills in their local file header once written. Both
+ * produce the same compressed bytes.
+ *
+ * <p>Zip64 records are not written: {@link Zip64RequiredException} is thrown if the zip file turns
+ * out to need them, see {@link #canWrite}.
+ */
+final class ParallelZipWriter {
+
+  /** Size of the chunks in which large entries are deflated. */
+  static final int CHUNK_SIZE = 1024 * 1024;
+
+  /** Size above which the content of an entry to deflate is streamed instead of held in memory. */
+  static final int IN_MEMORY_MAX_SIZE = 4 * CHUNK_SIZE;
+
+  /** Estimated memory that the entries processed ahead of the one being written may hold. */
+  private static final long MAX_PENDING_BYTES = 128L * 1024 * 1024;
+
+  private static final int MAX_PENDING_ENTRIES = 256;
+
+  /** Number of chunks of a streamed entry deflated ahead of the one being written. */
+  private static final int MAX_PENDING_CHUNKS = 8;
+
+  /** Size of the window of the deflate algorithm, i.e. the most a chunk can refer back to. */
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final Supplier<String> COMPRESSION_FINGERPRINT =
+      Suppliers.memoize(ParallelZipWriter::computeCompressionFingerprint);
+
+  private final ListeningExecutorService executorService;
+  private final int inMemoryMaxSize;
+  private final long zip64MinSize;
+  private final RawZipEntryWriter rawZipEntryWriter = new RawZipEntryWriter();
+
+  ParallelZipWriter(ListeningExecutorService executorService) {
+    this(executorService, IN_MEMORY_MAX_SIZE, ZIP64_MIN_SIZE);
+  }
+
+  @VisibleForTesting
+  ParallelZipWriter(
+      ListeningExecutorService executorService, int inMemoryMaxSize, long zip64MinSize) {
+    this.executorService = executorService;
+    this.inMemoryMaxSize = inMemoryMaxSize;
+    this.zip64MinSize = zip64MinSize;
+  }
+
+  /** Whether a zip file with the given number of entries can be written without Zip64 records. */
+  static boolean canWrite(int entryCount) {
+    return entryCount < ZIP64_MIN_ENTRY_COUNT;
+  }
+
+  /**
+   * Describes how entries are compressed: the deflate parameters, the Java runtime, and a digest of
+   * sample content compressed the way entries are, which depends on the zlib implementation in use.
+   *
+   * <p>Zip files written by this class with the same description have the same compressed bytes
+   * for the same content.
+   */
+  static String getCompressionFingerprint() {
+    return COMPRESSION_FINGERPRINT.get();
+  }
+
+  private static String computeCompressionFingerprint() {
+    // Repetitions spanning both chunks, so that the digest also depends on the dictionary.
+    byte[] sample = new byte[3 * DICTIONARY_SIZE];
+    Random random = new Random(0);
+    for (int i = 0; i < sample.length; i++) {
+      sample[i] = (byte) (i % 3000 < 1000 ? i % 251 : random.nextInt(16));
+    }
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putBytes(deflateChunk(sample, 0, DICTIONARY_SIZE, /* last= */ false));
+    hasher.putBytes(
+        deflateChunk(sample, DICTIONARY_SIZE, sample.length - DICTIONARY_SIZE, /* last= */ true));
+    return String.format(
+        "bundletool-deflate: level=%d, chunk=%d, java=%s %s, zlib=%s",
+        Deflater.DEFAULT_COMPRESSION,
+        CHUNK_SIZE,
+        System.getProperty("java.vendor"),
+        System.getProperty("java.version"),
+        hasher.hash().toString().substring(0, 16));
+  }
+
+  /** Writes the given entries to the given file, without zip file comment. */
+  void write(Map<ZipPath, Entry> entries, Path outputPath) throws IOException {
+    write(entries, outputPath, "");
+  }
+
+  /**
+   * Writes the given entries and zip file comment to the given file, replacing its content if it
+   * exists.
+   *
+   * @throws Zip64RequiredException if the zip file has too many entries, or if an entry or the zip
+   *     file is too large to be written without Zip64 records. The file is then left incomplete.
+   */
+  void write(Map<ZipPath, Entry> entries, Path outputPath, String comment) throws IOException {
+    if (!canWrite(entries.size())) {
+      throw new Zip64RequiredException();
+    }
+    Deque<PendingEntry> pendingEntries = new ArrayDeque<>();
+    Map<ZipFile, FileChannel> sourceChannels = new HashMap<>();
+    ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    try (FileChannel output = FileChannel.open(outputPath, CREATE, TRUNCATE_EXISTING, WRITE)) {
+      PeekingIterator<Map.Entry<ZipPath, Entry>> entriesIterator =
+          Iterators.peekingIterator(entries.entrySet().iterator());
+      while (entriesIterator.hasNext() || !pendingEntries.isEmpty()) {
+        long pendingBytes = 0;
+        for (PendingEntry pendingEntry : pendingEntries) {
+          pendingBytes += pendingEntry.updateMemory();
+        }
+        while (entriesIterator.hasNext() && pendingEntries.size() < MAX_PENDING_ENTRIES) {
+          long memory = estimateMemory(entriesIterator.peek().getValue());
+          if (!pendingEntries.isEmpty() && pendingBytes + memory > MAX_PENDING_BYTES) {
+            break;
+          }
+          Map.Entry<ZipPath, Entry> entry = entriesIterator.next();
+          pendingEntries.add(new PendingEntry(prepare(entry.getKey(), entry.getValue()), memory));
+          pendingBytes += memory;
+        }
+
+        PreparedEntry entry = await(pendingEntries.removeFirst().future);
+        long localHeaderOffset = output.position();
+        checkWithoutZip64(localHeaderOffset);
+        byte[] name = entry.getName().getBytes(UTF_8);
+        long crc;
+        long size;
+        long compressedSize;
+        if (entry.getStreamedContent().isPresent()) {
+          // The CRC and sizes are only known once the content is written.
+          writeFully(
+              output,
+              localFileHeader(
+                  name, ZipEntry.DEFLATED, /* crc= */ 0, /* compressedSize= */ 0, /* size= */ 0));
+          long dataOffset = output.position();
+          CRC32 crc32 = new CRC32();
+          size = deflateStreamedContent(entry.getStreamedContent().get(), crc32, output);
+          crc = crc32.getValue();
+          compressedSize = output.position() - dataOffset;
+          checkWithoutZip64(size);
+          checkWithoutZip64(compressedSize);
+          output.position(localHeaderOffset);
+          writeFully(
+              output, localFileHeader(name, ZipEntry.DEFLATED, crc, compressedSize, size));
+          output.position(dataOffset + compressedSize);
+        } else {
+          crc = entry.getCrc();
+          size = entry.getSize();
+          compressedSize = entry.getCompressedSize();
+          checkWithoutZip64(size);
+          checkWithoutZip64(compressedSize);
+          writeFully(
+              output,
+              localFileHeader(name, entry.getCompressionMethod(), crc, compressedSize, size));
+          if (entry.getStoredContent().isPresent()) {
+            copyStoredContent(entry, output);
+          }
+          if (entry.getRawSource().isPresent()) {
+            copyRawData(entry.getRawSource().get(), sourceChannels, output);
+          }
+          for (byte[] chunk : entry.getCompressedChunks()) {
+            writeFully(output, ByteBuffer.wrap(chunk));
+          }
+        }
+        centralDirectory.write(
+            centralDirectoryHeader(
+                    name,
+                    entry.getCompressionMethod(),
+                    crc,
+                    compressedSize,
+                    size,
+                    localHeaderOffset)
+                .array());
+      }
+
+      long centralDirectoryOffset = output.position();
+      checkWithoutZip64(centralDirectoryOffset);
+      writeFully(output, ByteBuffer.wrap(centralDirectory.toByteArray()));
+      writeFully(
+          output,
+          endOfCentralDirectory(
+              entries.size(),
+              centralDirectory.size(),
+              centralDirectoryOffset,
+              comment.getBytes(UTF_8)));
+    } finally {
+      // Only non-empty if writing failed: the remaining entries are not needed anymore.
+      for (PendingEntry pendingEntry : pendingEntries) {
+        pendingEntry.future.cancel(/* mayInterruptIfRunning= */ true);
+      }
+      for (FileChannel source : sourceChannels.values()) {
+        try {
+          source.close();
+        } catch (IOException e) {
+          // Only read from: nothing is lost.
+        }
+      }
+    }
+  }
+
+  private void checkWithoutZip64(long sizeOrOffset) throws Zip64RequiredException {
+    if (sizeOrOffset >= zip64MinSize) {
+      throw new Zip64RequiredException();
+    }
+  }
+
+  /**
+   * Estimates the memory held by the given entry from the time it is prepared until it is written:
+   * its content and compressed content, if compressed ahead.
+   */
+  private long estimateMemory(Entry entry) {
+    if (entry.getIsDirectory() || entry.hasOption(EntryOption.UNCOMPRESSED)) {
+      return 0;
+    }
+    long size = inMemoryMaxSize;
+    if (entry.getSourceZipEntry().isPresent()) {
+      ModuleZipEntry source = entry.getSourceZipEntry().get();
+      if (rawZipEntryWriter.canCopyRaw(source)) {
+        return 0;
+      }
+      if (source.getZipEntry().getSize() != -1) {
+        size = source.getZipEntry().getSize();
+      }
+    }
+    return size > inMemoryMaxSize ? 0 : 2 * size;
+  }
+
+  private ListenableFuture<PreparedEntry> prepare(ZipPath path, Entry entry) {
+    if (entry.getIsDirectory()) {
+      // Directories are represented as empty entries whose name ends with "/".
+      return Futures.immediateFuture(
+          PreparedEntry.create(
+              path + "/",
+              ZipEntry.STORED,
+              /* crc= */ 0,
+              /* size= */ 0,
+              ImmutableList.of(),
+              Optional.empty(),
+              Optional.empty(),
+              Optional.empty()));
+    }
+    InputStreamSupplier contentSupplier = entry.getInputStreamSupplier().get();
+    boolean uncompressed = entry.hasOption(EntryOption.UNCOMPRESSED);
+    if (entry.getSourceZipEntry().isPresent()) {
+      ModuleZipEntry source = entry.getSourceZipEntry().get();
+      ZipEntry sourceEntry = source.getZipEntry();
+      if (!uncompressed && rawZipEntryWriter.canCopyRaw(source)) {
+        return Futures.immediateFuture(
+            PreparedEntry.create(
+                path.toString(),
+                ZipEntry.DEFLATED,
+                sourceEntry.getCrc(),
+                sourceEntry.getSize(),
+                ImmutableList.of(),
+                Optional.empty(),
+                Optional.of(source),
+                Optional.empty()));
+      }
+      if (uncompressed && sourceEntry.getCrc() != -1 && sourceEntry.getSize() != -1) {
+        return Futures.immediateFuture(
+            PreparedEntry.create(
+                path.toString(),
+                ZipEntry.STORED,
+                sourceEntry.getCrc(),
+                sourceEntry.getSize(),
+                ImmutableList.of(),
+                Optional.of(contentSupplier),
+                Optional.empty(),
+                Optional.empty()));
+      }
+      if (!uncompressed && sourceEntry.getSize() > inMemoryMaxSize) {
+        return Futures.immediateFuture(PreparedEntry.streamed(path.toString(), contentSupplier));
+      }
+    }
+    if (uncompressed) {
+      return executorService.submit(
+          () -> {
+            ContentChecksum checksum = ContentChecksum.compute(contentSupplier);
+            return PreparedEntry.create(
+                path.toString(),
+                ZipEntry.STORED,
+                checksum.getCrc(),
+                checksum.getSize(),
+                ImmutableList.of(),
+                Optional.of(contentSupplier),
+                Optional.empty(),
+                Optional.empty());
+          });
+    }
+    return Futures.transformAsync(
+        executorService.submit(() -> readContent(contentSupplier)),
+        readContent -> {
+          if (!readContent.isPresent()) {
+            return Futures.immediateFuture(
+                PreparedEntry.streamed(path.toString(), contentSupplier));
+          }
+          byte[] content = readContent.get();
+          long crc = computeCrc32(content);
+          if (content.length <= CHUNK_SIZE) {
+            return Futures.immediateFuture(
+                PreparedEntry.create(
+                    path.toString(),
+                    ZipEntry.DEFLATED,
+                    crc,
+                    content.length,
+                    ImmutableList.of(
+                        deflateChunk(content, 0, content.length, /* last= */ true)),
+                    Optional.empty(),
+                    Optional.empty(),
+                    Optional.empty()));
+          }
+          List<ListenableFuture<byte[]>> chunks = new ArrayList<>();
+          for (int start = 0; start < content.length; start += CHUNK_SIZE) {
+            int chunkStart = start;
+            int chunkLength = Math.min(CHUNK_SIZE, content.length - start);
+            boolean last = start + chunkLength == content.length;
+            chunks.add(
+                executorService.submit(
+                    () -> deflateChunk(content, chunkStart, chunkLength, last)));
+          }
+          return Futures.transform(
+              Futures.allAsList(chunks),
+              compressedChunks ->
+                  PreparedEntry.create(
+                      path.toString(),
+                      ZipEntry.DEFLATED,
+                      crc,
+                      content.length,
+                      ImmutableList.copyOf(compressedChunks),
+                      Optional.empty(),
+                      Optional.empty(),
+                      Optional.empty()),
+              directExecutor());
+        },
+        directExecutor());
+  }
+
+  /** Reads the given content, or returns empty if it is too large to be held in memory. */
+  private Optional<byte[]> readContent(InputStreamSupplier contentSupplier) throws IOException {
+    try (InputStream content = contentSupplier.get()) {
+      byte[] bytes = ByteStreams.toByteArray(ByteStreams.limit(content, inMemoryMaxSize + 1L));
+      return bytes.length > inMemoryMaxSize ? Optional.empty() : Optional.of(bytes);
+    }
+  }
+
+  /**
+   * Deflates the given content into the zip file chunk by chunk, as {@link #prepare} would have
+   * done in memory.
+   *
+   * @return the size of the content
+   */
+  private long deflateStreamedContent(
+      InputStreamSupplier contentSupplier, CRC32 crc32, FileChannel output) throws IOException {
+    Deque<ListenableFuture<byte[]>> pendingChunks = new ArrayDeque<>();
+    long size = 0;
+    try (InputStream content = contentSupplier.get()) {
+      byte[] dictionary = new byte[0];
+      byte[] chunk = readChunk(content);
+      while (true) {
+        // The last chunk ends the deflate stream, so the next one is read ahead.
+        byte[] nextChunk = chunk.length == CHUNK_SIZE ? readChunk(content) : new byte[0];
+        boolean last = nextChunk.length == 0;
+        crc32.update(chunk);
+        size += chunk.length;
+        byte[] data = Bytes.concat(dictionary, chunk);
+        int start = dictionary.length;
+        pendingChunks.add(
+            executorService.submit(() -> deflateChunk(data, start, data.length - start, last)));
+        while (!pendingChunks.isEmpty()
+            && (last || pendingChunks.size() >= MAX_PENDING_CHUNKS)) {
+          writeFully(output, ByteBuffer.wrap(await(pendingChunks.removeFirst())));
+        }
+        if (last) {
+          return size;
+        }
+        dictionary = Arrays.copyOfRange(chunk, chunk.length - DICTIONARY_SIZE, chunk.length);
+        chunk = nextChunk;
+      }
+    } finally {
+      // Only non-empty if writing failed.
+      for (ListenableFuture<byte[]> pendingChunk : pendingChunks) {
+        pendingChunk.cancel(/* mayInterruptIfRunning= */ true);
+      }
+    }
+  }
+
+  private static byte[] readChunk(InputStream content) throws IOException {
+    byte[] chunk = new byte[CHUNK_SIZE];
+    int length = ByteStreams.read(content, chunk, 0, CHUNK_SIZE);
+    return length == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, length);
+  }
+
+  private void copyRawData(
+      ModuleZipEntry source, Map<ZipFile, FileChannel> sourceChannels, FileChannel output)
+      throws IOException {
+    ZipFile zipFile = source.getZipFile();
+    FileChannel sourceChannel = sourceChannels.get(zipFile);
+    if (sourceChannel == null) {
+      sourceChannel = FileChannel.open(Paths.get(zipFile.getName()), READ);
+      sourceChannels.put(zipFile, sourceChannel);
+    }
+    rawZipEntryWriter.transferRawData(source, sourceChannel, output);
+  }
+
+  /** Copies the content of an uncompressed entry, checking that it matches its CRC and size. */
+  private static void copyStoredContent(PreparedEntry entry, FileChannel output)
+      throws IOException {
+    CRC32 crc32 = new CRC32();
+    long size = 0;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream content = entry.getStoredContent().get().get()) {
+      int length;
+      while ((length = content.read(buffer)) != -1) {
+        crc32.update(buffer, 0, length);
+        writeFully(output, ByteBuffer.wrap(buffer, 0, length));
+        size += length;
+      }
+    }
+    if (crc32.getValue() != entry.getCrc() || size != entry.getSize()) {
+      throw new ZipException(
+          String.format("The content of entry '%s' changed while being written.", entry.getName()));
+    }
+  }
+
+  /**
+   * Deflates the given range of the content.
+   *
+   * <p>The data preceding the range is used as dictionary, and the output ends the deflate stream
+   * only if the range is the last one of the content.
+   */
+  private static byte[] deflateChunk(byte[] content, int start, int length, boolean last) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /* nowrap= */ true);
+    try {
+      if (start > 0) {
+        int dictionaryStart = Math.max(0, start - DICTIONARY_SIZE);
+        deflater.setDictionary(content, dictionaryStart, start - dictionaryStart);
+      }
+      deflater.setInput(content, start, length);
+
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+      } else {
+        // Flushing ends the chunk on a byte boundary without ending the deflate stream. The output
+        // may not fit in the buffer, in which case the flush must be repeated.
+        int compressedLength;
+        do {
+          compressedLength = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          compressed.write(buffer, 0, compressedLength);
+        } while (compressedLength == buffer.length);
+      }
+      return compressed.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static long computeCrc32(byte[] data) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(data);
+    return crc32.getValue();
+  }
+
+  private static <T> T await(ListenableFuture<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing the zip file.");
+    }
+  }
+
+  /** An entry ready to be written. */
+  @AutoValue
+  abstract static class PreparedEntry {
+    abstract String getName();
+
+    abstract int getCompressionMethod();
+
+    abstract long getCrc();
+
+    abstract long getSize();
+
+    /** The compressed data, to be written one chunk after the other. */
+    abstract ImmutableList<byte[]> getCompressedChunks();
+
+    /** The content of uncompressed entries, to be streamed into the zip file. */
+    abstract Optional<InputStreamSupplier> getStoredContent();
+
+    /** The zip entry whose compressed data is to be copied as-is into the zip file. */
+    abstract Optional<ModuleZipEntry> getRawSource();
+
+    /**
+     * The content of large entries, to be deflated while written. Their CRC and sizes are unknown
+     * until then.
+     */
+    abstract Optional<InputStreamSupplier> getStreamedContent();
+
+    long getCompressedSize() {
+      if (getStoredContent().isPresent()) {
+        return getSize();
+      }
+      if (getRawSource().isPresent()) {
+        return getRawSource().get().getZipEntry().getCompressedSize();
+      }
+      return getCompressedChunks().stream().mapToLong(chunk -> chunk.length).sum();
+    }
+
+    static PreparedEntry create(
+        String name,
+        int compressionMethod,
+        long crc,
+        long size,
+        ImmutableList<byte[]> compressedChunks,
+        Optional<InputStreamSupplier> storedContent,
+        Optional<ModuleZipEntry> rawSource,
+        Optional<InputStreamSupplier> streamedContent) {
+      return new AutoValue_ParallelZipWriter_PreparedEntry(
+          name,
+          compressionMethod,
+          crc,
+          size,
+          compressedChunks,
+          storedContent,
+          rawSource,
+          streamedContent);
+    }
+
+    static PreparedEntry streamed(String name, InputStreamSupplier content) {
+      return create(
+          name,
+          ZipEntry.DEFLATED,
+          /* crc= */ 0,
+          /* size= */ 0,
+          ImmutableList.of(),
+          Optional.empty(),
+          Optional.empty(),
+          Optional.of(content));
+    }
+  }
+
+  /** An entry being prepared, with the memory it is estimated to hold until written. */
+  private static final class PendingEntry {
+    final ListenableFuture<PreparedEntry> future;
+    private long memory;
+
+    PendingEntry(ListenableFuture<PreparedEntry> future, long estimatedMemory) {
+      this.future = future;
+      this.memory = estimatedMemory;
+    }
+
+    /** Returns the memory held by the entry, exact once prepared. */
+    long updateMemory() {
+      if (future.isDone() && !future.isCancelled()) {
+        try {
+          memory =
+              Futures.getDone(future).getCompressedChunks().stream()
+                  .mapToLong(chunk -> chunk.length)
+                  .sum();
+        } catch (ExecutionException e) {
+          // Reported when the entry is written.
+        }
+      }
+      return memory;
+    }
+  }
+
+  /** Thrown when the zip file cannot be written without Zip64 records. */
+  static final class Zip64RequiredException extends IOException {
+    Zip64RequiredException() {
+      super("The zip file requires Zip64 records.");
+    }
+  }
+}
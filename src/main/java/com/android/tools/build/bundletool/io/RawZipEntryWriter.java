@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.android.tools.build.bundletool.model.MappedModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleZipEntry;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Writes zip files whose entries are copied from the zip files backing {@link ModuleZipEntry} and
+ * {@link MappedModuleEntry} instances without being inflated and deflated again.
+ *
+ * <p>The compressed bytes are transferred from one file to the other, and the CRC and sizes are
+ * taken from the central directory of the source zip file. Only deflated entries are supported,
+ * and for {@link ModuleZipEntry} only those of zip files without Zip64 records: see {@link
+ * #canCopyRaw}.
+ *
+ * <p>The offsets of the entries of each source zip file are read once and kept for the lifetime
+ * of this instance, which is safe to use from multiple threads.
+ */
+final class RawZipEntryWriter {
+
+  private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+  private static final int LOCAL_FILE_HEADER_SIZE = 30;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+  /** Values from which Zip64 records are required. */
+  static final long ZIP64_MIN_SIZE = 0xFFFFFFFFL;
+
+  static final int ZIP64_MIN_ENTRY_COUNT = 0xFFFF;
+
+  private static final short VERSION_NEEDED_TO_EXTRACT = 20;
+  private static final short UTF8_NAME_FLAG = 0x0800;
+
+  /** Offsets of the local file headers by entry name, keyed by source zip file. */
+  private final ConcurrentMap<ZipFile, ImmutableMap<String, Long>> localHeaderOffsets =
+      new ConcurrentHashMap<>();
+
+  /** Whether the compressed bytes of the given entry can be copied as-is. */
+  boolean canCopyRaw(ModuleEntry entry) {
+    if (entry instanceof MappedModuleEntry) {
+      MappedZipFile.Entry zipEntry = ((MappedModuleEntry) entry).getZipEntry();
+      return !zipEntry.isDirectory()
+          && zipEntry.getMethod() == ZipEntry.DEFLATED
+          && zipEntry.getCompressedSize() < ZIP64_MIN_SIZE
+          && zipEntry.getSize() < ZIP64_MIN_SIZE;
+    }
+    if (entry instanceof ModuleZipEntry) {
+      ModuleZipEntry moduleZipEntry = (ModuleZipEntry) entry;
+      ZipEntry zipEntry = moduleZipEntry.getZipEntry();
+      return !zipEntry.isDirectory()
+          && zipEntry.getMethod() == ZipEntry.DEFLATED
+          && zipEntry.getCompressedSize() < ZIP64_MIN_SIZE
+          && zipEntry.getSize() < ZIP64_MIN_SIZE
+          && getLocalHeaderOffsets(moduleZipEntry.getZipFile()).containsKey(zipEntry.getName());
+    }
+    return false;
+  }
+
+  /**
+   * Writes a zip file made of the given entries, keyed by their path in the new zip file.
+   *
+   * <p>All entries must be supported by {@link #canCopyRaw}.
+   */
+  void write(ImmutableMap<String, ModuleEntry> entriesByPath, Path outputPath) {
+    Map<ZipFile, FileChannel> sourceChannels = new HashMap<>();
+    ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    try (FileChannel output = FileChannel.open(outputPath, CREATE_NEW, WRITE)) {
+      for (Entry<String, ModuleEntry> entry : entriesByPath.entrySet()) {
+        ModuleEntry moduleEntry = entry.getValue();
+        checkArgument(
+            canCopyRaw(moduleEntry),
+            "Entry '%s' cannot be copied without being recompressed.",
+            moduleEntry.getPath());
+        long localHeaderOffset = output.position();
+        checkState(localHeaderOffset < ZIP64_MIN_SIZE, "Zip64 output is not supported.");
+        byte[] name = entry.getKey().getBytes(UTF_8);
+
+        long crc;
+        long compressedSize;
+        long size;
+        if (moduleEntry instanceof MappedModuleEntry) {
+          MappedZipFile.Entry zipEntry = ((MappedModuleEntry) moduleEntry).getZipEntry();
+          crc = zipEntry.getCrc();
+          compressedSize = zipEntry.getCompressedSize();
+          size = zipEntry.getSize();
+          writeFully(output, localFileHeader(name, ZipEntry.DEFLATED, crc, compressedSize, size));
+          writeFully(output, zipEntry.getRawData());
+        } else {
+          ModuleZipEntry moduleZipEntry = (ModuleZipEntry) moduleEntry;
+          ZipFile zipFile = moduleZipEntry.getZipFile();
+          ZipEntry zipEntry = moduleZipEntry.getZipEntry();
+          FileChannel source = sourceChannels.get(zipFile);
+          if (source == null) {
+            source = FileChannel.open(Paths.get(zipFile.getName()), READ);
+            sourceChannels.put(zipFile, source);
+          }
+          crc = zipEntry.getCrc();
+          compressedSize = zipEntry.getCompressedSize();
+          size = zipEntry.getSize();
+          writeFully(output, localFileHeader(name, ZipEntry.DEFLATED, crc, compressedSize, size));
+          transferRawData(moduleZipEntry, source, output);
+        }
+        centralDirectory.write(
+            centralDirectoryHeader(
+                    name, ZipEntry.DEFLATED, crc, compressedSize, size, localHeaderOffset)
+                .array());
+      }
+      long centralDirectoryOffset = output.position();
+      checkState(centralDirectoryOffset < ZIP64_MIN_SIZE, "Zip64 output is not supported.");
+      writeFully(output, ByteBuffer.wrap(centralDirectory.toByteArray()));
+      writeFully(
+          output,
+          endOfCentralDirectory(
+              entriesByPath.size(),
+              centralDirectory.size(),
+              centralDirectoryOffset,
+              /* comment= */ new byte[0]));
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while writing the zip file '%s'.", outputPath), e);
+    } finally {
+      for (FileChannel source : sourceChannels.values()) {
+        try {
+          source.close();
+        } catch (IOException e) {
+          // Only read from: nothing is lost.
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies the compressed bytes of the given entry to the output, reading them from the given
+   * channel opened on the zip file of the entry.
+   *
+   * <p>The entry must be supported by {@link #canCopyRaw}.
+   */
+  void transferRawData(ModuleZipEntry entry, FileChannel source, FileChannel output)
+      throws IOException {
+    long dataOffset = getDataOffset(source, entry.getZipFile(), entry.getZipEntry());
+    transferFully(source, dataOffset, entry.getZipEntry().getCompressedSize(), output);
+  }
+
+  private long getDataOffset(FileChannel source, ZipFile zipFile, ZipEntry zipEntry)
+      throws IOException {
+    long localHeaderOffset = getLocalHeaderOffsets(zipFile).get(zipEntry.getName());
+    ByteBuffer header = readFully(source, localHeaderOffset, LOCAL_FILE_HEADER_SIZE);
+    checkState(
+        header.getInt(0) == LOCAL_FILE_HEADER_SIGNATURE,
+        "Invalid local file header for entry '%s' in '%s'.",
+        zipEntry.getName(),
+        zipFile.getName());
+    int nameLength = Short.toUnsignedInt(header.getShort(26));
+    int extraLength = Short.toUnsignedInt(header.getShort(28));
+    return localHeaderOffset + LOCAL_FILE_HEADER_SIZE + nameLength + extraLength;
+  }
+
+  private ImmutableMap<String, Long> getLocalHeaderOffsets(ZipFile zipFile) {
+    return localHeaderOffsets.computeIfAbsent(zipFile, RawZipEntryWriter::readLocalHeaderOffsets);
+  }
+
+  /**
+   * Reads the offsets of the local file headers from the central directory of the given zip file.
+   *
+   * <p>Returns an empty map for zip files using Zip64 records, so that their entries are not
+   * copied raw.
+   */
+  private static ImmutableMap<String, Long> readLocalHeaderOffsets(ZipFile zipFile) {
+    try (FileChannel channel = FileChannel.open(Paths.get(zipFile.getName()), READ)) {
+      long fileSize = channel.size();
+      int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+      ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+      int eocdPosition = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE;
+      while (eocdPosition >= 0 && tail.getInt(eocdPosition) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        eocdPosition--;
+      }
+      if (eocdPosition < 0) {
+        return ImmutableMap.of();
+      }
+      int entryCount = Short.toUnsignedInt(tail.getShort(eocdPosition + 10));
+      long centralDirectorySize = Integer.toUnsignedLong(tail.getInt(eocdPosition + 12));
+      long centralDirectoryOffset = Integer.toUnsignedLong(tail.getInt(eocdPosition + 16));
+      if (entryCount == ZIP64_MIN_ENTRY_COUNT
+          || centralDirectorySize == ZIP64_MIN_SIZE
+          || centralDirectoryOffset == ZIP64_MIN_SIZE) {
+        return ImmutableMap.of();
+      }
+
+      ByteBuffer centralDirectory =
+          readFully(channel, centralDirectoryOffset, (int) centralDirectorySize);
+      ImmutableMap.Builder<String, Long> offsets = ImmutableMap.builder();
+      int position = 0;
+      for (int i = 0; i < entryCount; i++) {
+        checkState(
+            centralDirectory.getInt(position) == CENTRAL_DIRECTORY_HEADER_SIGNATURE,
+            "Invalid central directory in '%s'.",
+            zipFile.getName());
+        int nameLength = Short.toUnsignedInt(centralDirectory.getShort(position + 28));
+        int extraLength = Short.toUnsignedInt(centralDirectory.getShort(position + 30));
+        int commentLength = Short.toUnsignedInt(centralDirectory.getShort(position + 32));
+        long localHeaderOffset = Integer.toUnsignedLong(centralDirectory.getInt(position + 42));
+        byte[] name = new byte[nameLength];
+        centralDirectory.position(position + CENTRAL_DIRECTORY_HEADER_SIZE);
+        centralDirectory.get(name);
+        if (localHeaderOffset != ZIP64_MIN_SIZE) {
+          offsets.put(new String(name, UTF_8), localHeaderOffset);
+        }
+        position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+      }
+      return offsets.build();
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while reading the central directory of '%s'.", zipFile.getName()),
+          e);
+    }
+  }
+
+  /** Local file header of an entry, without data descriptor and with cleared timestamps. */
+  static ByteBuffer localFileHeader(
+      byte[] name, int compressionMethod, long crc, long compressedSize, long size) {
+    ByteBuffer header =
+        ByteBuffer.allocate(LOCAL_FILE_HEADER_SIZE + name.length).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(LOCAL_FILE_HEADER_SIGNATURE);
+    header.putShort(VERSION_NEEDED_TO_EXTRACT);
+    header.putShort(UTF8_NAME_FLAG);
+    header.putShort((short) compressionMethod);
+    // Last modification time and date: timestamps are cleared in APKs.
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putInt((int) crc);
+    header.putInt((int) compressedSize);
+    header.putInt((int) size);
+    header.putShort((short) name.length);
+    // Extra field length.
+    header.putShort((short) 0);
+    header.put(name);
+    header.flip();
+    return header;
+  }
+
+  static ByteBuffer centralDirectoryHeader(
+      byte[] name,
+      int compressionMethod,
+      long crc,
+      long compressedSize,
+      long size,
+      long localHeaderOffset) {
+    ByteBuffer header =
+        ByteBuffer.allocate(CENTRAL_DIRECTORY_HEADER_SIZE + name.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(CENTRAL_DIRECTORY_HEADER_SIGNATURE);
+    // Version made by.
+    header.putShort(VERSION_NEEDED_TO_EXTRACT);
+    header.putShort(VERSION_NEEDED_TO_EXTRACT);
+    header.putShort(UTF8_NAME_FLAG);
+    header.putShort((short) compressionMethod);
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putInt((int) crc);
+    header.putInt((int) compressedSize);
+    header.putInt((int) size);
+    header.putShort((short) name.length);
+    // Extra field length, comment length, disk number, internal and external attributes.
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putInt(0);
+    header.putInt((int) localHeaderOffset);
+    header.put(name);
+    return header;
+  }
+
+  static ByteBuffer endOfCentralDirectory(
+      int entryCount, long centralDirectorySize, long centralDirectoryOffset, byte[] comment) {
+    checkState(entryCount < ZIP64_MIN_ENTRY_COUNT, "Zip64 output is not supported.");
+    checkArgument(comment.length <= MAX_COMMENT_SIZE, "Zip file comment too long.");
+    ByteBuffer eocd =
+        ByteBuffer.allocate(END_OF_CENTRAL_DIRECTORY_SIZE + comment.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    eocd.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+    // Number of this disk and of the disk where the central directory starts.
+    eocd.putShort((short) 0);
+    eocd.putShort((short) 0);
+    eocd.putShort((short) entryCount);
+    eocd.putShort((short) entryCount);
+    eocd.putInt((int) centralDirectorySize);
+    eocd.putInt((int) centralDirectoryOffset);
+    eocd.putShort((short) comment.length);
+    eocd.put(comment);
+    eocd.flip();
+    return eocd;
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int size)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file.");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /** Copies bytes between the channels, letting the OS avoid copies to the JVM when it can. */
+  private static void transferFully(
+      FileChannel source, long position, long count, FileChannel destination)
+      throws IOException {
+    long transferred = 0;
+    while (transferred < count) {
+      long n = source.transferTo(position + transferred, count - transferred, destination);
+      if (n <= 0) {
+        throw new IOException("Unexpected end of file.");
+      }
+      transferred += n;
+    }
+  }
+}
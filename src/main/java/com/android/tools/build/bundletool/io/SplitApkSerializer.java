@@ -26,6 +26,7 @@ import com.android.tools.build.bundletool.model.Aapt2Command;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.tracing.Tracer;
 import java.nio.file.Path;
 import java.util.Optional;
 import java.util.function.BiFunction;
@@ -41,8 +42,30 @@ public class SplitApkSerializer {
       Aapt2Command aapt2Command,
       Optional<SigningConfiguration> signingConfig,
       Compression compression) {
+    this(apkPathManager, aapt2Command, signingConfig, compression, Optional.empty());
+  }
+
+  /** If an {@link ApkCache} is given, APKs identical to a cached APK are copied from the cache. */
+  public SplitApkSerializer(
+      ApkPathManager apkPathManager,
+      Aapt2Command aapt2Command,
+      Optional<SigningConfiguration> signingConfig,
+      Compression compression,
+      Optional<ApkCache> apkCache) {
+    this(apkPathManager, aapt2Command, signingConfig, compression, apkCache, Tracer.NO_OP);
+  }
+
+  /** The steps of the serialization of each APK are traced as spans of the given tracer. */
+  public SplitApkSerializer(
+      ApkPathManager apkPathManager,
+      Aapt2Command aapt2Command,
+      Optional<SigningConfiguration> signingConfig,
+      Compression compression,
+      Optional<ApkCache> apkCache,
+      Tracer tracer) {
     this.apkPathManager = apkPathManager;
-    this.apkSerializerHelper = new ApkSerializerHelper(aapt2Command, signingConfig, compression);
+    this.apkSerializerHelper =
+        new ApkSerializerHelper(aapt2Command, signingConfig, compression, apkCache, tracer);
   }
 
   /** Writes the installable split to disk. */
@@ -23,6 +23,7 @@ import com.android.tools.build.bundletool.model.Aapt2Command;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.tracing.Tracer;
 import com.google.common.annotations.VisibleForTesting;
 import java.nio.file.Path;
 import java.util.Optional;
@@ -40,8 +41,30 @@ public class StandaloneApkSerializer {
       Aapt2Command aapt2Command,
       Optional<SigningConfiguration> signingConfig,
       Compression compression) {
+    this(apkPathManager, aapt2Command, signingConfig, compression, Optional.empty());
+  }
+
+  /** If an {@link ApkCache} is given, APKs identical to a cached APK are copied from the cache. */
+  public StandaloneApkSerializer(
+      ApkPathManager apkPathManager,
+      Aapt2Command aapt2Command,
+      Optional<SigningConfiguration> signingConfig,
+      Compression compression,
+      Optional<ApkCache> apkCache) {
+    this(apkPathManager, aapt2Command, signingConfig, compression, apkCache, Tracer.NO_OP);
+  }
+
+  /** The steps of the serialization of each APK are traced as spans of the given tracer. */
+  public StandaloneApkSerializer(
+      ApkPathManager apkPathManager,
+      Aapt2Command aapt2Command,
+      Optional<SigningConfiguration> signingConfig,
+      Compression compression,
+      Optional<ApkCache> apkCache,
+      Tracer tracer) {
     this.apkPathManager = apkPathManager;
-    this.apkSerializerHelper = new ApkSerializerHelper(aapt2Command, signingConfig, compression);
+    this.apkSerializerHelper =
+        new ApkSerializerHelper(aapt2Command, signingConfig, compression, apkCache, tracer);
   }
 
   public ApkDescription writeToDisk(ModuleSplit standaloneSplit, Path outputDirectory) {
@@ -19,12 +19,17 @@ package com.android.tools.build.bundletool.io;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
+import com.android.tools.build.bundletool.io.ParallelZipWriter.Zip64RequiredException;
 import com.android.tools.build.bundletool.model.InputStreamSupplier;
+import com.android.tools.build.bundletool.model.ModuleZipEntry;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.utils.files.BufferedIo;
 import com.google.auto.value.AutoValue;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.protobuf.MessageLite;
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -37,6 +42,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -52,6 +58,8 @@ public final class ZipBuilder {
   /** Entries to be output. */
   private final Map<ZipPath, Entry> entries = new LinkedHashMap<>();
 
+  private boolean recordParallelCompression = false;
+
   /**
    * Writes the data into a zip file.
    *
@@ -61,50 +69,52 @@ public final class ZipBuilder {
    * @throws IOException When an I/O error occurs.
    */
   public synchronized Path writeTo(Path target) throws IOException {
+    return writeTo(target, Optional.empty());
+  }
+
+  /**
+   * Writes the data into a zip file, reading and compressing the entries in parallel on the given
+   * executor service.
+   *
+   * <p>The input streams of the entries are opened from the threads of the executor service. The
+   * calling thread waits for the tasks it submitted, so it must not itself be a thread of the
+   * executor service.
+   *
+   * <p>Falls back to {@link #writeTo(Path)} if the zip file requires Zip64 records, which may only
+   * be found out once part of it is written. The entries are then read again.
+   *
+   * @see #writeTo(Path)
+   */
+  public synchronized Path writeTo(Path target, ListeningExecutorService executorService)
+      throws IOException {
+    return writeTo(target, Optional.of(executorService));
+  }
+
+  private Path writeTo(Path target, Optional<ListeningExecutorService> executorService)
+      throws IOException {
     // Create temp file and move to requested location when completely written. If the command
     // fails, this prevents us from generating partial output at the user-specified location.
     Path tempFile = Files.createTempFile("ZipBuilder-", ".zip.tmp");
 
     try {
-      try (ZipOutputStream outZip = new ZipOutputStream(BufferedIo.outputStream(tempFile))) {
-        for (ZipPath path : entries.keySet()) {
-          Entry entry = entries.get(path);
-          if (entry.getIsDirectory()) {
-            // For directories, we append "/" at the end of the file path since that's what the
-            // ZipEntry class relies on.
-            ZipEntry zipEntry = new ZipEntry(path + "/");
-            outZip.putNextEntry(zipEntry);
-            // Directories are represented as having empty content in a zip file, so we don't write
-            // any bytes to the outZip for this entry.
-          } else {
-            ZipEntry zipEntry = new ZipEntry(path.toString());
-            if (entry.hasOption(EntryOption.UNCOMPRESSED)) {
-              zipEntry.setMethod(ZipEntry.STORED);
-              // ZipFile API requires us to set the following properties manually for uncompressed
-              // ZipEntries, just setting the compression method is not enough.
-              try (InputStream is = entry.getInputStreamSupplier().get().get()) {
-                byte[] entryData = ByteStreams.toByteArray(is);
-                zipEntry.setSize(entryData.length);
-                zipEntry.setCompressedSize(entryData.length);
-                zipEntry.setCrc(computeCrc32(entryData));
-                outZip.putNextEntry(zipEntry);
-                outZip.write(entryData);
-              }
-            } else {
-              outZip.putNextEntry(zipEntry);
-              try (InputStream content = entry.getInputStreamSupplier().get().get()) {
-                ByteStreams.copy(content, outZip);
-              }
-            }
-          }
-          outZip.closeEntry();
+      if (executorService.isPresent() && ParallelZipWriter.canWrite(entries.size())) {
+        try {
+          new ParallelZipWriter(executorService.get())
+              .write(
+                  entries,
+                  tempFile,
+                  recordParallelCompression ? getParallelCompressionComment() : "");
+        } catch (Zip64RequiredException e) {
+          writeSequentially(tempFile);
         }
+      } else {
+        writeSequentially(tempFile);
       }
 
       // Fails if the target file exists.
       Files.move(tempFile, target);
 
-    } catch (IOException e) {
+    } catch (IOException | RuntimeException e) {
       Files.deleteIfExists(tempFile);
       throw e;
     }
@@ -112,6 +122,68 @@ public final class ZipBuilder {
     return target;
   }
 
+  /**
+   * Records how the entries are compressed in the comment of the zip file, if written by {@link
+   * #writeTo(Path, ListeningExecutorService)} without falling back to {@link #writeTo(Path)}.
+   *
+   * <p>Zip files with the same comment have the same compressed bytes for the same content: their
+   * compressed entries can be copied instead of compressing the content again.
+   */
+  public synchronized ZipBuilder recordParallelCompression() {
+    recordParallelCompression = true;
+    return this;
+  }
+
+  /** Returns the comment of zip files whose compression is recorded by this class. */
+  public static String getParallelCompressionComment() {
+    return ParallelZipWriter.getCompressionFingerprint();
+  }
+
+  @VisibleForTesting
+  synchronized ImmutableMap<ZipPath, Entry> getEntries() {
+    return ImmutableMap.copyOf(entries);
+  }
+
+  private void writeSequentially(Path tempFile) throws IOException {
+    try (ZipOutputStream outZip = new ZipOutputStream(BufferedIo.outputStream(tempFile))) {
+      for (ZipPath path : entries.keySet()) {
+        Entry entry = entries.get(path);
+        if (entry.getIsDirectory()) {
+          // For directories, we append "/" at the end of the file path since that's what the
+          // ZipEntry class relies on.
+          ZipEntry zipEntry = new ZipEntry(path + "/");
+          outZip.putNextEntry(zipEntry);
+          // Directories are represented as having empty content in a zip file, so we don't write
+          // any bytes to the outZip for this entry.
+        } else {
+          ZipEntry zipEntry = new ZipEntry(path.toString());
+          if (entry.hasOption(EntryOption.UNCOMPRESSED)) {
+            zipEntry.setMethod(ZipEntry.STORED);
+            // ZipFile API requires us to set the following properties manually for uncompressed
+            // ZipEntries, just setting the compression method is not enough. They are computed in
+            // a first pass over the content, so that the content is never held in memory.
+            ContentChecksum checksum =
+                ContentChecksum.compute(entry.getInputStreamSupplier().get());
+            zipEntry.setSize(checksum.getSize());
+            zipEntry.setCompressedSize(checksum.getSize());
+            zipEntry.setCrc(checksum.getCrc());
+            outZip.putNextEntry(zipEntry);
+            // The ZipOutputStream fails if the content read this time has a different CRC.
+            try (InputStream content = entry.getInputStreamSupplier().get().get()) {
+              ByteStreams.copy(content, outZip);
+            }
+          } else {
+            outZip.putNextEntry(zipEntry);
+            try (InputStream content = entry.getInputStreamSupplier().get().get()) {
+              ByteStreams.copy(content, outZip);
+            }
+          }
+        }
+        outZip.closeEntry();
+      }
+    }
+  }
+
   /**
    * Lazily creates an entry at the specified path and with the given content.
    *
@@ -144,11 +216,21 @@ public final class ZipBuilder {
   /**
    * Lazily copies the given zip file entry to the specified path.
    *
+   * <p>When written by {@link #writeTo(Path, ListeningExecutorService)}, deflated entries that are
+   * to be compressed are copied without being inflated and deflated again.
+   *
    * <p>Will throw an exception if the path is already taken.
    */
   public ZipBuilder addFileFromZip(
       ZipPath toPath, ZipFile fromZipFile, ZipEntry zipEntry, EntryOption... options) {
-    return addFile(toPath, () -> BufferedIo.inputStream(fromZipFile, zipEntry), options);
+    return addEntryInternal(
+        toPath,
+        Entry.builder()
+            .setIsDirectory(false)
+            .setInputStreamSupplier(() -> BufferedIo.inputStream(fromZipFile, zipEntry))
+            .setSourceZipEntry(ModuleZipEntry.fromModuleZipEntry(zipEntry, fromZipFile))
+            .setOptions(ImmutableSet.copyOf(options))
+            .build());
   }
 
   /**
@@ -218,6 +300,9 @@ public final class ZipBuilder {
 
     public abstract ImmutableSet<EntryOption> getOptions();
 
+    /** Present if the entry is copied from a zip file: its CRC and compressed data may be used. */
+    public abstract Optional<ModuleZipEntry> getSourceZipEntry();
+
     public static Builder builder() {
       return new AutoValue_ZipBuilder_Entry.Builder();
     }
@@ -234,6 +319,8 @@ public final class ZipBuilder {
 
       public abstract Builder setOptions(ImmutableSet<EntryOption> options);
 
+      public abstract Builder setSourceZipEntry(ModuleZipEntry sourceZipEntry);
+
       public abstract Entry autoBuild();
 
       public Entry build() {
@@ -257,9 +344,21 @@ public final class ZipBuilder {
     UNCOMPRESSED
   }
 
-  private static long computeCrc32(byte[] data) {
-    CRC32 crc32 = new CRC32();
-    crc32.update(data);
-    return crc32.getValue();
+  /** CRC-32 and size of the content of an entry, as required upfront by uncompressed entries. */
+  @AutoValue
+  abstract static class ContentChecksum {
+    abstract long getCrc();
+
+    abstract long getSize();
+
+    /** Reads the whole content, without keeping more than a buffer of it in memory. */
+    static ContentChecksum compute(InputStreamSupplier content) throws IOException {
+      try (CheckedInputStream checkedContent =
+          new CheckedInputStream(content.get(), new CRC32())) {
+        long size = ByteStreams.exhaust(checkedContent);
+        return new AutoValue_ZipBuilder_ContentChecksum(
+            checkedContent.getChecksum().getValue(), size);
+      }
+    }
   }
 }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.mergers;
+
+import static com.android.tools.build.bundletool.utils.files.FilePreconditions.checkDirectoryExistsAndEmpty;
+
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Merges dex files using another {@link DexMerger}, reusing the results of identical merges
+ * stored in a {@link DexMergeCache}.
+ */
+public class CachingDexMerger implements DexMerger {
+
+  private final DexMerger delegate;
+  private final DexMergeCache dexMergeCache;
+
+  public CachingDexMerger(DexMerger delegate, DexMergeCache dexMergeCache) {
+    this.delegate = delegate;
+    this.dexMergeCache = dexMergeCache;
+  }
+
+  @Override
+  public ImmutableList<Path> merge(
+      ImmutableList<Path> dexFiles,
+      Path outputDir,
+      Optional<Path> mainDexListFile,
+      boolean isDebuggable,
+      int minSdkVersion) {
+    checkDirectoryExistsAndEmpty(outputDir);
+
+    String cacheKey =
+        DexMergeCache.computeKey(dexFiles, mainDexListFile, isDebuggable, minSdkVersion);
+    Optional<ImmutableList<Path>> cachedDexFiles = dexMergeCache.extractTo(cacheKey, outputDir);
+    if (cachedDexFiles.isPresent()) {
+      return cachedDexFiles.get();
+    }
+
+    ImmutableList<Path> mergedDexFiles =
+        delegate.merge(dexFiles, outputDir, mainDexListFile, isDebuggable, minSdkVersion);
+    dexMergeCache.put(cacheKey, mergedDexFiles);
+    return mergedDexFiles;
+  }
+}
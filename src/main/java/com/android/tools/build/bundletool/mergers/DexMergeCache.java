@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.mergers;
+
+import static com.android.tools.build.bundletool.utils.HashingUtils.putString;
+
+import com.android.tools.build.bundletool.io.FileCache;
+import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * On-disk cache of merged dex files, shared across invocations of bundletool.
+ *
+ * <p>The result of a merge is stored under a digest of its inputs: the content of the dex files,
+ * the main dex list, whether the app is debuggable and its minSdkVersion. All the dex files
+ * produced by one merge are stored together in a single uncompressed archive. See {@link
+ * FileCache} for the guarantees about concurrent use and eviction.
+ */
+public final class DexMergeCache {
+
+  /** Bumped whenever the content of the digest or the format of the cached files changes. */
+  private static final int CACHE_FORMAT_VERSION = 1;
+
+  private static final String ARCHIVE_EXTENSION = ".zip";
+
+  private final FileCache fileCache;
+
+  public DexMergeCache(Path cacheDirectory, long maxSizeBytes) {
+    this.fileCache = new FileCache(cacheDirectory, maxSizeBytes, ARCHIVE_EXTENSION);
+  }
+
+  /**
+   * Writes the merged dex files cached under the given key to {@code outputDir}.
+   *
+   * <p>A cached archive that cannot be read, e.g. because it was truncated, is removed from the
+   * cache and treated as a miss, so that the dex files are merged again.
+   *
+   * @return the extracted dex files, or empty if nothing valid is cached under the key
+   */
+  Optional<ImmutableList<Path>> extractTo(String key, Path outputDir) {
+    Path archive = outputDir.resolve(key + ARCHIVE_EXTENSION);
+    if (!fileCache.copyTo(key, archive)) {
+      return Optional.empty();
+    }
+    List<Path> dexFiles = new ArrayList<>();
+    try {
+      try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+        for (ZipEntry entry : Collections.list(zipFile.entries())) {
+          Path dexFile = resolveDexFile(outputDir, entry.getName());
+          dexFiles.add(dexFile);
+          try (InputStream in = zipFile.getInputStream(entry)) {
+            Files.copy(in, dexFile);
+          }
+        }
+      }
+      Files.delete(archive);
+      return Optional.of(ImmutableList.copyOf(dexFiles));
+    } catch (IOException e) {
+      fileCache.invalidate(key);
+      deleteExtractedFiles(archive, dexFiles);
+      return Optional.empty();
+    }
+  }
+
+  /** Stores the given merged dex files under the given key. */
+  void put(String key, ImmutableList<Path> mergedDexFiles) {
+    fileCache.put(
+        key,
+        archive -> {
+          try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive))) {
+            for (Path dexFile : mergedDexFiles) {
+              // The names of the dex files are significant ("classes.dex", "classes2.dex"...).
+              ZipEntry entry = new ZipEntry(dexFile.getFileName().toString());
+              entry.setMethod(ZipEntry.STORED);
+              entry.setSize(Files.size(dexFile));
+              entry.setCrc(MoreFiles.asByteSource(dexFile).hash(Hashing.crc32()).padToLong());
+              out.putNextEntry(entry);
+              Files.copy(dexFile, out);
+              out.closeEntry();
+            }
+          }
+        });
+  }
+
+  /** Resolves the dex file of the given archive entry, which must be directly in the directory. */
+  private static Path resolveDexFile(Path outputDir, String entryName) throws ZipException {
+    if (entryName.isEmpty()
+        || entryName.contains("/")
+        || entryName.contains("\\")
+        || entryName.contains("..")) {
+      throw new ZipException(String.format("Unexpected entry '%s'.", entryName));
+    }
+    Path dexFile = outputDir.resolve(entryName);
+    if (!outputDir.equals(dexFile.getParent())) {
+      throw new ZipException(String.format("Unexpected entry '%s'.", entryName));
+    }
+    return dexFile;
+  }
+
+  private static void deleteExtractedFiles(Path archive, List<Path> dexFiles) {
+    try {
+      Files.deleteIfExists(archive);
+      for (Path dexFile : dexFiles) {
+        Files.deleteIfExists(dexFile);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while deleting the dex files extracted from '%s'.", archive), e);
+    }
+  }
+
+  /** Returns statistics about the use of the cache by this instance. */
+  public FileCache.Statistics getStatistics() {
+    return fileCache.getStatistics();
+  }
+
+  /** Computes the key under which the result of merging the given dex files is cached. */
+  static String computeKey(
+      ImmutableList<Path> dexFiles,
+      Optional<Path> mainDexListFile,
+      boolean isDebuggable,
+      int minSdkVersion) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putInt(CACHE_FORMAT_VERSION);
+    // The dex merger is bundled with bundletool, so its version determines the merger's output.
+    putString(hasher, BundleToolVersion.getCurrentVersion().toString());
+
+    // The order of the dex files may affect the output of the merge.
+    hasher.putInt(dexFiles.size());
+    for (Path dexFile : dexFiles) {
+      putFileContent(hasher, dexFile);
+    }
+    hasher.putBoolean(mainDexListFile.isPresent());
+    mainDexListFile.ifPresent(file -> putFileContent(hasher, file));
+    hasher.putBoolean(isDebuggable);
+    hasher.putInt(minSdkVersion);
+    return hasher.hash().toString();
+  }
+
+  private static void putFileContent(Hasher hasher, Path file) {
+    try {
+      hasher.putBytes(MoreFiles.asByteSource(file).hash(Hashing.sha256()).asBytes());
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while reading the file '%s'.", file), e);
+    }
+  }
+}
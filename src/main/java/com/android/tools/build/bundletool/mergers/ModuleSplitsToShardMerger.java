@@ -35,8 +35,11 @@ import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.ConcurrencyUtils;
 import com.android.tools.build.bundletool.utils.files.BufferedIo;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableCollection;
@@ -46,6 +49,9 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.SetMultimap;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -58,6 +64,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Merges given module splits into standalone APKs.
@@ -73,32 +81,113 @@ public class ModuleSplitsToShardMerger {
 
   private final DexMerger dexMerger;
   private final Path globalTempDir;
+  private final ListeningExecutorService executorService;
 
   public ModuleSplitsToShardMerger(DexMerger dexMerger, Path globalTempDir) {
+    this(dexMerger, globalTempDir, MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * Same as {@link #ModuleSplitsToShardMerger(DexMerger, Path)}, but the shards are fused
+   * concurrently on the given executor.
+   */
+  public ModuleSplitsToShardMerger(
+      DexMerger dexMerger, Path globalTempDir, ListeningExecutorService executorService) {
     this.dexMerger = dexMerger;
     this.globalTempDir = globalTempDir;
+    this.executorService = executorService;
   }
 
-  /** Merges each collection of splits into a single standalone APK (aka shard). */
+  /**
+   * Merges each collection of splits into a single standalone APK (aka shard).
+   *
+   * <p>The shards are returned in the order of the given collections of splits.
+   */
   public ImmutableList<ModuleSplit> merge(
       ImmutableList<ImmutableList<ModuleSplit>> unfusedShards, BundleMetadata bundleMetadata) {
     // Results of the dex merging are cached. Due to the nature of the cache keys and values, the
     // cache is deliberately not part of the object state, so that it is dropped after the method
     // call finishes.
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache = new HashMap<>();
+    ConcurrentMap<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> mergedDexCache =
+        new ConcurrentHashMap<>();
+
+    // The splits common to all shards (typically the master splits) come first in each shard, so
+    // their resource tables are merged only once, by the first shard needing them.
+    int commonSplitCount = getCommonPrefixLength(unfusedShards);
+    Supplier<Optional<ResourceTable>> commonResourceTable =
+        unfusedShards.isEmpty()
+            ? Optional::empty
+            : Suppliers.memoize(
+                () ->
+                    mergeResourceTables(
+                        Optional.empty(), unfusedShards.get(0).subList(0, commonSplitCount)));
+
+    ImmutableList<ListenableFuture<ModuleSplit>> shards =
+        unfusedShards.stream()
+            .map(
+                unfusedShard ->
+                    executorService.submit(
+                        () ->
+                            mergeSingleShard(
+                                unfusedShard,
+                                bundleMetadata,
+                                mergedDexCache,
+                                commonSplitCount,
+                                commonResourceTable)))
+            .collect(toImmutableList());
+    return ConcurrencyUtils.waitForAll(shards);
+  }
 
-    ImmutableList.Builder<ModuleSplit> shards = ImmutableList.builder();
-    for (ImmutableList<ModuleSplit> unfusedShard : unfusedShards) {
-      shards.add(mergeSingleShard(unfusedShard, bundleMetadata, mergedDexCache));
+  /** Returns the number of leading splits shared by all the given shards. */
+  private static int getCommonPrefixLength(ImmutableList<ImmutableList<ModuleSplit>> shards) {
+    if (shards.isEmpty()) {
+      return 0;
     }
-    return shards.build();
+    ImmutableList<ModuleSplit> firstShard = shards.get(0);
+    int length = firstShard.size();
+    for (ImmutableList<ModuleSplit> shard : shards) {
+      int i = 0;
+      // The splits are compared by identity: comparing their contents would be as costly as
+      // merging them.
+      while (i < length && i < shard.size() && shard.get(i) == firstShard.get(i)) {
+        i++;
+      }
+      length = i;
+    }
+    return length;
   }
 
+  /**
+   * Merges the given splits into a single shard.
+   *
+   * <p>The {@code mergedDexCache} can be shared by concurrent calls: each set of dex files is
+   * merged only once, and other callers needing the same set wait for the result of the first
+   * merge.
+   */
   @VisibleForTesting
   ModuleSplit mergeSingleShard(
       ImmutableCollection<ModuleSplit> splitsOfShard,
       BundleMetadata bundleMetadata,
-      Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache) {
+      ConcurrentMap<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> mergedDexCache) {
+    return mergeSingleShard(
+        splitsOfShard,
+        bundleMetadata,
+        mergedDexCache,
+        /* commonSplitCount= */ 0,
+        /* commonResourceTable= */ Optional::empty);
+  }
+
+  /**
+   * Same as {@link #mergeSingleShard(ImmutableCollection, BundleMetadata, ConcurrentMap)}, but the
+   * resource tables of the first {@code commonSplitCount} splits are already merged into {@code
+   * commonResourceTable}.
+   */
+  private ModuleSplit mergeSingleShard(
+      ImmutableCollection<ModuleSplit> splitsOfShard,
+      BundleMetadata bundleMetadata,
+      ConcurrentMap<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> mergedDexCache,
+      int commonSplitCount,
+      Supplier<Optional<ResourceTable>> commonResourceTable) {
 
     ListMultimap<BundleModuleName, ModuleEntry> dexFilesToMergeByModule =
         ArrayListMultimap.create();
@@ -111,12 +200,16 @@ public class ModuleSplitsToShardMerger {
         HashMultimap.create();
 
     Map<ZipPath, ModuleEntry> mergedEntriesByPath = new HashMap<>();
-    Optional<ResourceTable> mergedResourceTable = Optional.empty();
     ApkTargeting mergedSplitTargeting = ApkTargeting.getDefaultInstance();
 
+    // Resource tables are merged all at once.
+    ImmutableList<ModuleSplit> splitsList = splitsOfShard.asList();
+    Optional<ResourceTable> mergedResourceTable =
+        mergeResourceTables(
+            commonResourceTable.get(), splitsList.subList(commonSplitCount, splitsList.size()));
+
     for (ModuleSplit split : splitsOfShard) {
-      // Resource tables and Split targetings can be merged for each split individually as we go.
-      mergedResourceTable = mergeResourceTables(mergedResourceTable, split);
+      // Split targetings can be merged for each split individually as we go.
       mergedSplitTargeting = mergeSplitTargetings(mergedSplitTargeting, split);
 
       // Android manifests need to be merged later, globally for all splits.
@@ -175,7 +268,7 @@ public class ModuleSplitsToShardMerger {
       ListMultimap<BundleModuleName, ModuleEntry> dexFilesToMergeByModule,
       BundleMetadata bundleMetadata,
       AndroidManifest androidManifest,
-      Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> mergedDexCache) {
+      ConcurrentMap<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> mergedDexCache) {
 
     if (dexFilesToMergeByModule.keySet().size() <= 1) {
       // Don't merge if all dex files live inside a single module. If that module contains multiple
@@ -186,10 +279,16 @@ public class ModuleSplitsToShardMerger {
       ImmutableList<ModuleEntry> dexEntries =
           ImmutableList.copyOf(dexFilesToMergeByModule.values());
 
+      // Only the memoizing supplier is created atomically, so that merging dex files doesn't block
+      // the updates of other keys of the map.
       ImmutableList<Path> mergedDexFiles =
-          mergedDexCache.computeIfAbsent(
-              ImmutableSet.copyOf(dexEntries),
-              key -> mergeDexFiles(dexEntries, bundleMetadata, androidManifest));
+          mergedDexCache
+              .computeIfAbsent(
+                  ImmutableSet.copyOf(dexEntries),
+                  key ->
+                      Suppliers.memoize(
+                          () -> mergeDexFiles(dexEntries, bundleMetadata, androidManifest)))
+              .get();
 
       // Names of the merged dex files need to be preserved ("classes.dex", "classes2.dex" etc.).
       return mergedDexFiles
@@ -250,24 +349,40 @@ public class ModuleSplitsToShardMerger {
         entry.getPath());
   }
 
-  private Optional<ResourceTable> mergeResourceTables(
-      Optional<ResourceTable> merged, ModuleSplit split) {
-    if (!merged.isPresent()) {
-      return split.getResourceTable();
+  /**
+   * Merges the resource tables of the given splits into the already merged table, if any.
+   *
+   * @return the merged table, or empty if neither {@code merged} nor any of the splits has a
+   *     resource table
+   */
+  private static Optional<ResourceTable> mergeResourceTables(
+      Optional<ResourceTable> merged, List<ModuleSplit> splits) {
+    ImmutableList.Builder<ResourceTable> tables = ImmutableList.builder();
+    merged.ifPresent(tables::add);
+    splits.stream()
+        .map(ModuleSplit::getResourceTable)
+        .filter(Optional::isPresent)
+        .map(Optional::get)
+        .forEach(tables::add);
+    ImmutableList<ResourceTable> tablesToMerge = tables.build();
+
+    if (tablesToMerge.isEmpty()) {
+      return Optional.empty();
     }
-    if (split.getResourceTable().isPresent()) {
-      try {
-        return Optional.of(
-            new ResourceTableMerger().merge(merged.get(), split.getResourceTable().get()));
-      } catch (CommandExecutionException | IllegalStateException e) {
-        throw CommandExecutionException.builder()
-            .withCause(e)
-            .withMessage(
-                "Failed to merge with resource table of module '%s'.", split.getModuleName())
-            .build();
-      }
+    try {
+      return Optional.of(new ResourceTableMerger().mergeAll(tablesToMerge));
+    } catch (CommandExecutionException | IllegalStateException e) {
+      throw CommandExecutionException.builder()
+          .withCause(e)
+          .withMessage(
+              "Failed to merge the resource tables of modules %s.",
+              splits.stream()
+                  .filter(split -> split.getResourceTable().isPresent())
+                  .map(split -> split.getModuleName().getName())
+                  .distinct()
+                  .collect(toImmutableList()))
+          .build();
     }
-    return merged;
   }
 
   private ApkTargeting mergeSplitTargetings(ApkTargeting merged, ModuleSplit split) {
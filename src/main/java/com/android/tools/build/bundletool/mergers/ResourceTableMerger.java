@@ -16,6 +16,7 @@
 
 package com.android.tools.build.bundletool.mergers;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Predicates.not;
 import static com.google.common.collect.ImmutableList.toImmutableList;
@@ -28,19 +29,20 @@ import com.android.aapt.Resources.Source;
 import com.android.aapt.Resources.Type;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
 import com.google.protobuf.Message;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.function.BiFunction;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 /**
- * Recursively merges two resource tables.
+ * Recursively merges resource tables.
  *
  * <p>Many fields are just asserted to be equal, actual merging affects only the following repeated
  * fields:
@@ -52,16 +54,16 @@ import java.util.function.Function;
  *   <li>{@code ResourceTable.package[*].type[*].entry[*].config_value}
  * </ul>
  *
- * When merging repeated fields of {@link Package}, {@link Type} or {@link Entry}, protos in the two
- * fields are paired based on an ID field. For two paired protos, their non-repeated fields are
+ * When merging repeated fields of {@link Package}, {@link Type} or {@link Entry}, protos in the
+ * fields are grouped based on an ID field. For grouped protos, their non-repeated fields are
  * asserted to be equal (eg. ResourceTable.source_pool) and selected repeated fields are merged
- * recursively by the same-ID principle. Two repeated fields of {@link ConfigValue}s are merged just
+ * recursively by the same-ID principle. Repeated fields of {@link ConfigValue}s are merged just
  * based on {@link Object#equals(Object)} in the sense that if the config values are equal, the
  * merged resource table contains the config value only once (no duplicates).
  *
  * <p>Because {@code source_pool} messages cannot be easily merged yet, the implementation chooses
- * to preserve source pool of the first input table, and strip all source references in the second
- * input table unless the tables have identical source pools.
+ * to preserve source pool of the first input table, and strip all source references in the other
+ * input tables unless they have a source pool identical to the first one.
  *
  * <p>Implementation note: All of the "merge*" methods use pattern {@code .toBuilder() -> <modify>
  * -> .build()}. This way we preserve the property of whether a field is set or not set for the
@@ -70,13 +72,34 @@ import java.util.function.Function;
 public class ResourceTableMerger {
 
   public ResourceTable merge(ResourceTable table1, ResourceTable table2) {
-    if (!table1.getSourcePool().equals(table2.getSourcePool())) {
-      // The source_pool in ResourceTable is opaque and cannot be easily manipulated. Therefore
-      // if the source pools aren't exactly the same, we choose to adopt source pool of table1 and
-      // to invalidate source references in table2.
-      ResourceTable.Builder table2Builder = table2.toBuilder();
-      stripSourceReferences(table2Builder);
-      table2 = table2Builder.build();
+    return mergeAll(ImmutableList.of(table1, table2));
+  }
+
+  /**
+   * Merges all the given tables in a single pass.
+   *
+   * <p>The result is the same as merging the tables pairwise, from the first to the last one, but
+   * each package, type and entry is only rebuilt once.
+   */
+  public ResourceTable mergeAll(List<ResourceTable> tables) {
+    checkArgument(!tables.isEmpty(), "At least one resource table is required.");
+    ResourceTable table1 = tables.get(0);
+    if (tables.size() == 1) {
+      return table1;
+    }
+
+    ImmutableList.Builder<List<Package>> packageLists = ImmutableList.builder();
+    packageLists.add(table1.getPackageList());
+    for (ResourceTable table : tables.subList(1, tables.size())) {
+      if (!table1.getSourcePool().equals(table.getSourcePool())) {
+        // The source_pool in ResourceTable is opaque and cannot be easily manipulated. Therefore
+        // if the source pools aren't exactly the same, we choose to adopt source pool of the first
+        // table and to invalidate source references in the other tables.
+        ResourceTable.Builder tableBuilder = table.toBuilder();
+        stripSourceReferences(tableBuilder);
+        table = tableBuilder.build();
+      }
+      packageLists.add(table.getPackageList());
     }
 
     return table1
@@ -84,107 +107,108 @@ public class ResourceTableMerger {
         .clearPackage()
         .addAllPackage(
             mergeRepeatedValues(
-                table1.getPackageList(),
-                table2.getPackageList(),
-                pkg -> pkg.getPackageId().getId(),
-                this::mergePackages))
+                packageLists.build(), pkg -> pkg.getPackageId().getId(), this::mergePackages))
         .build();
   }
 
-  private Package mergePackages(Package pkg1, Package pkg2) {
-    assertEqualFields(pkg1, pkg2, Package::getPackageId, /* fieldName= */ "package_id");
-    assertEqualFields(pkg1, pkg2, Package::getPackageName, /* fieldName= */ "package_name");
+  private Package mergePackages(List<Package> pkgs) {
+    Package pkg1 = pkgs.get(0);
+    ImmutableList.Builder<List<Type>> typeLists = ImmutableList.builder();
+    for (Package pkg : pkgs) {
+      assertEqualFields(pkg1, pkg, Package::getPackageId, /* fieldName= */ "package_id");
+      assertEqualFields(pkg1, pkg, Package::getPackageName, /* fieldName= */ "package_name");
+      typeLists.add(pkg.getTypeList());
+    }
 
     return pkg1.toBuilder()
         .clearType()
         .addAllType(
             mergeRepeatedValues(
-                pkg1.getTypeList(),
-                pkg2.getTypeList(),
-                type -> type.getTypeId().getId(),
-                this::mergeTypes))
+                typeLists.build(), type -> type.getTypeId().getId(), this::mergeTypes))
         .build();
   }
 
-  private Type mergeTypes(Type type1, Type type2) {
-    assertEqualFields(type1, type2, Type::getTypeId, /* fieldName= */ "type_id");
-    assertEqualFields(type1, type2, Type::getName, /* fieldName= */ "name");
+  private Type mergeTypes(List<Type> types) {
+    Type type1 = types.get(0);
+    ImmutableList.Builder<List<Entry>> entryLists = ImmutableList.builder();
+    for (Type type : types) {
+      assertEqualFields(type1, type, Type::getTypeId, /* fieldName= */ "type_id");
+      assertEqualFields(type1, type, Type::getName, /* fieldName= */ "name");
+      entryLists.add(type.getEntryList());
+    }
 
     return type1
         .toBuilder()
         .clearEntry()
         .addAllEntry(
             mergeRepeatedValues(
-                type1.getEntryList(),
-                type2.getEntryList(),
-                entry -> entry.getEntryId().getId(),
-                this::mergeEntries))
+                entryLists.build(), entry -> entry.getEntryId().getId(), this::mergeEntries))
         .build();
   }
 
-  private Entry mergeEntries(Entry entry1, Entry entry2) {
-    assertEqualFields(entry1, entry2, Entry::getEntryId, /* fieldName= */ "entry_id");
-    assertEqualFields(entry1, entry2, Entry::getName, /* fieldName= */ "name");
-    assertEqualFields(entry1, entry2, Entry::getVisibility, /* fieldName= */ "visibility");
-    assertEqualFields(entry1, entry2, Entry::getAllowNew, /* fieldName= */ "allow_new");
-    assertEqualFields(entry1, entry2, Entry::getOverlayable, /* fieldName= */ "overlayable");
+  private Entry mergeEntries(List<Entry> entries) {
+    Entry entry1 = entries.get(0);
+    ImmutableList.Builder<List<ConfigValue>> configValueLists = ImmutableList.builder();
+    for (Entry entry : entries) {
+      assertEqualFields(entry1, entry, Entry::getEntryId, /* fieldName= */ "entry_id");
+      assertEqualFields(entry1, entry, Entry::getName, /* fieldName= */ "name");
+      assertEqualFields(entry1, entry, Entry::getVisibility, /* fieldName= */ "visibility");
+      assertEqualFields(entry1, entry, Entry::getAllowNew, /* fieldName= */ "allow_new");
+      assertEqualFields(entry1, entry, Entry::getOverlayable, /* fieldName= */ "overlayable");
+      configValueLists.add(entry.getConfigValueList());
+    }
 
     return entry1
         .toBuilder()
         .clearConfigValue()
-        .addAllConfigValue(
-            mergeConfigValueLists(entry1.getConfigValueList(), entry2.getConfigValueList()))
+        .addAllConfigValue(mergeConfigValueLists(configValueLists.build()))
         .build();
   }
 
-  private List<ConfigValue> mergeConfigValueLists(
-      List<ConfigValue> configValues1, List<ConfigValue> configValues2) {
-    HashSet<ConfigValue> configValues1Set = Sets.newHashSet(configValues1);
-    return ImmutableList.<ConfigValue>builder()
-        .addAll(configValues1)
-        .addAll(
-            configValues2
-                .stream()
-                .filter(not(configValues1Set::contains))
-                .collect(toImmutableList()))
-        .build();
+  /**
+   * Concatenates the given lists of config values, skipping the values of each list already
+   * present in the previous lists.
+   */
+  private List<ConfigValue> mergeConfigValueLists(List<List<ConfigValue>> configValueLists) {
+    ImmutableList.Builder<ConfigValue> result = ImmutableList.builder();
+    Set<ConfigValue> previousConfigValues = new HashSet<>();
+    for (List<ConfigValue> configValues : configValueLists) {
+      ImmutableList<ConfigValue> newConfigValues =
+          configValues
+              .stream()
+              .filter(not(previousConfigValues::contains))
+              .collect(toImmutableList());
+      result.addAll(newConfigValues);
+      previousConfigValues.addAll(newConfigValues);
+    }
+    return result.build();
   }
 
   /**
-   * Merges values of two 'repeated' proto fields.
+   * Merges values of several 'repeated' proto fields.
    *
-   * <p>Each value within a value list has an ID, computed by applying {@code getIdFn}. Values of
-   * both lists are paired by matching IDs. Paired values are merged by applying {@code
-   * mergeValuesFn}. Unpaired values are inserted to the result unmodified.
+   * <p>Each value within a value list has an ID, computed by applying {@code getIdFn}, unique
+   * within the list. Values of all lists are grouped by matching IDs. Values present in several
+   * lists are merged by applying {@code mergeValuesFn} to them, in the order of the lists. Values
+   * present in a single list are inserted to the result unmodified.
    */
-  private <V, I extends Comparable<?>> ImmutableList<V> mergeRepeatedValues(
-      List<V> values1, List<V> values2, Function<V, I> getIdFn, BiFunction<V, V, V> mergeValuesFn) {
-
-    ImmutableList.Builder<V> result = ImmutableList.builder();
-
-    Map<I, V> idToValue1 = Maps.uniqueIndex(values1, getIdFn::apply);
-    Map<I, V> idToValue2 = Maps.uniqueIndex(values2, getIdFn::apply);
-
+  private static <V> ImmutableList<V> mergeRepeatedValues(
+      List<List<V>> valueLists, ToIntFunction<V> getIdFn, Function<List<V>, V> mergeValuesFn) {
     // Order the IDs (for better debugging of merged resource tables).
-    ImmutableList<I> allIds =
-        Sets.union(idToValue1.keySet(), idToValue2.keySet())
-            .stream()
-            .sorted()
-            .collect(toImmutableList());
-
-    for (I id : allIds) {
-      V value1 = idToValue1.get(id);
-      V value2 = idToValue2.get(id);
-
-      if (value1 != null && value2 != null) {
-        result.add(mergeValuesFn.apply(value1, value2));
-      } else if (value1 != null) {
-        result.add(value1);
-      } else {
-        result.add(value2);
+    SortedMap<Integer, List<V>> valuesById = new TreeMap<>();
+    for (List<V> values : valueLists) {
+      Set<Integer> idsOfList = new HashSet<>();
+      for (V value : values) {
+        int id = getIdFn.applyAsInt(value);
+        checkArgument(idsOfList.add(id), "Multiple values with the same ID: %s.", id);
+        valuesById.computeIfAbsent(id, key -> new ArrayList<>()).add(value);
       }
     }
 
+    ImmutableList.Builder<V> result = ImmutableList.builder();
+    for (List<V> values : valuesById.values()) {
+      result.add(values.size() == 1 ? values.get(0) : mergeValuesFn.apply(values));
+    }
     return result.build();
   }
 
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.model;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+/** Helpers for aapt2 binaries. */
+final class Aapt2Binaries {
+
+  /** Returns the hex-encoded SHA-256 digest of the given aapt2 binary. */
+  static String sha256(Path aapt2Path) {
+    try {
+      return MoreFiles.asByteSource(aapt2Path).hash(Hashing.sha256()).toString();
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while reading the aapt2 binary '%s'.", aapt2Path), e);
+    }
+  }
+
+  private Aapt2Binaries() {}
+}
@@ -17,19 +17,41 @@
 package com.android.tools.build.bundletool.model;
 
 import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import com.google.common.base.Suppliers;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /** Exposes aapt2 commands used by Bundle Tool. */
 public interface Aapt2Command {
 
   void convertApkProtoToBinary(Path protoApk, Path binaryApk);
 
+  /**
+   * Identifies the conversion performed by this command, i.e. how aapt2 is run and a digest of the
+   * aapt2 binary used, so that caches of converted APKs can tell apart the outputs of different
+   * aapt2 versions.
+   *
+   * <p>Empty if the conversion cannot be identified, in which case converted APKs are not cached.
+   */
+  default Optional<String> getIdentity() {
+    return Optional.empty();
+  }
+
   static Aapt2Command createFromExecutablePath(Path aapt2Path) {
     return new Aapt2Command() {
+      private final Supplier<String> identity =
+          Suppliers.memoize(() -> "process:" + Aapt2Binaries.sha256(aapt2Path));
+
+      @Override
+      public Optional<String> getIdentity() {
+        return Optional.of(identity.get());
+      }
+
       @Override
       public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
         new CommandExecutor()
@@ -50,21 +72,30 @@ public interface Aapt2Command {
     private static final int TIMEOUT_AAPT2_COMMANDS_SECONDS = 5 * 60; // 5 minutes.
 
     public void execute(String... command) {
+      Process process;
+      try {
+        process = new ProcessBuilder(command).redirectErrorStream(true).start();
+      } catch (IOException e) {
+        throw new Aapt2Exception("Error when executing command: " + Arrays.toString(command), e);
+      }
       try {
-        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
         if (!process.waitFor(TIMEOUT_AAPT2_COMMANDS_SECONDS, TimeUnit.SECONDS)) {
+          process.destroyForcibly();
           printOutput(process);
           throw new Aapt2Exception("Command timed out: " + Arrays.toString(command));
         }
-        if (process.exitValue() != 0) {
-          printOutput(process);
-          throw new Aapt2Exception(
-              String.format(
-                  "Command '%s' didn't terminate successfully (exit code: %d). Check the logs.",
-                  Arrays.toString(command), process.exitValue()));
-        }
-      } catch (IOException | InterruptedException e) {
-        throw new Aapt2Exception("Error when executing command: " + Arrays.toString(command), e);
+      } catch (InterruptedException e) {
+        // The command was cancelled, e.g. because another APK failed: don't leave aapt2 running.
+        process.destroyForcibly();
+        Thread.currentThread().interrupt();
+        throw new Aapt2Exception("Command interrupted: " + Arrays.toString(command), e);
+      }
+      if (process.exitValue() != 0) {
+        printOutput(process);
+        throw new Aapt2Exception(
+            String.format(
+                "Command '%s' didn't terminate successfully (exit code: %d). Check the logs.",
+                Arrays.toString(command), process.exitValue()));
       }
     }
 
@@ -87,11 +118,11 @@ public interface Aapt2Command {
    * paths to files.
    */
   class Aapt2Exception extends RuntimeException {
-    private Aapt2Exception(String message) {
+    Aapt2Exception(String message) {
       super(message);
     }
 
-    private Aapt2Exception(String message, Throwable cause) {
+    Aapt2Exception(String message, Throwable cause) {
       super(message, cause);
     }
   }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.tools.build.bundletool.model.Aapt2Command.Aapt2Exception;
+import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single long-running {@code aapt2 daemon} process.
+ *
+ * <p>The daemon reads commands from its standard input, one argument per line, each command being
+ * terminated by an empty line. It prints "Ready" on its standard output once started. Everything
+ * else is printed on its standard error: the diagnostics of each command, then an "Error" line if
+ * the command failed, and finally a "Done" line.
+ *
+ * <p>Not thread-safe: a daemon runs one command at a time.
+ */
+final class Aapt2Daemon {
+
+  private static final String READY = "Ready";
+  private static final String DONE = "Done";
+  private static final String ERROR = "Error";
+
+  private final Process process;
+  private final Writer stdin;
+  private final BufferedReader stdout;
+  private final BufferedReader stderr;
+
+  private Aapt2Daemon(Process process) {
+    this.process = process;
+    this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), UTF_8));
+    this.stdout = BufferedIo.reader(process.getInputStream());
+    this.stderr = BufferedIo.reader(process.getErrorStream());
+  }
+
+  /** Starts a daemon and waits until it is ready to accept commands. */
+  static Aapt2Daemon start(Path aapt2Path) {
+    Process process;
+    try {
+      process = new ProcessBuilder(aapt2Path.toString(), "daemon").start();
+    } catch (IOException e) {
+      throw new Aapt2Exception("Error when starting aapt2 daemon: " + aapt2Path, e);
+    }
+    Aapt2Daemon daemon = new Aapt2Daemon(process);
+    try {
+      String line;
+      while ((line = daemon.stdout.readLine()) != null) {
+        if (line.equals(READY)) {
+          daemon.startOutputDrainer();
+          return daemon;
+        }
+      }
+    } catch (IOException e) {
+      daemon.destroy();
+      throw new Aapt2Exception("Error when starting aapt2 daemon: " + aapt2Path, e);
+    }
+    daemon.destroy();
+    throw new Aapt2Exception("The aapt2 daemon exited before being ready: " + aapt2Path);
+  }
+
+  /**
+   * Runs a single command.
+   *
+   * @throws DaemonCrashedException if the daemon process died, in which case it cannot be reused
+   * @throws Aapt2Exception if the command failed
+   */
+  void execute(String... args) {
+    List<String> errorOutput = new ArrayList<>();
+    boolean failed = false;
+    try {
+      for (String arg : args) {
+        stdin.write(arg);
+        stdin.write('\n');
+      }
+      stdin.write('\n');
+      stdin.flush();
+
+      String line;
+      while ((line = stderr.readLine()) != null) {
+        if (line.equals(DONE)) {
+          break;
+        }
+        if (line.equals(ERROR)) {
+          failed = true;
+        } else {
+          errorOutput.add(line);
+        }
+      }
+      if (line == null) {
+        throw new DaemonCrashedException(
+            String.format("The aapt2 daemon exited while executing: %s", String.join(" ", args)));
+      }
+    } catch (IOException e) {
+      throw new DaemonCrashedException(
+          String.format("Error communicating with the aapt2 daemon: %s", e.getMessage()));
+    }
+
+    if (failed) {
+      errorOutput.forEach(System.err::println);
+      throw new Aapt2Exception(
+          String.format(
+              "Command '%s' didn't terminate successfully. Check the logs.",
+              String.join(" ", args)));
+    }
+  }
+
+  boolean isAlive() {
+    return process.isAlive();
+  }
+
+  /** Asks the daemon to exit by closing its input, and kills it if it does not. */
+  void destroy() {
+    try {
+      stdin.close();
+    } catch (IOException e) {
+      // The process is killed below anyway.
+    }
+    process.destroy();
+  }
+
+  /**
+   * Discards anything printed on the standard output after "Ready", so that the daemon never blocks
+   * on a full pipe.
+   */
+  private void startOutputDrainer() {
+    Thread outputDrainer =
+        new Thread(
+            () -> {
+              try {
+                while (stdout.readLine() != null) {}
+              } catch (IOException e) {
+                // The daemon exited.
+              }
+            },
+            "aapt2-daemon-stdout");
+    outputDrainer.setDaemon(true);
+    outputDrainer.start();
+  }
+
+  /** Thrown when the daemon process is no longer usable. */
+  static final class DaemonCrashedException extends RuntimeException {
+    DaemonCrashedException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.android.tools.build.bundletool.model.Aapt2Command.Aapt2Exception;
+import com.android.tools.build.bundletool.model.Aapt2Daemon.DaemonCrashedException;
+import com.google.auto.value.AutoValue;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Suppliers;
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * {@link Aapt2Command} running the commands on a bounded pool of {@code aapt2 daemon} processes.
+ *
+ * <p>Daemons are started on demand, so at most one daemon per thread concurrently calling this
+ * command is running, up to {@code maxDaemons}. A daemon that crashes is discarded and the command
+ * is retried once on a new daemon.
+ *
+ * <p>Daemons are stopped by {@link #close()}, after which the pool rejects new commands: tasks
+ * cancelled because of a failure cannot start new daemons once the pool is closed.
+ */
+public final class Aapt2DaemonPool implements Aapt2Command, Closeable {
+
+  private static final long CLOSED_POLL_INTERVAL_MILLIS = 100;
+
+  private final Path aapt2Path;
+  private final int maxDaemons;
+  private final Supplier<String> identity;
+
+  private final LinkedBlockingDeque<Aapt2Daemon> idleDaemons = new LinkedBlockingDeque<>();
+  private final AtomicInteger runningDaemons = new AtomicInteger();
+  /** Daemons started and not discarded yet. Guards {@link #closed}. */
+  private final List<Aapt2Daemon> allDaemons = new ArrayList<>();
+
+  private boolean closed = false;
+
+  private final AtomicInteger jobCount = new AtomicInteger();
+  private final AtomicInteger startedDaemonCount = new AtomicInteger();
+
+  public Aapt2DaemonPool(Path aapt2Path, int maxDaemons) {
+    checkArgument(maxDaemons > 0, "The number of daemons must be positive, got %s.", maxDaemons);
+    this.aapt2Path = aapt2Path;
+    this.maxDaemons = maxDaemons;
+    this.identity = Suppliers.memoize(() -> "daemon:" + Aapt2Binaries.sha256(aapt2Path));
+  }
+
+  @Override
+  public Optional<String> getIdentity() {
+    return Optional.of(identity.get());
+  }
+
+  @Override
+  public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+    String[] args = {
+      "convert", "--output-format", "binary", "-o", binaryApk.toString(), protoApk.toString()
+    };
+    jobCount.incrementAndGet();
+    executeWithRetry(args);
+    if (!Files.exists(binaryApk)) {
+      throw new Aapt2Exception(
+          String.format("Command '%s' didn't produce any output.", String.join(" ", args)));
+    }
+  }
+
+  private void executeWithRetry(String[] args) {
+    try {
+      execute(args);
+    } catch (DaemonCrashedException e) {
+      if (Thread.currentThread().isInterrupted()) {
+        // The daemon was most likely killed because the command was cancelled.
+        throw new Aapt2Exception(e.getMessage(), e);
+      }
+      try {
+        execute(args);
+      } catch (DaemonCrashedException retryException) {
+        retryException.addSuppressed(e);
+        throw new Aapt2Exception(retryException.getMessage(), retryException);
+      }
+    }
+  }
+
+  private void execute(String[] args) {
+    Aapt2Daemon daemon = acquireDaemon();
+    try {
+      daemon.execute(args);
+    } catch (DaemonCrashedException e) {
+      discardDaemon(daemon);
+      throw e;
+    } catch (RuntimeException e) {
+      releaseDaemon(daemon);
+      throw e;
+    }
+    releaseDaemon(daemon);
+  }
+
+  private Aapt2Daemon acquireDaemon() {
+    checkNotClosed();
+    Aapt2Daemon daemon = idleDaemons.pollFirst();
+    while (daemon == null) {
+      int running = runningDaemons.get();
+      if (running < maxDaemons) {
+        if (runningDaemons.compareAndSet(running, running + 1)) {
+          return startDaemon();
+        }
+      } else {
+        try {
+          // Polls so that waiting commands notice when the pool is closed.
+          daemon = idleDaemons.pollFirst(CLOSED_POLL_INTERVAL_MILLIS, MILLISECONDS);
+          checkNotClosed();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new Aapt2Exception("Interrupted while waiting for an aapt2 daemon.", e);
+        }
+      }
+    }
+    return daemon;
+  }
+
+  private Aapt2Daemon startDaemon() {
+    try {
+      checkNotClosed();
+      Aapt2Daemon daemon = Aapt2Daemon.start(aapt2Path);
+      startedDaemonCount.incrementAndGet();
+      synchronized (allDaemons) {
+        if (closed) {
+          // The pool was closed while the daemon was starting.
+          daemon.destroy();
+          throw new Aapt2Exception("The aapt2 daemon pool is closed.");
+        }
+        allDaemons.add(daemon);
+      }
+      return daemon;
+    } catch (RuntimeException e) {
+      runningDaemons.decrementAndGet();
+      throw e;
+    }
+  }
+
+  private void checkNotClosed() {
+    synchronized (allDaemons) {
+      if (closed) {
+        throw new Aapt2Exception("The aapt2 daemon pool is closed.");
+      }
+    }
+  }
+
+  private void releaseDaemon(Aapt2Daemon daemon) {
+    boolean closed;
+    synchronized (allDaemons) {
+      closed = this.closed;
+    }
+    if (daemon.isAlive() && !closed) {
+      // Most recently used daemons are reused first as they are the most likely to be warmed up.
+      idleDaemons.offerFirst(daemon);
+    } else {
+      discardDaemon(daemon);
+    }
+  }
+
+  private void discardDaemon(Aapt2Daemon daemon) {
+    daemon.destroy();
+    synchronized (allDaemons) {
+      allDaemons.remove(daemon);
+    }
+    runningDaemons.decrementAndGet();
+  }
+
+  /** Returns statistics about the jobs executed so far. */
+  @VisibleForTesting
+  Statistics getStatistics() {
+    return Statistics.create(jobCount.get(), startedDaemonCount.get());
+  }
+
+  /**
+   * Stops all daemons and rejects any further command.
+   *
+   * <p>Daemons still running a command are killed, failing the command: this is meant to stop
+   * commands that were cancelled, as blocking reads from a daemon can't be interrupted.
+   */
+  @Override
+  public void close() {
+    synchronized (allDaemons) {
+      closed = true;
+      allDaemons.forEach(Aapt2Daemon::destroy);
+      allDaemons.clear();
+    }
+    Aapt2Daemon daemon;
+    while ((daemon = idleDaemons.pollFirst()) != null) {
+      discardDaemon(daemon);
+    }
+  }
+
+  /**
+   * Aggregated statistics of an {@link Aapt2DaemonPool}.
+   *
+   * <p>The latency of each job is recorded by the "aapt2Convert" trace span of the caller.
+   */
+  @AutoValue
+  abstract static class Statistics {
+    abstract int getJobCount();
+
+    /** Number of daemons started, including the ones started to replace crashed daemons. */
+    abstract int getStartedDaemonCount();
+
+    static Statistics create(int jobCount, int startedDaemonCount) {
+      return new AutoValue_Aapt2DaemonPool_Statistics(jobCount, startedDaemonCount);
+    }
+  }
+}
@@ -17,6 +17,8 @@
 package com.android.tools.build.bundletool.model;
 
 import com.android.bundle.Commands.ApkDescription;
+import com.google.auto.value.AutoValue;
+import java.time.Duration;
 
 /** Allows to be notified about various stages of APK creation. */
 public class ApkListener {
@@ -27,4 +29,49 @@ public class ApkListener {
   public void onApkFinalized(ApkDescription apkDesc) {
     // no-op by default
   }
+
+  /**
+   * Invoked when APK has been serialized, with the cost estimated to schedule its serialization
+   * and the time its serialization actually took.
+   */
+  public void onApkSerialized(ApkDescription apkDesc, SerializationCost cost) {
+    // no-op by default
+  }
+
+  /** Estimated and actual cost of the serialization of an APK. */
+  @AutoValue
+  public abstract static class SerializationCost {
+    /**
+     * Estimated cost, in bytes of content to process. Only meaningful relative to the estimated
+     * cost of the other APKs.
+     */
+    public abstract long getEstimatedCost();
+
+    /** Wall time taken by the serialization, excluding {@link #getMemoryBudgetWaitTime()}. */
+    public abstract Duration getActualDuration();
+
+    /** Estimated peak memory footprint, reserved in the memory budget during the serialization. */
+    public abstract long getEstimatedMemoryBytes();
+
+    /** Time spent waiting for the estimated memory footprint to fit in the memory budget. */
+    public abstract Duration getMemoryBudgetWaitTime();
+
+    public static Builder builder() {
+      return new AutoValue_ApkListener_SerializationCost.Builder();
+    }
+
+    /** Builder for {@link SerializationCost}. */
+    @AutoValue.Builder
+    public abstract static class Builder {
+      public abstract Builder setEstimatedCost(long estimatedCost);
+
+      public abstract Builder setActualDuration(Duration actualDuration);
+
+      public abstract Builder setEstimatedMemoryBytes(long estimatedMemoryBytes);
+
+      public abstract Builder setMemoryBudgetWaitTime(Duration memoryBudgetWaitTime);
+
+      public abstract SerializationCost build();
+    }
+  }
 }
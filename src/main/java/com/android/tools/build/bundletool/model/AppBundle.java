@@ -21,6 +21,7 @@ import static com.google.common.base.Preconditions.checkState;
 import com.android.bundle.Config.BundleConfig;
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.exceptions.ValidationException;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import com.android.tools.build.bundletool.utils.ZipUtils;
 import com.android.tools.build.bundletool.utils.files.BufferedIo;
 import com.android.tools.build.bundletool.version.BundleToolVersion;
@@ -31,9 +32,12 @@ import com.google.common.collect.Maps;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import javax.annotation.CheckReturnValue;
@@ -67,7 +71,32 @@ public class AppBundle {
   public static AppBundle buildFromZip(ZipFile bundleFile) {
     BundleConfig bundleConfig = readBundleConfig(bundleFile);
     return new AppBundle(
-        sanitize(extractModules(bundleFile, bundleConfig), bundleConfig),
+        sanitize(
+            extractModules(
+                Collections.list(bundleFile.entries()),
+                ZipEntry::getName,
+                entry -> ModuleZipEntry.fromBundleZipEntry(entry, bundleFile),
+                bundleConfig),
+            bundleConfig),
+        bundleConfig,
+        readBundleMetadata(bundleFile));
+  }
+
+  /**
+   * Builds an {@link AppBundle} from an App Bundle on disk, reading the entries from memory.
+   *
+   * <p>The {@link MappedZipFile} must stay open for as long as the returned bundle is used.
+   */
+  public static AppBundle buildFromZip(MappedZipFile bundleFile) {
+    BundleConfig bundleConfig = readBundleConfig(bundleFile);
+    return new AppBundle(
+        sanitize(
+            extractModules(
+                bundleFile.getEntries(),
+                MappedZipFile.Entry::getName,
+                MappedModuleEntry::fromBundleZipEntry,
+                bundleConfig),
+            bundleConfig),
         bundleConfig,
         readBundleMetadata(bundleFile));
   }
@@ -106,13 +135,15 @@ public class AppBundle {
     return bundleMetadata;
   }
 
-  private static Map<BundleModuleName, BundleModule> extractModules(
-      ZipFile bundleFile, BundleConfig bundleConfig) {
+  private static <T> Map<BundleModuleName, BundleModule> extractModules(
+      List<T> entries,
+      Function<T, String> nameFunction,
+      Function<T, ModuleEntry> moduleEntryFactory,
+      BundleConfig bundleConfig) {
     Map<BundleModuleName, BundleModule.Builder> moduleBuilders = new HashMap<>();
-    Enumeration<? extends ZipEntry> entries = bundleFile.entries();
-    while (entries.hasMoreElements()) {
-      ZipEntry entry = entries.nextElement();
-      ZipPath path = ZipPath.create(entry.getName());
+    for (T entry : entries) {
+      String entryName = nameFunction.apply(entry);
+      ZipPath path = ZipPath.create(entryName);
 
       // Ignoring bundle metadata files.
       if (path.startsWith(METADATA_DIRECTORY)) {
@@ -138,12 +169,12 @@ public class AppBundle {
       BundleModule.Builder moduleBuilder =
           moduleBuilders.computeIfAbsent(moduleName, name -> BundleModule.builder().setName(name));
       try {
-        moduleBuilder.addEntry(ModuleZipEntry.fromBundleZipEntry(entry, bundleFile));
+        moduleBuilder.addEntry(moduleEntryFactory.apply(entry));
       } catch (IOException e) {
         throw ValidationException.builder()
             .withCause(e)
             .withMessage(
-                "Error processing zip entry '%s' of module '%s'.", entry.getName(), moduleName)
+                "Error processing zip entry '%s' of module '%s'.", entryName, moduleName)
             .build();
       }
     }
@@ -156,8 +187,19 @@ public class AppBundle {
   private static BundleConfig readBundleConfig(ZipFile bundleFile) {
     ZipEntry bundleConfigEntry = bundleFile.getEntry(BUNDLE_CONFIG_FILE_NAME);
     checkState(bundleConfigEntry != null, "File '%s' was not found.", BUNDLE_CONFIG_FILE_NAME);
+    return parseBundleConfig(() -> BufferedIo.inputStream(bundleFile, bundleConfigEntry));
+  }
+
+  private static BundleConfig readBundleConfig(MappedZipFile bundleFile) {
+    Optional<MappedZipFile.Entry> bundleConfigEntry =
+        bundleFile.getEntry(BUNDLE_CONFIG_FILE_NAME);
+    checkState(
+        bundleConfigEntry.isPresent(), "File '%s' was not found.", BUNDLE_CONFIG_FILE_NAME);
+    return parseBundleConfig(bundleConfigEntry.get()::getContent);
+  }
 
-    try (InputStream is = BufferedIo.inputStream(bundleFile, bundleConfigEntry)) {
+  private static BundleConfig parseBundleConfig(InputStreamSupplier bundleConfigSupplier) {
+    try (InputStream is = bundleConfigSupplier.get()) {
       return BundleConfig.parseFrom(is);
     } catch (InvalidProtocolBufferException e) {
       throw ValidationException.builder()
@@ -185,6 +227,20 @@ public class AppBundle {
     return metadata.build();
   }
 
+  private static BundleMetadata readBundleMetadata(MappedZipFile bundleFile) {
+    BundleMetadata.Builder metadata = BundleMetadata.builder();
+    for (MappedZipFile.Entry zipEntry : bundleFile.getEntries()) {
+      ZipPath bundlePath = ZipPath.create(zipEntry.getName());
+      if (zipEntry.isDirectory() || !bundlePath.startsWith(METADATA_DIRECTORY)) {
+        continue;
+      }
+      // Strip the top-level metadata directory.
+      ZipPath metadataPath = bundlePath.subpath(1, bundlePath.getNameCount());
+      metadata.addFile(metadataPath, zipEntry::getContent);
+    }
+    return metadata.build();
+  }
+
   @CheckReturnValue
   private static ImmutableMap<BundleModuleName, BundleModule> sanitize(
       Map<BundleModuleName, BundleModule> moduleMap, BundleConfig bundleConfig) {
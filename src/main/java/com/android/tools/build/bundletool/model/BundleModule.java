@@ -23,14 +23,19 @@ import com.android.bundle.Config.BundleConfig;
 import com.android.bundle.Files.Assets;
 import com.android.bundle.Files.NativeLibraries;
 import com.android.bundle.Targeting.ModuleTargeting;
+import com.android.tools.build.bundletool.exceptions.ValidationException;
 import com.android.tools.build.bundletool.version.BundleToolVersion;
 import com.google.auto.value.AutoValue;
 import com.google.auto.value.extension.memoized.Memoized;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.Collection;
 import java.util.Optional;
 import java.util.function.Predicate;
@@ -72,11 +77,48 @@ public abstract class BundleModule {
         getAndroidManifestProto(), BundleToolVersion.getVersionFromBundleConfig(getBundleConfig()));
   }
 
-  public abstract Optional<ResourceTable> getResourceTable();
+  abstract Optional<ModuleEntry> getResourceTableEntry();
 
-  public abstract Optional<Assets> getAssetsConfig();
+  abstract Optional<ModuleEntry> getAssetsConfigEntry();
 
-  public abstract Optional<NativeLibraries> getNativeConfig();
+  abstract Optional<ModuleEntry> getNativeConfigEntry();
+
+  /**
+   * Returns the resource table of the module, parsed on first access.
+   *
+   * <p>Like the other module meta-data files except the manifest, the resource table is only parsed
+   * when needed, so that the modules of a bundle which are not processed don't have to be parsed.
+   */
+  @Memoized
+  public Optional<ResourceTable> getResourceTable() {
+    return getResourceTableEntry().map(entry -> parseProto(entry, ResourceTable.parser()));
+  }
+
+  /** Returns the assets configuration of the module, parsed on first access. */
+  @Memoized
+  public Optional<Assets> getAssetsConfig() {
+    return getAssetsConfigEntry().map(entry -> parseProto(entry, Assets.parser()));
+  }
+
+  /** Returns the native libraries configuration of the module, parsed on first access. */
+  @Memoized
+  public Optional<NativeLibraries> getNativeConfig() {
+    return getNativeConfigEntry().map(entry -> parseProto(entry, NativeLibraries.parser()));
+  }
+
+  private <T extends MessageLite> T parseProto(ModuleEntry entry, Parser<T> parser) {
+    try (InputStream inputStream = entry.getContent()) {
+      return parser.parseFrom(inputStream);
+    } catch (InvalidProtocolBufferException e) {
+      throw ValidationException.builder()
+          .withCause(e)
+          .withMessage("Error parsing file '%s' of module '%s'.", entry.getPath(), getName())
+          .build();
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error reading file '%s' of module '%s'.", entry.getPath(), getName()), e);
+    }
+  }
 
   /**
    * Returns entries of the module, indexed by their module path.
@@ -184,11 +226,26 @@ public abstract class BundleModule {
 
     abstract Builder setAndroidManifestProto(XmlNode manifestProto);
 
-    abstract Builder setResourceTable(ResourceTable resourceTable);
+    abstract Builder setResourceTableEntry(ModuleEntry resourceTableEntry);
+
+    abstract Builder setAssetsConfigEntry(ModuleEntry assetsConfigEntry);
 
-    abstract Builder setAssetsConfig(Assets assetsConfig);
+    abstract Builder setNativeConfigEntry(ModuleEntry nativeConfigEntry);
+
+    Builder setResourceTable(ResourceTable resourceTable) {
+      return setResourceTableEntry(
+          InMemoryModuleEntry.ofFile(RESOURCES_PROTO_PATH, resourceTable.toByteArray()));
+    }
 
-    abstract Builder setNativeConfig(NativeLibraries nativeConfig);
+    Builder setAssetsConfig(Assets assetsConfig) {
+      return setAssetsConfigEntry(
+          InMemoryModuleEntry.ofFile(ASSETS_PROTO_PATH, assetsConfig.toByteArray()));
+    }
+
+    Builder setNativeConfig(NativeLibraries nativeConfig) {
+      return setNativeConfigEntry(
+          InMemoryModuleEntry.ofFile(NATIVE_PROTO_PATH, nativeConfig.toByteArray()));
+    }
 
     /** @see #addEntry(ModuleEntry) */
     public Builder addEntries(Collection<ModuleEntry> entries) throws IOException {
@@ -201,10 +258,12 @@ public abstract class BundleModule {
     /**
      * Adds the given entry to the module.
      *
-     * <p>Certain files (eg. AndroidManifest.xml and several module meta-data files) are immediately
-     * parsed and stored in dedicated class fields instead of as entries.
+     * <p>Certain files (eg. AndroidManifest.xml and several module meta-data files) are stored in
+     * dedicated class fields instead of as entries. The manifest is immediately parsed, because
+     * the module metadata is derived from it. The other module meta-data files are only parsed on
+     * first access.
      *
-     * @throws IOException when the entry cannot be read or has invalid contents
+     * @throws IOException when the manifest cannot be read or has invalid contents
      */
     public Builder addEntry(ModuleEntry moduleEntry) throws IOException {
       if (moduleEntry.getPath().equals(MANIFEST_PATH)) {
@@ -212,17 +271,11 @@ public abstract class BundleModule {
           setAndroidManifestProto(XmlNode.parseFrom(inputStream));
         }
       } else if (moduleEntry.getPath().equals(RESOURCES_PROTO_PATH)) {
-        try (InputStream inputStream = moduleEntry.getContent()) {
-          setResourceTable(ResourceTable.parseFrom(inputStream));
-        }
+        setResourceTableEntry(moduleEntry);
       } else if (moduleEntry.getPath().equals(ASSETS_PROTO_PATH)) {
-        try (InputStream inputStream = moduleEntry.getContent()) {
-          setAssetsConfig(Assets.parseFrom(inputStream));
-        }
+        setAssetsConfigEntry(moduleEntry);
       } else if (moduleEntry.getPath().equals(NATIVE_PROTO_PATH)) {
-        try (InputStream inputStream = moduleEntry.getContent()) {
-          setNativeConfig(NativeLibraries.parseFrom(inputStream));
-        }
+        setNativeConfigEntry(moduleEntry);
       } else if (!moduleEntry.isDirectory()) {
         entryMapBuilder().put(moduleEntry.getPath(), moduleEntry);
       }
@@ -24,6 +24,7 @@ import static java.util.stream.Collectors.partitioningBy;
 import com.google.common.collect.ImmutableList;
 import java.io.InputStream;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.regex.Matcher;
@@ -127,6 +128,11 @@ public class ClassesDexNameSanitizer {
       return moduleEntry.shouldCompress();
     }
 
+    @Override
+    public Optional<Long> getSize() {
+      return moduleEntry.getSize();
+    }
+
     @Override
     public ModuleEntry setCompression(boolean shouldCompress) {
       throw new UnsupportedOperationException();
@@ -25,6 +25,7 @@ import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Optional;
 
 /**
  * A {@link ModuleEntry} which points to a file located on the filesystem.
@@ -58,6 +59,16 @@ public abstract class FileSystemModuleEntry implements ModuleEntry {
     }
   }
 
+  @Override
+  public Optional<Long> getSize() {
+    try {
+      return Optional.of(Files.size(getFileSystemPath()));
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while reading file '%s'.", getFileSystemPath()), e);
+    }
+  }
+
   @Override
   public FileSystemModuleEntry setCompression(boolean shouldCompress) {
     if (shouldCompress == shouldCompress()) {
@@ -19,6 +19,7 @@ import com.google.auto.value.AutoValue;
 import com.google.protobuf.ByteString;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.Optional;
 
 /** In-memory implementation of a {@link ModuleEntry}. */
 @AutoValue
@@ -40,6 +41,11 @@ public abstract class InMemoryModuleEntry implements ModuleEntry {
     return new ByteArrayInputStream(getContentAsBytes().toByteArray());
   }
 
+  @Override
+  public Optional<Long> getSize() {
+    return Optional.of((long) getContentAsBytes().size());
+  }
+
   @Override
   public InMemoryModuleEntry setCompression(boolean shouldCompress) {
     if (shouldCompress == shouldCompress()) {
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.Entry;
+import com.android.aapt.Resources.Package;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.aapt.Resources.Type;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Immutable view of a {@link ResourceTable} in which each entry is addressed by an index.
+ *
+ * <p>Filtering a view creates a new view sharing the index and the protos of the original table:
+ * only the list of selected config values of the modified entries is recorded. Protos are only
+ * rebuilt by {@link #toResourceTable()}, and only for the packages, types and entries which were
+ * modified, the others being reused as is.
+ *
+ * <p>All the views created from the same call to {@link #create(ResourceTable)} share the same
+ * entry indexes.
+ */
+public final class IndexedResourceTable {
+
+  private final Index index;
+
+  /**
+   * Config values selected for each entry, {@code null} when all the config values of the entry
+   * from the original table are selected.
+   */
+  private final ImmutableList<ConfigValue>[] selectedConfigValues;
+
+  private IndexedResourceTable(Index index, ImmutableList<ConfigValue>[] selectedConfigValues) {
+    this.index = index;
+    this.selectedConfigValues = selectedConfigValues;
+  }
+
+  /** Creates a view of the given table selecting all of its config values. */
+  public static IndexedResourceTable create(ResourceTable table) {
+    Index index = new Index(table);
+    return new IndexedResourceTable(index, newSelection(index.entries.length));
+  }
+
+  public int getEntryCount() {
+    return index.entries.length;
+  }
+
+  /** Returns the full resource ID (0xPPTTEEEE) of the entry at the given index. */
+  public int getResourceId(int entryIndex) {
+    return index.resourceIds[entryIndex];
+  }
+
+  /** Returns the entry at the given index, as found in the original table. */
+  public Entry getEntry(int entryIndex) {
+    return index.entries[entryIndex];
+  }
+
+  /** Returns the type of the entry at the given index, as found in the original table. */
+  public Type getType(int entryIndex) {
+    return index.types[entryIndex];
+  }
+
+  /** Returns the config values of the entry at the given index selected by this view. */
+  public ImmutableList<ConfigValue> getConfigValues(int entryIndex) {
+    ImmutableList<ConfigValue> selected = selectedConfigValues[entryIndex];
+    return selected != null ? selected : index.configValues[entryIndex];
+  }
+
+  /** Returns whether none of the config values of the original table is selected. */
+  public boolean isEmpty() {
+    for (int i = 0; i < getEntryCount(); i++) {
+      if (!getConfigValues(i).isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a view further restricting the config values selected by this view.
+   *
+   * @param removeTypePredicate determines whether all the config values of the entries of a type
+   *     should be removed, regardless of the filter
+   * @param configValuesFilter selects the config values to keep for each entry
+   */
+  public IndexedResourceTable filter(
+      Predicate<Type> removeTypePredicate, ConfigValuesFilter configValuesFilter) {
+    ImmutableList<ConfigValue>[] newSelection = selectedConfigValues.clone();
+    Type lastType = null;
+    boolean removeType = false;
+    for (int i = 0; i < getEntryCount(); i++) {
+      // Entries of a type are contiguous.
+      if (index.types[i] != lastType) {
+        lastType = index.types[i];
+        removeType = removeTypePredicate.test(lastType);
+      }
+      ImmutableList<ConfigValue> configValues = getConfigValues(i);
+      if (removeType) {
+        newSelection[i] = ImmutableList.of();
+        continue;
+      }
+      if (configValues.isEmpty()) {
+        continue;
+      }
+      List<ConfigValue> filtered = configValuesFilter.filter(index.entries[i], configValues);
+      checkArgument(
+          filtered.size() <= configValues.size(),
+          "The filter of config values returned more values than it was given.");
+      if (filtered.size() < configValues.size()) {
+        newSelection[i] = ImmutableList.copyOf(filtered);
+      }
+    }
+    return new IndexedResourceTable(index, newSelection);
+  }
+
+  /**
+   * Partitions the config values selected by this view in a single pass over the entries.
+   *
+   * <p>A config value can be assigned to any number of partitions, including none.
+   *
+   * @return one view per partition
+   */
+  public ImmutableList<IndexedResourceTable> partition(
+      int partitionCount, ConfigValuesPartitioner partitioner) {
+    List<ImmutableList<ConfigValue>[]> newSelections = new ArrayList<>(partitionCount);
+    for (int p = 0; p < partitionCount; p++) {
+      newSelections.add(selectedConfigValues.clone());
+    }
+    for (int i = 0; i < getEntryCount(); i++) {
+      ImmutableList<ConfigValue> configValues = getConfigValues(i);
+      if (configValues.isEmpty()) {
+        continue;
+      }
+      List<? extends List<ConfigValue>> partitions =
+          partitioner.partition(index.types[i], index.entries[i], configValues);
+      checkArgument(
+          partitions.size() == partitionCount,
+          "Expected config values for %s partitions, got %s.",
+          partitionCount,
+          partitions.size());
+      for (int p = 0; p < partitionCount; p++) {
+        List<ConfigValue> partition = partitions.get(p);
+        checkArgument(
+            partition.size() <= configValues.size(),
+            "The partitioner of config values returned more values than it was given.");
+        if (partition.size() < configValues.size()) {
+          newSelections.get(p)[i] = ImmutableList.copyOf(partition);
+        }
+      }
+    }
+    return newSelections.stream()
+        .map(selection -> new IndexedResourceTable(index, selection))
+        .collect(toImmutableList());
+  }
+
+  /**
+   * Builds the resource table proto of the config values selected by this view.
+   *
+   * <p>Entries, types and packages left without any config value are removed from the table.
+   */
+  public ResourceTable toResourceTable() {
+    ResourceTable.Builder table = index.table.toBuilder().clearPackage();
+    int entryIndex = 0;
+    for (Package pkg : index.table.getPackageList()) {
+      List<Type> newTypes = new ArrayList<>(pkg.getTypeCount());
+      boolean packageModified = false;
+      for (Type type : pkg.getTypeList()) {
+        List<Entry> newEntries = new ArrayList<>(type.getEntryCount());
+        boolean typeModified = false;
+        for (Entry entry : type.getEntryList()) {
+          ImmutableList<ConfigValue> selected = selectedConfigValues[entryIndex++];
+          if (selected == null && entry.getConfigValueCount() > 0) {
+            newEntries.add(entry);
+          } else if (selected != null && !selected.isEmpty()) {
+            newEntries.add(
+                entry.toBuilder().clearConfigValue().addAllConfigValue(selected).build());
+            typeModified = true;
+          } else {
+            // No config value left, whether removed by this view or absent from the table.
+            typeModified = true;
+          }
+        }
+        if (newEntries.isEmpty()) {
+          packageModified = true;
+        } else if (typeModified) {
+          newTypes.add(type.toBuilder().clearEntry().addAllEntry(newEntries).build());
+          packageModified = true;
+        } else {
+          newTypes.add(type);
+        }
+      }
+      if (newTypes.isEmpty()) {
+        continue;
+      }
+      table.addPackage(
+          packageModified ? pkg.toBuilder().clearType().addAllType(newTypes).build() : pkg);
+    }
+    return table.build();
+  }
+
+  @SuppressWarnings("unchecked") // Arrays of generic types cannot be created directly.
+  private static ImmutableList<ConfigValue>[] newSelection(int entryCount) {
+    return (ImmutableList<ConfigValue>[]) new ImmutableList<?>[entryCount];
+  }
+
+  /** Selects the config values to keep for an entry. */
+  @FunctionalInterface
+  public interface ConfigValuesFilter {
+    /**
+     * Returns the config values to keep, among the given config values of the entry.
+     *
+     * <p>The entry is the one of the original table, its config values may differ from the given
+     * ones. The returned config values must be a subset of the given ones, in the same order.
+     */
+    List<ConfigValue> filter(Entry entry, ImmutableList<ConfigValue> configValues);
+  }
+
+  /** Assigns the config values of an entry to partitions. */
+  @FunctionalInterface
+  public interface ConfigValuesPartitioner {
+    /**
+     * Returns, for each partition, the config values of the entry assigned to it.
+     *
+     * <p>The type and the entry are the ones of the original table. The config values of each
+     * partition must be a subset of the given ones, in the same order.
+     */
+    List<? extends List<ConfigValue>> partition(
+        Type type, Entry entry, ImmutableList<ConfigValue> configValues);
+  }
+
+  /** Flattened entries of a table, shared by all the views of the table. */
+  private static final class Index {
+    private final ResourceTable table;
+    private final int[] resourceIds;
+    private final Type[] types;
+    private final Entry[] entries;
+    private final ImmutableList<ConfigValue>[] configValues;
+
+    private Index(ResourceTable table) {
+      this.table = table;
+      int entryCount = 0;
+      for (Package pkg : table.getPackageList()) {
+        for (Type type : pkg.getTypeList()) {
+          entryCount += type.getEntryCount();
+        }
+      }
+      this.resourceIds = new int[entryCount];
+      this.types = new Type[entryCount];
+      this.entries = new Entry[entryCount];
+      this.configValues = newSelection(entryCount);
+
+      int i = 0;
+      for (Package pkg : table.getPackageList()) {
+        for (Type type : pkg.getTypeList()) {
+          for (Entry entry : type.getEntryList()) {
+            resourceIds[i] =
+                (pkg.getPackageId().getId() << 24)
+                    | (type.getTypeId().getId() << 16)
+                    | entry.getEntryId().getId();
+            types[i] = type;
+            entries[i] = entry;
+            configValues[i] = ImmutableList.copyOf(entry.getConfigValueList());
+            i++;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.android.tools.build.bundletool.utils.MappedZipFile;
+import com.google.auto.value.AutoValue;
+import java.io.InputStream;
+import java.util.Optional;
+
+/**
+ * A {@link ModuleEntry} which points to an entry of a {@link MappedZipFile}.
+ *
+ * <p>It is the responsibility of the caller to ensure that the referenced {@link MappedZipFile}
+ * stays opened for the lifetime of the {@link MappedModuleEntry} instance.
+ */
+@AutoValue
+public abstract class MappedModuleEntry implements ModuleEntry {
+
+  /** The entry of the zip file holding the content of this module entry. */
+  public abstract MappedZipFile.Entry getZipEntry();
+
+  /** See {@link ModuleZipEntry}: equal to 1 for bundle entries, 0 for module zip entries. */
+  abstract int getPathNamesToSkip();
+
+  /**
+   * Expresses whether this entry is compressed or uncompressed in the final output APK. This might
+   * not match the compression method of the zip entry.
+   */
+  @Override
+  public abstract boolean shouldCompress();
+
+  @Override
+  public InputStream getContent() {
+    // Not buffered: the content is read from memory, so buffering would only add a copy.
+    return getZipEntry().getContent();
+  }
+
+  @Override
+  public ZipPath getPath() {
+    ZipPath path = ZipPath.create(getZipEntry().getName());
+    return path.subpath(getPathNamesToSkip(), path.getNameCount());
+  }
+
+  @Override
+  public boolean isDirectory() {
+    return getZipEntry().isDirectory();
+  }
+
+  @Override
+  public Optional<Long> getSize() {
+    return Optional.of(getZipEntry().getSize());
+  }
+
+  @Override
+  public MappedModuleEntry setCompression(boolean shouldCompress) {
+    if (shouldCompress == shouldCompress()) {
+      return this;
+    }
+    return create(getZipEntry(), getPathNamesToSkip(), shouldCompress);
+  }
+
+  /** Constructs a {@link ModuleEntry} for an entry contained in a bundle zip file. */
+  public static MappedModuleEntry fromBundleZipEntry(MappedZipFile.Entry zipEntry) {
+    return create(zipEntry, /* pathNamesToSkip= */ 1, /* shouldCompress= */ true);
+  }
+
+  private static MappedModuleEntry create(
+      MappedZipFile.Entry zipEntry, int pathNamesToSkip, boolean shouldCompress) {
+    checkArgument(ZipPath.create(zipEntry.getName()).getNameCount() > pathNamesToSkip);
+    return new AutoValue_MappedModuleEntry(zipEntry, pathNamesToSkip, shouldCompress);
+  }
+}
@@ -19,6 +19,7 @@ import com.android.tools.build.bundletool.utils.files.FileUtils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.util.Optional;
 
 /** Represents an entry in a an App Bundle's module. */
 public interface ModuleEntry {
@@ -39,6 +40,14 @@ public interface ModuleEntry {
 
   boolean shouldCompress();
 
+  /**
+   * Returns the uncompressed size of the content in bytes, if it is known without reading the
+   * content.
+   */
+  default Optional<Long> getSize() {
+    return Optional.empty();
+  }
+
   /**
    * Creates a new instance if passed shouldCompress doesnt match object's shouldCompress, otherwise
    * returns original object.
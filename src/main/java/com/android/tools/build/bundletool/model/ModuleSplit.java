@@ -21,6 +21,8 @@ import static com.android.tools.build.bundletool.model.BundleModule.DEX_DIRECTOR
 import static com.android.tools.build.bundletool.model.BundleModule.LIB_DIRECTORY;
 import static com.android.tools.build.bundletool.model.BundleModule.RESOURCES_DIRECTORY;
 import static com.android.tools.build.bundletool.model.BundleModule.ROOT_DIRECTORY;
+import static com.android.tools.build.bundletool.utils.HashingUtils.putProto;
+import static com.android.tools.build.bundletool.utils.HashingUtils.putString;
 import static com.android.tools.build.bundletool.utils.ResourcesUtils.SCREEN_DENSITY_TO_PROTO_VALUE_MAP;
 import static com.android.tools.build.bundletool.utils.TargetingProtoUtils.lPlusVariantTargeting;
 import static com.google.common.base.Preconditions.checkState;
@@ -41,10 +43,15 @@ import com.android.bundle.Targeting.VariantTargeting;
 import com.android.bundle.Targeting.VulkanVersion;
 import com.android.tools.build.bundletool.utils.ResourcesUtils;
 import com.google.auto.value.AutoValue;
+import com.google.auto.value.extension.memoized.Memoized;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.MessageLite;
 import java.util.List;
 import java.util.Optional;
 import java.util.StringJoiner;
@@ -96,6 +103,33 @@ public abstract class ModuleSplit {
 
   public abstract Builder toBuilder();
 
+  /**
+   * Returns a fingerprint of the content of the APK of this split, computed on first use.
+   *
+   * <p>Splits with equal fingerprints are serialized into identical APKs, including splits of
+   * different variants since the variant targeting is not part of the fingerprint. The protos of
+   * the split are reduced to a digest, so that comparing fingerprints does not compare them.
+   */
+  @Memoized
+  public Fingerprint getFingerprint() {
+    Hasher hasher = Hashing.sha256().newHasher();
+    putString(hasher, getModuleName().getName());
+    putString(hasher, getSplitType().name());
+    hasher.putBoolean(isMasterSplit());
+    putProto(hasher, getApkTargeting());
+    putProto(hasher, getAndroidManifest().getManifestRoot().getProto());
+    putOptionalProto(hasher, getResourceTable());
+    putOptionalProto(hasher, getNativeConfig());
+    putOptionalProto(hasher, getAssetsConfig());
+    return new AutoValue_ModuleSplit_Fingerprint(
+        hasher.hash(), getEntries(), getMasterManifestMutators());
+  }
+
+  private static void putOptionalProto(Hasher hasher, Optional<? extends MessageLite> proto) {
+    hasher.putBoolean(proto.isPresent());
+    proto.ifPresent(value -> putProto(hasher, value));
+  }
+
   /** Returns true iff this is split of the base module. */
   public boolean isBaseModuleSplit() {
     return getModuleName().getName().equals(BundleModuleName.BASE_MODULE_NAME);
@@ -428,6 +462,25 @@ public abstract class ModuleSplit {
     return findEntry(ZipPath.create(path));
   }
 
+  /**
+   * Fingerprint of a {@link ModuleSplit}, see {@link ModuleSplit#getFingerprint()}.
+   *
+   * <p>The entries are compared as in {@link ModuleSplit#equals}, without reading their content
+   * when they are the same instances.
+   */
+  @AutoValue
+  public abstract static class Fingerprint {
+    /**
+     * SHA-256 digest of the module name, type, APK targeting, manifest, resource table and native
+     * and assets configs of the split.
+     */
+    public abstract HashCode getDigest();
+
+    abstract ImmutableList<ModuleEntry> getEntries();
+
+    abstract ImmutableList<ManifestMutator> getMasterManifestMutators();
+  }
+
   /** Builder for {@link ModuleSplit}. */
   @AutoValue.Builder
   public abstract static class Builder {
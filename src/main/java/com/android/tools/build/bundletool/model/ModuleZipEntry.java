@@ -22,6 +22,7 @@ import com.google.auto.value.AutoValue;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.util.Optional;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -34,9 +35,10 @@ import java.util.zip.ZipFile;
 @AutoValue
 public abstract class ModuleZipEntry implements ModuleEntry {
 
-  abstract ZipEntry getZipEntry();
+  /** The entry of {@link #getZipFile()} holding the content of this module entry. */
+  public abstract ZipEntry getZipEntry();
 
-  abstract ZipFile getZipFile();
+  public abstract ZipFile getZipFile();
 
   /**
    * Expresses how many path names of {@link #getZipEntry()} need to be skipped in order to produce
@@ -79,6 +81,13 @@ public abstract class ModuleZipEntry implements ModuleEntry {
     return getZipEntry().isDirectory();
   }
 
+  @Override
+  public Optional<Long> getSize() {
+    // Unknown (-1) for entries read from a stream rather than from the central directory.
+    long size = getZipEntry().getSize();
+    return size >= 0 ? Optional.of(size) : Optional.empty();
+  }
+
   @Override
   public ModuleZipEntry setCompression(boolean shouldCompress) {
     if (shouldCompress == shouldCompress()) {
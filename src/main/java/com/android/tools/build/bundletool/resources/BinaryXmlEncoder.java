@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.CHUNK_HEADER_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.NO_STRING;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_CDATA_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_END_ELEMENT_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_END_NAMESPACE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_RESOURCE_MAP_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_START_ELEMENT_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_START_NAMESPACE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_NULL;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_STRING;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.XML_ATTRIBUTE_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.XML_NODE_HEADER_SIZE;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.android.aapt.Resources.XmlAttribute;
+import com.android.aapt.Resources.XmlElement;
+import com.android.aapt.Resources.XmlNamespace;
+import com.android.aapt.Resources.XmlNode;
+import com.google.auto.value.AutoValue;
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.ImmutableList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Encodes a proto {@link XmlNode} into the Android binary XML format (AXML).
+ *
+ * <p>The layout follows the aapt2 XML flattener: a string pool whose first strings are the names of
+ * the attributes that have a resource ID, followed by the resource map and the tree of namespace,
+ * element and text chunks. Attributes of the tools namespace are dropped and whitespace-only text
+ * nodes are skipped.
+ */
+public final class BinaryXmlEncoder {
+
+  private static final String TOOLS_NAMESPACE_URI = "http://schemas.android.com/tools";
+
+  /**
+   * Orders attributes with a resource ID first (by ID), then the others by namespace and name.
+   */
+  private static final Comparator<XmlAttribute> ATTRIBUTE_ORDER =
+      Comparator.<XmlAttribute, Boolean>comparing(attribute -> attribute.getResourceId() == 0)
+          .thenComparingInt(XmlAttribute::getResourceId)
+          .thenComparing(XmlAttribute::getNamespaceUri)
+          .thenComparing(XmlAttribute::getName);
+
+  private final boolean utf16;
+
+  private BinaryXmlEncoder(boolean utf16) {
+    this.utf16 = utf16;
+  }
+
+  /**
+   * Creates an encoder for AndroidManifest.xml, which stores its strings in UTF-16 for
+   * compatibility with old platform versions.
+   */
+  public static BinaryXmlEncoder forManifest() {
+    return new BinaryXmlEncoder(/* utf16= */ true);
+  }
+
+  /** Creates an encoder for XML files under res/. */
+  public static BinaryXmlEncoder forResourceFile() {
+    return new BinaryXmlEncoder(/* utf16= */ false);
+  }
+
+  public byte[] encode(XmlNode root) {
+    if (!root.hasElement()) {
+      throw new UnsupportedResourceEncodingException("The XML root node must be an element.");
+    }
+
+    StringPoolBuilder pool = new StringPoolBuilder(/* utf8= */ !utf16);
+    Map<AttributeName, Integer> resourceMappedNames = new LinkedHashMap<>();
+    collectResourceMappedNames(root.getElement(), resourceMappedNames);
+    resourceMappedNames.entrySet().stream()
+        .sorted(Map.Entry.comparingByValue())
+        .forEachOrdered(entry -> entry.setValue(pool.addFirst(entry.getKey().getName())));
+    collectStrings(root, pool);
+    pool.freeze();
+
+    ChunkBuffer out = new ChunkBuffer();
+    int xmlChunk = out.startChunk(RES_XML_TYPE, CHUNK_HEADER_SIZE);
+    pool.writeTo(out);
+
+    if (!resourceMappedNames.isEmpty()) {
+      int mapChunk = out.startChunk(RES_XML_RESOURCE_MAP_TYPE, CHUNK_HEADER_SIZE);
+      resourceMappedNames.entrySet().stream()
+          .sorted(Map.Entry.comparingByValue())
+          .forEachOrdered(entry -> out.writeInt(entry.getKey().getResourceId()));
+      out.endChunk(mapChunk);
+    }
+
+    writeNode(root, pool, resourceMappedNames, out);
+    out.endChunk(xmlChunk);
+    return out.toByteArray();
+  }
+
+  private static void collectResourceMappedNames(
+      XmlElement element, Map<AttributeName, Integer> names) {
+    for (XmlAttribute attribute : filteredAttributes(element)) {
+      if (attribute.getResourceId() != 0) {
+        // The value is temporarily the resource ID, used for sorting; it is replaced by the index
+        // in the string pool.
+        names.putIfAbsent(
+            AttributeName.create(attribute.getName(), attribute.getResourceId()),
+            attribute.getResourceId());
+      }
+    }
+    for (XmlNode child : element.getChildList()) {
+      if (child.hasElement()) {
+        collectResourceMappedNames(child.getElement(), names);
+      }
+    }
+  }
+
+  private static void collectStrings(XmlNode node, StringPoolBuilder pool) {
+    if (!node.hasElement()) {
+      if (isSignificantText(node.getText())) {
+        pool.add(node.getText());
+      }
+      return;
+    }
+    XmlElement element = node.getElement();
+    for (XmlNamespace namespace : element.getNamespaceDeclarationList()) {
+      pool.add(namespace.getPrefix());
+      pool.add(namespace.getUri());
+    }
+    addIfNotEmpty(pool, element.getNamespaceUri());
+    pool.add(element.getName());
+    for (XmlAttribute attribute : filteredAttributes(element)) {
+      addIfNotEmpty(pool, attribute.getNamespaceUri());
+      if (attribute.getResourceId() == 0) {
+        pool.add(attribute.getName());
+      }
+      pool.add(attribute.getValue());
+      if (attribute.hasCompiledItem()) {
+        ResValues.collectStrings(attribute.getCompiledItem(), pool, /* keepStyles= */ false);
+      }
+    }
+    for (XmlNode child : element.getChildList()) {
+      collectStrings(child, pool);
+    }
+  }
+
+  private static void writeNode(
+      XmlNode node,
+      StringPoolBuilder pool,
+      Map<AttributeName, Integer> resourceMappedNames,
+      ChunkBuffer out) {
+    if (!node.hasElement()) {
+      if (isSignificantText(node.getText())) {
+        int chunk = startNodeChunk(RES_XML_CDATA_TYPE, node, out);
+        out.writeInt(pool.indexOf(node.getText()));
+        ResValues.writeValue(out, TYPE_NULL, 0);
+        out.endChunk(chunk);
+      }
+      return;
+    }
+
+    XmlElement element = node.getElement();
+    for (XmlNamespace namespace : element.getNamespaceDeclarationList()) {
+      int chunk = startNodeChunk(RES_XML_START_NAMESPACE_TYPE, node, out);
+      out.writeInt(pool.indexOf(namespace.getPrefix()));
+      out.writeInt(pool.indexOf(namespace.getUri()));
+      out.endChunk(chunk);
+    }
+
+    ImmutableList<XmlAttribute> attributes =
+        filteredAttributes(element).stream().sorted(ATTRIBUTE_ORDER).collect(toImmutableList());
+    int startChunk = startNodeChunk(RES_XML_START_ELEMENT_TYPE, node, out);
+    out.writeInt(stringRef(pool, element.getNamespaceUri()));
+    out.writeInt(pool.indexOf(element.getName()));
+    out.writeShort(XML_ATTRIBUTE_SIZE); // attributeStart
+    out.writeShort(XML_ATTRIBUTE_SIZE); // attributeSize
+    out.writeShort(attributes.size());
+    out.writeShort(findSpecialAttribute(attributes, "id"));
+    out.writeShort(findSpecialAttribute(attributes, "class"));
+    out.writeShort(findSpecialAttribute(attributes, "style"));
+    for (XmlAttribute attribute : attributes) {
+      out.writeInt(stringRef(pool, attribute.getNamespaceUri()));
+      out.writeInt(
+          attribute.getResourceId() != 0
+              ? resourceMappedNames.get(
+                  AttributeName.create(attribute.getName(), attribute.getResourceId()))
+              : pool.indexOf(attribute.getName()));
+      out.writeInt(pool.indexOf(attribute.getValue()));
+      if (attribute.hasCompiledItem()) {
+        ResValues.writeItem(attribute.getCompiledItem(), pool, /* keepStyles= */ false, out);
+      } else {
+        ResValues.writeValue(out, TYPE_STRING, pool.indexOf(attribute.getValue()));
+      }
+    }
+    out.endChunk(startChunk);
+
+    for (XmlNode child : element.getChildList()) {
+      writeNode(child, pool, resourceMappedNames, out);
+    }
+
+    int endChunk = startNodeChunk(RES_XML_END_ELEMENT_TYPE, node, out);
+    out.writeInt(stringRef(pool, element.getNamespaceUri()));
+    out.writeInt(pool.indexOf(element.getName()));
+    out.endChunk(endChunk);
+
+    List<XmlNamespace> namespaces = element.getNamespaceDeclarationList();
+    for (int i = namespaces.size() - 1; i >= 0; i--) {
+      int chunk = startNodeChunk(RES_XML_END_NAMESPACE_TYPE, node, out);
+      out.writeInt(pool.indexOf(namespaces.get(i).getPrefix()));
+      out.writeInt(pool.indexOf(namespaces.get(i).getUri()));
+      out.endChunk(chunk);
+    }
+  }
+
+  /** Writes the header common to all XML tree nodes: line number and (absent) comment. */
+  private static int startNodeChunk(int type, XmlNode node, ChunkBuffer out) {
+    int chunk = out.startChunk(type, XML_NODE_HEADER_SIZE);
+    out.writeInt(node.getSource().getLineNumber());
+    out.writeInt(NO_STRING);
+    return chunk;
+  }
+
+  private static ImmutableList<XmlAttribute> filteredAttributes(XmlElement element) {
+    return element.getAttributeList().stream()
+        .filter(attribute -> !attribute.getNamespaceUri().equals(TOOLS_NAMESPACE_URI))
+        .collect(toImmutableList());
+  }
+
+  /** Returns the 1-based index of the non-namespaced attribute with the given name, or 0. */
+  private static int findSpecialAttribute(List<XmlAttribute> attributes, String name) {
+    for (int i = 0; i < attributes.size(); i++) {
+      XmlAttribute attribute = attributes.get(i);
+      if (attribute.getNamespaceUri().isEmpty() && attribute.getName().equals(name)) {
+        return i + 1;
+      }
+    }
+    return 0;
+  }
+
+  private static boolean isSignificantText(String text) {
+    return !CharMatcher.whitespace().matchesAllOf(text);
+  }
+
+  private static void addIfNotEmpty(StringPoolBuilder pool, String value) {
+    Optional.of(value).filter(s -> !s.isEmpty()).ifPresent(pool::add);
+  }
+
+  private static int stringRef(StringPoolBuilder pool, String value) {
+    return value.isEmpty() ? NO_STRING : pool.indexOf(value);
+  }
+
+  /** Name of an attribute that has a resource ID. */
+  @AutoValue
+  abstract static class AttributeName {
+    abstract String getName();
+
+    abstract int getResourceId();
+
+    static AttributeName create(String name, int resourceId) {
+      return new AutoValue_BinaryXmlEncoder_AttributeName(name, resourceId);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+
+/**
+ * Growable little-endian byte buffer used to assemble Android binary resource chunks.
+ *
+ * <p>Chunk headers contain the size of the chunk, which is only known once the chunk body has
+ * been written, so the buffer supports patching values at previously written offsets.
+ */
+final class ChunkBuffer {
+
+  private byte[] data;
+  private int size;
+
+  ChunkBuffer() {
+    this(/* initialCapacity= */ 1024);
+  }
+
+  ChunkBuffer(int initialCapacity) {
+    this.data = new byte[Math.max(initialCapacity, 16)];
+  }
+
+  /** Returns the number of bytes written so far. */
+  int size() {
+    return size;
+  }
+
+  ChunkBuffer writeByte(int value) {
+    ensureCapacity(1);
+    data[size++] = (byte) value;
+    return this;
+  }
+
+  ChunkBuffer writeShort(int value) {
+    ensureCapacity(2);
+    data[size++] = (byte) value;
+    data[size++] = (byte) (value >>> 8);
+    return this;
+  }
+
+  ChunkBuffer writeInt(int value) {
+    ensureCapacity(4);
+    putInt(size, value);
+    size += 4;
+    return this;
+  }
+
+  ChunkBuffer writeBytes(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, data, size, bytes.length);
+    size += bytes.length;
+    return this;
+  }
+
+  ChunkBuffer writeBuffer(ChunkBuffer other) {
+    ensureCapacity(other.size);
+    System.arraycopy(other.data, 0, data, size, other.size);
+    size += other.size;
+    return this;
+  }
+
+  /** Writes the given number of zero bytes. */
+  ChunkBuffer writeZeros(int count) {
+    ensureCapacity(count);
+    // The backing array is always zero-filled beyond the current size.
+    size += count;
+    return this;
+  }
+
+  /** Pads the buffer with zeros until its size is a multiple of 4. */
+  ChunkBuffer align4() {
+    return writeZeros((4 - (size % 4)) % 4);
+  }
+
+  /** Overwrites a 32-bit value at the given offset. */
+  void putInt(int offset, int value) {
+    checkArgument(offset >= 0 && offset + 4 <= data.length, "Offset %s out of range.", offset);
+    data[offset] = (byte) value;
+    data[offset + 1] = (byte) (value >>> 8);
+    data[offset + 2] = (byte) (value >>> 16);
+    data[offset + 3] = (byte) (value >>> 24);
+  }
+
+  /**
+   * Starts a chunk by writing its header type, header size and a placeholder for the chunk size.
+   *
+   * @return the offset of the chunk, to be passed to {@link #endChunk(int)}
+   */
+  int startChunk(int type, int headerSize) {
+    int chunkStart = size;
+    writeShort(type);
+    writeShort(headerSize);
+    writeInt(0);
+    return chunkStart;
+  }
+
+  /** Pads the chunk to a 4-byte boundary and patches its size in the header. */
+  void endChunk(int chunkStart) {
+    align4();
+    putInt(chunkStart + 4, size - chunkStart);
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(data, size);
+  }
+
+  private void ensureCapacity(int extra) {
+    if (size + extra > data.length) {
+      data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+    }
+  }
+}
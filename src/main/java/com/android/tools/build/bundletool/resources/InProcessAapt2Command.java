@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.model.BundleModule.MANIFEST_FILENAME;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.FileReference;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.aapt.Resources.XmlNode;
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.files.BufferedIo;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * {@link Aapt2Command} converting proto APKs to binary APKs in the current JVM.
+ *
+ * <p>The {@code resources.pb} table is encoded into {@code resources.arsc}, the manifest and the
+ * XML resources are encoded into binary XML, and all other files are copied. Inputs using features
+ * that the encoders do not support are delegated to the given fallback command, typically the
+ * aapt2 binary.
+ */
+public final class InProcessAapt2Command implements Aapt2Command {
+
+  private static final String RESOURCES_PROTO_NAME = "resources.pb";
+  private static final String RESOURCES_TABLE_NAME = "resources.arsc";
+
+  private final Supplier<Aapt2Command> fallback;
+  private final Supplier<Optional<String>> fallbackIdentity;
+
+  /** Creates the command, identified by the identity of the fallback command once created. */
+  public InProcessAapt2Command(Supplier<Aapt2Command> fallback) {
+    this(fallback, () -> fallback.get().getIdentity());
+  }
+
+  /**
+   * Creates the command, identified by the given identity of the fallback command, so that the
+   * fallback command is only created if an input cannot be converted in-process.
+   */
+  public InProcessAapt2Command(
+      Supplier<Aapt2Command> fallback, Supplier<Optional<String>> fallbackIdentity) {
+    this.fallback = fallback;
+    this.fallbackIdentity = Suppliers.memoize(fallbackIdentity::get);
+  }
+
+  @Override
+  public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {
+    try {
+      convert(protoApk, binaryApk);
+    } catch (UnsupportedResourceEncodingException e) {
+      fallback.get().convertApkProtoToBinary(protoApk, binaryApk);
+    }
+  }
+
+  /**
+   * Identifies the conversion by the fallback command, which converts the inputs not supported
+   * in-process. The in-process encoders themselves change only with the bundletool version.
+   */
+  @Override
+  public Optional<String> getIdentity() {
+    return fallbackIdentity.get().map(identity -> "in-process:" + identity);
+  }
+
+  private static void convert(Path protoApk, Path binaryApk) {
+    try (ZipFile zipFile = new ZipFile(protoApk.toFile())) {
+      ZipBuilder zipBuilder = new ZipBuilder();
+      ImmutableSet<String> protoXmlFiles = ImmutableSet.of();
+
+      ZipEntry resourcesEntry = zipFile.getEntry(RESOURCES_PROTO_NAME);
+      if (resourcesEntry != null) {
+        ResourceTable table;
+        try (InputStream is = BufferedIo.inputStream(zipFile, resourcesEntry)) {
+          table = ResourceTable.parseFrom(is);
+        }
+        protoXmlFiles = getProtoXmlFiles(table);
+        zipBuilder.addFileWithContent(
+            ZipPath.create(RESOURCES_TABLE_NAME),
+            new ResourceTableEncoder().encode(table),
+            EntryOption.UNCOMPRESSED);
+      }
+
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        String name = entry.getName();
+        if (entry.isDirectory() || name.equals(RESOURCES_PROTO_NAME)) {
+          continue;
+        }
+        EntryOption[] options =
+            entry.getMethod() == ZipEntry.STORED
+                ? new EntryOption[] {EntryOption.UNCOMPRESSED}
+                : new EntryOption[] {};
+        if (name.equals(MANIFEST_FILENAME)) {
+          zipBuilder.addFileWithContent(
+              ZipPath.create(name),
+              BinaryXmlEncoder.forManifest().encode(readXml(zipFile, entry)),
+              options);
+        } else if (protoXmlFiles.contains(name)) {
+          zipBuilder.addFileWithContent(
+              ZipPath.create(name),
+              BinaryXmlEncoder.forResourceFile().encode(readXml(zipFile, entry)),
+              options);
+        } else {
+          zipBuilder.addFileFromZip(ZipPath.create(name), zipFile, entry, options);
+        }
+      }
+
+      zipBuilder.writeTo(binaryApk);
+    } catch (InvalidProtocolBufferException e) {
+      throw new UnsupportedResourceEncodingException(
+          "Proto APK '%s' contains an invalid proto: %s", protoApk, e.getMessage());
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while converting APK '%s' to binary format.", protoApk), e);
+    }
+  }
+
+  /** Returns the paths of the files that the resource table declares as compiled XML. */
+  private static ImmutableSet<String> getProtoXmlFiles(ResourceTable table) {
+    return table.getPackageList().stream()
+        .flatMap(pkg -> pkg.getTypeList().stream())
+        .flatMap(type -> type.getEntryList().stream())
+        .flatMap(entry -> entry.getConfigValueList().stream())
+        .map(ConfigValue::getValue)
+        .filter(value -> value.hasItem() && value.getItem().hasFile())
+        .map(value -> value.getItem().getFile())
+        .filter(file -> file.getType().equals(FileReference.Type.PROTO_XML))
+        .map(FileReference::getPath)
+        .collect(toImmutableSet());
+  }
+
+  private static XmlNode readXml(ZipFile zipFile, ZipEntry entry) throws IOException {
+    try (InputStream is = BufferedIo.inputStream(zipFile, entry)) {
+      return XmlNode.parseFrom(ByteStreams.toByteArray(is));
+    }
+  }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.CONFIG_SIZE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.google.common.base.Ascii;
+import com.google.common.base.Splitter;
+import java.util.List;
+
+/**
+ * Encodes a proto {@link Configuration} into the binary {@code ResTable_config} structure.
+ *
+ * <p>The enum values are translated to the constants of the platform's {@code ResTable_config}.
+ */
+final class ResConfigEncoder {
+
+  // Masks returned by ResTable_config::diff(), used in the type spec flags.
+  private static final int CONFIG_MCC = 0x0001;
+  private static final int CONFIG_MNC = 0x0002;
+  private static final int CONFIG_LOCALE = 0x0004;
+  private static final int CONFIG_TOUCHSCREEN = 0x0008;
+  private static final int CONFIG_KEYBOARD = 0x0010;
+  private static final int CONFIG_KEYBOARD_HIDDEN = 0x0020;
+  private static final int CONFIG_NAVIGATION = 0x0040;
+  private static final int CONFIG_ORIENTATION = 0x0080;
+  private static final int CONFIG_DENSITY = 0x0100;
+  private static final int CONFIG_SCREEN_SIZE = 0x0200;
+  private static final int CONFIG_VERSION = 0x0400;
+  private static final int CONFIG_SCREEN_LAYOUT = 0x0800;
+  private static final int CONFIG_UI_MODE = 0x1000;
+  private static final int CONFIG_SMALLEST_SCREEN_SIZE = 0x2000;
+  private static final int CONFIG_LAYOUTDIR = 0x4000;
+  private static final int CONFIG_SCREEN_ROUND = 0x8000;
+  private static final int CONFIG_COLOR_MODE = 0x10000;
+
+  private static final Splitter LOCALE_SPLITTER = Splitter.on('-');
+
+  /** Writes the 64-byte {@code ResTable_config} for the given configuration. */
+  static void write(Configuration config, ChunkBuffer out) {
+    if (!config.getProduct().isEmpty()) {
+      throw new UnsupportedResourceEncodingException(
+          "Product configurations cannot be encoded: '%s'.", config.getProduct());
+    }
+    Locale locale = parseLocale(config.getLocale());
+    int start = out.size();
+
+    out.writeInt(CONFIG_SIZE);
+    out.writeShort(config.getMcc());
+    out.writeShort(config.getMnc());
+    out.writeBytes(packLanguageOrRegion(locale.language, 'a'));
+    out.writeBytes(packLanguageOrRegion(locale.region, '0'));
+    out.writeByte(config.getOrientationValue());
+    out.writeByte(config.getTouchscreenValue());
+    out.writeShort(config.getDensity());
+    out.writeByte(config.getKeyboardValue());
+    out.writeByte(config.getNavigationValue());
+    out.writeByte(config.getKeysHiddenValue() | (config.getNavHiddenValue() << 2));
+    out.writeByte(0); // inputPad0
+    out.writeShort(config.getScreenWidth());
+    out.writeShort(config.getScreenHeight());
+    out.writeShort(config.getSdkVersion());
+    out.writeShort(0); // minorVersion
+    out.writeByte(
+        config.getScreenLayoutSizeValue()
+            | screenLayoutLong(config)
+            | (config.getLayoutDirectionValue() << 6));
+    out.writeByte(config.getUiModeTypeValue() | uiModeNight(config));
+    out.writeShort(config.getSmallestScreenWidthDp());
+    out.writeShort(config.getScreenWidthDp());
+    out.writeShort(config.getScreenHeightDp());
+    out.writeBytes(fixedLength(locale.script, 4));
+    out.writeBytes(fixedLength(locale.variant, 8));
+    out.writeByte(screenRound(config));
+    out.writeByte(wideColorGamut(config) | hdr(config));
+    // Remaining fields (screenConfigPad2, localeScriptWasComputed, localeNumberingSystem) are 0.
+    out.writeZeros(CONFIG_SIZE - (out.size() - start));
+  }
+
+  // The proto enums below list the "positive" value first, while the binary format uses the
+  // opposite order, so they cannot be copied verbatim.
+
+  private static int screenLayoutLong(Configuration config) {
+    switch (config.getScreenLayoutLong()) {
+      case SCREEN_LAYOUT_LONG_LONG:
+        return 0x20;
+      case SCREEN_LAYOUT_LONG_NOTLONG:
+        return 0x10;
+      default:
+        return 0;
+    }
+  }
+
+  private static int uiModeNight(Configuration config) {
+    switch (config.getUiModeNight()) {
+      case UI_MODE_NIGHT_NIGHT:
+        return 0x20;
+      case UI_MODE_NIGHT_NOTNIGHT:
+        return 0x10;
+      default:
+        return 0;
+    }
+  }
+
+  private static int screenRound(Configuration config) {
+    switch (config.getScreenRound()) {
+      case SCREEN_ROUND_ROUND:
+        return 0x02;
+      case SCREEN_ROUND_NOTROUND:
+        return 0x01;
+      default:
+        return 0;
+    }
+  }
+
+  private static int wideColorGamut(Configuration config) {
+    switch (config.getWideColorGamut()) {
+      case WIDE_COLOR_GAMUT_WIDECG:
+        return 0x02;
+      case WIDE_COLOR_GAMUT_NOWIDECG:
+        return 0x01;
+      default:
+        return 0;
+    }
+  }
+
+  private static int hdr(Configuration config) {
+    switch (config.getHdr()) {
+      case HDR_HIGHDR:
+        return 0x08;
+      case HDR_LOWDR:
+        return 0x04;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Returns the mask of configuration dimensions in which the given configuration differs from
+   * the default configuration, as returned by {@code ResTable_config::diff()}.
+   */
+  static int diffFromDefault(Configuration config) {
+    int diff = 0;
+    if (config.getMcc() != 0) {
+      diff |= CONFIG_MCC;
+    }
+    if (config.getMnc() != 0) {
+      diff |= CONFIG_MNC;
+    }
+    if (!config.getLocale().isEmpty()) {
+      diff |= CONFIG_LOCALE;
+    }
+    if (config.getTouchscreenValue() != 0) {
+      diff |= CONFIG_TOUCHSCREEN;
+    }
+    if (config.getKeyboardValue() != 0) {
+      diff |= CONFIG_KEYBOARD;
+    }
+    if (config.getKeysHiddenValue() != 0 || config.getNavHiddenValue() != 0) {
+      diff |= CONFIG_KEYBOARD_HIDDEN;
+    }
+    if (config.getNavigationValue() != 0) {
+      diff |= CONFIG_NAVIGATION;
+    }
+    if (config.getOrientationValue() != 0) {
+      diff |= CONFIG_ORIENTATION;
+    }
+    if (config.getDensity() != 0) {
+      diff |= CONFIG_DENSITY;
+    }
+    if (config.getScreenWidth() != 0 || config.getScreenHeight() != 0) {
+      diff |= CONFIG_SCREEN_SIZE;
+    }
+    if (config.getSdkVersion() != 0) {
+      diff |= CONFIG_VERSION;
+    }
+    if (config.getScreenLayoutSizeValue() != 0 || config.getScreenLayoutLongValue() != 0) {
+      diff |= CONFIG_SCREEN_LAYOUT;
+    }
+    if (config.getLayoutDirectionValue() != 0) {
+      diff |= CONFIG_LAYOUTDIR;
+    }
+    if (config.getUiModeTypeValue() != 0 || config.getUiModeNightValue() != 0) {
+      diff |= CONFIG_UI_MODE;
+    }
+    if (config.getSmallestScreenWidthDp() != 0) {
+      diff |= CONFIG_SMALLEST_SCREEN_SIZE;
+    }
+    if (config.getScreenWidthDp() != 0 || config.getScreenHeightDp() != 0) {
+      diff |= CONFIG_SCREEN_SIZE;
+    }
+    if (config.getScreenRoundValue() != 0) {
+      diff |= CONFIG_SCREEN_ROUND;
+    }
+    if (config.getWideColorGamutValue() != 0 || config.getHdrValue() != 0) {
+      diff |= CONFIG_COLOR_MODE;
+    }
+    return diff;
+  }
+
+  /**
+   * Parses a BCP-47 language tag as stored in the proto configuration (e.g. "en", "en-US",
+   * "sr-Latn-RS", "es-419").
+   */
+  static Locale parseLocale(String bcp47Tag) {
+    Locale locale = new Locale();
+    if (bcp47Tag.isEmpty()) {
+      return locale;
+    }
+    List<String> subtags = LOCALE_SPLITTER.splitToList(bcp47Tag);
+    String language = subtags.get(0);
+    if (!isAlpha(language) || language.length() < 2 || language.length() > 3) {
+      throw new UnsupportedResourceEncodingException("Unsupported locale '%s'.", bcp47Tag);
+    }
+    locale.language = Ascii.toLowerCase(language);
+    for (String subtag : subtags.subList(1, subtags.size())) {
+      if (subtag.length() == 4 && isAlpha(subtag) && locale.script.isEmpty()) {
+        locale.script =
+            Ascii.toUpperCase(subtag.substring(0, 1)) + Ascii.toLowerCase(subtag.substring(1));
+      } else if ((subtag.length() == 2 && isAlpha(subtag))
+          || (subtag.length() == 3 && isDigits(subtag))) {
+        locale.region = Ascii.toUpperCase(subtag);
+      } else if (subtag.length() >= 4 && subtag.length() <= 8) {
+        locale.variant = Ascii.toLowerCase(subtag);
+      } else {
+        throw new UnsupportedResourceEncodingException("Unsupported locale '%s'.", bcp47Tag);
+      }
+    }
+    return locale;
+  }
+
+  /**
+   * Packs a 2 or 3 letter language or region code into 2 bytes, following {@code
+   * ResTable_config::packLanguageOrRegion}.
+   */
+  private static byte[] packLanguageOrRegion(String value, char base) {
+    byte[] out = new byte[2];
+    if (value.length() == 2) {
+      out[0] = (byte) value.charAt(0);
+      out[1] = (byte) value.charAt(1);
+    } else if (value.length() == 3) {
+      int first = value.charAt(0) - base;
+      int second = value.charAt(1) - base;
+      int third = value.charAt(2) - base;
+      out[0] = (byte) (0x80 | (third << 2) | (second >> 3));
+      out[1] = (byte) ((second << 5) | first);
+    }
+    return out;
+  }
+
+  private static byte[] fixedLength(String value, int length) {
+    byte[] out = new byte[length];
+    byte[] bytes = value.getBytes(US_ASCII);
+    System.arraycopy(bytes, 0, out, 0, Math.min(bytes.length, length));
+    return out;
+  }
+
+  private static boolean isAlpha(String value) {
+    return value.chars().allMatch(c -> (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z'));
+  }
+
+  private static boolean isDigits(String value) {
+    return value.chars().allMatch(c -> c >= '0' && c <= '9');
+  }
+
+  /** Components of a locale as stored in {@code ResTable_config}. */
+  static final class Locale {
+    String language = "";
+    String region = "";
+    String script = "";
+    String variant = "";
+  }
+
+  private ResConfigEncoder() {}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.DATA_NULL_EMPTY;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.DATA_NULL_UNDEFINED;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_VALUE_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_ATTRIBUTE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_DIMENSION;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_DYNAMIC_ATTRIBUTE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_DYNAMIC_REFERENCE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_FLOAT;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_FRACTION;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_INT_BOOLEAN;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_INT_COLOR_ARGB4;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_INT_COLOR_ARGB8;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_INT_COLOR_RGB4;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_INT_COLOR_RGB8;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_INT_DEC;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_INT_HEX;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_NULL;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_REFERENCE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_STRING;
+
+import com.android.aapt.Resources.Item;
+import com.android.aapt.Resources.Primitive;
+import com.android.aapt.Resources.Reference;
+
+/** Encodes proto {@link Item}s into binary {@code Res_value} structures. */
+final class ResValues {
+
+  /**
+   * Registers the strings referenced by the given item in the pool.
+   *
+   * @param keepStyles whether styled strings keep their spans; when false, only the raw text of a
+   *     styled string is stored, as is the case for binary XML
+   */
+  static void collectStrings(Item item, StringPoolBuilder pool, boolean keepStyles) {
+    switch (item.getValueCase()) {
+      case STR:
+        pool.add(item.getStr().getValue());
+        break;
+      case RAW_STR:
+        pool.add(item.getRawStr().getValue());
+        break;
+      case STYLED_STR:
+        if (keepStyles && item.getStyledStr().getSpanCount() > 0) {
+          pool.addStyled(item.getStyledStr());
+        } else {
+          pool.add(item.getStyledStr().getValue());
+        }
+        break;
+      case FILE:
+        pool.add(item.getFile().getPath());
+        break;
+      default:
+        break;
+    }
+  }
+
+  /** Writes the 8-byte {@code Res_value} representation of the item. */
+  static void writeItem(Item item, StringPoolBuilder pool, boolean keepStyles, ChunkBuffer out) {
+    switch (item.getValueCase()) {
+      case REF:
+        writeReference(item.getRef(), out);
+        return;
+      case STR:
+        writeValue(out, TYPE_STRING, pool.indexOf(item.getStr().getValue()));
+        return;
+      case RAW_STR:
+        writeValue(out, TYPE_STRING, pool.indexOf(item.getRawStr().getValue()));
+        return;
+      case STYLED_STR:
+        int index =
+            keepStyles && item.getStyledStr().getSpanCount() > 0
+                ? pool.indexOfStyled(item.getStyledStr())
+                : pool.indexOf(item.getStyledStr().getValue());
+        writeValue(out, TYPE_STRING, index);
+        return;
+      case FILE:
+        writeValue(out, TYPE_STRING, pool.indexOf(item.getFile().getPath()));
+        return;
+      case ID:
+        // Ids have no value, aapt2 encodes them as a "false" boolean.
+        writeValue(out, TYPE_INT_BOOLEAN, 0);
+        return;
+      case PRIM:
+        writePrimitive(item.getPrim(), out);
+        return;
+      case VALUE_NOT_SET:
+        break;
+    }
+    throw new UnsupportedResourceEncodingException("Unsupported item: %s", item);
+  }
+
+  static void writeReference(Reference reference, ChunkBuffer out) {
+    if (reference.getId() == 0 && !reference.getName().isEmpty()) {
+      throw new UnsupportedResourceEncodingException(
+          "Unresolved reference to '%s'.", reference.getName());
+    }
+    boolean isDynamic = reference.hasIsDynamic() && reference.getIsDynamic().getValue();
+    int dataType;
+    if (reference.getType().equals(Reference.Type.ATTRIBUTE)) {
+      dataType = isDynamic ? TYPE_DYNAMIC_ATTRIBUTE : TYPE_ATTRIBUTE;
+    } else {
+      dataType = isDynamic ? TYPE_DYNAMIC_REFERENCE : TYPE_REFERENCE;
+    }
+    writeValue(out, dataType, reference.getId());
+  }
+
+  private static void writePrimitive(Primitive primitive, ChunkBuffer out) {
+    switch (primitive.getOneofValueCase()) {
+      case NULL_VALUE:
+        writeValue(out, TYPE_NULL, DATA_NULL_UNDEFINED);
+        return;
+      case EMPTY_VALUE:
+        writeValue(out, TYPE_NULL, DATA_NULL_EMPTY);
+        return;
+      case FLOAT_VALUE:
+        writeValue(out, TYPE_FLOAT, Float.floatToRawIntBits(primitive.getFloatValue()));
+        return;
+      case DIMENSION_VALUE:
+        writeValue(out, TYPE_DIMENSION, primitive.getDimensionValue());
+        return;
+      case FRACTION_VALUE:
+        writeValue(out, TYPE_FRACTION, primitive.getFractionValue());
+        return;
+      case INT_DECIMAL_VALUE:
+        writeValue(out, TYPE_INT_DEC, primitive.getIntDecimalValue());
+        return;
+      case INT_HEXADECIMAL_VALUE:
+        writeValue(out, TYPE_INT_HEX, primitive.getIntHexadecimalValue());
+        return;
+      case BOOLEAN_VALUE:
+        writeValue(out, TYPE_INT_BOOLEAN, primitive.getBooleanValue() ? 0xFFFFFFFF : 0);
+        return;
+      case COLOR_ARGB8_VALUE:
+        writeValue(out, TYPE_INT_COLOR_ARGB8, primitive.getColorArgb8Value());
+        return;
+      case COLOR_RGB8_VALUE:
+        writeValue(out, TYPE_INT_COLOR_RGB8, primitive.getColorRgb8Value());
+        return;
+      case COLOR_ARGB4_VALUE:
+        writeValue(out, TYPE_INT_COLOR_ARGB4, primitive.getColorArgb4Value());
+        return;
+      case COLOR_RGB4_VALUE:
+        writeValue(out, TYPE_INT_COLOR_RGB4, primitive.getColorRgb4Value());
+        return;
+      default:
+        throw new UnsupportedResourceEncodingException("Unsupported primitive: %s", primitive);
+    }
+  }
+
+  /** Writes a {@code Res_value} with the given data type and data. */
+  static void writeValue(ChunkBuffer out, int dataType, int data) {
+    out.writeShort(RES_VALUE_SIZE);
+    out.writeByte(0);
+    out.writeByte(dataType);
+    out.writeInt(data);
+  }
+
+  private ResValues() {}
+}
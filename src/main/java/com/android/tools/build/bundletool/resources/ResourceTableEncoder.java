@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ARRAY_KEY_BASE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ATTR_FEW;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ATTR_FLAGS_FORMAT;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ATTR_MANY;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ATTR_MAX;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ATTR_MIN;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ATTR_ONE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ATTR_OTHER;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ATTR_TWO;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ATTR_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ATTR_ZERO;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ENTRY_FLAG_COMPLEX;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ENTRY_FLAG_PUBLIC;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ENTRY_FLAG_WEAK;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ENTRY_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.MAP_ENTRY_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.NO_ENTRY;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.PACKAGE_HEADER_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_TABLE_PACKAGE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_TABLE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_TABLE_TYPE_SPEC_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_TABLE_TYPE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.SPEC_PUBLIC;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TABLE_HEADER_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_HEADER_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_INT_DEC;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_INT_HEX;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_NULL;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_SPEC_HEADER_SIZE;
+import static java.util.Comparator.comparingInt;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.Resources.Array;
+import com.android.aapt.Resources.Attribute;
+import com.android.aapt.Resources.CompoundValue;
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.Entry;
+import com.android.aapt.Resources.Item;
+import com.android.aapt.Resources.Package;
+import com.android.aapt.Resources.Plural;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.aapt.Resources.Style;
+import com.android.aapt.Resources.Styleable;
+import com.android.aapt.Resources.Type;
+import com.android.aapt.Resources.Value;
+import com.android.aapt.Resources.Visibility;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Encodes a proto {@link ResourceTable} into the binary {@code resources.arsc} format.
+ *
+ * <p>Types are written densely (one offset per entry ID) with one {@code ResTable_type} chunk per
+ * distinct configuration, in the order the configurations first appear in the proto.
+ */
+public final class ResourceTableEncoder {
+
+  private static final int MAX_PACKAGE_NAME_LENGTH = 128;
+
+  private static final String STYLEABLE_TYPE_NAME = "styleable";
+
+  public byte[] encode(ResourceTable table) {
+    StringPoolBuilder valuePool = new StringPoolBuilder(/* utf8= */ true);
+    for (Package pkg : table.getPackageList()) {
+      for (Type type : pkg.getTypeList()) {
+        for (Entry entry : type.getEntryList()) {
+          for (ConfigValue configValue : entry.getConfigValueList()) {
+            collectStrings(configValue.getValue(), valuePool);
+          }
+        }
+      }
+    }
+    valuePool.freeze();
+
+    ChunkBuffer out = new ChunkBuffer();
+    int tableChunk = out.startChunk(RES_TABLE_TYPE, TABLE_HEADER_SIZE);
+    out.writeInt(table.getPackageCount());
+    valuePool.writeTo(out);
+    for (Package pkg : table.getPackageList()) {
+      writePackage(pkg, valuePool, out);
+    }
+    out.endChunk(tableChunk);
+    return out.toByteArray();
+  }
+
+  private static void collectStrings(Value value, StringPoolBuilder pool) {
+    switch (value.getValueCase()) {
+      case ITEM:
+        ResValues.collectStrings(value.getItem(), pool, /* keepStyles= */ true);
+        break;
+      case COMPOUND_VALUE:
+        CompoundValue compoundValue = value.getCompoundValue();
+        switch (compoundValue.getValueCase()) {
+          case STYLE:
+            compoundValue.getStyle().getEntryList().stream()
+                .map(Style.Entry::getItem)
+                .forEach(item -> ResValues.collectStrings(item, pool, /* keepStyles= */ true));
+            break;
+          case ARRAY:
+            compoundValue.getArray().getElementList().stream()
+                .map(Array.Element::getItem)
+                .forEach(item -> ResValues.collectStrings(item, pool, /* keepStyles= */ true));
+            break;
+          case PLURAL:
+            compoundValue.getPlural().getEntryList().stream()
+                .map(Plural.Entry::getItem)
+                .forEach(item -> ResValues.collectStrings(item, pool, /* keepStyles= */ true));
+            break;
+          default:
+            break;
+        }
+        break;
+      case VALUE_NOT_SET:
+        break;
+    }
+  }
+
+  private static void writePackage(Package pkg, StringPoolBuilder valuePool, ChunkBuffer out) {
+    if (!pkg.hasPackageId()) {
+      throw new UnsupportedResourceEncodingException(
+          "Package '%s' has no ID.", pkg.getPackageName());
+    }
+    if (pkg.getPackageName().length() >= MAX_PACKAGE_NAME_LENGTH) {
+      throw new UnsupportedResourceEncodingException(
+          "Package name '%s' is too long.", pkg.getPackageName());
+    }
+
+    // Types are indexed by their ID in the type string pool, so gaps must be filled.
+    TreeMap<Integer, Type> typesById = new TreeMap<>();
+    for (Type type : pkg.getTypeList()) {
+      if (!type.hasTypeId() || typesById.put(type.getTypeId().getId(), type) != null) {
+        throw new UnsupportedResourceEncodingException(
+            "Type '%s' has a missing or duplicate ID.", type.getName());
+      }
+    }
+    // Styleables only exist for R.java: as aapt2 does, their ID is a gap in the type string pool,
+    // and they have neither keys nor type chunks.
+    typesById.values().removeIf(type -> type.getName().equals(STYLEABLE_TYPE_NAME));
+    StringPoolBuilder typePool = new StringPoolBuilder(/* utf8= */ false);
+    int maxTypeId = typesById.isEmpty() ? 0 : typesById.lastKey();
+    for (int typeId = 1; typeId <= maxTypeId; typeId++) {
+      typePool.add(typesById.containsKey(typeId) ? typesById.get(typeId).getName() : "?" + typeId);
+    }
+    StringPoolBuilder keyPool = new StringPoolBuilder(/* utf8= */ true);
+    typesById.values().stream()
+        .flatMap(type -> type.getEntryList().stream())
+        .forEach(entry -> keyPool.add(entry.getName()));
+    typePool.freeze();
+    keyPool.freeze();
+
+    int packageChunk = out.startChunk(RES_TABLE_PACKAGE_TYPE, PACKAGE_HEADER_SIZE);
+    out.writeInt(pkg.getPackageId().getId());
+    String name = pkg.getPackageName();
+    for (int i = 0; i < MAX_PACKAGE_NAME_LENGTH; i++) {
+      out.writeShort(i < name.length() ? name.charAt(i) : 0);
+    }
+    int typeStringsOffset = out.size();
+    out.writeInt(0); // typeStrings, patched below.
+    out.writeInt(0); // lastPublicType
+    int keyStringsOffset = out.size();
+    out.writeInt(0); // keyStrings, patched below.
+    out.writeInt(0); // lastPublicKey
+    out.writeInt(0); // typeIdOffset
+
+    out.putInt(typeStringsOffset, out.size() - packageChunk);
+    typePool.writeTo(out);
+    out.putInt(keyStringsOffset, out.size() - packageChunk);
+    keyPool.writeTo(out);
+
+    for (Type type : typesById.values()) {
+      writeType(type, valuePool, keyPool, out);
+    }
+    out.endChunk(packageChunk);
+  }
+
+  private static void writeType(
+      Type type, StringPoolBuilder valuePool, StringPoolBuilder keyPool, ChunkBuffer out) {
+    int typeId = type.getTypeId().getId();
+    TreeMap<Integer, Entry> entriesById = new TreeMap<>();
+    for (Entry entry : type.getEntryList()) {
+      if (!entry.hasEntryId() || entriesById.put(entry.getEntryId().getId(), entry) != null) {
+        throw new UnsupportedResourceEncodingException(
+            "Entry '%s/%s' has a missing or duplicate ID.", type.getName(), entry.getName());
+      }
+    }
+    int entryCount = entriesById.isEmpty() ? 0 : entriesById.lastKey() + 1;
+
+    // Group the values by configuration, preserving the order of first appearance.
+    Map<Configuration, Map<Integer, ConfigValue>> valuesByConfig = new LinkedHashMap<>();
+    int[] specFlags = new int[entryCount];
+    for (Entry entry : entriesById.values()) {
+      int entryId = entry.getEntryId().getId();
+      if (entry.getVisibility().getLevel().equals(Visibility.Level.PUBLIC)) {
+        specFlags[entryId] |= SPEC_PUBLIC;
+      }
+      for (ConfigValue configValue : entry.getConfigValueList()) {
+        specFlags[entryId] |= ResConfigEncoder.diffFromDefault(configValue.getConfig());
+        valuesByConfig
+            .computeIfAbsent(configValue.getConfig(), unused -> new TreeMap<>())
+            .put(entryId, configValue);
+      }
+    }
+
+    int specChunk = out.startChunk(RES_TABLE_TYPE_SPEC_TYPE, TYPE_SPEC_HEADER_SIZE);
+    out.writeByte(typeId);
+    out.writeByte(0); // res0
+    out.writeShort(0); // res1
+    out.writeInt(entryCount);
+    for (int flags : specFlags) {
+      out.writeInt(flags);
+    }
+    out.endChunk(specChunk);
+
+    for (Map.Entry<Configuration, Map<Integer, ConfigValue>> configEntry :
+        valuesByConfig.entrySet()) {
+      int typeChunk = out.startChunk(RES_TABLE_TYPE_TYPE, TYPE_HEADER_SIZE);
+      out.writeByte(typeId);
+      out.writeByte(0); // flags
+      out.writeShort(0); // reserved
+      out.writeInt(entryCount);
+      out.writeInt(TYPE_HEADER_SIZE + 4 * entryCount); // entriesStart
+      ResConfigEncoder.write(configEntry.getKey(), out);
+
+      ChunkBuffer entryData = new ChunkBuffer();
+      int[] offsets = new int[entryCount];
+      Arrays.fill(offsets, NO_ENTRY);
+      for (Map.Entry<Integer, ConfigValue> valueEntry : configEntry.getValue().entrySet()) {
+        Entry entry = entriesById.get(valueEntry.getKey());
+        offsets[valueEntry.getKey()] = entryData.size();
+        writeEntry(entry, valueEntry.getValue().getValue(), valuePool, keyPool, entryData);
+      }
+      for (int offset : offsets) {
+        out.writeInt(offset);
+      }
+      out.writeBuffer(entryData);
+      out.endChunk(typeChunk);
+    }
+  }
+
+  private static void writeEntry(
+      Entry entry,
+      Value value,
+      StringPoolBuilder valuePool,
+      StringPoolBuilder keyPool,
+      ChunkBuffer out) {
+    int flags = 0;
+    if (entry.getVisibility().getLevel().equals(Visibility.Level.PUBLIC)) {
+      flags |= ENTRY_FLAG_PUBLIC;
+    }
+    if (value.getWeak()) {
+      flags |= ENTRY_FLAG_WEAK;
+    }
+    int key = keyPool.indexOf(entry.getName());
+
+    switch (value.getValueCase()) {
+      case ITEM:
+        out.writeShort(ENTRY_SIZE);
+        out.writeShort(flags);
+        out.writeInt(key);
+        ResValues.writeItem(value.getItem(), valuePool, /* keepStyles= */ true, out);
+        return;
+      case COMPOUND_VALUE:
+        writeMapEntry(value.getCompoundValue(), flags, key, valuePool, out);
+        return;
+      case VALUE_NOT_SET:
+        break;
+    }
+    throw new UnsupportedResourceEncodingException(
+        "Entry '%s' has a value without content.", entry.getName());
+  }
+
+  private static void writeMapEntry(
+      CompoundValue compoundValue,
+      int flags,
+      int key,
+      StringPoolBuilder valuePool,
+      ChunkBuffer out) {
+    int parent = 0;
+    List<MapItem> items = new ArrayList<>();
+    switch (compoundValue.getValueCase()) {
+      case ATTR:
+        Attribute attribute = compoundValue.getAttr();
+        items.add(MapItem.ofPrimitive(ATTR_TYPE, TYPE_INT_DEC, attribute.getFormatFlags()));
+        if (attribute.getMinInt() != Integer.MIN_VALUE) {
+          items.add(MapItem.ofPrimitive(ATTR_MIN, TYPE_INT_DEC, attribute.getMinInt()));
+        }
+        if (attribute.getMaxInt() != Integer.MAX_VALUE) {
+          items.add(MapItem.ofPrimitive(ATTR_MAX, TYPE_INT_DEC, attribute.getMaxInt()));
+        }
+        int symbolType =
+            (attribute.getFormatFlags() & ATTR_FLAGS_FORMAT) != 0 ? TYPE_INT_HEX : TYPE_INT_DEC;
+        for (Attribute.Symbol symbol : attribute.getSymbolList()) {
+          items.add(
+              MapItem.ofPrimitive(symbol.getName().getId(), symbolType, symbol.getValue()));
+        }
+        break;
+      case STYLE:
+        Style style = compoundValue.getStyle();
+        parent = style.getParent().getId();
+        style.getEntryList().stream()
+            .sorted(comparingInt(styleEntry -> styleEntry.getKey().getId()))
+            .forEach(
+                styleEntry ->
+                    items.add(MapItem.ofItem(styleEntry.getKey().getId(), styleEntry.getItem())));
+        break;
+      case STYLEABLE:
+        for (Styleable.Entry styleableEntry : compoundValue.getStyleable().getEntryList()) {
+          items.add(MapItem.ofPrimitive(styleableEntry.getAttr().getId(), TYPE_NULL, 0));
+        }
+        break;
+      case ARRAY:
+        List<Array.Element> elements = compoundValue.getArray().getElementList();
+        for (int i = 0; i < elements.size(); i++) {
+          items.add(MapItem.ofItem(ARRAY_KEY_BASE + i, elements.get(i).getItem()));
+        }
+        break;
+      case PLURAL:
+        for (Plural.Entry pluralEntry : compoundValue.getPlural().getEntryList()) {
+          items.add(MapItem.ofItem(pluralKey(pluralEntry.getArity()), pluralEntry.getItem()));
+        }
+        break;
+      case VALUE_NOT_SET:
+        throw new UnsupportedResourceEncodingException("Compound value without content.");
+    }
+
+    out.writeShort(MAP_ENTRY_SIZE);
+    out.writeShort(flags | ENTRY_FLAG_COMPLEX);
+    out.writeInt(key);
+    out.writeInt(parent);
+    out.writeInt(items.size());
+    for (MapItem item : items) {
+      out.writeInt(item.name);
+      if (item.item != null) {
+        ResValues.writeItem(item.item, valuePool, /* keepStyles= */ true, out);
+      } else {
+        ResValues.writeValue(out, item.dataType, item.data);
+      }
+    }
+  }
+
+  private static int pluralKey(Plural.Arity arity) {
+    switch (arity) {
+      case ZERO:
+        return ATTR_ZERO;
+      case ONE:
+        return ATTR_ONE;
+      case TWO:
+        return ATTR_TWO;
+      case FEW:
+        return ATTR_FEW;
+      case MANY:
+        return ATTR_MANY;
+      case OTHER:
+        return ATTR_OTHER;
+      default:
+        throw new UnsupportedResourceEncodingException("Unsupported plural arity: %s", arity);
+    }
+  }
+
+  /** A {@code ResTable_map} entry: either a proto item or a raw primitive value. */
+  private static final class MapItem {
+    final int name;
+    final Item item;
+    final int dataType;
+    final int data;
+
+    private MapItem(int name, Item item, int dataType, int data) {
+      this.name = name;
+      this.item = item;
+      this.dataType = dataType;
+      this.data = data;
+    }
+
+    static MapItem ofItem(int name, Item item) {
+      return new MapItem(name, item, 0, 0);
+    }
+
+    static MapItem ofPrimitive(int name, int dataType, int data) {
+      return new MapItem(name, /* item= */ null, dataType, data);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_STRING_POOL_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.STRING_POOL_HEADER_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.STRING_POOL_UTF8_FLAG;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.aapt.Resources.StyledString;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a binary {@code ResStringPool} chunk.
+ *
+ * <p>Strings are registered in a first pass, then the pool is frozen and indices can be looked up
+ * while the rest of the binary structure is written. The binary format requires styled strings to
+ * come first in the pool, followed by the strings added with {@link #addFirst(String)} and finally
+ * all other strings in insertion order.
+ */
+final class StringPoolBuilder {
+
+  private static final int SPAN_END = 0xFFFFFFFF;
+  private static final int MAX_UTF8_LENGTH = 0x7FFF;
+
+  private final boolean utf8;
+  private final Map<StyledString, Integer> styledStrings = new LinkedHashMap<>();
+  private final List<String> firstStrings = new ArrayList<>();
+  private final Map<String, Integer> plainStrings = new LinkedHashMap<>();
+  private boolean frozen = false;
+
+  StringPoolBuilder(boolean utf8) {
+    this.utf8 = utf8;
+  }
+
+  /** Registers a plain string. Identical strings share the same index. */
+  void add(String value) {
+    checkState(!frozen, "String pool is already frozen.");
+    plainStrings.putIfAbsent(value, -1);
+  }
+
+  /** Registers a styled string together with the names of its spans. */
+  void addStyled(StyledString value) {
+    checkState(!frozen, "String pool is already frozen.");
+    styledStrings.putIfAbsent(value, -1);
+    value.getSpanList().forEach(span -> add(span.getTag()));
+  }
+
+  /**
+   * Adds a string that is never de-duplicated and is placed before all plain strings.
+   *
+   * @return the final index of the string in the pool
+   */
+  int addFirst(String value) {
+    checkState(!frozen, "String pool is already frozen.");
+    checkState(styledStrings.isEmpty(), "Cannot mix styled strings and leading strings.");
+    firstStrings.add(value);
+    return firstStrings.size() - 1;
+  }
+
+  /** Assigns the final indices. No string can be added afterwards. */
+  void freeze() {
+    if (frozen) {
+      return;
+    }
+    int index = 0;
+    for (Map.Entry<StyledString, Integer> entry : styledStrings.entrySet()) {
+      entry.setValue(index++);
+    }
+    index += firstStrings.size();
+    for (Map.Entry<String, Integer> entry : plainStrings.entrySet()) {
+      entry.setValue(index++);
+    }
+    frozen = true;
+  }
+
+  int indexOf(String value) {
+    checkState(frozen, "String pool must be frozen before looking up indices.");
+    Integer index = plainStrings.get(value);
+    checkArgument(index != null, "String '%s' was not added to the pool.", value);
+    return index;
+  }
+
+  int indexOfStyled(StyledString value) {
+    checkState(frozen, "String pool must be frozen before looking up indices.");
+    Integer index = styledStrings.get(value);
+    checkArgument(index != null, "Styled string '%s' was not added to the pool.", value);
+    return index;
+  }
+
+  int size() {
+    return styledStrings.size() + firstStrings.size() + plainStrings.size();
+  }
+
+  /** Writes the string pool chunk to the given buffer. */
+  void writeTo(ChunkBuffer out) {
+    freeze();
+    List<String> strings = new ArrayList<>(size());
+    styledStrings.keySet().forEach(styled -> strings.add(styled.getValue()));
+    strings.addAll(firstStrings);
+    strings.addAll(plainStrings.keySet());
+
+    ChunkBuffer stringData = new ChunkBuffer();
+    int[] stringOffsets = new int[strings.size()];
+    for (int i = 0; i < strings.size(); i++) {
+      stringOffsets[i] = stringData.size();
+      if (utf8) {
+        writeUtf8String(stringData, strings.get(i));
+      } else {
+        writeUtf16String(stringData, strings.get(i));
+      }
+    }
+    stringData.align4();
+
+    ChunkBuffer styleData = new ChunkBuffer();
+    int[] styleOffsets = new int[styledStrings.size()];
+    int styleIndex = 0;
+    for (StyledString styled : styledStrings.keySet()) {
+      styleOffsets[styleIndex++] = styleData.size();
+      for (StyledString.Span span : styled.getSpanList()) {
+        styleData.writeInt(indexOf(span.getTag()));
+        styleData.writeInt(span.getFirstChar());
+        styleData.writeInt(span.getLastChar());
+      }
+      styleData.writeInt(SPAN_END);
+    }
+    if (!styledStrings.isEmpty()) {
+      // The style section is terminated by two additional span end markers.
+      styleData.writeInt(SPAN_END);
+      styleData.writeInt(SPAN_END);
+    }
+
+    int stringsStart = STRING_POOL_HEADER_SIZE + 4 * (stringOffsets.length + styleOffsets.length);
+    int chunkStart = out.startChunk(RES_STRING_POOL_TYPE, STRING_POOL_HEADER_SIZE);
+    out.writeInt(strings.size());
+    out.writeInt(styleOffsets.length);
+    out.writeInt(utf8 ? STRING_POOL_UTF8_FLAG : 0);
+    out.writeInt(strings.isEmpty() ? 0 : stringsStart);
+    out.writeInt(styleOffsets.length == 0 ? 0 : stringsStart + stringData.size());
+    for (int offset : stringOffsets) {
+      out.writeInt(offset);
+    }
+    for (int offset : styleOffsets) {
+      out.writeInt(offset);
+    }
+    out.writeBuffer(stringData);
+    out.writeBuffer(styleData);
+    out.endChunk(chunkStart);
+  }
+
+  private static void writeUtf8String(ChunkBuffer out, String value) {
+    byte[] encoded = value.getBytes(UTF_8);
+    writeUtf8Length(out, value.length());
+    writeUtf8Length(out, encoded.length);
+    out.writeBytes(encoded);
+    out.writeByte(0);
+  }
+
+  private static void writeUtf8Length(ChunkBuffer out, int length) {
+    if (length > MAX_UTF8_LENGTH) {
+      // The UTF-8 format has no longer length form: leave it to aapt2 to handle such strings.
+      throw new UnsupportedResourceEncodingException(
+          "String too long for a UTF-8 string pool: %s.", length);
+    }
+    if (length > 0x7F) {
+      out.writeByte(0x80 | (length >> 8));
+    }
+    out.writeByte(length & 0xFF);
+  }
+
+  private static void writeUtf16String(ChunkBuffer out, String value) {
+    int length = value.length();
+    checkArgument(length <= 0x7FFFFFFF, "String too long for the string pool: %s.", length);
+    if (length > 0x7FFF) {
+      out.writeShort(0x8000 | (length >> 16));
+    }
+    out.writeShort(length & 0xFFFF);
+    for (int i = 0; i < length; i++) {
+      out.writeShort(value.charAt(i));
+    }
+    out.writeShort(0);
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import com.google.errorprone.annotations.FormatMethod;
+import com.google.errorprone.annotations.FormatString;
+
+/**
+ * Thrown when a proto resource cannot be encoded in-process.
+ *
+ * <p>Callers are expected to fall back to the aapt2 binary when this happens.
+ */
+public class UnsupportedResourceEncodingException extends RuntimeException {
+
+  @FormatMethod
+  UnsupportedResourceEncodingException(@FormatString String message, Object... args) {
+    super(String.format(message, args));
+  }
+}
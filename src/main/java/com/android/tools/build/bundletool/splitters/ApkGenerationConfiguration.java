@@ -16,9 +16,11 @@
 
 package com.android.tools.build.bundletool.splitters;
 
+import com.android.bundle.Devices.DeviceSpec;
 import com.android.tools.build.bundletool.model.OptimizationDimension;
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
 
 /** Configuration to be passed to Module Splitters and Variant generators. */
 @AutoValue
@@ -32,6 +34,13 @@ public abstract class ApkGenerationConfiguration {
 
   public abstract boolean getEnableDexCompressionSplitter();
 
+  /**
+   * Device for which the APKs are generated, if any.
+   *
+   * <p>When set, only the variants and the splits that may be served to this device are generated.
+   */
+  public abstract Optional<DeviceSpec> getDeviceSpec();
+
   public static ApkGenerationConfiguration.Builder builder() {
     return new AutoValue_ApkGenerationConfiguration.Builder()
         .setForInstantAppVariants(false)
@@ -58,6 +67,8 @@ public abstract class ApkGenerationConfiguration {
 
     public abstract Builder setEnableDexCompressionSplitter(boolean enableDexCompressionSplitter);
 
+    public abstract Builder setDeviceSpec(DeviceSpec deviceSpec);
+
     public abstract ApkGenerationConfiguration build();
   }
 
@@ -27,6 +27,7 @@ import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import com.android.bundle.Targeting.ApkTargeting;
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.mergers.D8DexMerger;
+import com.android.tools.build.bundletool.mergers.DexMerger;
 import com.android.tools.build.bundletool.mergers.ModuleSplitsToShardMerger;
 import com.android.tools.build.bundletool.mergers.SameTargetingMerger;
 import com.android.tools.build.bundletool.model.BundleMetadata;
@@ -38,6 +39,8 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Set;
@@ -54,10 +57,35 @@ public class BundleSharder {
 
   private final Path globalTempDir;
   private final Version bundleVersion;
+  private final ListeningExecutorService executorService;
+  private final DexMerger dexMerger;
 
   public BundleSharder(Path globalTempDir, Version bundleVersion) {
+    this(globalTempDir, bundleVersion, MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * Same as {@link #BundleSharder(Path, Version)}, but the shards are fused concurrently on the
+   * given executor.
+   */
+  public BundleSharder(
+      Path globalTempDir, Version bundleVersion, ListeningExecutorService executorService) {
+    this(globalTempDir, bundleVersion, executorService, new D8DexMerger());
+  }
+
+  /**
+   * Same as {@link #BundleSharder(Path, Version, ListeningExecutorService)}, but dex files are
+   * merged with the given {@link DexMerger}.
+   */
+  public BundleSharder(
+      Path globalTempDir,
+      Version bundleVersion,
+      ListeningExecutorService executorService,
+      DexMerger dexMerger) {
     this.globalTempDir = globalTempDir;
     this.bundleVersion = bundleVersion;
+    this.executorService = executorService;
+    this.dexMerger = dexMerger;
   }
 
   /**
@@ -99,7 +127,7 @@ public class BundleSharder {
     ImmutableList<ImmutableList<ModuleSplit>> unfusedShards = groupSplitsToShards(moduleSplits);
 
     // Fuse each group of splits into a sharded APK.
-    return new ModuleSplitsToShardMerger(new D8DexMerger(), globalTempDir)
+    return new ModuleSplitsToShardMerger(dexMerger, globalTempDir, executorService)
         .merge(unfusedShards, bundleMetadata);
   }
 
@@ -21,9 +21,9 @@ import static com.android.tools.build.bundletool.utils.ResourcesUtils.convertLoc
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.android.aapt.Resources.ConfigValue;
-import com.android.aapt.Resources.Entry;
 import com.android.aapt.Resources.ResourceTable;
 import com.android.bundle.Targeting.LanguageTargeting;
+import com.android.tools.build.bundletool.model.IndexedResourceTable;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.utils.ResourcesUtils;
@@ -33,7 +33,6 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 
 /**
  * Splits the module resources by languages.
@@ -124,10 +123,12 @@ public class LanguageResourcesSplitter extends SplitterForOneTargetingDimension
       ResourceTable table, boolean hasNonResourceEntries) {
     ImmutableSet<String> languages = ResourcesUtils.getAllLanguages(table);
 
+    IndexedResourceTable indexedTable = IndexedResourceTable.create(table);
     ImmutableMap.Builder<String, ResourceTable> resourceTableByLanguage =
         new ImmutableMap.Builder<>();
     for (String language : languages) {
-      resourceTableByLanguage.put(language, filterByLanguage(table, language));
+      resourceTableByLanguage.put(
+          language, filterByLanguage(indexedTable, language).toResourceTable());
     }
 
     // If there are no resources with the default language (rare and not recommended) create an
@@ -141,31 +142,29 @@ public class LanguageResourcesSplitter extends SplitterForOneTargetingDimension
     return resourceTableByLanguage.build();
   }
 
-  private static ResourceTable filterByLanguage(ResourceTable input, String language) {
-    return ResourcesUtils.filterResourceTable(
-        input,
+  private static IndexedResourceTable filterByLanguage(
+      IndexedResourceTable input, String language) {
+    return input.filter(
         /* removeTypePredicate= */ Predicates.alwaysFalse(),
-        /* configValuesFilterFn= */ entry -> filterEntryForLanguage(entry, language));
+        /* configValuesFilter= */ (entry, configValues) ->
+            filterConfigValuesForLanguage(configValues, language));
   }
 
   /**
    * Only leaves the language specific config values relevant for the given language.
    *
-   * @param initialEntry the entry to be updated
+   * @param configValues the config values of the entry
    * @param targetLanguage the desired language to match
-   * @return the entry containing only config values specific to the given language
+   * @return the config values specific to the given language
    */
-  private static Entry filterEntryForLanguage(Entry initialEntry, String targetLanguage) {
-    Iterable<ConfigValue> filteredConfigValues =
-        Iterables.filter(
-            initialEntry.getConfigValueList(),
+  private static ImmutableList<ConfigValue> filterConfigValuesForLanguage(
+      ImmutableList<ConfigValue> configValues, String targetLanguage) {
+    return configValues
+        .stream()
+        .filter(
             configValue ->
                 convertLocaleToLanguage(configValue.getConfig().getLocale())
-                    .equals(targetLanguage));
-    return initialEntry
-        .toBuilder()
-        .clearConfigValue()
-        .addAllConfigValue(filteredConfigValues)
-        .build();
+                    .equals(targetLanguage))
+        .collect(toImmutableList());
   }
 }
@@ -26,6 +26,7 @@ import com.android.bundle.Targeting.ApkTargeting;
 import com.android.bundle.Targeting.SdkVersion;
 import com.android.bundle.Targeting.SdkVersionTargeting;
 import com.android.bundle.Targeting.VariantTargeting;
+import com.android.tools.build.bundletool.device.ApkMatcher;
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.mergers.SameTargetingMerger;
 import com.android.tools.build.bundletool.model.AndroidManifest;
@@ -42,7 +43,10 @@ import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
 import com.google.protobuf.Int32Value;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
@@ -58,6 +62,7 @@ public class ModuleSplitter {
   private final Version bundleVersion;
   private final ApkGenerationConfiguration apkGenerationConfiguration;
   private final VariantTargeting variantTargeting;
+  private final Optional<ApkMatcher> deviceApkMatcher;
 
   @VisibleForTesting
   ModuleSplitter(BundleModule module, Version bundleVersion) {
@@ -77,6 +82,7 @@ public class ModuleSplitter {
     this.bundleVersion = checkNotNull(bundleVersion);
     this.apkGenerationConfiguration = checkNotNull(apkGenerationConfiguration);
     this.variantTargeting = checkNotNull(variantTargeting);
+    this.deviceApkMatcher = apkGenerationConfiguration.getDeviceSpec().map(ApkMatcher::new);
   }
 
   public ImmutableList<ModuleSplit> splitModule() {
@@ -109,24 +115,48 @@ public class ModuleSplitter {
 
     ImmutableList.Builder<ModuleSplit> splits = ImmutableList.builder();
 
+    // The splits that can't be served to the device are dropped, but their master manifest
+    // mutators still apply to the master split.
+    List<ManifestMutator> droppedSplitsMutators = new ArrayList<>();
+    Consumer<ModuleSplit> droppedSplitConsumer =
+        droppedSplit -> droppedSplitsMutators.addAll(droppedSplit.getMasterManifestMutators());
+
     // Resources splits.
     SplittingPipeline resourcesPipeline = createResourcesSplittingPipeline();
-    splits.addAll(resourcesPipeline.split(ModuleSplit.forResources(module, variantTargeting)));
+    splits.addAll(
+        resourcesPipeline.split(
+            ModuleSplit.forResources(module, variantTargeting),
+            this::mayMatchDevice,
+            droppedSplitConsumer));
 
     // Native libraries splits.
     SplittingPipeline nativePipeline = createNativeLibrariesSplittingPipeline();
-    splits.addAll(nativePipeline.split(ModuleSplit.forNativeLibraries(module, variantTargeting)));
+    splits.addAll(
+        nativePipeline.split(
+            ModuleSplit.forNativeLibraries(module, variantTargeting),
+            this::mayMatchDevice,
+            droppedSplitConsumer));
 
     // Assets splits.
     SplittingPipeline assetsPipeline = createAssetsSplittingPipeline();
-    splits.addAll(assetsPipeline.split(ModuleSplit.forAssets(module, variantTargeting)));
+    splits.addAll(
+        assetsPipeline.split(
+            ModuleSplit.forAssets(module, variantTargeting),
+            this::mayMatchDevice,
+            droppedSplitConsumer));
 
     // Dex Files.
     SplittingPipeline dexPipeline = createDexSplittingPipeline();
-    splits.addAll(dexPipeline.split(ModuleSplit.forDex(module, variantTargeting)));
+    splits.addAll(
+        dexPipeline.split(
+            ModuleSplit.forDex(module, variantTargeting),
+            this::mayMatchDevice,
+            droppedSplitConsumer));
 
     // Other files.
-    splits.add(ModuleSplit.forRoot(module, variantTargeting));
+    ModuleSplit.Builder rootSplit = ModuleSplit.forRoot(module, variantTargeting).toBuilder();
+    droppedSplitsMutators.forEach(rootSplit::addMasterManifestMutator);
+    splits.add(rootSplit.build());
 
     // Merging and making a master split.
     ImmutableList<ModuleSplit> mergedSplits =
@@ -142,6 +172,24 @@ public class ModuleSplitter {
     return mergedSplits;
   }
 
+  /**
+   * Returns whether the split, or any split generated from it, may be served to the device for
+   * which the APKs are generated. Always true if the APKs are not generated for a specific device.
+   *
+   * <p>The language targeting is ignored: the splits.xml injected in the base master split lists
+   * the language splits of all languages, so they must be generated even for a specific device.
+   */
+  private boolean mayMatchDevice(ModuleSplit split) {
+    if (!deviceApkMatcher.isPresent()) {
+      return true;
+    }
+    return deviceApkMatcher
+        .get()
+        .matchesTargeting(
+            split.getVariantTargeting(),
+            split.getApkTargeting().toBuilder().clearLanguageTargeting().build());
+  }
+
   /* Writes the final manifest that reflects the Split ID. */
   public ModuleSplit writeSplitIdInManifest(ModuleSplit moduleSplit) {
     String resolvedSuffix =
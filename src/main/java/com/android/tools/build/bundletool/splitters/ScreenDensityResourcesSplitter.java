@@ -19,32 +19,29 @@ package com.android.tools.build.bundletool.splitters;
 import static com.android.tools.build.bundletool.model.ManifestMutator.withSplitsRequired;
 import static com.android.tools.build.bundletool.utils.ResourcesUtils.DEFAULT_DENSITY_VALUE;
 import static com.android.tools.build.bundletool.utils.ResourcesUtils.MIPMAP_TYPE;
-import static com.google.common.base.Preconditions.checkArgument;
-import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.ImmutableList.toImmutableList;
-import static java.util.stream.Collectors.groupingBy;
 
 import com.android.aapt.ConfigurationOuterClass.Configuration;
 import com.android.aapt.Resources.ConfigValue;
-import com.android.aapt.Resources.Entry;
-import com.android.aapt.Resources.Package;
 import com.android.aapt.Resources.ResourceTable;
 import com.android.aapt.Resources.Type;
 import com.android.bundle.Targeting.ScreenDensity;
 import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
 import com.android.bundle.Targeting.ScreenDensityTargeting;
+import com.android.tools.build.bundletool.model.IndexedResourceTable;
+import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleSplit;
-import com.android.tools.build.bundletool.model.PackageTypeEntry;
+import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.targeting.ScreenDensitySelector;
-import com.android.tools.build.bundletool.utils.ResourcesUtils;
 import com.android.tools.build.bundletool.version.Version;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -86,9 +83,22 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
       return ImmutableList.of(split);
     }
 
+    // One partition per density bucket, followed by the partition of the default split.
+    ImmutableList<DensityAlias> buckets = densityBuckets.asList();
+    Map<ImmutableList<Integer>, ImmutableList<ImmutableSet<Integer>>> selectionsByDensities =
+        new HashMap<>();
+    ImmutableList<IndexedResourceTable> partitions =
+        IndexedResourceTable.create(resourceTable.get())
+            .partition(
+                buckets.size() + 1,
+                (type, entry, configValues) ->
+                    partitionConfigValues(type, configValues, selectionsByDensities));
+    ResourceEntriesIndex resourceEntries = new ResourceEntriesIndex(split.getEntries());
+
     ImmutableList.Builder<ModuleSplit> splitsBuilder = new ImmutableList.Builder<>();
-    for (DensityAlias density : densityBuckets) {
-      ResourceTable optimizedTable = filterResourceTableForDensity(resourceTable.get(), density);
+    for (int i = 0; i < buckets.size(); i++) {
+      DensityAlias density = buckets.get(i);
+      ResourceTable optimizedTable = partitions.get(i).toResourceTable();
       // Don't generate empty splits.
       if (optimizedTable.equals(ResourceTable.getDefaultInstance())) {
         continue;
@@ -110,12 +120,19 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
                       .build())
               .setMasterSplit(false)
               .addMasterManifestMutator(withSplitsRequired(true))
-              .setEntries(ModuleSplit.filterResourceEntries(split.getEntries(), optimizedTable))
+              .setEntries(resourceEntries.getReferencedEntries(partitions.get(i)))
               .setResourceTable(optimizedTable);
       splitsBuilder.add(moduleSplitBuilder.build());
     }
 
-    ModuleSplit defaultResourcesSplit = getDefaultResourcesSplit(split, splitsBuilder.build());
+    // Creates resources split with no extra targeting with all other unclaimed resource entries.
+    IndexedResourceTable defaultPartition = partitions.get(buckets.size());
+    ModuleSplit defaultResourcesSplit =
+        split
+            .toBuilder()
+            .setEntries(resourceEntries.getReferencedEntries(defaultPartition))
+            .setResourceTable(defaultPartition.toResourceTable())
+            .build();
     return splitsBuilder.add(defaultResourcesSplit).build();
   }
 
@@ -123,134 +140,126 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
     return ScreenDensity.newBuilder().setDensityAlias(alias).build();
   }
 
-  /** Creates resources split with no extra targeting with all other unclaimed resource entries. */
-  private ModuleSplit getDefaultResourcesSplit(
-      ModuleSplit inputSplit, ImmutableCollection<ModuleSplit> densitySplits) {
-    ResourceTable defaultSplitTable =
-        getResourceTableForDefaultSplit(inputSplit, getClaimedConfigs(densitySplits));
-    return inputSplit
-        .toBuilder()
-        .setEntries(ModuleSplit.filterResourceEntries(inputSplit.getEntries(), defaultSplitTable))
-        .setResourceTable(defaultSplitTable)
-        .build();
-  }
+  /**
+   * Assigns the config values of an entry to the density buckets they are optimized for, and the
+   * other ones to the default split.
+   *
+   * <p>As any other resource qualifiers can be requested when delivering resources, the algorithm
+   * chooses the best match only within group of resources differing by density only.
+   *
+   * @param selectionsByDensities memoized result of {@link #selectForEachBucket} for groups of
+   *     config values with the given densities
+   * @return for each density bucket then for the default split, the assigned config values
+   */
+  private ImmutableList<ImmutableList<ConfigValue>> partitionConfigValues(
+      Type type,
+      ImmutableList<ConfigValue> configValues,
+      Map<ImmutableList<Integer>, ImmutableList<ImmutableSet<Integer>>> selectionsByDensities) {
+    int bucketCount = densityBuckets.size();
+    boolean[][] selected = new boolean[bucketCount][configValues.size()];
 
-  private ImmutableMultimap<PackageTypeEntry, ConfigValue> getClaimedConfigs(
-      Iterable<ModuleSplit> moduleSplits) {
-    ImmutableMultimap.Builder<PackageTypeEntry, ConfigValue> result =
-        new ImmutableMultimap.Builder<>();
-    for (ModuleSplit moduleSplit : moduleSplits) {
-      checkState(
-          moduleSplit.getResourceTable().isPresent(),
-          "Resource table not found in the density split.");
-      for (Package pkg : moduleSplit.getResourceTable().get().getPackageList()) {
-        for (Type type : pkg.getTypeList()) {
-          for (Entry entry : type.getEntryList()) {
-            for (ConfigValue configValue : entry.getConfigValueList()) {
-              result.put(PackageTypeEntry.create(pkg, type, entry), configValue);
-            }
+    // Put mipmaps into the master split.
+    if (!type.getName().equals(MIPMAP_TYPE)) {
+      for (List<Integer> group : groupByDensityAlternatives(configValues)) {
+        ImmutableList<Integer> densities =
+            group.stream()
+                .map(i -> configValues.get(i).getConfig().getDensity())
+                .collect(toImmutableList());
+        ImmutableList<ImmutableSet<Integer>> selections =
+            selectionsByDensities.computeIfAbsent(densities, this::selectForEachBucket);
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+          for (int positionInGroup : selections.get(bucket)) {
+            selected[bucket][group.get(positionInGroup)] = true;
           }
         }
       }
     }
-    return result.build();
+
+    ImmutableList.Builder<ImmutableList<ConfigValue>> partitions = ImmutableList.builder();
+    for (int bucket = 0; bucket < bucketCount; bucket++) {
+      ImmutableList.Builder<ConfigValue> partition = ImmutableList.builder();
+      for (int i = 0; i < configValues.size(); i++) {
+        if (selected[bucket][i]) {
+          partition.add(configValues.get(i));
+        }
+      }
+      partitions.add(partition.build());
+    }
+    ImmutableList.Builder<ConfigValue> unclaimed = ImmutableList.builder();
+    for (int i = 0; i < configValues.size(); i++) {
+      boolean claimed = false;
+      for (int bucket = 0; bucket < bucketCount && !claimed; bucket++) {
+        claimed = selected[bucket][i];
+      }
+      if (!claimed) {
+        unclaimed.add(configValues.get(i));
+      }
+    }
+    return partitions.add(unclaimed.build()).build();
   }
 
   /**
-   * Returns a resource table for master split.
-   *
-   * <p>It will be stripped of any entries claimed by the config splits.
+   * Groups together the indexes of the config values that only differ on density, ignoring the
+   * config values without alternatives on density.
    */
-  private ResourceTable getResourceTableForDefaultSplit(
-      ModuleSplit split, ImmutableMultimap<PackageTypeEntry, ConfigValue> claimedConfigs) {
-    checkArgument(
-        split.getResourceTable().isPresent(), "Expected the split to contain Resource Table.");
-    ResourceTable.Builder prunedTable = split.getResourceTable().get().toBuilder();
-    for (Package.Builder packageBuilder : prunedTable.getPackageBuilderList()) {
-      for (Type.Builder typeBuilder : packageBuilder.getTypeBuilderList()) {
-        List<Entry> newEntries = new ArrayList<>();
-        for (Entry entry : typeBuilder.getEntryList()) {
-          ImmutableList<ConfigValue> allConfigsExceptClaimed =
-              entry
-                  .getConfigValueList()
-                  .stream()
-                  .filter(
-                      configValue ->
-                          !claimedConfigs.containsEntry(
-                              PackageTypeEntry.create(packageBuilder, typeBuilder, entry),
-                              configValue))
-                  .collect(toImmutableList());
-          Entry.Builder newEntry =
-              entry.toBuilder().clearConfigValue().addAllConfigValue(allConfigsExceptClaimed);
-          if (newEntry.getConfigValueCount() > 0) { // if everything was claimed we skip the entry.
-            newEntries.add(newEntry.build());
-          }
-        }
-        typeBuilder.clearEntry().addAllEntry(newEntries);
+  private ImmutableList<List<Integer>> groupByDensityAlternatives(
+      ImmutableList<ConfigValue> configValues) {
+    Map<Configuration, List<Integer>> indexesByConfiguration = new LinkedHashMap<>();
+    for (int i = 0; i < configValues.size(); i++) {
+      Configuration config = configValues.get(i).getConfig();
+      // Remove this filter entirely once 0.4.0 is no longer being actively used.
+      if (bundleVersion.isOlderThan(Version.of("0.4.0"))
+          && config.getDensity() == DEFAULT_DENSITY_VALUE) {
+        continue;
       }
+      indexesByConfiguration
+          .computeIfAbsent(clearDensity(config), key -> new ArrayList<>())
+          .add(i);
     }
-    return prunedTable.build();
-  }
 
-  private ResourceTable filterResourceTableForDensity(ResourceTable input, DensityAlias density) {
-    return ResourcesUtils.filterResourceTable(
-        input,
-        // Put mipmaps into the master split.
-        /* removeTypePredicate= */ type -> type.getName().equals(MIPMAP_TYPE),
-        /* configValuesFilterFn= */ entry -> filterEntryForDensity(entry, density));
+    // Filter out configs that don't have alternatives on density. These configurations can go in
+    // the master split.
+    return indexesByConfiguration.values().stream()
+        .filter(group -> bundleVersion.isOlderThan(Version.of("0.4.0")) || group.size() > 1)
+        .collect(toImmutableList());
   }
 
   /**
-   * Only leaves the density specific config values optimized for a given density.
+   * For each density bucket, picks the best matches among a group of config values differing by
+   * density only.
    *
-   * <p>As any other resource qualifiers can be requested when delivering resources, the algorithm
-   * chooses the best match only within group of resources differing by density only.
+   * <p>The selection only depends on the densities of the config values, so it can be shared by
+   * all the groups with the same densities.
    *
-   * @param initialEntry the entry to be updated
-   * @param targetDensity the desired density to match
-   * @return the entry with the best matching density config values.
+   * @param densities the densities of the config values of the group
+   * @return for each density bucket, the positions in the group of the selected config values
    */
-  private Entry filterEntryForDensity(Entry initialEntry, DensityAlias targetDensity) {
-    // Groups together configs that only differ on density.
-    Map<Configuration, List<ConfigValue>> configValuesByConfiguration =
-        initialEntry
-            .getConfigValueList()
-            .stream()
-            // Remove this filter entirely once 0.4.0 is no longer being actively used.
-            .filter(
-                configValue ->
-                    !bundleVersion.isOlderThan(Version.of("0.4.0"))
-                        || configValue.getConfig().getDensity() != DEFAULT_DENSITY_VALUE)
-            .collect(groupingBy(configValue -> clearDensity(configValue.getConfig())));
-
-    // Filter out configs that don't have alternatives on density. These configurations can go in
-    // the master split.
-    if (!bundleVersion.isOlderThan(Version.of("0.4.0"))) {
-      configValuesByConfiguration =
-          Maps.filterValues(configValuesByConfiguration, configValues -> configValues.size() > 1);
+  private ImmutableList<ImmutableSet<Integer>> selectForEachBucket(
+      ImmutableList<Integer> densities) {
+    ImmutableList<ConfigValue> group =
+        densities.stream()
+            .map(
+                density ->
+                    ConfigValue.newBuilder()
+                        .setConfig(Configuration.newBuilder().setDensity(density))
+                        .build())
+            .collect(toImmutableList());
+    ScreenDensitySelector screenDensitySelector = new ScreenDensitySelector();
+    ImmutableList.Builder<ImmutableSet<Integer>> selections = ImmutableList.builder();
+    for (DensityAlias density : densityBuckets) {
+      ImmutableList<ConfigValue> selectedValues =
+          screenDensitySelector.selectAllMatchingConfigValues(
+              group, density, allBut(densityBuckets, density));
+      ImmutableSet.Builder<Integer> positions = ImmutableSet.builder();
+      for (int i = 0; i < group.size(); i++) {
+        // The selector returns the given instances, which are distinct.
+        if (selectedValues.stream().anyMatch(group.get(i)::equals)) {
+          positions.add(i);
+        }
+      }
+      selections.add(positions.build());
     }
-
-    ImmutableList<List<ConfigValue>> densityGroups =
-        ImmutableList.copyOf(configValuesByConfiguration.values());
-    ImmutableList<ConfigValue> valuesToKeep =
-        pickBestDensityForEachGroup(densityGroups, targetDensity);
-    return initialEntry.toBuilder().clearConfigValue().addAllConfigValue(valuesToKeep).build();
-  }
-
-  /** For each density group, it picks the best match for a given desired densityAlias. */
-  private ImmutableList<ConfigValue> pickBestDensityForEachGroup(
-      ImmutableList<List<ConfigValue>> densityGroups, DensityAlias densityAlias) {
-    return densityGroups
-        .stream()
-        .flatMap(
-            group ->
-                new ScreenDensitySelector()
-                    .selectAllMatchingConfigValues(
-                        ImmutableList.copyOf(group),
-                        densityAlias,
-                        allBut(densityBuckets, densityAlias))
-                    .stream())
-        .collect(toImmutableList());
+    return selections.build();
   }
 
   private static Set<DensityAlias> allBut(
@@ -261,4 +270,38 @@ public class ScreenDensityResourcesSplitter extends SplitterForOneTargetingDimen
   private static Configuration clearDensity(Configuration source) {
     return source.toBuilder().clearDensity().build();
   }
+
+  /** Index of the entries of a split by path, to find the entries referenced by a table. */
+  private static final class ResourceEntriesIndex {
+    private final ImmutableList<ModuleEntry> entries;
+    private final Map<ZipPath, Integer> entryPositionsByPath = new HashMap<>();
+
+    ResourceEntriesIndex(ImmutableList<ModuleEntry> entries) {
+      this.entries = entries;
+      for (int i = 0; i < entries.size(); i++) {
+        entryPositionsByPath.putIfAbsent(entries.get(i).getPath(), i);
+      }
+    }
+
+    /**
+     * Returns the entries referenced by the config values of the given table, in the order of the
+     * entries of the split.
+     */
+    ImmutableList<ModuleEntry> getReferencedEntries(IndexedResourceTable table) {
+      BitSet referenced = new BitSet(entries.size());
+      for (int i = 0; i < table.getEntryCount(); i++) {
+        for (ConfigValue configValue : table.getConfigValues(i)) {
+          if (configValue.getValue().getItem().hasFile()) {
+            Integer position =
+                entryPositionsByPath.get(
+                    ZipPath.create(configValue.getValue().getItem().getFile().getPath()));
+            if (position != null) {
+              referenced.set(position);
+            }
+          }
+        }
+      }
+      return referenced.stream().mapToObj(entries::get).collect(toImmutableList());
+    }
+  }
 }
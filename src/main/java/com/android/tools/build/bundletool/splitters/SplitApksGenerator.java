@@ -19,13 +19,19 @@ package com.android.tools.build.bundletool.splitters;
 import static com.android.tools.build.bundletool.targeting.TargetingUtils.generateAllVariantTargetings;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
 
 import com.android.bundle.Targeting.VariantTargeting;
+import com.android.tools.build.bundletool.device.VariantMatcher;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.utils.ConcurrencyUtils;
 import com.android.tools.build.bundletool.version.Version;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 /** Generates split APKs. */
 public final class SplitApksGenerator {
@@ -33,20 +39,57 @@ public final class SplitApksGenerator {
   private final ImmutableList<BundleModule> modules;
   private final ApkGenerationConfiguration apkGenerationConfiguration;
   private final Version bundleVersion;
+  private final ListeningExecutorService executorService;
 
   public SplitApksGenerator(
       ImmutableList<BundleModule> modules,
       Version bundleVersion,
       ApkGenerationConfiguration apkGenerationConfiguration) {
+    this(
+        modules,
+        bundleVersion,
+        apkGenerationConfiguration,
+        MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * Same as {@link #SplitApksGenerator(ImmutableList, Version, ApkGenerationConfiguration)}, but
+   * each module is split for each variant as a separate task of the given executor.
+   */
+  public SplitApksGenerator(
+      ImmutableList<BundleModule> modules,
+      Version bundleVersion,
+      ApkGenerationConfiguration apkGenerationConfiguration,
+      ListeningExecutorService executorService) {
     this.modules = checkNotNull(modules);
     this.bundleVersion = checkNotNull(bundleVersion);
     this.apkGenerationConfiguration = checkNotNull(apkGenerationConfiguration);
+    this.executorService = checkNotNull(executorService);
   }
 
+  /**
+   * Generates the splits of all modules for all variants.
+   *
+   * <p>The splits are ordered by variant, then by module, regardless of the order in which the
+   * splitting tasks complete.
+   *
+   * <p>If the configuration specifies a device, only the variant matching the device is generated,
+   * and only with the splits that may be served to it.
+   */
   public ImmutableList<ModuleSplit> generateSplits() {
     ImmutableSet<VariantTargeting> variantTargetings = generateVariants();
-    return variantTargetings.stream()
-        .flatMap(variantTargeting -> generateSplitApks(variantTargeting).stream())
+    ImmutableList<ListenableFuture<ImmutableList<ModuleSplit>>> splitsByVariantAndModule =
+        variantTargetings.stream()
+            .flatMap(
+                variantTargeting ->
+                    modules.stream()
+                        .map(
+                            module ->
+                                executorService.submit(
+                                    () -> splitModule(module, variantTargeting))))
+            .collect(toImmutableList());
+    return ConcurrencyUtils.waitForAll(splitsByVariantAndModule).stream()
+        .flatMap(ImmutableList::stream)
         .collect(toImmutableList());
   }
 
@@ -57,17 +100,23 @@ public final class SplitApksGenerator {
       ImmutableSet<VariantTargeting> splitApks = variantGenerator.generateVariants();
       builder.addAll(splitApks);
     }
-    return generateAllVariantTargetings(builder.build());
-  }
-
-  private ImmutableList<ModuleSplit> generateSplitApks(VariantTargeting variantTargeting) {
-    ImmutableList.Builder<ModuleSplit> splits = ImmutableList.builder();
+    ImmutableSet<VariantTargeting> variantTargetings =
+        generateAllVariantTargetings(builder.build());
 
-    for (BundleModule module : modules) {
-      ModuleSplitter moduleSplitter =
-          new ModuleSplitter(module, bundleVersion, apkGenerationConfiguration, variantTargeting);
-      splits.addAll(moduleSplitter.splitModule());
+    if (!apkGenerationConfiguration.getDeviceSpec().isPresent()) {
+      return variantTargetings;
     }
-    return splits.build();
+    VariantMatcher variantMatcher =
+        new VariantMatcher(apkGenerationConfiguration.getDeviceSpec().get());
+    variantTargetings.forEach(variantMatcher::checkCompatibleWithVariantTargeting);
+    return variantTargetings.stream()
+        .filter(variantMatcher::matchesVariantTargeting)
+        .collect(toImmutableSet());
+  }
+
+  private ImmutableList<ModuleSplit> splitModule(
+      BundleModule module, VariantTargeting variantTargeting) {
+    return new ModuleSplitter(module, bundleVersion, apkGenerationConfiguration, variantTargeting)
+        .splitModule();
   }
 }
@@ -16,6 +16,7 @@
 
 package com.android.tools.build.bundletool.splitters;
 
+import static com.google.common.base.Predicates.alwaysTrue;
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.android.tools.build.bundletool.model.ModuleSplit;
@@ -23,6 +24,8 @@ import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /** Pipeline chaining the execution of module splitters. */
 @AutoValue
@@ -31,18 +34,52 @@ public abstract class SplittingPipeline {
   public abstract ImmutableList<ModuleSplitSplitter> getSplitters();
 
   public ImmutableCollection<ModuleSplit> split(ModuleSplit split) {
-    ImmutableList<ModuleSplit> splits = ImmutableList.of(split);
+    return split(split, alwaysTrue(), droppedSplit -> {});
+  }
+
+  /**
+   * Same as {@link #split(ModuleSplit)}, but the splits rejected by {@code splitFilter} are dropped
+   * as soon as they are generated, so that they are not split any further.
+   *
+   * <p>Splits generated from a split inherit its targeting, so the filter must reject a split only
+   * if none of the splits that could be generated from it would be accepted. The dropped splits
+   * are passed to {@code droppedSplitConsumer}, e.g. to preserve their master manifest mutators.
+   */
+  public ImmutableCollection<ModuleSplit> split(
+      ModuleSplit split,
+      Predicate<ModuleSplit> splitFilter,
+      Consumer<ModuleSplit> droppedSplitConsumer) {
+    ImmutableList<ModuleSplit> splits =
+        filter(ImmutableList.of(split), splitFilter, droppedSplitConsumer);
     for (ModuleSplitSplitter splitter : getSplitters()) {
       splits =
-          splits
-              .stream()
-              .map(splitter::split)
-              .flatMap(Collection::stream)
-              .collect(toImmutableList());
+          filter(
+              splits
+                  .stream()
+                  .map(splitter::split)
+                  .flatMap(Collection::stream)
+                  .collect(toImmutableList()),
+              splitFilter,
+              droppedSplitConsumer);
     }
     return splits;
   }
 
+  private static ImmutableList<ModuleSplit> filter(
+      ImmutableList<ModuleSplit> splits,
+      Predicate<ModuleSplit> splitFilter,
+      Consumer<ModuleSplit> droppedSplitConsumer) {
+    ImmutableList.Builder<ModuleSplit> acceptedSplits = ImmutableList.builder();
+    for (ModuleSplit split : splits) {
+      if (splitFilter.test(split)) {
+        acceptedSplits.add(split);
+      } else {
+        droppedSplitConsumer.accept(split);
+      }
+    }
+    return acceptedSplits.build();
+  }
+
   public static SplittingPipeline create(ImmutableList<ModuleSplitSplitter> splitters) {
     return new AutoValue_SplittingPipeline(splitters);
   }
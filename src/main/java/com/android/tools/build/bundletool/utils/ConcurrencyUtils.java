@@ -24,26 +24,49 @@ import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 /** Utility methods for working with concurrent code. */
 public final class ConcurrencyUtils {
 
-  /** Retrieves results of all futures, if they succeed. If any fails, eagerly throws. */
+  /**
+   * Retrieves results of all futures, if they succeed.
+   *
+   * <p>As soon as any fails, the other futures are cancelled, interrupting the tasks still running,
+   * and the failure is thrown without waiting for them.
+   */
   public static <T> ImmutableList<T> waitForAll(Iterable<ListenableFuture<T>> futures) {
-    return ImmutableList.copyOf(waitFor(Futures.allAsList(futures)));
+    return waitForAllOrCancel(ImmutableList.copyOf(futures));
   }
 
+  /**
+   * Retrieves results of all futures, keyed as the futures, if they succeed.
+   *
+   * <p>Fails fast as {@link #waitForAll(Iterable)}.
+   */
   public static <K, V> ImmutableMap<K, V> waitForAll(Map<K, ListenableFuture<V>> futures) {
+    ImmutableList<K> keys = ImmutableList.copyOf(futures.keySet());
+    ImmutableList<V> values = waitForAllOrCancel(ImmutableList.copyOf(futures.values()));
     ImmutableMap.Builder<K, V> finishedMap = ImmutableMap.builder();
-    for (Entry<K, ListenableFuture<V>> entry : futures.entrySet()) {
-      finishedMap.put(entry.getKey(), waitFor(entry.getValue()));
+    for (int i = 0; i < keys.size(); i++) {
+      finishedMap.put(keys.get(i), values.get(i));
     }
     return finishedMap.build();
   }
 
+  private static <T> ImmutableList<T> waitForAllOrCancel(
+      ImmutableList<ListenableFuture<T>> futures) {
+    try {
+      // Unlike waiting for each future in turn, fails as soon as any of the futures fails.
+      return ImmutableList.copyOf(waitFor(Futures.allAsList(futures)));
+    } catch (RuntimeException e) {
+      // No-op for the futures already done.
+      futures.forEach(future -> future.cancel(/* mayInterruptIfRunning= */ true));
+      throw e;
+    }
+  }
+
   public static <T> T waitFor(Future<T> future) {
     try {
       return future.get();
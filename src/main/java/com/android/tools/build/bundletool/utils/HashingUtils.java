@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.Hasher;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Utilities to compute digests used as keys.
+ *
+ * <p>Variable-length values are prefixed with their length, so that consecutive values can't be
+ * confused with one another.
+ */
+public final class HashingUtils {
+
+  public static void putString(Hasher hasher, String value) {
+    byte[] bytes = value.getBytes(UTF_8);
+    hasher.putInt(bytes.length).putBytes(bytes);
+  }
+
+  public static void putProto(Hasher hasher, MessageLite proto) {
+    // Deterministic serialization, so that map fields always hash the same way.
+    try {
+      byte[] bytes = new byte[proto.getSerializedSize()];
+      CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+      out.useDeterministicSerialization();
+      proto.writeTo(out);
+      out.checkNoSpaceLeft();
+      hasher.putInt(bytes.length).putBytes(bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Do not instantiate.
+  private HashingUtils() {}
+}
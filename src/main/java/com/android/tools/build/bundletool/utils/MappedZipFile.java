@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only zip file backed by a memory mapping of the file.
+ *
+ * <p>The central directory is parsed once when the file is opened into a compact index, and the
+ * content of the entries is exposed as slices of the mapping, without copying. Inflated entries
+ * are kept in a cache bounded by size, so that entries read several times (e.g. during validation
+ * and again when generating APKs) are inflated only once.
+ *
+ * <p>Zip64 archives are supported, but entries larger than 2 GB are not.
+ *
+ * <p>Instances are safe to use from multiple threads. The mapping is released by the garbage
+ * collector once the file and its entries are no longer referenced: buffers obtained from this
+ * file must not be used after {@link #close()}.
+ */
+public final class MappedZipFile implements Closeable {
+
+  /** Default maximum total size of the inflated entries kept in memory. */
+  public static final long DEFAULT_INFLATED_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+
+  private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIGNATURE = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+
+  private static final int LOCAL_FILE_HEADER_SIZE = 30;
+  private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+  private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+  private static final long ZIP64_MAGIC_VALUE = 0xFFFFFFFFL;
+  private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+  /** Size of the mapped regions of the file; entries spanning two regions are mapped alone. */
+  private static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final long segmentSize;
+  private final ImmutableList<ByteBuffer> segments;
+
+  // Compact index of the entries, in the order of the central directory.
+  private final String[] names;
+  private final short[] methods;
+  private final int[] crcs;
+  private final long[] compressedSizes;
+  private final long[] sizes;
+  private final long[] localHeaderOffsets;
+  /** Offsets of the entry data, lazily read from the local headers; -1 when not known yet. */
+  private final long[] dataOffsets;
+
+  private final ImmutableMap<String, Integer> indexByName;
+
+  private final long maxInflatedCacheEntrySize;
+  private final Cache<Integer, byte[]> inflatedEntries;
+
+  private MappedZipFile(
+      Path path, FileChannel channel, long segmentSize, long inflatedCacheMaxBytes)
+      throws IOException {
+    checkArgument(
+        inflatedCacheMaxBytes >= 0,
+        "The size of the cache must not be negative, got %s.",
+        inflatedCacheMaxBytes);
+    this.path = path;
+    this.channel = channel;
+    this.segmentSize = segmentSize;
+    this.segments = mapSegments(channel, segmentSize);
+
+    CentralDirectory centralDirectory = findCentralDirectory();
+    int entryCount = centralDirectory.entryCount;
+    this.names = new String[entryCount];
+    this.methods = new short[entryCount];
+    this.crcs = new int[entryCount];
+    this.compressedSizes = new long[entryCount];
+    this.sizes = new long[entryCount];
+    this.localHeaderOffsets = new long[entryCount];
+    this.dataOffsets = new long[entryCount];
+    Arrays.fill(dataOffsets, -1);
+    this.indexByName = readCentralDirectory(centralDirectory);
+
+    // Entries larger than a fraction of the cache would evict most of it: they are streamed.
+    this.maxInflatedCacheEntrySize = inflatedCacheMaxBytes / 8;
+    this.inflatedEntries =
+        CacheBuilder.newBuilder()
+            .maximumWeight(inflatedCacheMaxBytes)
+            .<Integer, byte[]>weigher((index, content) -> content.length)
+            .recordStats()
+            .build();
+  }
+
+  /** Opens the given zip file, with a cache of inflated entries of the default size. */
+  public static MappedZipFile open(Path path) throws IOException {
+    return open(path, DEFAULT_INFLATED_CACHE_MAX_BYTES);
+  }
+
+  /**
+   * Opens the given zip file.
+   *
+   * @param inflatedCacheMaxBytes maximum total size of the inflated entries kept in memory
+   */
+  public static MappedZipFile open(Path path, long inflatedCacheMaxBytes) throws IOException {
+    return open(path, inflatedCacheMaxBytes, DEFAULT_SEGMENT_SIZE);
+  }
+
+  @VisibleForTesting
+  static MappedZipFile open(Path path, long inflatedCacheMaxBytes, long segmentSize)
+      throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new MappedZipFile(path, channel, segmentSize, inflatedCacheMaxBytes);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** Path of the zip file. */
+  public Path getPath() {
+    return path;
+  }
+
+  /** Returns the entries of the zip file, in the order of the central directory. */
+  public ImmutableList<Entry> getEntries() {
+    ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+    for (int i = 0; i < names.length; i++) {
+      entries.add(new Entry(i));
+    }
+    return entries.build();
+  }
+
+  /** Returns the entry with the given name, if present. */
+  public Optional<Entry> getEntry(String name) {
+    return Optional.ofNullable(indexByName.get(name)).map(Entry::new);
+  }
+
+  /** Number of entries of the zip file. */
+  public int size() {
+    return names.length;
+  }
+
+  @VisibleForTesting
+  CacheStats getInflatedCacheStats() {
+    return inflatedEntries.stats();
+  }
+
+  @Override
+  public void close() throws IOException {
+    inflatedEntries.invalidateAll();
+    channel.close();
+  }
+
+  /** An entry of a {@link MappedZipFile}. */
+  public final class Entry {
+
+    private final int index;
+
+    private Entry(int index) {
+      checkElementIndex(index, names.length);
+      this.index = index;
+    }
+
+    public String getName() {
+      return names[index];
+    }
+
+    public boolean isDirectory() {
+      return names[index].endsWith("/");
+    }
+
+    /** Compression method, either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+    public int getMethod() {
+      return methods[index];
+    }
+
+    public long getCrc() {
+      return Integer.toUnsignedLong(crcs[index]);
+    }
+
+    public long getSize() {
+      return sizes[index];
+    }
+
+    public long getCompressedSize() {
+      return compressedSizes[index];
+    }
+
+    /** The zip file this entry belongs to. */
+    public MappedZipFile getZipFile() {
+      return MappedZipFile.this;
+    }
+
+    /** Returns the data of the entry as stored in the zip file, i.e. possibly compressed. */
+    public ByteBuffer getRawData() {
+      return slice(getDataOffset(index), compressedSizes[index]);
+    }
+
+    /** Returns the uncompressed content of the entry. */
+    public InputStream getContent() {
+      switch (methods[index]) {
+        case ZipEntry.STORED:
+          return new ByteBufferInputStream(getRawData());
+        case ZipEntry.DEFLATED:
+          if (sizes[index] <= maxInflatedCacheEntrySize) {
+            return new ByteArrayInputStream(getInflatedContent());
+          }
+          return inflatingStream(getRawData());
+        default:
+          throw new UncheckedIOException(
+              new ZipException(
+                  String.format(
+                      "Unsupported compression method %d for entry '%s' in '%s'.",
+                      methods[index], names[index], path)));
+      }
+    }
+
+    private byte[] getInflatedContent() {
+      try {
+        return inflatedEntries.get(index, () -> inflate(getRawData(), sizes[index]));
+      } catch (ExecutionException | UncheckedExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw new UncheckedIOException(
+              String.format("Error while inflating entry '%s' of '%s'.", names[index], path),
+              (IOException) e.getCause());
+        }
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+
+    @Override
+    public String toString() {
+      return names[index];
+    }
+  }
+
+  private long getDataOffset(int index) {
+    // Racy but idempotent: every thread computes the same value.
+    long dataOffset = dataOffsets[index];
+    if (dataOffset < 0) {
+      ByteBuffer localHeader = slice(localHeaderOffsets[index], LOCAL_FILE_HEADER_SIZE);
+      if (localHeader.getInt(0) != LOCAL_FILE_HEADER_SIGNATURE) {
+        throw new UncheckedIOException(
+            new ZipException(
+                String.format(
+                    "Invalid local header for entry '%s' in '%s'.", names[index], path)));
+      }
+      int nameLength = Short.toUnsignedInt(localHeader.getShort(26));
+      int extraLength = Short.toUnsignedInt(localHeader.getShort(28));
+      dataOffset = localHeaderOffsets[index] + LOCAL_FILE_HEADER_SIZE + nameLength + extraLength;
+      dataOffsets[index] = dataOffset;
+    }
+    return dataOffset;
+  }
+
+  private static byte[] inflate(ByteBuffer compressed, long size) throws IOException {
+    byte[] content = new byte[(int) size];
+    try (InputStream in = inflatingStream(compressed)) {
+      ByteStreams.readFully(in, content);
+      if (in.read() != -1) {
+        throw new ZipException(String.format("Inflated more than %d bytes.", size));
+      }
+    }
+    return content;
+  }
+
+  private static InputStream inflatingStream(ByteBuffer compressed) {
+    Inflater inflater = new Inflater(/* nowrap= */ true);
+    // The inflater may need an extra byte to detect the end of a stream without zlib wrapping.
+    return new InflaterInputStream(
+        new SequenceInputStream(
+            new ByteBufferInputStream(compressed), new ByteArrayInputStream(new byte[1])),
+        inflater) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          // Only the inflaters created by InflaterInputStream itself are ended when it's closed.
+          inflater.end();
+        }
+      }
+    };
+  }
+
+  /** Returns a read-only view of the given region of the file. */
+  private ByteBuffer slice(long offset, long length) {
+    if (length > Integer.MAX_VALUE) {
+      throw new UnsupportedOperationException(
+          String.format("Entries larger than 2 GB are not supported, in '%s'.", path));
+    }
+    int segmentIndex = (int) (offset / segmentSize);
+    long offsetInSegment = offset - segmentIndex * segmentSize;
+    if (segmentIndex < segments.size()) {
+      ByteBuffer segment = segments.get(segmentIndex);
+      if (offsetInSegment + length <= segment.capacity()) {
+        ByteBuffer slice = segment.duplicate();
+        slice.position((int) offsetInSegment);
+        slice.limit((int) (offsetInSegment + length));
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+    // The region spans two segments.
+    try {
+      return channel
+          .map(MapMode.READ_ONLY, offset, length)
+          .asReadOnlyBuffer()
+          .order(ByteOrder.LITTLE_ENDIAN);
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error while mapping a region of '%s'.", path), e);
+    }
+  }
+
+  private static ImmutableList<ByteBuffer> mapSegments(FileChannel channel, long segmentSize)
+      throws IOException {
+    ImmutableList.Builder<ByteBuffer> segments = ImmutableList.builder();
+    long fileSize = channel.size();
+    for (long offset = 0; offset < fileSize; offset += segmentSize) {
+      long length = Math.min(segmentSize, fileSize - offset);
+      segments.add(channel.map(MapMode.READ_ONLY, offset, length).asReadOnlyBuffer());
+    }
+    return segments.build();
+  }
+
+  private CentralDirectory findCentralDirectory() throws IOException {
+    long fileSize = channel.size();
+    if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE) {
+      throw new ZipException(String.format("File '%s' is not a zip file.", path));
+    }
+    int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+    long tailOffset = fileSize - tailSize;
+    ByteBuffer tail = slice(tailOffset, tailSize);
+    int eocdPosition = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE;
+    while (eocdPosition >= 0 && tail.getInt(eocdPosition) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+      eocdPosition--;
+    }
+    if (eocdPosition < 0) {
+      throw new ZipException(String.format("File '%s' is not a zip file.", path));
+    }
+
+    long entryCount = Short.toUnsignedInt(tail.getShort(eocdPosition + 10));
+    long size = Integer.toUnsignedLong(tail.getInt(eocdPosition + 12));
+    long offset = Integer.toUnsignedLong(tail.getInt(eocdPosition + 16));
+    if (entryCount == ZIP64_MAGIC_COUNT
+        || size == ZIP64_MAGIC_VALUE
+        || offset == ZIP64_MAGIC_VALUE) {
+      long locatorOffset =
+          tailOffset + eocdPosition - ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE;
+      if (locatorOffset >= 0) {
+        ByteBuffer locator = slice(locatorOffset, ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE);
+        if (locator.getInt(0) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE) {
+          ByteBuffer zip64Eocd =
+              slice(locator.getLong(8), ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE);
+          if (zip64Eocd.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            throw new ZipException(
+                String.format("Invalid Zip64 end of central directory in '%s'.", path));
+          }
+          entryCount = zip64Eocd.getLong(32);
+          size = zip64Eocd.getLong(40);
+          offset = zip64Eocd.getLong(48);
+        }
+      }
+    }
+    if (entryCount > Integer.MAX_VALUE || offset + size > fileSize) {
+      throw new ZipException(String.format("Invalid central directory in '%s'.", path));
+    }
+    return new CentralDirectory((int) entryCount, offset, size);
+  }
+
+  private ImmutableMap<String, Integer> readCentralDirectory(CentralDirectory centralDirectory)
+      throws IOException {
+    ByteBuffer buffer = slice(centralDirectory.offset, centralDirectory.size);
+    ImmutableMap.Builder<String, Integer> indexByName =
+        ImmutableMap.builderWithExpectedSize(centralDirectory.entryCount);
+    int position = 0;
+    for (int i = 0; i < centralDirectory.entryCount; i++) {
+      if (buffer.getInt(position) != CENTRAL_DIRECTORY_HEADER_SIGNATURE) {
+        throw new ZipException(String.format("Invalid central directory in '%s'.", path));
+      }
+      methods[i] = buffer.getShort(position + 10);
+      crcs[i] = buffer.getInt(position + 16);
+      compressedSizes[i] = Integer.toUnsignedLong(buffer.getInt(position + 20));
+      sizes[i] = Integer.toUnsignedLong(buffer.getInt(position + 24));
+      int nameLength = Short.toUnsignedInt(buffer.getShort(position + 28));
+      int extraLength = Short.toUnsignedInt(buffer.getShort(position + 30));
+      int commentLength = Short.toUnsignedInt(buffer.getShort(position + 32));
+      localHeaderOffsets[i] = Integer.toUnsignedLong(buffer.getInt(position + 42));
+
+      byte[] name = new byte[nameLength];
+      ByteBuffer nameBuffer = buffer.duplicate();
+      nameBuffer.position(position + CENTRAL_DIRECTORY_HEADER_SIZE);
+      nameBuffer.get(name);
+      names[i] = new String(name, UTF_8);
+
+      readZip64ExtraField(
+          buffer, position + CENTRAL_DIRECTORY_HEADER_SIZE + nameLength, extraLength, i);
+      indexByName.put(names[i], i);
+      position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    try {
+      return indexByName.build();
+    } catch (IllegalArgumentException e) {
+      throw new ZipException(String.format("Duplicate entries in '%s'.", path));
+    }
+  }
+
+  /** Replaces the values of the entry set to the Zip64 magic value with their Zip64 value. */
+  private void readZip64ExtraField(ByteBuffer buffer, int position, int length, int index) {
+    int end = position + length;
+    while (position + 4 <= end) {
+      int id = Short.toUnsignedInt(buffer.getShort(position));
+      int size = Short.toUnsignedInt(buffer.getShort(position + 2));
+      if (id == ZIP64_EXTRA_FIELD_ID) {
+        int valuePosition = position + 4;
+        if (sizes[index] == ZIP64_MAGIC_VALUE) {
+          sizes[index] = buffer.getLong(valuePosition);
+          valuePosition += 8;
+        }
+        if (compressedSizes[index] == ZIP64_MAGIC_VALUE) {
+          compressedSizes[index] = buffer.getLong(valuePosition);
+          valuePosition += 8;
+        }
+        if (localHeaderOffsets[index] == ZIP64_MAGIC_VALUE) {
+          localHeaderOffsets[index] = buffer.getLong(valuePosition);
+        }
+        return;
+      }
+      position += 4 + size;
+    }
+  }
+
+  private static final class CentralDirectory {
+    private final int entryCount;
+    private final long offset;
+    private final long size;
+
+    CentralDirectory(int entryCount, long offset, long size) {
+      this.entryCount = entryCount;
+      this.offset = offset;
+      this.size = size;
+    }
+  }
+
+  /** {@link InputStream} reading the remaining bytes of a {@link ByteBuffer}. */
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? Byte.toUnsignedInt(buffer.get()) : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, n);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
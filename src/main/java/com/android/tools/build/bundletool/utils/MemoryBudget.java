@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.auto.value.AutoValue;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Bounds the memory used by concurrent tasks, by making each task reserve its estimated memory
+ * footprint before it starts.
+ *
+ * <p>Reservations are granted in the order in which they are requested, as soon as they fit in the
+ * budget. A reservation larger than the whole budget is granted once no other reservation is held,
+ * so that the task runs alone rather than never.
+ *
+ * <p>Thread-safe.
+ */
+public final class MemoryBudget {
+
+  /** Fraction of the maximum heap size used by {@link #fromMaxHeapSize()}. */
+  private static final double DEFAULT_MAX_HEAP_FRACTION = 0.5;
+
+  private final long budgetBytes;
+  private final Deque<Object> waiters = new ArrayDeque<>();
+
+  private long reservedBytes;
+  private long peakReservedBytes;
+  private int reservationCount;
+  private long totalWaitNanos;
+  private long maxWaitNanos;
+
+  public MemoryBudget(long budgetBytes) {
+    checkArgument(budgetBytes > 0, "The memory budget must be positive, got %s.", budgetBytes);
+    this.budgetBytes = budgetBytes;
+  }
+
+  /** Creates a budget of half the maximum heap size of the JVM. */
+  public static MemoryBudget fromMaxHeapSize() {
+    long maxMemory = Runtime.getRuntime().maxMemory();
+    // Long.MAX_VALUE if the JVM has no limit.
+    return new MemoryBudget(
+        maxMemory == Long.MAX_VALUE
+            ? Long.MAX_VALUE
+            : (long) (maxMemory * DEFAULT_MAX_HEAP_FRACTION));
+  }
+
+  /** Creates a budget that never makes tasks wait. */
+  public static MemoryBudget unlimited() {
+    return new MemoryBudget(Long.MAX_VALUE);
+  }
+
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  /**
+   * Waits until the given number of bytes fits in the budget, and reserves them until the returned
+   * reservation is closed.
+   */
+  public Reservation reserve(long bytes) throws InterruptedException {
+    checkArgument(bytes >= 0, "Cannot reserve a negative number of bytes, got %s.", bytes);
+    long cappedBytes = Math.min(bytes, budgetBytes);
+    Object waiter = new Object();
+    long startNanos = System.nanoTime();
+    synchronized (this) {
+      waiters.addLast(waiter);
+      try {
+        while (waiters.peekFirst() != waiter || reservedBytes > budgetBytes - cappedBytes) {
+          wait();
+        }
+      } finally {
+        waiters.remove(waiter);
+        // The next waiter may now be first in line.
+        notifyAll();
+      }
+      long waitNanos = System.nanoTime() - startNanos;
+      reservedBytes += cappedBytes;
+      peakReservedBytes = Math.max(peakReservedBytes, reservedBytes);
+      reservationCount++;
+      totalWaitNanos += waitNanos;
+      maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+      return new Reservation(cappedBytes, Duration.ofNanos(waitNanos));
+    }
+  }
+
+  private synchronized void release(long bytes) {
+    reservedBytes -= bytes;
+    notifyAll();
+  }
+
+  /** Returns statistics about the reservations made so far. */
+  public synchronized Statistics getStatistics() {
+    return Statistics.create(
+        reservationCount,
+        peakReservedBytes,
+        Duration.ofNanos(totalWaitNanos),
+        Duration.ofNanos(maxWaitNanos));
+  }
+
+  /** Bytes reserved in a {@link MemoryBudget}, released when closed. */
+  public final class Reservation implements AutoCloseable {
+    private final long bytes;
+    private final Duration waitTime;
+    private boolean released;
+
+    private Reservation(long bytes, Duration waitTime) {
+      this.bytes = bytes;
+      this.waitTime = waitTime;
+    }
+
+    /** Time spent waiting for the reservation to fit in the budget. */
+    public Duration getWaitTime() {
+      return waitTime;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (!released) {
+        released = true;
+        release(bytes);
+      }
+    }
+  }
+
+  /** Aggregated statistics of a {@link MemoryBudget}. */
+  @AutoValue
+  public abstract static class Statistics {
+    public abstract int getReservationCount();
+
+    /** Highest number of bytes reserved at the same time. */
+    public abstract long getPeakReservedBytes();
+
+    public abstract Duration getTotalWaitTime();
+
+    public abstract Duration getMaxWaitTime();
+
+    static Statistics create(
+        int reservationCount,
+        long peakReservedBytes,
+        Duration totalWaitTime,
+        Duration maxWaitTime) {
+      return new AutoValue_MemoryBudget_Statistics(
+          reservationCount, peakReservedBytes, totalWaitTime, maxWaitTime);
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.utils.tracing;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.android.bundle.Trace.PhaseSummary;
+import com.android.bundle.Trace.TraceSummary;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Tracer} keeping all spans in memory, to be written as a Chrome trace and a {@link
+ * TraceSummary} at the end of the command.
+ *
+ * <p>The Chrome trace can be opened in chrome://tracing or in Perfetto. The summary is meant to be
+ * compared across runs to spot regressions of a given phase.
+ */
+public final class RecordingTracer implements Tracer {
+
+  public static final String CHROME_TRACE_FILE_NAME = "trace.json";
+  public static final String SUMMARY_FILE_NAME = "trace-summary.pb";
+
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+  private final long startNanos = System.nanoTime();
+  private final ConcurrentLinkedQueue<SpanRecord> spans = new ConcurrentLinkedQueue<>();
+
+  @Override
+  public TraceSpan startSpan(String name) {
+    return new RecordingSpan(name);
+  }
+
+  /** Returns the spans closed so far, ordered by start time. */
+  public ImmutableList<SpanRecord> getSpans() {
+    return spans.stream()
+        .sorted(Comparator.comparingLong(SpanRecord::getStartMicros))
+        .collect(toImmutableList());
+  }
+
+  /** Aggregates the spans closed so far by phase. */
+  public TraceSummary getSummary() {
+    ImmutableList<SpanRecord> sortedSpans = getSpans();
+    Map<String, PhaseSummary.Builder> phases = new LinkedHashMap<>();
+    long firstStartMicros = Long.MAX_VALUE;
+    long lastEndMicros = 0;
+    for (SpanRecord span : sortedSpans) {
+      PhaseSummary.Builder phase =
+          phases.computeIfAbsent(
+              span.getName(), name -> PhaseSummary.newBuilder().setName(name));
+      phase
+          .setSpanCount(phase.getSpanCount() + 1)
+          .setWallTimeMicros(phase.getWallTimeMicros() + span.getWallTimeMicros())
+          .setCpuTimeMicros(phase.getCpuTimeMicros() + span.getCpuTimeMicros())
+          .setAllocatedBytes(phase.getAllocatedBytes() + span.getAllocatedBytes())
+          .setBytesRead(phase.getBytesRead() + span.getBytesRead())
+          .setBytesWritten(phase.getBytesWritten() + span.getBytesWritten());
+      firstStartMicros = Math.min(firstStartMicros, span.getStartMicros());
+      lastEndMicros = Math.max(lastEndMicros, span.getStartMicros() + span.getWallTimeMicros());
+    }
+
+    TraceSummary.Builder summary = TraceSummary.newBuilder();
+    phases.values().forEach(summary::addPhase);
+    if (!sortedSpans.isEmpty()) {
+      summary.setTotalWallTimeMicros(lastEndMicros - firstStartMicros);
+    }
+    return summary.build();
+  }
+
+  /**
+   * Writes the Chrome trace and the summary in the given directory, under the names {@link
+   * #CHROME_TRACE_FILE_NAME} and {@link #SUMMARY_FILE_NAME}.
+   */
+  public void writeTo(Path outputDirectory) throws IOException {
+    Files.createDirectories(outputDirectory);
+    writeChromeTrace(outputDirectory.resolve(CHROME_TRACE_FILE_NAME));
+    try (OutputStream summaryOutput =
+        Files.newOutputStream(outputDirectory.resolve(SUMMARY_FILE_NAME))) {
+      getSummary().writeTo(summaryOutput);
+    }
+  }
+
+  /** Writes the spans in the Chrome trace event format, as "complete" events. */
+  void writeChromeTrace(Path outputFile) throws IOException {
+    ImmutableList<SpanRecord> sortedSpans = getSpans();
+    try (Writer writer = Files.newBufferedWriter(outputFile, UTF_8)) {
+      writer.write("{\"traceEvents\":[");
+      boolean first = true;
+
+      // Metadata events naming the threads.
+      Set<Long> namedThreads = new LinkedHashSet<>();
+      for (SpanRecord span : sortedSpans) {
+        if (namedThreads.add(span.getThreadId())) {
+          writer.write(first ? "\n" : ",\n");
+          first = false;
+          writer.write(
+              String.format(
+                  "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,"
+                      + "\"args\":{\"name\":%s}}",
+                  span.getThreadId(), jsonString(span.getThreadName())));
+        }
+      }
+
+      for (SpanRecord span : sortedSpans) {
+        writer.write(first ? "\n" : ",\n");
+        first = false;
+        writer.write(
+            String.format(
+                "{\"name\":%s,\"cat\":\"bundletool\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,"
+                    + "\"ts\":%d,\"dur\":%d,\"args\":{\"cpuTimeMicros\":%d,"
+                    + "\"allocatedBytes\":%d,\"bytesRead\":%d,\"bytesWritten\":%d}}",
+                jsonString(span.getName()),
+                span.getThreadId(),
+                span.getStartMicros(),
+                span.getWallTimeMicros(),
+                span.getCpuTimeMicros(),
+                span.getAllocatedBytes(),
+                span.getBytesRead(),
+                span.getBytesWritten()));
+      }
+      writer.write("\n]}\n");
+    }
+  }
+
+  private static String jsonString(String value) {
+    StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+    for (char c : value.toCharArray()) {
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    return json.append('"').toString();
+  }
+
+  private static long currentThreadCpuTimeNanos() {
+    return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+        ? THREAD_MX_BEAN.getCurrentThreadCpuTime()
+        : 0;
+  }
+
+  private static long currentThreadAllocatedBytes() {
+    // Only available on HotSpot-based JVMs.
+    if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean threadMxBean =
+          (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+      if (threadMxBean.isThreadAllocatedMemorySupported()
+          && threadMxBean.isThreadAllocatedMemoryEnabled()) {
+        return threadMxBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return 0;
+  }
+
+  private final class RecordingSpan implements TraceSpan {
+    private final String name;
+    private final Thread thread = Thread.currentThread();
+    private final long spanStartNanos = System.nanoTime();
+    private final long startCpuTimeNanos = currentThreadCpuTimeNanos();
+    private final long startAllocatedBytes = currentThreadAllocatedBytes();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    RecordingSpan(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void addBytesRead(long bytes) {
+      bytesRead.addAndGet(bytes);
+    }
+
+    @Override
+    public void addBytesWritten(long bytes) {
+      bytesWritten.addAndGet(bytes);
+    }
+
+    @Override
+    public void close() {
+      if (closed.getAndSet(true)) {
+        return;
+      }
+      long endNanos = System.nanoTime();
+      // Thread counters are meaningless if the span is closed on another thread.
+      boolean sameThread = Thread.currentThread().equals(thread);
+      spans.add(
+          SpanRecord.builder()
+              .setName(name)
+              .setThreadId(thread.getId())
+              .setThreadName(thread.getName())
+              .setStartMicros(NANOSECONDS.toMicros(spanStartNanos - startNanos))
+              .setWallTimeMicros(NANOSECONDS.toMicros(endNanos - spanStartNanos))
+              .setCpuTimeMicros(
+                  sameThread
+                      ? NANOSECONDS.toMicros(currentThreadCpuTimeNanos() - startCpuTimeNanos)
+                      : 0)
+              .setAllocatedBytes(
+                  sameThread ? currentThreadAllocatedBytes() - startAllocatedBytes : 0)
+              .setBytesRead(bytesRead.get())
+              .setBytesWritten(bytesWritten.get())
+              .build());
+    }
+  }
+
+  /** A closed span. Times are in microseconds, relative to the creation of the tracer. */
+  @AutoValue
+  public abstract static class SpanRecord {
+    public abstract String getName();
+
+    public abstract long getThreadId();
+
+    public abstract String getThreadName();
+
+    public abstract long getStartMicros();
+
+    public abstract long getWallTimeMicros();
+
+    public abstract long getCpuTimeMicros();
+
+    public abstract long getAllocatedBytes();
+
+    public abstract long getBytesRead();
+
+    public abstract long getBytesWritten();
+
+    static Builder builder() {
+      return new AutoValue_RecordingTracer_SpanRecord.Builder();
+    }
+
+    /** Builder for {@link SpanRecord}. */
+    @AutoValue.Builder
+    abstract static class Builder {
+      abstract Builder setName(String name);
+
+      abstract Builder setThreadId(long threadId);
+
+      abstract Builder setThreadName(String threadName);
+
+      abstract Builder setStartMicros(long startMicros);
+
+      abstract Builder setWallTimeMicros(long wallTimeMicros);
+
+      abstract Builder setCpuTimeMicros(long cpuTimeMicros);
+
+      abstract Builder setAllocatedBytes(long allocatedBytes);
+
+      abstract Builder setBytesRead(long bytesRead);
+
+      abstract Builder setBytesWritten(long bytesWritten);
+
+      abstract SpanRecord build();
+    }
+  }
+}
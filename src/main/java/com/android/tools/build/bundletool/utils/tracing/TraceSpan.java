@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.utils.tracing;
+
+/**
+ * A span of work started by {@link Tracer#startSpan(String)}.
+ *
+ * <p>A span must be closed on the thread on which it was started, so that the CPU time and the
+ * allocations of that thread can be attributed to it.
+ */
+public interface TraceSpan extends AutoCloseable {
+
+  /** Span recording nothing. */
+  TraceSpan NO_OP =
+      new TraceSpan() {
+        @Override
+        public void addBytesRead(long bytes) {}
+
+        @Override
+        public void addBytesWritten(long bytes) {}
+
+        @Override
+        public void close() {}
+      };
+
+  /** Reports that the work of this span read the given number of bytes from files. */
+  void addBytesRead(long bytes);
+
+  /** Reports that the work of this span wrote the given number of bytes to files. */
+  void addBytesWritten(long bytes);
+
+  /** Ends the span. */
+  @Override
+  void close();
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.utils.tracing;
+
+/**
+ * Records the time and resources spent in the phases of a command.
+ *
+ * <p>Spans are typically opened in a try-with-resources block, on the thread doing the work:
+ *
+ * <pre>{@code
+ * try (TraceSpan span = tracer.startSpan("buildFromZip")) {
+ *   ...
+ * }
+ * }</pre>
+ *
+ * <p>Implementations must be thread-safe.
+ */
+public interface Tracer {
+
+  /** Tracer discarding all spans. */
+  Tracer NO_OP = name -> TraceSpan.NO_OP;
+
+  /**
+   * Starts a span for the phase with the given name.
+   *
+   * <p>Spans with the same name are aggregated together, so names should identify a phase rather
+   * than a single piece of work (e.g. "serializeApk" rather than the path of the APK).
+   */
+  TraceSpan startSpan(String name);
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.utils.tracing;
+
+import com.google.common.util.concurrent.AbstractListeningExecutorService;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ListeningExecutorService} running each task of another executor in its own span.
+ *
+ * <p>Spans measure the CPU time and allocations of the thread they run on, so the spans of a
+ * phase fanning out work to an executor only account for the thread coordinating the work. The
+ * spans of the tasks account for the worker threads.
+ *
+ * <p>Shutting down this executor shuts down the underlying executor.
+ */
+public final class TracingExecutorService extends AbstractListeningExecutorService {
+
+  private final ListeningExecutorService delegate;
+  private final Tracer tracer;
+  private final String taskSpanName;
+
+  public TracingExecutorService(
+      ListeningExecutorService delegate, Tracer tracer, String taskSpanName) {
+    this.delegate = delegate;
+    this.tracer = tracer;
+    this.taskSpanName = taskSpanName;
+  }
+
+  @Override
+  @SuppressWarnings("try") // The span only times the task.
+  public void execute(Runnable task) {
+    delegate.execute(
+        () -> {
+          try (TraceSpan span = tracer.startSpan(taskSpanName)) {
+            task.run();
+          }
+        });
+  }
+
+  @Override
+  public void shutdown() {
+    delegate.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    return delegate.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return delegate.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return delegate.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return delegate.awaitTermination(timeout, unit);
+  }
+}
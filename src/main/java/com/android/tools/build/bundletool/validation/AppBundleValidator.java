@@ -18,8 +18,12 @@ package com.android.tools.build.bundletool.validation;
 
 import com.android.tools.build.bundletool.exceptions.ValidationException;
 import com.android.tools.build.bundletool.model.AppBundle;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.util.zip.ZipFile;
 
 /** Validates the files and configuration for the bundle. */
@@ -56,15 +60,35 @@ public class AppBundleValidator {
    * Validates the given App Bundle zip file.
    *
    * <p>Note that this method performs different checks than {@link #validate(AppBundle)}.
+   *
+   * @throws ValidationException If the bundle file is invalid.
    */
-  public void validateFile(ZipFile bundleFile) {
+  public void validateFile(MappedZipFile bundleFile) {
     new ValidatorRunner(BUNDLE_FILE_SUB_VALIDATORS).validateBundleZipFile(bundleFile);
   }
 
+  /**
+   * Validates the given App Bundle zip file.
+   *
+   * <p>The bundle is opened again as a {@link MappedZipFile}, on which all the checks of {@link
+   * #validateFile(MappedZipFile)} are run.
+   *
+   * @throws ValidationException If the bundle file is invalid.
+   */
+  public void validateFile(ZipFile bundleFile) {
+    try (MappedZipFile mappedBundleFile = MappedZipFile.open(Paths.get(bundleFile.getName()))) {
+      validateFile(mappedBundleFile);
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          String.format("Error reading zip file '%s'.", bundleFile.getName()), e);
+    }
+  }
+
   /**
    * Validates the given App Bundle.
    *
-   * <p>Note that this method performs different checks than {@link #validateFile(ZipFile)}.
+   * <p>Note that this method performs different checks than {@link
+   * #validateFile(MappedZipFile)}.
    *
    * @throws ValidationException If the bundle is invalid.
    */
@@ -20,6 +20,7 @@ import static com.android.tools.build.bundletool.utils.files.FilePreconditions.c
 import static com.android.tools.build.bundletool.utils.files.FilePreconditions.checkFileNamesAreUnique;
 import static com.google.common.base.Predicates.not;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.io.MoreFiles.getNameWithoutExtension;
 
 import com.android.bundle.Config.BundleConfig;
@@ -31,6 +32,7 @@ import com.android.tools.build.bundletool.utils.ZipUtils;
 import com.android.tools.build.bundletool.version.BundleToolVersion;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Closer;
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -79,6 +81,16 @@ public class BundleModulesValidator {
           .build();
 
   public void validate(ImmutableList<Path> modulePaths) {
+    validate(modulePaths, ImmutableSet.of());
+  }
+
+  /**
+   * Validates the given modules, without validating again on their own the modules already known
+   * to be valid, typically because they have not changed since they were last validated.
+   *
+   * <p>The checks involving several modules are still run on all modules.
+   */
+  public void validate(ImmutableList<Path> modulePaths, ImmutableSet<Path> validModulePaths) {
     // Name of the module zip file is name of the module it contains. Therefore filenames must
     // be unique.
     checkFileNamesAreUnique("Modules", modulePaths);
@@ -89,7 +101,9 @@ public class BundleModulesValidator {
         checkFileHasExtension("Module", modulePath, ".zip");
         ZipFile moduleZip = closer.register(ZipUtils.openZipFile(modulePath));
         zipFileByPath.put(modulePath, moduleZip);
-        new ValidatorRunner(MODULE_FILE_SUB_VALIDATORS).validateModuleZipFile(moduleZip);
+        if (!validModulePaths.contains(modulePath)) {
+          new ValidatorRunner(MODULE_FILE_SUB_VALIDATORS).validateModuleZipFile(moduleZip);
+        }
       }
 
       ImmutableList<BundleModule> modules =
@@ -97,7 +111,11 @@ public class BundleModulesValidator {
               .map(entry -> toBundleModule(entry.getKey(), entry.getValue()))
               .collect(toImmutableList());
 
-      new ValidatorRunner(MODULES_SUB_VALIDATORS).validateBundleModules(modules);
+      ImmutableSet<BundleModuleName> validModuleNames =
+          validModulePaths.stream()
+              .map(modulePath -> BundleModuleName.create(getNameWithoutExtension(modulePath)))
+              .collect(toImmutableSet());
+      new ValidatorRunner(MODULES_SUB_VALIDATORS).validateBundleModules(modules, validModuleNames);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
@@ -17,16 +17,15 @@
 package com.android.tools.build.bundletool.validation;
 
 import com.android.tools.build.bundletool.exceptions.BundleFileTypesException.DirectoryInBundleException;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 
 /** Validates structure of the bundle zip file. */
 public class BundleZipValidator extends SubValidator {
 
   @Override
-  public void validateBundleZipEntry(ZipFile bundleFile, ZipEntry zipEntry) {
+  public void validateBundleZipEntry(MappedZipFile bundleFile, MappedZipFile.Entry zipEntry) {
     if (zipEntry.isDirectory()) {
-      throw new DirectoryInBundleException(zipEntry);
+      throw new DirectoryInBundleException(zipEntry.getName());
     }
   }
 }
@@ -24,10 +24,11 @@ import com.android.tools.build.bundletool.exceptions.BundleFileTypesException.Ma
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
-import java.util.Collections;
-import java.util.zip.ZipEntry;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 import java.util.zip.ZipFile;
 
 /** Validates presence of mandatory bundle/module files. */
@@ -39,43 +40,48 @@ public class MandatoryFilesPresenceValidator extends SubValidator {
   @Override
   public void validateModuleZipFile(ZipFile moduleFile) {
     checkModuleHasAndroidManifest(
-        moduleFile,
+        name -> moduleFile.getEntry(name) != null,
         /* moduleBaseDir= */ ZipPath.create(""),
         /* moduleName= */ Files.getNameWithoutExtension(moduleFile.getName()));
   }
 
   @Override
-  public void validateBundleZipFile(ZipFile bundleFile) {
+  public void validateBundleZipFile(MappedZipFile bundleFile) {
+    validateBundleEntries(
+        bundleFile.getEntries().stream().map(MappedZipFile.Entry::getName),
+        name -> bundleFile.getEntry(name).isPresent());
+  }
+
+  private static void validateBundleEntries(
+      Stream<String> entryNames, Predicate<String> hasEntry) {
     ImmutableSet<ZipPath> moduleDirectories =
-        Collections.list(bundleFile.entries())
-            .stream()
-            .map(ZipEntry::getName)
+        entryNames
             .map(ZipPath::create)
             .filter(entryPath -> entryPath.getNameCount() > 1)
             .map(entryPath -> entryPath.getName(0))
             .filter(not(NON_MODULE_DIRECTORIES::contains))
             .collect(toImmutableSet());
 
-    checkBundleHasBundleConfig(bundleFile);
+    checkBundleHasBundleConfig(hasEntry);
 
     for (ZipPath moduleDir : moduleDirectories) {
-      checkModuleHasAndroidManifest(bundleFile, moduleDir, /* moduleName= */ moduleDir.toString());
+      checkModuleHasAndroidManifest(hasEntry, moduleDir, /* moduleName= */ moduleDir.toString());
     }
   }
 
-  private static void checkBundleHasBundleConfig(ZipFile bundleFile) {
-    if (bundleFile.getEntry(AppBundle.BUNDLE_CONFIG_FILE_NAME) == null) {
+  private static void checkBundleHasBundleConfig(Predicate<String> hasEntry) {
+    if (!hasEntry.test(AppBundle.BUNDLE_CONFIG_FILE_NAME)) {
       throw new MandatoryBundleFileMissingException(
           ZipPath.create(AppBundle.BUNDLE_CONFIG_FILE_NAME));
     }
   }
 
   private static void checkModuleHasAndroidManifest(
-      ZipFile zipFile, ZipPath moduleBaseDir, String moduleName) {
+      Predicate<String> hasEntry, ZipPath moduleBaseDir, String moduleName) {
 
     ZipPath moduleManifestPath = moduleBaseDir.resolve(BundleModule.MANIFEST_PATH);
 
-    if (zipFile.getEntry(moduleManifestPath.toString()) == null) {
+    if (!hasEntry.test(moduleManifestPath.toString())) {
       throw new MandatoryModuleFileMissingException(moduleName, BundleModule.MANIFEST_PATH);
     }
   }
@@ -19,8 +19,8 @@ package com.android.tools.build.bundletool.validation;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import com.google.common.collect.ImmutableList;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 /**
@@ -37,9 +37,9 @@ abstract class SubValidator {
 
   // Validations of the App Bundle zip file.
 
-  public void validateBundleZipFile(ZipFile bundleFile) {}
+  public void validateBundleZipFile(MappedZipFile bundleFile) {}
 
-  public void validateBundleZipEntry(ZipFile bundleFile, ZipEntry zipEntry) {}
+  public void validateBundleZipEntry(MappedZipFile bundleFile, MappedZipFile.Entry zipEntry) {}
 
   // Validations of the AppBundle object and it's internals.
 
@@ -20,11 +20,12 @@ import static com.google.common.collect.ImmutableList.toImmutableList;
 
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.BundleModuleName;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import com.google.common.collect.ImmutableList;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
+import com.google.common.collect.ImmutableSet;
 import java.util.zip.ZipFile;
 
 /** Runs given set of validators. */
@@ -37,12 +38,10 @@ public class ValidatorRunner {
   }
 
   /** Validates the given App Bundle zip file. */
-  public void validateBundleZipFile(ZipFile bundleFile) {
+  public void validateBundleZipFile(MappedZipFile bundleFile) {
     subValidators.forEach(subValidator -> subValidator.validateBundleZipFile(bundleFile));
 
-    Enumeration<? extends ZipEntry> zipEntries = bundleFile.entries();
-    while (zipEntries.hasMoreElements()) {
-      ZipEntry zipEntry = zipEntries.nextElement();
+    for (MappedZipFile.Entry zipEntry : bundleFile.getEntries()) {
       subValidators.forEach(
           subValidator -> subValidator.validateBundleZipEntry(bundleFile, zipEntry));
     }
@@ -60,21 +59,36 @@ public class ValidatorRunner {
 
   /** Interprets given modules as a bundle and validates it. */
   public void validateBundleModules(ImmutableList<BundleModule> modules) {
+    validateBundleModules(modules, ImmutableSet.of());
+  }
+
+  /**
+   * Interprets given modules as a bundle and validates it, without validating again on their own
+   * the modules already known to be valid.
+   */
+  public void validateBundleModules(
+      ImmutableList<BundleModule> modules, ImmutableSet<BundleModuleName> validModules) {
     subValidators.forEach(
-        subValidator -> validateBundleModulesUsingSubValidator(modules, subValidator));
+        subValidator ->
+            validateBundleModulesUsingSubValidator(modules, validModules, subValidator));
   }
 
   private static void validateBundleUsingSubValidator(AppBundle bundle, SubValidator subValidator) {
     subValidator.validateBundle(bundle);
     validateBundleModulesUsingSubValidator(
-        ImmutableList.copyOf(bundle.getModules().values()), subValidator);
+        ImmutableList.copyOf(bundle.getModules().values()), ImmutableSet.of(), subValidator);
   }
 
   private static void validateBundleModulesUsingSubValidator(
-      ImmutableList<BundleModule> modules, SubValidator subValidator) {
+      ImmutableList<BundleModule> modules,
+      ImmutableSet<BundleModuleName> validModules,
+      SubValidator subValidator) {
     subValidator.validateAllModules(modules);
 
     for (BundleModule module : modules) {
+      if (validModules.contains(module.getName())) {
+        continue;
+      }
       subValidator.validateModule(module);
 
       for (ZipPath moduleFile : getModuleFiles(module)) {
@@ -22,14 +22,17 @@ import static com.android.tools.build.bundletool.testing.Aapt2Helper.AAPT2_PATH;
 import static com.android.tools.build.bundletool.testing.TestUtils.expectMissingRequiredBuilderPropertyException;
 import static com.android.tools.build.bundletool.testing.TestUtils.expectMissingRequiredFlagException;
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.Mockito.mock;
 
+import com.android.tools.build.bundletool.commands.BuildApksCommand.Aapt2Mode;
 import com.android.tools.build.bundletool.device.AdbServer;
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.exceptions.ValidationException;
 import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.Aapt2DaemonPool;
 import com.android.tools.build.bundletool.model.SigningConfiguration;
 import com.android.tools.build.bundletool.testing.Aapt2Helper;
 import com.android.tools.build.bundletool.testing.CertificateFactory;
@@ -38,11 +41,15 @@ import com.android.tools.build.bundletool.testing.FakeAndroidSerialVariableProvi
 import com.android.tools.build.bundletool.utils.EnvironmentVariableProvider;
 import com.android.tools.build.bundletool.utils.flags.FlagParser;
 import com.android.tools.build.bundletool.utils.flags.FlagParser.FlagParseException;
+import com.android.tools.build.bundletool.utils.tracing.RecordingTracer;
+import com.android.tools.build.bundletool.utils.tracing.Tracer;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.KeyPair;
@@ -132,6 +139,7 @@ public class BuildApksCommandTest {
             .setAapt2Command(commandViaFlags.getAapt2Command().get())
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
@@ -160,6 +168,7 @@ public class BuildApksCommandTest {
             .setAapt2Command(commandViaFlags.getAapt2Command().get())
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
@@ -195,6 +204,7 @@ public class BuildApksCommandTest {
             .setAapt2Command(commandViaFlags.getAapt2Command().get())
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
@@ -223,11 +233,195 @@ public class BuildApksCommandTest {
             .setAapt2Command(commandViaFlags.getAapt2Command().get())
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
   }
 
+  @Test
+  public void buildingViaFlagsAndBuilderHasSameResult_aapt2Mode() throws Exception {
+    BuildApksCommand commandViaFlags =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    // Optional values.
+                    "--aapt2-mode=in_process"),
+            fakeAdbServer);
+
+    BuildApksCommand commandViaBuilder =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputFilePath)
+            // Optional values.
+            .setAapt2Mode(Aapt2Mode.IN_PROCESS)
+            // Must copy instance of the internal executor service.
+            .setAapt2Command(commandViaFlags.getAapt2Command().get())
+            .setExecutorServiceInternal(commandViaFlags.getExecutorService())
+            .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
+            .build();
+
+    assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
+  }
+
+  @Test
+  public void aapt2ModeDaemon_aapt2PathFlag_createsDaemonPool() throws Exception {
+    BuildApksCommand command =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    "--aapt2-mode=daemon"),
+            fakeAdbServer);
+
+    assertThat(command.getAapt2Mode()).isEqualTo(Aapt2Mode.DAEMON);
+    assertThat(command.getAapt2Command().get()).isInstanceOf(Aapt2DaemonPool.class);
+  }
+
+  @Test
+  public void apkCacheDirFlag_createsApkCache() throws Exception {
+    BuildApksCommand command =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    "--apk-cache-dir=" + tmpDir.resolve("cache"),
+                    "--apk-cache-max-size-mb=10"),
+            fakeAdbServer);
+
+    assertThat(command.getApkCache().isPresent()).isTrue();
+    assertThat(Files.isDirectory(tmpDir.resolve("cache"))).isTrue();
+  }
+
+  @Test
+  public void serializationMemoryBudgetFlag_createsBudget() throws Exception {
+    BuildApksCommand command =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    "--serialization-memory-budget-mb=10"),
+            fakeAdbServer);
+
+    assertThat(command.getSerializationMemoryBudget().get().getBudgetBytes())
+        .isEqualTo(10L * 1024 * 1024);
+  }
+
+  @Test
+  public void apkCacheMaxSizeFlagWithoutDir_throws() throws Exception {
+    Throwable exception =
+        assertThrows(
+            CommandExecutionException.class,
+            () ->
+                BuildApksCommand.fromFlags(
+                    new FlagParser()
+                        .parse(
+                            "--bundle=" + bundlePath,
+                            "--output=" + outputFilePath,
+                            "--aapt2=" + AAPT2_PATH,
+                            "--apk-cache-max-size-mb=10"),
+                    fakeAdbServer));
+
+    assertThat(exception).hasMessageThat().contains("requires the flag --apk-cache-dir");
+  }
+
+  @Test
+  public void dexCacheDirFlag_createsDexMergeCache() throws Exception {
+    BuildApksCommand command =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    "--dex-cache-dir=" + tmpDir.resolve("dex-cache"),
+                    "--dex-cache-max-size-mb=10"),
+            fakeAdbServer);
+
+    assertThat(command.getDexMergeCache().isPresent()).isTrue();
+    assertThat(Files.isDirectory(tmpDir.resolve("dex-cache"))).isTrue();
+  }
+
+  @Test
+  public void dexCacheMaxSizeFlagWithoutDir_throws() throws Exception {
+    Throwable exception =
+        assertThrows(
+            CommandExecutionException.class,
+            () ->
+                BuildApksCommand.fromFlags(
+                    new FlagParser()
+                        .parse(
+                            "--bundle=" + bundlePath,
+                            "--output=" + outputFilePath,
+                            "--aapt2=" + AAPT2_PATH,
+                            "--dex-cache-max-size-mb=10"),
+                    fakeAdbServer));
+
+    assertThat(exception).hasMessageThat().contains("requires the flag --dex-cache-dir");
+  }
+
+  @Test
+  public void traceOutputFlag_setsTraceOutputDirectory() throws Exception {
+    BuildApksCommand command =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--bundle=" + bundlePath,
+                    "--output=" + outputFilePath,
+                    "--aapt2=" + AAPT2_PATH,
+                    "--trace-output=" + tmpDir.resolve("trace")),
+            fakeAdbServer);
+
+    assertThat(command.getTraceOutputDirectory()).hasValue(tmpDir.resolve("trace"));
+    assertThat(command.getTracer()).isEmpty();
+  }
+
+  @Test
+  public void tracerAndTraceOutputDirectory_throws() throws Exception {
+    Throwable exception =
+        assertThrows(
+            ValidationException.class,
+            () ->
+                BuildApksCommand.builder()
+                    .setBundlePath(bundlePath)
+                    .setOutputFile(outputFilePath)
+                    .setTracer(Tracer.NO_OP)
+                    .setTraceOutputDirectory(tmpDir.resolve("trace"))
+                    .build());
+
+    assertThat(exception)
+        .hasMessageThat()
+        .contains("Cannot set a tracer and a trace output directory at the same time.");
+  }
+
+  @Test
+  public void traceOutputDirectory_commandFails_traceWritten() throws Exception {
+    Path invalidBundlePath = Files.write(tmpDir.resolve("invalid.aab"), new byte[] {1, 2, 3});
+    Path traceDir = tmpDir.resolve("trace");
+    BuildApksCommand command =
+        BuildApksCommand.builder()
+            .setBundlePath(invalidBundlePath)
+            .setOutputFile(tmpDir.resolve("app.apks"))
+            .setAapt2Command(aapt2Command)
+            .setTraceOutputDirectory(traceDir)
+            .build();
+
+    assertThrows(RuntimeException.class, command::execute);
+
+    assertThat(Files.exists(traceDir.resolve(RecordingTracer.CHROME_TRACE_FILE_NAME))).isTrue();
+    assertThat(Files.exists(traceDir.resolve(RecordingTracer.SUMMARY_FILE_NAME))).isTrue();
+  }
+
   @Test
   public void buildingViaFlagsAndBuilderHasSameResult_optionalOverwrite() throws Exception {
     BuildApksCommand commandViaFlags =
@@ -250,6 +444,7 @@ public class BuildApksCommandTest {
             .setAapt2Command(commandViaFlags.getAapt2Command().get())
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
@@ -281,6 +476,7 @@ public class BuildApksCommandTest {
             .setAapt2Command(commandViaFlags.getAapt2Command().get())
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
@@ -314,6 +510,7 @@ public class BuildApksCommandTest {
             .setAapt2Command(commandViaFlags.getAapt2Command().get())
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
@@ -387,6 +584,27 @@ public class BuildApksCommandTest {
         .contains("Cannot generate universal APK and specify optimization dimensions");
   }
 
+  @Test
+  public void maxThreads_recordedAsExecutorServiceThreadCount() throws Exception {
+    BuildApksCommand commandViaFlags =
+        BuildApksCommand.fromFlags(
+            new FlagParser()
+                .parse("--bundle=" + bundlePath, "--output=" + outputFilePath, "--max-threads=3"),
+            fakeAdbServer);
+    BuildApksCommand commandWithDefaultExecutor =
+        BuildApksCommand.builder().setBundlePath(bundlePath).setOutputFile(outputFilePath).build();
+    BuildApksCommand commandWithClientExecutor =
+        BuildApksCommand.builder()
+            .setBundlePath(bundlePath)
+            .setOutputFile(outputFilePath)
+            .setExecutorService(MoreExecutors.newDirectExecutorService())
+            .build();
+
+    assertThat(commandViaFlags.getExecutorServiceThreadCount()).hasValue(3);
+    assertThat(commandWithDefaultExecutor.getExecutorServiceThreadCount()).hasValue(4);
+    assertThat(commandWithClientExecutor.getExecutorServiceThreadCount()).isEmpty();
+  }
+
   @Test
   public void nonPositiveMaxThreads_throws() throws Exception {
     FlagParseException zeroException =
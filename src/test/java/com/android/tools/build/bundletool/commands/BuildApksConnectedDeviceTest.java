@@ -124,6 +124,7 @@ public class BuildApksConnectedDeviceTest {
             // Must copy instance of the internal executor service.
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
@@ -157,6 +158,7 @@ public class BuildApksConnectedDeviceTest {
             // Must copy instance of the internal executor service.
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
@@ -189,6 +191,7 @@ public class BuildApksConnectedDeviceTest {
             // Must copy instance of the internal executor service.
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
@@ -107,6 +107,7 @@ public class BuildApksDeviceSpecTest {
             // Must copy instance of the internal executor service.
             .setExecutorServiceInternal(commandViaFlags.getExecutorService())
             .setExecutorServiceCreatedByBundleTool(true)
+            .setExecutorServiceThreadCount(commandViaFlags.getExecutorServiceThreadCount().get())
             .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
@@ -55,21 +55,31 @@ import com.android.bundle.Targeting.TextureCompressionFormat.TextureCompressionF
 import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.exceptions.ValidationException;
 import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
 import com.android.tools.build.bundletool.testing.ResourceTableBuilder;
 import com.android.tools.build.bundletool.utils.flags.FlagParser;
 import com.android.tools.build.bundletool.version.BundleToolVersion;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
 import com.google.common.truth.Truth;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -97,17 +107,20 @@ public class BuildBundleCommandTest {
   public void buildingViaFlagsAndBuilderHasSameResult() throws Exception {
     Path baseModulePath = buildSimpleModule("base");
     Path featureModulePath = buildSimpleModule("feature");
-    BuildBundleCommand commandViaBuilder =
-        BuildBundleCommand.builder()
-            .setOutputPath(bundlePath)
-            .setModulesPaths(ImmutableList.of(baseModulePath, featureModulePath))
-            .build();
     BuildBundleCommand commandViaFlags =
         BuildBundleCommand.fromFlags(
             new FlagParser()
                 .parse(
                     "--output=" + bundlePath,
                     "--modules=" + baseModulePath + "," + featureModulePath));
+    BuildBundleCommand commandViaBuilder =
+        BuildBundleCommand.builder()
+            .setOutputPath(bundlePath)
+            .setModulesPaths(ImmutableList.of(baseModulePath, featureModulePath))
+            // The executor service is created when parsing the flags.
+            .setExecutorService(commandViaFlags.getExecutorService().get())
+            .setExecutorServiceCreatedByBundleTool(true)
+            .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
   }
@@ -121,6 +134,15 @@ public class BuildBundleCommandTest {
         bundleConfigJsonPath,
         ("{ \"compression\": { \"uncompressedGlob\": [\"foo\"] } }").getBytes(UTF_8));
 
+    BuildBundleCommand commandViaFlags =
+        BuildBundleCommand.fromFlags(
+            new FlagParser()
+                .parse(
+                    "--output=" + bundlePath,
+                    "--modules=" + modulePath,
+                    // Optional values.
+                    "--config=" + bundleConfigJsonPath));
+
     BuildBundleCommand commandViaBuilder =
         BuildBundleCommand.builder()
             .setOutputPath(bundlePath)
@@ -130,17 +152,11 @@ public class BuildBundleCommandTest {
                 BundleConfig.newBuilder()
                     .setCompression(Compression.newBuilder().addUncompressedGlob("foo"))
                     .build())
+            // The executor service is created when parsing the flags.
+            .setExecutorService(commandViaFlags.getExecutorService().get())
+            .setExecutorServiceCreatedByBundleTool(true)
             .build();
 
-    BuildBundleCommand commandViaFlags =
-        BuildBundleCommand.fromFlags(
-            new FlagParser()
-                .parse(
-                    "--output=" + bundlePath,
-                    "--modules=" + modulePath,
-                    // Optional values.
-                    "--config=" + bundleConfigJsonPath));
-
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
   }
 
@@ -177,17 +193,45 @@ public class BuildBundleCommandTest {
   @Test
   public void buildingViaFlagsAndBuilderHasSameResult_optionalUncompressed() throws Exception {
     Path baseModulePath = buildSimpleModule("base");
+    BuildBundleCommand commandViaFlags =
+        BuildBundleCommand.fromFlags(
+            new FlagParser()
+                .parse("--output=" + bundlePath, "--modules=" + baseModulePath, "--uncompressed"));
+
     BuildBundleCommand commandViaBuilder =
         BuildBundleCommand.builder()
             .setOutputPath(bundlePath)
             .setModulesPaths(ImmutableList.of(baseModulePath))
             .setUncompressedBundle(true)
+            // The executor service is created when parsing the flags.
+            .setExecutorService(commandViaFlags.getExecutorService().get())
+            .setExecutorServiceCreatedByBundleTool(true)
             .build();
 
+    assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
+  }
+
+  @Test
+  public void buildingViaFlagsAndBuilderHasSameResult_optionalPreviousBundle() throws Exception {
+    Path baseModulePath = buildSimpleModule("base");
+    Path previousBundlePath = tmpDir.resolve("previous.aab");
     BuildBundleCommand commandViaFlags =
         BuildBundleCommand.fromFlags(
             new FlagParser()
-                .parse("--output=" + bundlePath, "--modules=" + baseModulePath, "--uncompressed"));
+                .parse(
+                    "--output=" + bundlePath,
+                    "--modules=" + baseModulePath,
+                    "--previous-bundle=" + previousBundlePath));
+
+    BuildBundleCommand commandViaBuilder =
+        BuildBundleCommand.builder()
+            .setOutputPath(bundlePath)
+            .setModulesPaths(ImmutableList.of(baseModulePath))
+            .setPreviousBundlePath(previousBundlePath)
+            // The executor service is created when parsing the flags.
+            .setExecutorService(commandViaFlags.getExecutorService().get())
+            .setExecutorServiceCreatedByBundleTool(true)
+            .build();
 
     assertThat(commandViaBuilder).isEqualTo(commandViaFlags);
   }
@@ -228,6 +272,176 @@ public class BuildBundleCommandTest {
     assertThat(bundle).hasFile("base/resources.pb").withContent(resourceTable.toByteArray());
   }
 
+  @Test
+  public void validModule_withExecutorService() throws Exception {
+    XmlNode manifest = androidManifest(PKG_NAME, withHasCode(true));
+    Path module =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("assets/anything.dat"), "any".getBytes(UTF_8))
+            .addFileWithContent(ZipPath.create("dex/classes.dex"), "dex".getBytes(UTF_8))
+            .addFileWithProtoContent(ZipPath.create("manifest/AndroidManifest.xml"), manifest)
+            .writeTo(tmpDir.resolve("base.zip"));
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+
+    try {
+      BuildBundleCommand.builder()
+          .setOutputPath(bundlePath)
+          .setModulesPaths(ImmutableList.of(module))
+          .setExecutorService(executorService)
+          .build()
+          .execute();
+    } finally {
+      executorService.shutdown();
+    }
+
+    ZipFile bundle = new ZipFile(bundlePath.toFile());
+    assertThat(bundle).hasFile("base/assets/anything.dat").withContent("any".getBytes(UTF_8));
+    assertThat(bundle).hasFile("base/dex/classes.dex").withContent("dex".getBytes(UTF_8));
+    assertThat(bundle)
+        .hasFile("base/manifest/AndroidManifest.xml")
+        .withContent(manifest.toByteArray());
+  }
+
+  @Test
+  public void previousBundle_someModulesChanged_sameAsCleanBuild() throws Exception {
+    Path baseModulePath = buildModuleWithUncompressedFiles("base", "base");
+    Path featureModulePath = buildModuleWithUncompressedFiles("feature", "feature");
+    ImmutableList<Path> modulePaths = ImmutableList.of(baseModulePath, featureModulePath);
+    Path previousBundlePath = tmpDir.resolve("previous.aab");
+    buildBundleWithExecutorService(previousBundlePath, modulePaths, Optional.empty());
+
+    Files.delete(featureModulePath);
+    buildModuleWithUncompressedFiles("feature", "changed feature");
+    Path cleanBundlePath = tmpDir.resolve("clean.aab");
+    buildBundleWithExecutorService(cleanBundlePath, modulePaths, Optional.empty());
+    buildBundleWithExecutorService(bundlePath, modulePaths, Optional.of(previousBundlePath));
+
+    assertThat(Files.readAllBytes(bundlePath)).isEqualTo(Files.readAllBytes(cleanBundlePath));
+    ZipFile bundle = new ZipFile(bundlePath.toFile());
+    assertThat(bundle).hasFile("base/dex/classes.dex").withContent(repeat("base"));
+    assertThat(bundle)
+        .hasFile("feature/assets/feature.bin")
+        .withContent(repeat("changed feature"));
+  }
+
+  @Test
+  public void previousBundle_unchangedModule_compressedEntriesCopied() throws Exception {
+    Path baseModulePath = buildModuleWithUncompressedFiles("base", "base");
+    Path previousBundlePath =
+        writeBundleWithoutCompression(
+            BundleToolVersion.getCurrentVersion().toString(),
+            ZipBuilder.getParallelCompressionComment(),
+            baseModulePath);
+
+    buildBundleWithExecutorService(
+        bundlePath, ImmutableList.of(baseModulePath), Optional.of(previousBundlePath));
+
+    try (ZipFile previousBundle = new ZipFile(previousBundlePath.toFile());
+        ZipFile bundle = new ZipFile(bundlePath.toFile())) {
+      assertThat(bundle.getEntry("base/dex/classes.dex").getCompressedSize())
+          .isEqualTo(previousBundle.getEntry("base/dex/classes.dex").getCompressedSize());
+      assertThat(bundle.getEntry("base/assets.pb").getCompressedSize())
+          .isEqualTo(previousBundle.getEntry("base/assets.pb").getCompressedSize());
+      assertThat(bundle).hasFile("base/dex/classes.dex").withContent(repeat("base"));
+    }
+  }
+
+  @Test
+  public void previousBundle_builtByOtherVersion_ignored() throws Exception {
+    Path baseModulePath = buildModuleWithUncompressedFiles("base", "base");
+    Path previousBundlePath =
+        writeBundleWithoutCompression(
+            "0.0.1", ZipBuilder.getParallelCompressionComment(), baseModulePath);
+
+    buildBundleWithExecutorService(
+        bundlePath, ImmutableList.of(baseModulePath), Optional.of(previousBundlePath));
+
+    try (ZipFile previousBundle = new ZipFile(previousBundlePath.toFile());
+        ZipFile bundle = new ZipFile(bundlePath.toFile())) {
+      assertThat(bundle.getEntry("base/dex/classes.dex").getCompressedSize())
+          .isLessThan(previousBundle.getEntry("base/dex/classes.dex").getCompressedSize());
+      assertThat(bundle).hasFile("base/dex/classes.dex").withContent(repeat("base"));
+    }
+  }
+
+  @Test
+  public void previousBundle_compressedDifferently_ignored() throws Exception {
+    Path baseModulePath = buildModuleWithUncompressedFiles("base", "base");
+    Path previousBundlePath =
+        writeBundleWithoutCompression(
+            BundleToolVersion.getCurrentVersion().toString(),
+            "bundletool-deflate: other",
+            baseModulePath);
+
+    buildBundleWithExecutorService(
+        bundlePath, ImmutableList.of(baseModulePath), Optional.of(previousBundlePath));
+
+    try (ZipFile previousBundle = new ZipFile(previousBundlePath.toFile());
+        ZipFile bundle = new ZipFile(bundlePath.toFile())) {
+      assertThat(bundle.getEntry("base/dex/classes.dex").getCompressedSize())
+          .isLessThan(previousBundle.getEntry("base/dex/classes.dex").getCompressedSize());
+      assertThat(bundle).hasFile("base/dex/classes.dex").withContent(repeat("base"));
+    }
+  }
+
+  @Test
+  public void previousBundle_entryLargerThanChunk_sameAsCleanBuild() throws Exception {
+    // Deflated in several chunks when written with an executor service.
+    Path baseModulePath = buildBaseModuleWithLargeUncompressedDex(3 * 1024 * 1024);
+    ImmutableList<Path> modulePaths = ImmutableList.of(baseModulePath);
+    Path parallelBundlePath = tmpDir.resolve("parallel.aab");
+    buildBundleWithExecutorService(parallelBundlePath, modulePaths, Optional.empty());
+    Path sequentialBundlePath = tmpDir.resolve("sequential.aab");
+    buildBundleSequentially(sequentialBundlePath, modulePaths, Optional.empty());
+
+    Path fromParallelPath = tmpDir.resolve("from-parallel.aab");
+    buildBundleWithExecutorService(fromParallelPath, modulePaths, Optional.of(parallelBundlePath));
+    Path fromSequentialPath = tmpDir.resolve("from-sequential.aab");
+    buildBundleWithExecutorService(
+        fromSequentialPath, modulePaths, Optional.of(sequentialBundlePath));
+    Path sequentialFromParallelPath = tmpDir.resolve("sequential-from-parallel.aab");
+    buildBundleSequentially(
+        sequentialFromParallelPath, modulePaths, Optional.of(parallelBundlePath));
+
+    assertThat(Files.readAllBytes(fromParallelPath))
+        .isEqualTo(Files.readAllBytes(parallelBundlePath));
+    assertThat(Files.readAllBytes(fromSequentialPath))
+        .isEqualTo(Files.readAllBytes(parallelBundlePath));
+    // Written sequentially, the entries hold the time at which they were written.
+    try (ZipFile parallelBundle = new ZipFile(parallelBundlePath.toFile());
+        ZipFile sequentialBundle = new ZipFile(sequentialBundlePath.toFile());
+        ZipFile sequentialFromParallel = new ZipFile(sequentialFromParallelPath.toFile())) {
+      assertThat(sequentialFromParallel.getEntry("base/dex/classes.dex").getCompressedSize())
+          .isEqualTo(sequentialBundle.getEntry("base/dex/classes.dex").getCompressedSize());
+      assertThat(sequentialFromParallel.getEntry("base/dex/classes.dex").getCompressedSize())
+          .isNotEqualTo(parallelBundle.getEntry("base/dex/classes.dex").getCompressedSize());
+    }
+  }
+
+  @Test
+  public void previousBundle_sameCrcAndSizeButDifferentContent_compressedAgain() throws Exception {
+    // Flipping the bits of the CRC-32 polynomial leaves the CRC-32 of the content unchanged.
+    byte[] content = repeat("base");
+    byte[] collidingContent = content.clone();
+    long polynomial = (0xEDB88320L << 1) | 1;
+    for (int i = 0; i < 5; i++) {
+      collidingContent[i] ^= (byte) (polynomial >>> (8 * i));
+    }
+    Path baseModulePath = buildBaseModuleWithDex(content);
+    Path previousBundlePath = tmpDir.resolve("previous.aab");
+    buildBundleWithExecutorService(
+        previousBundlePath, ImmutableList.of(baseModulePath), Optional.empty());
+
+    Files.delete(baseModulePath);
+    buildBaseModuleWithDex(collidingContent);
+    buildBundleWithExecutorService(
+        bundlePath, ImmutableList.of(baseModulePath), Optional.of(previousBundlePath));
+
+    ZipFile bundle = new ZipFile(bundlePath.toFile());
+    assertThat(bundle).hasFile("base/dex/classes.dex").withContent(collidingContent);
+  }
+
   @Test
   public void assetsTargeting_generated() throws Exception {
     XmlNode manifest = androidManifest(PKG_NAME, withHasCode(true));
@@ -833,6 +1047,116 @@ public class BuildBundleCommandTest {
     }
   }
 
+  /**
+   * Builds a module with an asset, and a dex file for the base module, made of the given text and
+   * not compressed.
+   */
+  private Path buildModuleWithUncompressedFiles(String moduleName, String text)
+      throws IOException {
+    ZipBuilder module =
+        new ZipBuilder()
+            .addFileWithContent(
+                ZipPath.create("assets/" + moduleName + ".bin"),
+                repeat(text),
+                EntryOption.UNCOMPRESSED);
+    if (moduleName.equals("base")) {
+      module
+          .addFileWithProtoContent(
+              ZipPath.create("manifest/AndroidManifest.xml"),
+              androidManifest(PKG_NAME, withHasCode(true)))
+          .addFileWithContent(
+              ZipPath.create("dex/classes.dex"), repeat(text), EntryOption.UNCOMPRESSED);
+    } else {
+      module.addFileWithProtoContent(
+          ZipPath.create("manifest/AndroidManifest.xml"),
+          androidManifest(PKG_NAME, withOnDemandAttribute(false), withFusingAttribute(true)));
+    }
+    return module.writeTo(tmpDir.resolve(moduleName + ".zip"));
+  }
+
+  /** Builds a base module with an uncompressed dex file of the given size. */
+  private Path buildBaseModuleWithLargeUncompressedDex(int size) throws IOException {
+    byte[] content = new byte[size];
+    Random random = new Random(42);
+    byte[] pattern = new byte[1000];
+    random.nextBytes(pattern);
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (i % 5000 < 1000) ? pattern[i % 1000] : (byte) random.nextInt(64);
+    }
+    return buildBaseModuleWithDex(content);
+  }
+
+  /** Builds a base module with an uncompressed dex file of the given content. */
+  private Path buildBaseModuleWithDex(byte[] content) throws IOException {
+    return new ZipBuilder()
+        .addFileWithProtoContent(
+            ZipPath.create("manifest/AndroidManifest.xml"),
+            androidManifest(PKG_NAME, withHasCode(true)))
+        .addFileWithContent(ZipPath.create("dex/classes.dex"), content, EntryOption.UNCOMPRESSED)
+        .writeTo(tmpDir.resolve("base.zip"));
+  }
+
+  /**
+   * Writes a bundle containing the files of the given base module and their generated targeting,
+   * deflated without compression so that its entries are larger than their content, with the given
+   * zip file comment.
+   */
+  private Path writeBundleWithoutCompression(
+      String bundletoolVersion, String comment, Path baseModulePath) throws IOException {
+    Path previousBundlePath = tmpDir.resolve("previous.aab");
+    try (ZipFile baseModule = new ZipFile(baseModulePath.toFile());
+        ZipOutputStream previousBundle =
+            new ZipOutputStream(Files.newOutputStream(previousBundlePath))) {
+      previousBundle.setLevel(Deflater.NO_COMPRESSION);
+      previousBundle.setComment(comment);
+      for (ZipEntry zipEntry : Collections.list(baseModule.entries())) {
+        previousBundle.putNextEntry(new ZipEntry("base/" + zipEntry.getName()));
+        ByteStreams.copy(baseModule.getInputStream(zipEntry), previousBundle);
+      }
+      previousBundle.putNextEntry(new ZipEntry("base/assets.pb"));
+      Assets.newBuilder()
+          .addDirectory(
+              TargetedAssetsDirectory.newBuilder()
+                  .setPath("assets")
+                  .setTargeting(AssetsDirectoryTargeting.getDefaultInstance()))
+          .build()
+          .writeTo(previousBundle);
+      previousBundle.putNextEntry(new ZipEntry("BundleConfig.pb"));
+      BundleConfigBuilder.create().setVersion(bundletoolVersion).build().writeTo(previousBundle);
+    }
+    return previousBundlePath;
+  }
+
+  private static void buildBundleWithExecutorService(
+      Path outputPath, ImmutableList<Path> modulePaths, Optional<Path> previousBundlePath) {
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+    try {
+      BuildBundleCommand.Builder command =
+          BuildBundleCommand.builder()
+              .setOutputPath(outputPath)
+              .setModulesPaths(modulePaths)
+              .setExecutorService(executorService);
+      previousBundlePath.ifPresent(command::setPreviousBundlePath);
+      command.build().execute();
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  private static void buildBundleSequentially(
+      Path outputPath, ImmutableList<Path> modulePaths, Optional<Path> previousBundlePath) {
+    BuildBundleCommand.Builder command =
+        BuildBundleCommand.builder().setOutputPath(outputPath).setModulesPaths(modulePaths);
+    previousBundlePath.ifPresent(command::setPreviousBundlePath);
+    command.build().execute();
+  }
+
+  /** Content compressible enough for compressed entries to be smaller than it. */
+  private static byte[] repeat(String text) {
+    return Strings.repeat(text, 1000).getBytes(UTF_8);
+  }
+
   private Path createSimpleBaseModule() throws IOException {
     return new ZipBuilder()
         .addFileWithProtoContent(
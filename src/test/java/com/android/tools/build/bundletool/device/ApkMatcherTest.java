@@ -623,6 +623,20 @@ public class ApkMatcherTest {
         .containsExactly(enApk, frApk);
   }
 
+  @Test
+  public void apkMatch_apkPathSharedByIdenticalSplits_returnedOnce() {
+    ZipPath sharedApk = ZipPath.create("master-en.apk");
+    BuildApksResult buildApksResult =
+        buildApksResult(
+            createVariant(
+                variantSdkTargeting(sdkVersionFrom(Versions.ANDROID_L_API_VERSION)),
+                splitApkSet("base", splitApkDescription(apkLanguageTargeting("en"), sharedApk)),
+                splitApkSet("base", splitApkDescription(apkLanguageTargeting("en"), sharedApk))));
+
+    assertThat(new ApkMatcher(lDeviceWithLocales("en-GB")).getMatchingApks(buildApksResult))
+        .containsExactly(sharedApk);
+  }
+
   @Test
   public void apkMatch_languageSplit_fallback() {
     ZipPath deEnFrFallbackApk = ZipPath.create("master-not-de-en-fr.apk");
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.apkMinSdkTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.variantMinSdkTargeting;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.bundle.Config.Compression;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.testing.BundleModuleBuilder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkCacheTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final String AAPT2_IDENTITY = "process:0123456789abcdef";
+
+  private Path tmpDir;
+  private Path cacheDir;
+
+  @Before
+  public void setUp() {
+    tmpDir = tmp.getRoot().toPath();
+    cacheDir = tmpDir.resolve("cache");
+  }
+
+  @Test
+  public void computeKey_identicalSplits_sameKey() throws Exception {
+    assertThat(computeKey(createSplit("dex content"), Compression.getDefaultInstance()))
+        .isEqualTo(computeKey(createSplit("dex content"), Compression.getDefaultInstance()));
+  }
+
+  @Test
+  public void computeKey_differentEntryContent_differentKey() throws Exception {
+    assertThat(computeKey(createSplit("dex content"), Compression.getDefaultInstance()))
+        .isNotEqualTo(computeKey(createSplit("other content"), Compression.getDefaultInstance()));
+  }
+
+  @Test
+  public void computeKey_differentApkTargeting_differentKey() throws Exception {
+    ModuleSplit split = createSplit("dex content");
+    ModuleSplit otherSplit = split.toBuilder().setApkTargeting(apkMinSdkTargeting(21)).build();
+
+    assertThat(computeKey(split, Compression.getDefaultInstance()))
+        .isNotEqualTo(computeKey(otherSplit, Compression.getDefaultInstance()));
+  }
+
+  @Test
+  public void computeKey_differentVariantTargeting_sameKey() throws Exception {
+    ModuleSplit split = createSplit("dex content");
+    ModuleSplit otherSplit =
+        split.toBuilder().setVariantTargeting(variantMinSdkTargeting(21)).build();
+
+    assertThat(computeKey(split, Compression.getDefaultInstance()))
+        .isEqualTo(computeKey(otherSplit, Compression.getDefaultInstance()));
+  }
+
+  @Test
+  public void computeKey_differentCompression_differentKey() throws Exception {
+    ModuleSplit split = createSplit("dex content");
+
+    assertThat(computeKey(split, Compression.getDefaultInstance()))
+        .isNotEqualTo(
+            computeKey(split, Compression.newBuilder().addUncompressedGlob("**.dex").build()));
+  }
+
+  @Test
+  public void computeKey_differentAapt2Identity_differentKey() throws Exception {
+    ModuleSplit split = createSplit("dex content");
+    Compression compression = Compression.getDefaultInstance();
+
+    assertThat(ApkCache.computeKey(split, "process:0123", compression, Optional.empty()))
+        .isNotEqualTo(ApkCache.computeKey(split, "daemon:0123", compression, Optional.empty()));
+    assertThat(ApkCache.computeKey(split, "process:0123", compression, Optional.empty()))
+        .isNotEqualTo(ApkCache.computeKey(split, "process:4567", compression, Optional.empty()));
+  }
+
+  @Test
+  public void copyTo_missThenHit() throws Exception {
+    ApkCache apkCache = new ApkCache(cacheDir, /* maxSizeBytes= */ 1024);
+    Path apk = createApk("apk.apk", 10);
+
+    assertThat(apkCache.copyTo("key", tmpDir.resolve("out1.apk"))).isFalse();
+    apkCache.put("key", apk);
+    assertThat(apkCache.copyTo("key", tmpDir.resolve("out/out2.apk"))).isTrue();
+
+    assertThat(Files.readAllBytes(tmpDir.resolve("out/out2.apk")))
+        .isEqualTo(Files.readAllBytes(apk));
+    assertThat(Files.exists(tmpDir.resolve("out1.apk"))).isFalse();
+    assertThat(apkCache.getStatistics().getHitCount()).isEqualTo(1);
+    assertThat(apkCache.getStatistics().getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void cacheSharedBetweenInstances() throws Exception {
+    new ApkCache(cacheDir, /* maxSizeBytes= */ 1024).put("key", createApk("apk.apk", 10));
+
+    ApkCache otherApkCache = new ApkCache(cacheDir, /* maxSizeBytes= */ 1024);
+
+    assertThat(otherApkCache.copyTo("key", tmpDir.resolve("out.apk"))).isTrue();
+  }
+
+  @Test
+  public void put_exceedsMaxSize_evictsLeastRecentlyUsed() throws Exception {
+    ApkCache apkCache = new ApkCache(cacheDir, /* maxSizeBytes= */ 250);
+    apkCache.put("first", createApk("first.apk", 100));
+    apkCache.put("second", createApk("second.apk", 100));
+    setLastModifiedTime("first", 1000);
+    setLastModifiedTime("second", 2000);
+    // Using "first" makes "second" the least recently used APK.
+    assertThat(apkCache.copyTo("first", tmpDir.resolve("out.apk"))).isTrue();
+
+    apkCache.put("third", createApk("third.apk", 100));
+
+    assertThat(Files.exists(cacheDir.resolve("first.apk"))).isTrue();
+    assertThat(Files.exists(cacheDir.resolve("second.apk"))).isFalse();
+    assertThat(Files.exists(cacheDir.resolve("third.apk"))).isTrue();
+    assertThat(apkCache.getStatistics().getEvictionCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void put_concurrentlySameKey() throws Exception {
+    ApkCache apkCache = new ApkCache(cacheDir, /* maxSizeBytes= */ 1024 * 1024);
+    Path apk = createApk("apk.apk", 1000);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    try {
+      for (int i = 0; i < 20; i++) {
+        futures.add(executor.submit(() -> apkCache.put("key", apk)));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(apkCache.copyTo("key", tmpDir.resolve("out.apk"))).isTrue();
+    assertThat(Files.readAllBytes(tmpDir.resolve("out.apk"))).isEqualTo(Files.readAllBytes(apk));
+  }
+
+  private Path createApk(String name, int size) throws Exception {
+    byte[] content = new byte[size];
+    content[0] = (byte) name.hashCode();
+    return Files.write(tmpDir.resolve(name), content);
+  }
+
+  private void setLastModifiedTime(String key, long millis) throws Exception {
+    Files.setLastModifiedTime(cacheDir.resolve(key + ".apk"), FileTime.fromMillis(millis));
+  }
+
+  private static String computeKey(ModuleSplit split, Compression compression) {
+    return ApkCache.computeKey(split, AAPT2_IDENTITY, compression, Optional.empty());
+  }
+
+  private static ModuleSplit createSplit(String dexContent) throws Exception {
+    return ModuleSplit.forModule(
+        new BundleModuleBuilder("base")
+            .addFile("dex/classes.dex", dexContent.getBytes(UTF_8))
+            .setManifest(androidManifest("com.test.app"))
+            .build());
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.io.ApkSerializationScheduler.BASE_MEMORY_FOOTPRINT_BYTES;
+import static com.android.tools.build.bundletool.io.ApkSerializationScheduler.ENTRY_OVERHEAD_BYTES;
+import static com.android.tools.build.bundletool.io.ApkSerializationScheduler.RESOURCE_TABLE_MEMORY_FACTOR;
+import static com.android.tools.build.bundletool.io.ApkSerializationScheduler.RESOURCE_TABLE_WEIGHT;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.aapt.Resources.ResourceTable;
+import com.android.bundle.Targeting.ApkTargeting;
+import com.android.bundle.Targeting.VariantTargeting;
+import com.android.tools.build.bundletool.model.AndroidManifest;
+import com.android.tools.build.bundletool.model.BundleModuleName;
+import com.android.tools.build.bundletool.model.InMemoryModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.testing.ResourceTableBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkSerializationSchedulerTest {
+
+  @Test
+  public void estimateCost_countsEntryOverheadAndSize() {
+    ModuleSplit emptySplit = createSplit(ImmutableList.of());
+    ModuleSplit split =
+        createSplit(
+            ImmutableList.of(
+                InMemoryModuleEntry.ofFile("assets/a.bin", new byte[100]),
+                InMemoryModuleEntry.ofFile("assets/b.bin", new byte[200])));
+
+    assertThat(
+            ApkSerializationScheduler.estimateCost(split)
+                - ApkSerializationScheduler.estimateCost(emptySplit))
+        .isEqualTo(2 * ENTRY_OVERHEAD_BYTES + 300);
+  }
+
+  @Test
+  public void estimateCost_countsWeightedResourceTable() {
+    ResourceTable resourceTable =
+        new ResourceTableBuilder()
+            .addPackage("com.test.app")
+            .addStringResource("text", "Hello world")
+            .build();
+    ModuleSplit splitWithoutResources = createSplit(ImmutableList.of());
+    ModuleSplit splitWithResources =
+        splitWithoutResources.toBuilder().setResourceTable(resourceTable).build();
+
+    assertThat(
+            ApkSerializationScheduler.estimateCost(splitWithResources)
+                - ApkSerializationScheduler.estimateCost(splitWithoutResources))
+        .isEqualTo(RESOURCE_TABLE_WEIGHT * resourceTable.getSerializedSize());
+  }
+
+  @Test
+  public void estimateMemoryFootprint_countsEntriesAndResourceTable() {
+    ResourceTable resourceTable =
+        new ResourceTableBuilder()
+            .addPackage("com.test.app")
+            .addStringResource("text", "Hello world")
+            .build();
+    ModuleSplit split =
+        createSplit(ImmutableList.of(InMemoryModuleEntry.ofFile("assets/a.bin", new byte[100])))
+            .toBuilder()
+            .setResourceTable(resourceTable)
+            .build();
+
+    assertThat(ApkSerializationScheduler.estimateMemoryFootprint(split))
+        .isEqualTo(
+            BASE_MEMORY_FOOTPRINT_BYTES
+                + 100
+                + RESOURCE_TABLE_MEMORY_FACTOR * resourceTable.getSerializedSize());
+  }
+
+  @Test
+  public void largestFirst_sortsByDecreasingCost() {
+    ImmutableMap<String, Long> estimatedCostByKey =
+        ImmutableMap.of("small", 10L, "large", 1000L, "medium", 100L);
+
+    assertThat(ApkSerializationScheduler.largestFirst(estimatedCostByKey))
+        .containsExactly("large", "medium", "small")
+        .inOrder();
+  }
+
+  @Test
+  public void largestFirst_equalCosts_keepIterationOrder() {
+    ImmutableMap<String, Long> estimatedCostByKey =
+        ImmutableMap.of("first", 10L, "large", 1000L, "second", 10L, "third", 10L);
+
+    assertThat(ApkSerializationScheduler.largestFirst(estimatedCostByKey))
+        .containsExactly("large", "first", "second", "third")
+        .inOrder();
+  }
+
+  private static ModuleSplit createSplit(ImmutableList<ModuleEntry> entries) {
+    return ModuleSplit.builder()
+        .setModuleName(BundleModuleName.create("base"))
+        .setEntries(entries)
+        .setAndroidManifest(AndroidManifest.create(androidManifest("com.test.app")))
+        .setVariantTargeting(VariantTargeting.getDefaultInstance())
+        .setApkTargeting(ApkTargeting.getDefaultInstance())
+        .setMasterSplit(true)
+        .build();
+  }
+}
@@ -36,8 +36,11 @@ import static com.google.common.truth.Truth8.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
 import static com.google.common.util.concurrent.MoreExecutors.newDirectExecutorService;
 import static java.util.function.Predicate.isEqual;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.android.aapt.Resources.XmlNode;
 import com.android.bundle.Commands.ApkDescription;
@@ -57,6 +60,7 @@ import com.android.tools.build.bundletool.io.ApkSetBuilderFactory.ApkSetBuilder;
 import com.android.tools.build.bundletool.model.Aapt2Command;
 import com.android.tools.build.bundletool.model.AndroidManifest;
 import com.android.tools.build.bundletool.model.ApkListener;
+import com.android.tools.build.bundletool.model.ApkListener.SerializationCost;
 import com.android.tools.build.bundletool.model.ApkModifier;
 import com.android.tools.build.bundletool.model.ApkModifier.ApkDescription.ApkType;
 import com.android.tools.build.bundletool.model.AppBundle;
@@ -66,6 +70,8 @@ import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
 import com.android.tools.build.bundletool.testing.Aapt2Helper;
 import com.android.tools.build.bundletool.testing.AppBundleBuilder;
+import com.android.tools.build.bundletool.utils.MemoryBudget;
+import com.android.tools.build.bundletool.utils.tracing.Tracer;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
@@ -950,6 +956,36 @@ public class ApkSerializerManagerTest {
     assertThat(apkDescArg.getAllValues()).containsExactlyElementsIn(getApkDescriptions(variants));
   }
 
+  @Test
+  public void serializeApks_serializationCostReported() throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule("base", module -> module.setManifest(androidManifest("com.test.app")))
+            .build();
+    ModuleSplit masterSplitApk = createMasterModuleSplit("base");
+    ModuleSplit configSplitApk = createConfigModuleSplit("base", "x86", apkAbiTargeting(X86));
+    GeneratedApks generatedApks =
+        GeneratedApks.builder()
+            .setSplitApks(ImmutableList.of(masterSplitApk, configSplitApk))
+            .build();
+
+    ApkListener apkListener = Mockito.mock(ApkListener.class);
+    ApkSerializerManager apkSerializerManager =
+        createApkSerializerManager(appBundle, apkListener, ApkModifier.NO_OP);
+
+    ImmutableList<Variant> variants = apkSerializerManager.serializeApks(generatedApks);
+
+    ArgumentCaptor<ApkDescription> apkDescArg = ArgumentCaptor.forClass(ApkDescription.class);
+    ArgumentCaptor<SerializationCost> costArg = ArgumentCaptor.forClass(SerializationCost.class);
+    verify(apkListener, times(2)).onApkSerialized(apkDescArg.capture(), costArg.capture());
+    assertThat(apkDescArg.getAllValues()).containsExactlyElementsIn(getApkDescriptions(variants));
+    for (SerializationCost cost : costArg.getAllValues()) {
+      assertThat(cost.getEstimatedCost()).isGreaterThan(0L);
+      assertThat(cost.getActualDuration().isNegative()).isFalse();
+      assertThat(cost.getEstimatedMemoryBytes()).isGreaterThan(0L);
+    }
+  }
+
   @Test
   public void serializeApksForDevice_apkCreationHandlerInvoked() throws Exception {
     AppBundle appBundle =
@@ -998,6 +1034,42 @@ public class ApkSerializerManagerTest {
     assertThat(apkDescArg.getAllValues()).containsExactlyElementsIn(getApkDescriptions(variants));
   }
 
+  @Test
+  public void serializeApks_apkFails_memoryReleasedAndNoMoreApksSubmitted() throws Exception {
+    AppBundle appBundle =
+        new AppBundleBuilder()
+            .addModule("base", module -> module.setManifest(androidManifest("com.test.app")))
+            .build();
+    GeneratedApks generatedApks =
+        GeneratedApks.builder()
+            .setSplitApks(
+                ImmutableList.of(
+                    createMasterModuleSplit("base"),
+                    createConfigModuleSplit("base", "x86", apkAbiTargeting(X86))))
+            .build();
+    ApkSetBuilder failingApkSetBuilder = Mockito.mock(ApkSetBuilder.class);
+    when(failingApkSetBuilder.addSplitApk(any())).thenThrow(new IllegalStateException("Boom."));
+    // Only one APK fits in the budget at a time.
+    MemoryBudget memoryBudget = new MemoryBudget(/* budgetBytes= */ 1);
+    ApkSerializerManager apkSerializerManager =
+        new ApkSerializerManager(
+            appBundle,
+            failingApkSetBuilder,
+            newDirectExecutorService(),
+            ApkListener.NO_OP,
+            ApkModifier.NO_OP,
+            /* firstVariantNumber= */ 0,
+            Tracer.NO_OP,
+            memoryBudget);
+
+    assertThrows(RuntimeException.class, () -> apkSerializerManager.serializeApks(generatedApks));
+
+    verify(failingApkSetBuilder).addSplitApk(any());
+    // The memory of the failed APK was released, so the second APK could reserve its own.
+    assertThat(memoryBudget.getStatistics().getReservationCount()).isEqualTo(2);
+    assertThat(memoryBudget.getStatistics().getPeakReservedBytes()).isEqualTo(1);
+  }
+
   private static ImmutableList<ApkDescription> getApkDescriptions(ImmutableList<Variant> variants) {
     return variants
         .stream()
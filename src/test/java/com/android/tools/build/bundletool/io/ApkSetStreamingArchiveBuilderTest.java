@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.utils.FileNames.TABLE_OF_CONTENTS_FILE;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.bundle.Commands.ApkDescription;
+import com.android.bundle.Commands.BuildApksResult;
+import com.android.bundle.Config.Compression;
+import com.android.tools.build.bundletool.io.ApkSetBuilderFactory.ApkSetStreamingArchiveBuilder;
+import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.ModuleSplit;
+import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
+import com.android.tools.build.bundletool.testing.BundleModuleBuilder;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ApkSetStreamingArchiveBuilderTest {
+
+  private static final Aapt2Command NO_OP_AAPT2 = (protoApk, binaryApk) -> {};
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+  private Path tempFolder;
+  private ApkSetStreamingArchiveBuilder apkSetBuilder; // object under test.
+
+  @Before
+  public void setUp() throws Exception {
+    tempFolder = tmp.newFolder("temp").toPath();
+    apkSetBuilder =
+        new ApkSetStreamingArchiveBuilder(
+            new FakeSplitApkSerializer(), new FakeStandaloneApkSerializer(), tempFolder);
+  }
+
+  @Test
+  public void apksAreStoredUncompressedWithValidCrc() throws Exception {
+    ApkDescription split = apkSetBuilder.addSplitApk(createSplit(SplitType.SPLIT));
+    ApkDescription standalone = apkSetBuilder.addStandaloneApk(createSplit(SplitType.STANDALONE));
+    Path apkSetPath = tmp.getRoot().toPath().resolve("test.apks");
+    apkSetBuilder.writeTo(apkSetPath);
+
+    try (ZipFile apkSet = new ZipFile(apkSetPath.toFile())) {
+      for (ApkDescription apkDescription : new ApkDescription[] {split, standalone}) {
+        ZipEntry entry = apkSet.getEntry(apkDescription.getPath());
+        assertThat(entry).isNotNull();
+        assertThat(entry.getMethod()).isEqualTo(ZipEntry.STORED);
+        byte[] content;
+        try (InputStream is = apkSet.getInputStream(entry)) {
+          content = ByteStreams.toByteArray(is);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        assertThat(entry.getCrc()).isEqualTo(crc.getValue());
+        assertThat(entry.getSize()).isEqualTo(content.length);
+      }
+    }
+  }
+
+  @Test
+  public void apksAddedConcurrently() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<ApkDescription>> apkDescriptions = new ArrayList<>();
+    try {
+      for (int i = 0; i < 20; i++) {
+        ModuleSplit split = createSplit("module" + i, SplitType.SPLIT);
+        apkDescriptions.add(executor.submit(() -> apkSetBuilder.addSplitApk(split)));
+      }
+      for (Future<ApkDescription> apkDescription : apkDescriptions) {
+        apkDescription.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    Path apkSetPath = tmp.getRoot().toPath().resolve("test.apks");
+    apkSetBuilder.writeTo(apkSetPath);
+
+    try (ZipFile apkSet = new ZipFile(apkSetPath.toFile())) {
+      assertThat(apkSet.size()).isEqualTo(20);
+      for (Future<ApkDescription> apkDescription : apkDescriptions) {
+        assertThat(apkSet.getEntry(apkDescription.get().getPath())).isNotNull();
+      }
+    }
+  }
+
+  @Test
+  public void archivedApksAreDeletedFromTempDirectory() throws Exception {
+    ApkDescription apkDescription = apkSetBuilder.addSplitApk(createSplit(SplitType.SPLIT));
+
+    assertThat(Files.exists(tempFolder.resolve(apkDescription.getPath()))).isFalse();
+  }
+
+  @Test
+  public void tableOfContentsIsWritten() throws Exception {
+    apkSetBuilder.addSplitApk(createSplit(SplitType.SPLIT));
+    apkSetBuilder.setTableOfContentsFile(BuildApksResult.getDefaultInstance());
+    Path apkSetPath = tmp.getRoot().toPath().resolve("test.apks");
+    apkSetBuilder.writeTo(apkSetPath);
+
+    try (ZipFile apkSet = new ZipFile(apkSetPath.toFile())) {
+      assertThat(apkSet.getEntry(TABLE_OF_CONTENTS_FILE)).isNotNull();
+    }
+  }
+
+  @Test
+  public void nothingWrittenToDestinationBeforeWriteTo() throws Exception {
+    Path apkSetPath = tmp.getRoot().toPath().resolve("test.apks");
+
+    apkSetBuilder.addSplitApk(createSplit(SplitType.SPLIT));
+
+    assertThat(Files.exists(apkSetPath)).isFalse();
+  }
+
+  @Test
+  public void close_withoutWriteTo_temporaryArchiveDeleted() throws Exception {
+    apkSetBuilder.addSplitApk(createSplit(SplitType.SPLIT));
+
+    apkSetBuilder.close();
+
+    try (Stream<Path> files = Files.list(tempFolder)) {
+      assertThat(files.filter(Files::isRegularFile).collect(toImmutableList())).isEmpty();
+    }
+  }
+
+  @Test
+  public void close_afterWriteTo_apkSetKept() throws Exception {
+    apkSetBuilder.addSplitApk(createSplit(SplitType.SPLIT));
+    Path apkSetPath = tmp.getRoot().toPath().resolve("test.apks");
+    apkSetBuilder.writeTo(apkSetPath);
+
+    apkSetBuilder.close();
+
+    try (ZipFile apkSet = new ZipFile(apkSetPath.toFile())) {
+      assertThat(apkSet.size()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void closed_addingApk_throws() throws Exception {
+    apkSetBuilder.close();
+
+    assertThrows(
+        IllegalStateException.class,
+        () -> apkSetBuilder.addSplitApk(createSplit(SplitType.SPLIT)));
+  }
+
+  @Test
+  public void sameApkAddedTwice_throws() throws Exception {
+    apkSetBuilder.addStandaloneUniversalApk(createSplit(SplitType.STANDALONE));
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> apkSetBuilder.addStandaloneUniversalApk(createSplit(SplitType.STANDALONE)));
+  }
+
+  @Test
+  public void identicalApks_storedUnderOwnPaths() throws Exception {
+    apkSetBuilder =
+        new ApkSetStreamingArchiveBuilder(
+            new FakeSplitApkSerializer(/* identicalContent= */ true),
+            new FakeStandaloneApkSerializer(),
+            tempFolder);
+    ApkDescription first = apkSetBuilder.addSplitApk(createSplit("module1", SplitType.SPLIT));
+    ApkDescription second = apkSetBuilder.addSplitApk(createSplit("module2", SplitType.SPLIT));
+    Path apkSetPath = tmp.getRoot().toPath().resolve("test.apks");
+    apkSetBuilder.writeTo(apkSetPath);
+
+    assertThat(first.getPath()).isEqualTo("splits/module1-master.apk");
+    assertThat(second.getPath()).isEqualTo("splits/module2-master.apk");
+    try (ZipFile apkSet = new ZipFile(apkSetPath.toFile())) {
+      assertThat(apkSet.size()).isEqualTo(2);
+      assertThat(apkSet.getEntry(first.getPath())).isNotNull();
+      assertThat(apkSet.getEntry(second.getPath())).isNotNull();
+    }
+  }
+
+  @Test
+  public void identicalApks_samePath_throws() throws Exception {
+    apkSetBuilder.addSplitApk(createSplit(SplitType.SPLIT));
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> apkSetBuilder.addSplitApk(createSplit(SplitType.SPLIT)));
+  }
+
+  /** Writes APKs of a few hundred KB of arbitrary content, without needing aapt2. */
+  private static ApkDescription writeFakeApk(Path outputDirectory, String apkPath) {
+    return writeFakeApk(outputDirectory, apkPath, apkPath.hashCode());
+  }
+
+  private static ApkDescription writeFakeApk(
+      Path outputDirectory, String apkPath, long contentSeed) {
+    byte[] content = new byte[300_000];
+    new Random(contentSeed).nextBytes(content);
+    try {
+      Path apk = outputDirectory.resolve(apkPath);
+      Files.createDirectories(apk.getParent());
+      Files.write(apk, content);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return ApkDescription.newBuilder().setPath(apkPath).build();
+  }
+
+  private static class FakeSplitApkSerializer extends SplitApkSerializer {
+    private final boolean identicalContent;
+
+    FakeSplitApkSerializer() {
+      this(/* identicalContent= */ false);
+    }
+
+    FakeSplitApkSerializer(boolean identicalContent) {
+      super(
+          new ApkPathManager(),
+          NO_OP_AAPT2,
+          Optional.empty(),
+          Compression.getDefaultInstance());
+      this.identicalContent = identicalContent;
+    }
+
+    @Override
+    public ApkDescription writeSplitToDisk(ModuleSplit split, Path outputDirectory) {
+      String apkPath = "splits/" + split.getModuleName().getName() + "-master.apk";
+      return identicalContent
+          ? writeFakeApk(outputDirectory, apkPath, /* contentSeed= */ 0)
+          : writeFakeApk(outputDirectory, apkPath);
+    }
+  }
+
+  private static class FakeStandaloneApkSerializer extends StandaloneApkSerializer {
+    FakeStandaloneApkSerializer() {
+      super(
+          new ApkPathManager(),
+          NO_OP_AAPT2,
+          Optional.empty(),
+          Compression.getDefaultInstance());
+    }
+
+    @Override
+    public ApkDescription writeToDisk(ModuleSplit split, Path outputDirectory) {
+      return writeFakeApk(outputDirectory, "standalones/standalone.apk");
+    }
+
+    @Override
+    public ApkDescription writeToDiskAsUniversal(ModuleSplit split, Path outputDirectory) {
+      return writeFakeApk(outputDirectory, "universal.apk");
+    }
+  }
+
+  private static ModuleSplit createSplit(SplitType splitType) throws Exception {
+    return createSplit("testModule", splitType);
+  }
+
+  private static ModuleSplit createSplit(String moduleName, SplitType splitType)
+      throws Exception {
+    BundleModule testModule =
+        new BundleModuleBuilder(moduleName).setManifest(androidManifest("com.test.app")).build();
+    ModuleSplit split =
+        ModuleSplit.forModule(testModule).toBuilder().setSplitType(splitType).build();
+    return split.writeSplitIdInManifest(split.getSuffix());
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.io;
+
+import static com.android.tools.build.bundletool.testing.truth.zip.TruthZip.assertThat;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.io.ParallelZipWriter.Zip64RequiredException;
+import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParallelZipWriter}. */
+@RunWith(JUnit4.class)
+public class ParallelZipWriterTest {
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+  private Path tmpDir;
+
+  private ListeningExecutorService executorService;
+
+  @Before
+  public void setUp() throws Exception {
+    tmpDir = tmp.getRoot().toPath();
+    executorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3));
+  }
+
+  @After
+  public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  public void streamedEntries_sameBytesAsInMemory() throws Exception {
+    byte[] largeContent = compressibleContent(ParallelZipWriter.CHUNK_SIZE * 7 / 2);
+    byte[] chunkSizedContent = compressibleContent(ParallelZipWriter.CHUNK_SIZE);
+    ZipBuilder zipBuilder =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("small"), "1111".getBytes(UTF_8))
+            .addFileWithContent(ZipPath.create("large"), largeContent)
+            .addFileWithContent(ZipPath.create("chunk"), chunkSizedContent)
+            .addFileWithContent(
+                ZipPath.create("uncompressed"), "2222".getBytes(UTF_8), EntryOption.UNCOMPRESSED)
+            .addFileWithContent(ZipPath.create("empty"), new byte[0]);
+    Path inMemoryPath = tmpDir.resolve("in-memory.zip");
+    Path streamedPath = tmpDir.resolve("streamed.zip");
+
+    new ParallelZipWriter(executorService).write(zipBuilder.getEntries(), inMemoryPath);
+    new ParallelZipWriter(
+            executorService, /* inMemoryMaxSize= */ 0, RawZipEntryWriter.ZIP64_MIN_SIZE)
+        .write(zipBuilder.getEntries(), streamedPath);
+
+    assertThat(Files.readAllBytes(streamedPath)).isEqualTo(Files.readAllBytes(inMemoryPath));
+    try (ZipFile zipFile = new ZipFile(streamedPath.toFile())) {
+      assertThat(zipFile).hasFile("small").withContent("1111".getBytes(UTF_8)).thatIsCompressed();
+      assertThat(zipFile).hasFile("large").withContent(largeContent).thatIsCompressed();
+      assertThat(zipFile).hasFile("chunk").withContent(chunkSizedContent).thatIsCompressed();
+      assertThat(zipFile)
+          .hasFile("uncompressed")
+          .withContent("2222".getBytes(UTF_8))
+          .thatIsUncompressed();
+      assertThat(zipFile).hasFile("empty").withContent(new byte[0]);
+    }
+  }
+
+  @Test
+  public void largeEntryFromZip_streamedWithoutBeingRead() throws Exception {
+    byte[] largeContent = compressibleContent(ParallelZipWriter.CHUNK_SIZE * 3 / 2);
+    Path sourceZipPath = tmpDir.resolve("source.zip");
+    try (ZipOutputStream zipOutputStream =
+        new ZipOutputStream(Files.newOutputStream(sourceZipPath))) {
+      ZipEntry storedEntry = new ZipEntry("stored");
+      storedEntry.setMethod(ZipEntry.STORED);
+      storedEntry.setSize(largeContent.length);
+      storedEntry.setCrc(crc32(largeContent));
+      zipOutputStream.putNextEntry(storedEntry);
+      zipOutputStream.write(largeContent);
+      zipOutputStream.closeEntry();
+    }
+    Path outputPath = tmpDir.resolve("result.zip");
+
+    try (ZipFile sourceZip = new ZipFile(sourceZipPath.toFile())) {
+      ZipBuilder zipBuilder =
+          new ZipBuilder()
+              .addFileFromZip(ZipPath.create("deflated"), sourceZip, sourceZip.getEntry("stored"));
+      new ParallelZipWriter(
+              executorService,
+              /* inMemoryMaxSize= */ ParallelZipWriter.CHUNK_SIZE,
+              RawZipEntryWriter.ZIP64_MIN_SIZE)
+          .write(zipBuilder.getEntries(), outputPath);
+    }
+
+    try (ZipFile zipFile = new ZipFile(outputPath.toFile())) {
+      assertThat(zipFile).hasFile("deflated").withContent(largeContent).thatIsCompressed();
+    }
+  }
+
+  @Test
+  public void entryRequiringZip64_throws() throws Exception {
+    ZipBuilder zipBuilder =
+        new ZipBuilder()
+            .addFileWithContent(
+                ZipPath.create("uncompressed"), new byte[2000], EntryOption.UNCOMPRESSED);
+
+    assertThrows(
+        Zip64RequiredException.class,
+        () ->
+            new ParallelZipWriter(
+                    executorService,
+                    ParallelZipWriter.IN_MEMORY_MAX_SIZE,
+                    /* zip64MinSize= */ 1000)
+                .write(zipBuilder.getEntries(), tmpDir.resolve("result.zip")));
+  }
+
+  @Test
+  public void streamedEntryRequiringZip64_throws() throws Exception {
+    ZipBuilder zipBuilder =
+        new ZipBuilder()
+            .addFileWithContent(
+                ZipPath.create("large"), compressibleContent(ParallelZipWriter.CHUNK_SIZE));
+
+    assertThrows(
+        Zip64RequiredException.class,
+        () ->
+            new ParallelZipWriter(
+                    executorService,
+                    /* inMemoryMaxSize= */ 0,
+                    /* zip64MinSize= */ ParallelZipWriter.CHUNK_SIZE / 2)
+                .write(zipBuilder.getEntries(), tmpDir.resolve("result.zip")));
+  }
+
+  @Test
+  public void zipFileRequiringZip64_throws() throws Exception {
+    ZipBuilder zipBuilder = new ZipBuilder();
+    for (int i = 0; i < 10; i++) {
+      zipBuilder.addFileWithContent(
+          ZipPath.create("file" + i), new byte[200], EntryOption.UNCOMPRESSED);
+    }
+
+    assertThrows(
+        Zip64RequiredException.class,
+        () ->
+            new ParallelZipWriter(
+                    executorService,
+                    ParallelZipWriter.IN_MEMORY_MAX_SIZE,
+                    /* zip64MinSize= */ 1000)
+                .write(zipBuilder.getEntries(), tmpDir.resolve("result.zip")));
+  }
+
+  /** Returns content with repetitions spanning chunk boundaries. */
+  private static byte[] compressibleContent(int size) {
+    byte[] content = new byte[size];
+    Random random = new Random(42);
+    byte[] pattern = new byte[1000];
+    random.nextBytes(pattern);
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (i % 5000 < 1000) ? pattern[i % 1000] : (byte) random.nextInt();
+    }
+    return content;
+  }
+
+  private static long crc32(byte[] content) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(content);
+    return crc32.getValue();
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.model.MappedModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleEntry;
+import com.android.tools.build.bundletool.model.ModuleZipEntry;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RawZipEntryWriterTest {
+
+  private static final byte[] DEX_CONTENT = Strings.repeat("dex", 1000).getBytes(UTF_8);
+  private static final byte[] LIB_CONTENT = Strings.repeat("lib", 1000).getBytes(UTF_8);
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+  private Path bundlePath;
+  private ZipFile bundle;
+
+  @Before
+  public void setUp() throws Exception {
+    tmpDir = tmp.getRoot().toPath();
+    bundlePath = tmpDir.resolve("bundle.aab");
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(bundlePath))) {
+      out.putNextEntry(new ZipEntry("base/"));
+      addDeflatedEntry(out, "base/dex/classes.dex", DEX_CONTENT);
+      addDeflatedEntry(out, "base/lib/x86/libfoo.so", LIB_CONTENT);
+      addStoredEntry(out, "base/assets/stored.bin", DEX_CONTENT);
+    }
+    bundle = new ZipFile(bundlePath.toFile());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    bundle.close();
+  }
+
+  @Test
+  public void canCopyRaw_onlyDeflatedFiles() throws Exception {
+    RawZipEntryWriter writer = new RawZipEntryWriter();
+
+    assertThat(writer.canCopyRaw(moduleEntry("base/dex/classes.dex"))).isTrue();
+    assertThat(writer.canCopyRaw(moduleEntry("base/assets/stored.bin"))).isFalse();
+  }
+
+  @Test
+  public void write_copiesCompressedEntries() throws Exception {
+    Path output = tmpDir.resolve("raw.zip");
+
+    new RawZipEntryWriter()
+        .write(
+            ImmutableMap.<String, ModuleEntry>of(
+                "classes.dex", moduleEntry("base/dex/classes.dex"),
+                "lib/x86/libfoo.so", moduleEntry("base/lib/x86/libfoo.so")),
+            output);
+
+    try (ZipFile zipFile = new ZipFile(output.toFile())) {
+      assertThat(Collections.list(zipFile.entries()).stream().map(ZipEntry::getName).toArray())
+          .asList()
+          .containsExactly("classes.dex", "lib/x86/libfoo.so")
+          .inOrder();
+      assertSameEntry(zipFile, "classes.dex", "base/dex/classes.dex", DEX_CONTENT);
+      assertSameEntry(zipFile, "lib/x86/libfoo.so", "base/lib/x86/libfoo.so", LIB_CONTENT);
+    }
+  }
+
+  @Test
+  public void write_unsupportedEntry_throws() throws Exception {
+    Path output = tmpDir.resolve("raw.zip");
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new RawZipEntryWriter()
+                .write(
+                    ImmutableMap.<String, ModuleEntry>of(
+                        "stored.bin", moduleEntry("base/assets/stored.bin")),
+                    output));
+  }
+
+  @Test
+  public void write_copiesCompressedMappedEntries() throws Exception {
+    Path output = tmpDir.resolve("raw.zip");
+
+    try (MappedZipFile mappedBundle = MappedZipFile.open(bundlePath)) {
+      MappedModuleEntry dexEntry =
+          MappedModuleEntry.fromBundleZipEntry(
+              mappedBundle.getEntry("base/dex/classes.dex").get());
+      assertThat(new RawZipEntryWriter().canCopyRaw(dexEntry)).isTrue();
+
+      new RawZipEntryWriter().write(ImmutableMap.of("classes.dex", dexEntry), output);
+    }
+
+    try (ZipFile zipFile = new ZipFile(output.toFile())) {
+      assertSameEntry(zipFile, "classes.dex", "base/dex/classes.dex", DEX_CONTENT);
+    }
+  }
+
+  private void assertSameEntry(ZipFile zipFile, String name, String bundleName, byte[] content)
+      throws Exception {
+    ZipEntry entry = zipFile.getEntry(name);
+    ZipEntry bundleEntry = bundle.getEntry(bundleName);
+    assertThat(entry.getMethod()).isEqualTo(ZipEntry.DEFLATED);
+    assertThat(entry.getCompressedSize()).isEqualTo(bundleEntry.getCompressedSize());
+    assertThat(entry.getCrc()).isEqualTo(bundleEntry.getCrc());
+    try (InputStream in = zipFile.getInputStream(entry)) {
+      assertThat(ByteStreams.toByteArray(in)).isEqualTo(content);
+    }
+  }
+
+  private ModuleZipEntry moduleEntry(String name) {
+    return ModuleZipEntry.fromBundleZipEntry(bundle.getEntry(name), bundle);
+  }
+
+  private static void addDeflatedEntry(ZipOutputStream out, String name, byte[] content)
+      throws Exception {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content);
+    out.closeEntry();
+  }
+
+  private static void addStoredEntry(ZipOutputStream out, String name, byte[] content)
+      throws Exception {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(content.length);
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    entry.setCrc(crc.getValue());
+    out.putNextEntry(entry);
+    out.write(content);
+    out.closeEntry();
+  }
+}
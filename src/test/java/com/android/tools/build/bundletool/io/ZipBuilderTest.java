@@ -23,13 +23,21 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.Int32Value;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 import org.junit.Before;
@@ -377,6 +385,40 @@ public class ZipBuilderTest {
         .thatIsCompressed();
   }
 
+  @Test
+  public void uncompressedFile_fromDisk_streamed() throws Exception {
+    byte[] content = new byte[3 * 1024 * 1024];
+    new Random(42).nextBytes(content);
+    Path source = tmpDir.resolve("source.bin");
+    Files.write(source, content);
+
+    Path path =
+        new ZipBuilder()
+            .addFileFromDisk(
+                ZipPath.create("uncompressed"), source.toFile(), EntryOption.UNCOMPRESSED)
+            .writeTo(tmpDir.resolve("result.zip"));
+
+    assertThat(new ZipFile(path.toFile()))
+        .hasFile("uncompressed")
+        .withContent(content)
+        .thatIsUncompressed();
+  }
+
+  @Test
+  public void uncompressedFile_contentChangesBetweenReads_throws() throws Exception {
+    AtomicInteger reads = new AtomicInteger();
+    ZipBuilder zipBuilder =
+        new ZipBuilder()
+            .addFile(
+                ZipPath.create("uncompressed"),
+                () -> new ByteArrayInputStream(new byte[] {(byte) reads.getAndIncrement()}),
+                EntryOption.UNCOMPRESSED);
+    Path target = tmpDir.resolve("result.zip");
+
+    assertThrows(ZipException.class, () -> zipBuilder.writeTo(target));
+    assertThat(Files.exists(target)).isFalse();
+  }
+
   @Test
   public void writeTo_targetAlreadyExists_throws() throws Exception {
     Path existingFile = tmp.newFile("existing-file.zip").toPath();
@@ -400,4 +442,156 @@ public class ZipBuilderTest {
     assertThat(zipFile1).doesNotHaveFile("only-in-2");
     assertThat(zipFile2).hasFile("only-in-2").withContent("2".getBytes(UTF_8));
   }
+
+  @Test
+  public void writeTo_withExecutorService_writesAllEntries() throws Exception {
+    // Large enough to be deflated in several chunks, with repetitions spanning chunk boundaries.
+    byte[] largeContent = new byte[ParallelZipWriter.CHUNK_SIZE * 5 / 2];
+    Random random = new Random(42);
+    byte[] pattern = new byte[1000];
+    random.nextBytes(pattern);
+    for (int i = 0; i < largeContent.length; i++) {
+      largeContent[i] = (i % 5000 < 1000) ? pattern[i % 1000] : (byte) random.nextInt();
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Path path =
+          new ZipBuilder()
+              .addFileWithContent(ZipPath.create("small"), "1111".getBytes(UTF_8))
+              .addDirectory(ZipPath.create("dir"))
+              .addFileWithContent(ZipPath.create("dir/large"), largeContent)
+              .addFileWithContent(
+                  ZipPath.create("uncompressed"), "2222".getBytes(UTF_8), EntryOption.UNCOMPRESSED)
+              .addFileWithContent(ZipPath.create("empty"), new byte[0])
+              .writeTo(tmpDir.resolve("result.zip"), MoreExecutors.listeningDecorator(executor));
+
+      ZipFile zipFile = new ZipFile(path.toFile());
+      assertThat(zipFile)
+          .containsExactlyEntries("small", "dir/", "dir/large", "uncompressed", "empty")
+          .inOrder();
+      assertThat(zipFile).hasFile("small").withContent("1111".getBytes(UTF_8)).thatIsCompressed();
+      assertThat(zipFile).hasDirectory("dir");
+      assertThat(zipFile).hasFile("dir/large").withContent(largeContent).thatIsCompressed();
+      assertThat(zipFile)
+          .hasFile("uncompressed")
+          .withContent("2222".getBytes(UTF_8))
+          .thatIsUncompressed();
+      assertThat(zipFile).hasFile("empty").withContent(new byte[0]);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void writeTo_withExecutorService_deflatedEntriesFromZipCopiedRaw() throws Exception {
+    byte[] content = new byte[100_000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) (i % 1000 < 500 ? i % 7 : i % 13);
+    }
+    // Compressed with a non-default level, so that recompressing would give different bytes.
+    Path sourceZipPath = tmpDir.resolve("source.zip");
+    try (ZipOutputStream zipOutputStream =
+        new ZipOutputStream(Files.newOutputStream(sourceZipPath))) {
+      zipOutputStream.setLevel(Deflater.BEST_SPEED);
+      zipOutputStream.putNextEntry(new ZipEntry("deflated"));
+      zipOutputStream.write(content);
+      zipOutputStream.closeEntry();
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try (ZipFile sourceZip = new ZipFile(sourceZipPath.toFile())) {
+      ZipEntry sourceEntry = sourceZip.getEntry("deflated");
+
+      Path path =
+          new ZipBuilder()
+              .addFileFromZip(ZipPath.create("copied"), sourceZip, sourceEntry)
+              .addFileFromZip(
+                  ZipPath.create("uncompressed"), sourceZip, sourceEntry, EntryOption.UNCOMPRESSED)
+              .writeTo(tmpDir.resolve("result.zip"), MoreExecutors.listeningDecorator(executor));
+
+      ZipFile zipFile = new ZipFile(path.toFile());
+      assertThat(zipFile).hasFile("copied").withContent(content).thatIsCompressed();
+      assertThat(zipFile.getEntry("copied").getCompressedSize())
+          .isEqualTo(sourceEntry.getCompressedSize());
+      assertThat(zipFile).hasFile("uncompressed").withContent(content).thatIsUncompressed();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void writeTo_withExecutorService_uncompressedContentChangesBetweenReads_throws()
+      throws Exception {
+    AtomicInteger reads = new AtomicInteger();
+    ZipBuilder zipBuilder =
+        new ZipBuilder()
+            .addFile(
+                ZipPath.create("uncompressed"),
+                () -> new ByteArrayInputStream(new byte[] {(byte) reads.getAndIncrement()}),
+                EntryOption.UNCOMPRESSED);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Path target = tmpDir.resolve("result.zip");
+
+      ZipException exception =
+          assertThrows(
+              ZipException.class,
+              () -> zipBuilder.writeTo(target, MoreExecutors.listeningDecorator(executor)));
+
+      assertThat(exception).hasMessageThat().contains("'uncompressed'");
+      assertThat(Files.exists(target)).isFalse();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void recordParallelCompression_recordedOnlyWithExecutorService() throws Exception {
+    ZipBuilder zipBuilder =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("file"), DUMMY_CONTENT)
+            .recordParallelCompression();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Path parallelPath =
+          zipBuilder.writeTo(
+              tmpDir.resolve("parallel.zip"), MoreExecutors.listeningDecorator(executor));
+      Path sequentialPath = zipBuilder.writeTo(tmpDir.resolve("sequential.zip"));
+
+      try (ZipFile parallelZip = new ZipFile(parallelPath.toFile());
+          ZipFile sequentialZip = new ZipFile(sequentialPath.toFile())) {
+        assertThat(parallelZip.getComment())
+            .isEqualTo(ZipBuilder.getParallelCompressionComment());
+        assertThat(sequentialZip.getComment()).isNull();
+        assertThat(parallelZip).hasFile("file").withContent(DUMMY_CONTENT);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void writeTo_withExecutorService_readFailure_throwsAndWritesNothing() throws Exception {
+    ZipBuilder zipBuilder =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("ok"), DUMMY_CONTENT)
+            .addFile(
+                ZipPath.create("failing"),
+                () -> {
+                  throw new IOException("Cannot read.");
+                });
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Path target = tmpDir.resolve("result.zip");
+
+      IOException exception =
+          assertThrows(
+              IOException.class,
+              () -> zipBuilder.writeTo(target, MoreExecutors.listeningDecorator(executor)));
+
+      assertThat(exception).hasMessageThat().isEqualTo("Cannot read.");
+      assertThat(Files.exists(target)).isFalse();
+    } finally {
+      executor.shutdown();
+    }
+  }
 }
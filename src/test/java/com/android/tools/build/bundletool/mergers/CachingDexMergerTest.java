@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.mergers;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.MoreCollectors.onlyElement;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CachingDexMergerTest {
+
+  private static final int MIN_SDK_VERSION = 15;
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+  private Path cacheDir;
+  private FakeDexMerger fakeDexMerger;
+
+  @Before
+  public void setUp() {
+    tmpDir = tmp.getRoot().toPath();
+    cacheDir = tmpDir.resolve("cache");
+    fakeDexMerger = new FakeDexMerger();
+  }
+
+  @Test
+  public void identicalInputs_mergedOnce() throws Exception {
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, createCache());
+    ImmutableList<Path> dexFiles = createDexFiles("dex1", "dex2");
+
+    ImmutableList<Path> merged1 =
+        dexMerger.merge(
+            dexFiles,
+            createOutputDir(),
+            Optional.empty(),
+            /* isDebuggable= */ false,
+            MIN_SDK_VERSION);
+    ImmutableList<Path> merged2 =
+        dexMerger.merge(
+            createDexFiles("dex1", "dex2"),
+            createOutputDir(),
+            Optional.empty(),
+            /* isDebuggable= */ false,
+            MIN_SDK_VERSION);
+
+    assertThat(fakeDexMerger.getCallCount()).isEqualTo(1);
+    assertThat(fileNames(merged2)).containsExactlyElementsIn(fileNames(merged1));
+    for (int i = 0; i < merged1.size(); i++) {
+      Path dexFile1 = merged1.get(i);
+      Path dexFile2 =
+          merged2.stream()
+              .filter(path -> path.getFileName().equals(dexFile1.getFileName()))
+              .findFirst()
+              .get();
+      assertThat(Files.readAllBytes(dexFile2)).isEqualTo(Files.readAllBytes(dexFile1));
+    }
+  }
+
+  @Test
+  public void cacheSharedBetweenInstances() throws Exception {
+    new CachingDexMerger(fakeDexMerger, createCache())
+        .merge(
+            createDexFiles("dex1", "dex2"),
+            createOutputDir(),
+            Optional.empty(),
+            /* isDebuggable= */ false,
+            MIN_SDK_VERSION);
+
+    DexMergeCache otherCache = createCache();
+    new CachingDexMerger(fakeDexMerger, otherCache)
+        .merge(
+            createDexFiles("dex1", "dex2"),
+            createOutputDir(),
+            Optional.empty(),
+            /* isDebuggable= */ false,
+            MIN_SDK_VERSION);
+
+    assertThat(fakeDexMerger.getCallCount()).isEqualTo(1);
+    assertThat(otherCache.getStatistics().getHitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void differentDexContent_mergedAgain() throws Exception {
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, createCache());
+
+    dexMerger.merge(
+        createDexFiles("dex1", "dex2"),
+        createOutputDir(),
+        Optional.empty(),
+        /* isDebuggable= */ false,
+        MIN_SDK_VERSION);
+    dexMerger.merge(
+        createDexFiles("dex1", "dex3"),
+        createOutputDir(),
+        Optional.empty(),
+        /* isDebuggable= */ false,
+        MIN_SDK_VERSION);
+
+    assertThat(fakeDexMerger.getCallCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void differentMergeSettings_mergedAgain() throws Exception {
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, createCache());
+    Path mainDexList = Files.write(tmpDir.resolve("main-dex-list.txt"), "A.class".getBytes(UTF_8));
+    Path otherMainDexList =
+        Files.write(tmpDir.resolve("other-main-dex-list.txt"), "B.class".getBytes(UTF_8));
+
+    mergeSingleDexFile(dexMerger, Optional.empty(), /* isDebuggable= */ false, MIN_SDK_VERSION);
+    mergeSingleDexFile(dexMerger, Optional.empty(), /* isDebuggable= */ true, MIN_SDK_VERSION);
+    mergeSingleDexFile(dexMerger, Optional.empty(), /* isDebuggable= */ false, MIN_SDK_VERSION + 1);
+    mergeSingleDexFile(
+        dexMerger, Optional.of(mainDexList), /* isDebuggable= */ false, MIN_SDK_VERSION);
+    mergeSingleDexFile(
+        dexMerger, Optional.of(otherMainDexList), /* isDebuggable= */ false, MIN_SDK_VERSION);
+
+    assertThat(fakeDexMerger.getCallCount()).isEqualTo(5);
+  }
+
+  @Test
+  public void truncatedCacheEntry_mergedAgain() throws Exception {
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, createCache());
+    mergeSingleDexFile(dexMerger, Optional.empty(), /* isDebuggable= */ false, MIN_SDK_VERSION);
+    Path cachedArchive = getOnlyCachedArchive();
+    byte[] archiveContent = Files.readAllBytes(cachedArchive);
+    Files.write(cachedArchive, Arrays.copyOf(archiveContent, archiveContent.length / 2));
+
+    Path outputDir = createOutputDir();
+    ImmutableList<Path> merged =
+        dexMerger.merge(
+            createDexFiles("dex1"),
+            outputDir,
+            Optional.empty(),
+            /* isDebuggable= */ false,
+            MIN_SDK_VERSION);
+
+    assertThat(fakeDexMerger.getCallCount()).isEqualTo(2);
+    assertThat(fileNames(merged)).containsExactly("classes.dex");
+    assertThat(Files.readAllBytes(merged.get(0))).isEqualTo("dex1".getBytes(UTF_8));
+    assertThat(Files.readAllBytes(getOnlyCachedArchive())).isEqualTo(archiveContent);
+  }
+
+  @Test
+  public void cacheEntryOutsideOfOutputDirectory_mergedAgain() throws Exception {
+    CachingDexMerger dexMerger = new CachingDexMerger(fakeDexMerger, createCache());
+    mergeSingleDexFile(dexMerger, Optional.empty(), /* isDebuggable= */ false, MIN_SDK_VERSION);
+    Path cachedArchive = getOnlyCachedArchive();
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(cachedArchive))) {
+      out.putNextEntry(new ZipEntry("../classes.dex"));
+      out.write("dex1".getBytes(UTF_8));
+      out.closeEntry();
+    }
+
+    Path outputDir = createOutputDir();
+    ImmutableList<Path> merged =
+        dexMerger.merge(
+            createDexFiles("dex1"),
+            outputDir,
+            Optional.empty(),
+            /* isDebuggable= */ false,
+            MIN_SDK_VERSION);
+
+    assertThat(fakeDexMerger.getCallCount()).isEqualTo(2);
+    assertThat(merged).containsExactly(outputDir.resolve("classes.dex"));
+    assertThat(Files.exists(tmpDir.resolve("classes.dex"))).isFalse();
+  }
+
+  private void mergeSingleDexFile(
+      DexMerger dexMerger, Optional<Path> mainDexList, boolean isDebuggable, int minSdkVersion)
+      throws Exception {
+    dexMerger.merge(
+        createDexFiles("dex1"), createOutputDir(), mainDexList, isDebuggable, minSdkVersion);
+  }
+
+  private DexMergeCache createCache() {
+    return new DexMergeCache(cacheDir, /* maxSizeBytes= */ 1024 * 1024);
+  }
+
+  private ImmutableList<Path> createDexFiles(String... contents) throws Exception {
+    Path dir = Files.createTempDirectory(tmpDir, "in");
+    ImmutableList.Builder<Path> dexFiles = ImmutableList.builder();
+    for (int i = 0; i < contents.length; i++) {
+      dexFiles.add(Files.write(dir.resolve(i + ".dex"), contents[i].getBytes(UTF_8)));
+    }
+    return dexFiles.build();
+  }
+
+  private Path getOnlyCachedArchive() throws Exception {
+    try (Stream<Path> files = Files.list(cacheDir)) {
+      return files
+          .filter(path -> path.getFileName().toString().endsWith(".zip"))
+          .collect(onlyElement());
+    }
+  }
+
+  private Path createOutputDir() throws Exception {
+    return Files.createTempDirectory(tmpDir, "out");
+  }
+
+  private static ImmutableList<String> fileNames(ImmutableList<Path> paths) {
+    return paths.stream().map(path -> path.getFileName().toString()).collect(toImmutableList());
+  }
+
+  /** Writes each input dex file as "classes.dex", "classes2.dex"... */
+  private static class FakeDexMerger implements DexMerger {
+
+    private final AtomicInteger callCount = new AtomicInteger();
+
+    @Override
+    public ImmutableList<Path> merge(
+        ImmutableList<Path> dexFiles,
+        Path outputDir,
+        Optional<Path> mainDexListFile,
+        boolean isDebuggable,
+        int minSdkVersion) {
+      callCount.incrementAndGet();
+      ImmutableList.Builder<Path> mergedDexFiles = ImmutableList.builder();
+      try {
+        for (int i = 0; i < dexFiles.size(); i++) {
+          String name = i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex";
+          mergedDexFiles.add(Files.copy(dexFiles.get(i), outputDir.resolve(name)));
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return mergedDexFiles.build();
+    }
+
+    int getCallCount() {
+      return callCount.get();
+    }
+  }
+}
@@ -34,6 +34,7 @@ import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeDi
 import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeLibraries;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.targetedNativeDirectory;
 import static com.android.tools.build.bundletool.testing.TestUtils.extractPaths;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
@@ -60,15 +61,23 @@ import com.android.tools.build.bundletool.model.InMemoryModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleEntry;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -193,7 +202,8 @@ public class ModuleSplitsToShardMergerTest {
   public void dexFiles_allInOneModule_areUnchanged() throws Exception {
     byte[] classesDexData = {'1'};
     byte[] classes2DexData = {'2'};
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    ConcurrentMap<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexMergingCache =
+        createCache();
     ModuleSplit baseSplit =
         createModuleSplitBuilder()
             .setModuleName(BundleModuleName.create("base"))
@@ -223,7 +233,8 @@ public class ModuleSplitsToShardMergerTest {
 
   @Test
   public void dexFiles_inMultipleModules_areMerged() throws Exception {
-    Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> dexMergingCache = createCache();
+    ConcurrentMap<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>> dexMergingCache =
+        createCache();
     InMemoryModuleEntry dexEntry1 =
         InMemoryModuleEntry.ofFile(
             "dex/classes.dex", TestData.readBytes("testdata/dex/classes.dex"));
@@ -256,7 +267,7 @@ public class ModuleSplitsToShardMergerTest {
     assertThat(dexMergingCache).hasSize(1);
     ImmutableSet<ModuleEntry> cacheKey = Iterables.getOnlyElement(dexMergingCache.keySet());
     assertThat(cacheKey).containsExactly(dexEntry1, dexEntry2);
-    ImmutableList<Path> cacheValue = Iterables.getOnlyElement(dexMergingCache.values());
+    ImmutableList<Path> cacheValue = Iterables.getOnlyElement(dexMergingCache.values()).get();
     assertThat(cacheValue.stream().allMatch(cachedFile -> cachedFile.startsWith(tmpDir))).isTrue();
   }
 
@@ -551,6 +562,62 @@ public class ModuleSplitsToShardMergerTest {
     verifyNoMoreInteractions(spyDexMerger);
   }
 
+  @Test
+  public void merge_withExecutorService_shardsInOrderAndDexMergedOnce() throws Exception {
+    ModuleSplit baseSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create("base"))
+            .setEntries(ImmutableList.of(InMemoryModuleEntry.ofFile("dex/classes.dex", new byte[] {1})))
+            .build();
+    ModuleSplit featureSplit =
+        createModuleSplitBuilder()
+            .setModuleName(BundleModuleName.create("feature"))
+            .setEntries(ImmutableList.of(InMemoryModuleEntry.ofFile("dex/classes.dex", new byte[] {2})))
+            .build();
+    ImmutableList.Builder<ImmutableList<ModuleSplit>> unfusedShards = ImmutableList.builder();
+    ImmutableList.Builder<ApkTargeting> expectedTargetings = ImmutableList.builder();
+    for (AbiAlias abi : ImmutableList.of(AbiAlias.X86, AbiAlias.X86_64, AbiAlias.MIPS)) {
+      ModuleSplit abiSplit =
+          createModuleSplitBuilder()
+              .setEntries(
+                  ImmutableList.of(
+                      InMemoryModuleEntry.ofFile(
+                          "lib/" + abi.name() + "/libtest.so", DUMMY_CONTENT)))
+              .setMasterSplit(false)
+              .setApkTargeting(apkAbiTargeting(abi))
+              .build();
+      unfusedShards.add(ImmutableList.of(baseSplit, featureSplit, abiSplit));
+      expectedTargetings.add(apkAbiTargeting(abi));
+    }
+    AtomicInteger dexMergerCalls = new AtomicInteger();
+    DexMerger fakeDexMerger =
+        (dexFiles, outputDir, mainDexListFile, isDebuggable, minSdkVersion) -> {
+          dexMergerCalls.incrementAndGet();
+          try {
+            return ImmutableList.of(
+                Files.copy(dexFiles.get(0), outputDir.resolve("classes.dex")));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        };
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3));
+
+    ImmutableList<ModuleSplit> shards;
+    try {
+      shards =
+          new ModuleSplitsToShardMerger(fakeDexMerger, tmpDir, executorService)
+              .merge(unfusedShards.build(), NO_MAIN_DEX_LIST);
+    } finally {
+      executorService.shutdown();
+    }
+
+    assertThat(shards.stream().map(ModuleSplit::getApkTargeting).collect(toImmutableList()))
+        .containsExactlyElementsIn(expectedTargetings.build())
+        .inOrder();
+    assertThat(dexMergerCalls.get()).isEqualTo(1);
+  }
+
   /** Creates {@link ModuleSplit.Builder} with fields pre-populated to default values. */
   private ModuleSplit.Builder createModuleSplitBuilder() {
     return ModuleSplit.builder()
@@ -562,7 +629,8 @@ public class ModuleSplitsToShardMergerTest {
         .setVariantTargeting(lPlusVariantTargeting());
   }
 
-  private static Map<ImmutableSet<ModuleEntry>, ImmutableList<Path>> createCache() {
-    return new HashMap<>();
+  private static ConcurrentMap<ImmutableSet<ModuleEntry>, Supplier<ImmutableList<Path>>>
+      createCache() {
+    return new ConcurrentHashMap<>();
   }
 }
@@ -37,6 +37,7 @@ import com.android.aapt.Resources.Source;
 import com.android.aapt.Resources.StringPool;
 import com.android.aapt.Resources.Style;
 import com.android.aapt.Resources.Visibility;
+import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
 import java.nio.charset.StandardCharsets;
 import org.junit.Test;
@@ -172,6 +173,57 @@ public class ResourceTableMergerTest {
                     type(0x11, "type", entry(0x21, "entry", value("ldpi", LDPI))))));
   }
 
+  @Test
+  public void mergeAll_sameAsPairwiseMerges() throws Exception {
+    ResourceTable table1 =
+        resourceTable(
+            pkg(0x01, "package", type(0x11, "type", entry(0x21, "entry", value("ldpi", LDPI)))));
+    ResourceTable table2 =
+        resourceTable(
+            pkg(
+                0x01,
+                "package",
+                type(0x11, "type", entry(0x21, "entry", value("mdpi", MDPI))),
+                type(0x12, "type2", entry(0x22, "entry2"))));
+    ResourceTable table3 =
+        resourceTable(
+            pkg(0x01, "package", type(0x11, "type", entry(0x21, "entry", value("ldpi", LDPI)))),
+            pkg(0x02, "package2"));
+    ResourceTableMerger merger = new ResourceTableMerger();
+
+    ResourceTable merged = merger.mergeAll(ImmutableList.of(table1, table2, table3));
+
+    assertThat(merged).isEqualTo(merger.merge(merger.merge(table1, table2), table3));
+    assertThat(merged)
+        .ignoringRepeatedFieldOrder()
+        .isEqualTo(
+            resourceTable(
+                pkg(
+                    0x01,
+                    "package",
+                    type(
+                        0x11,
+                        "type",
+                        entry(0x21, "entry", value("ldpi", LDPI), value("mdpi", MDPI))),
+                    type(0x12, "type2", entry(0x22, "entry2"))),
+                pkg(0x02, "package2")));
+  }
+
+  @Test
+  public void mergeAll_singleTable_returnedAsIs() throws Exception {
+    ResourceTable table =
+        resourceTable(pkg(0x01, "package", type(0x11, "type", entry(0x21, "entry"))));
+
+    assertThat(new ResourceTableMerger().mergeAll(ImmutableList.of(table))).isSameAs(table);
+  }
+
+  @Test
+  public void mergeAll_noTables_throws() throws Exception {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new ResourceTableMerger().mergeAll(ImmutableList.of()));
+  }
+
   @Test
   public void sourcePools_absent_okAndPreserved() throws Exception {
     ResourceTable table = resourceTable();
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.model;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.model.Aapt2Command.Aapt2Exception;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class Aapt2DaemonPoolTest {
+
+  /**
+   * Fake aapt2 implementing the daemon protocol: like aapt2, it prints "Ready" on stdout and the
+   * diagnostics, "Error" and "Done" lines on stderr, plus some noise on stdout. "convert" copies
+   * the input to the output, inputs named "fail*" make the command fail, inputs named "crash*" kill
+   * the daemon, and inputs named "hang*" create the output then never complete.
+   */
+  private static final String FAKE_AAPT2 =
+      "#!/bin/sh\n"
+          + "[ \"$1\" = daemon ] || exit 1\n"
+          + "echo Ready\n"
+          + "while true; do\n"
+          + "  set --\n"
+          + "  while true; do\n"
+          + "    IFS= read -r line || exit 0\n"
+          + "    [ -z \"$line\" ] && break\n"
+          + "    set -- \"$@\" \"$line\"\n"
+          + "  done\n"
+          + "  eval \"in=\\${$#}\"\n"
+          + "  case \"$(basename \"$in\")\" in\n"
+          + "    crash*) exit 1 ;;\n"
+          + "    fail*) echo 'error: invalid input' >&2; echo Error >&2; echo Done >&2 ;;\n"
+          + "    hang*) touch \"$5\"; exec sleep 600 ;;\n"
+          + "    *) echo \"Converting $in\"; cp \"$in\" \"$5\"; echo Done >&2 ;;\n"
+          + "  esac\n"
+          + "done\n";
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+  private Path aapt2Path;
+
+  @Before
+  public void setUp() throws Exception {
+    tmpDir = tmp.getRoot().toPath();
+    aapt2Path = tmpDir.resolve("aapt2");
+    Files.write(aapt2Path, FAKE_AAPT2.getBytes(UTF_8));
+    Files.setPosixFilePermissions(aapt2Path, PosixFilePermissions.fromString("rwx------"));
+  }
+
+  @Test
+  public void convert_reusesDaemon() throws Exception {
+    try (Aapt2DaemonPool pool = new Aapt2DaemonPool(aapt2Path, /* maxDaemons= */ 2)) {
+      for (int i = 0; i < 3; i++) {
+        Path input = createInput("input" + i + ".apk");
+        Path output = tmpDir.resolve("output" + i + ".apk");
+
+        pool.convertApkProtoToBinary(input, output);
+
+        assertThat(Files.readAllBytes(output)).isEqualTo(Files.readAllBytes(input));
+      }
+
+      assertThat(pool.getStatistics().getJobCount()).isEqualTo(3);
+      assertThat(pool.getStatistics().getStartedDaemonCount()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void convert_concurrently_boundedNumberOfDaemons() throws Exception {
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    try (Aapt2DaemonPool pool = new Aapt2DaemonPool(aapt2Path, /* maxDaemons= */ 2)) {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        Path input = createInput("input" + i + ".apk");
+        Path output = tmpDir.resolve("output" + i + ".apk");
+        futures.add(executor.submit(() -> pool.convertApkProtoToBinary(input, output)));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+
+      assertThat(pool.getStatistics().getJobCount()).isEqualTo(20);
+      assertThat(pool.getStatistics().getStartedDaemonCount()).isAtMost(2);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void commandFails_throwsAndDaemonIsReused() throws Exception {
+    try (Aapt2DaemonPool pool = new Aapt2DaemonPool(aapt2Path, /* maxDaemons= */ 1)) {
+      Path failing = createInput("fail.apk");
+
+      assertThrows(
+          Aapt2Exception.class,
+          () -> pool.convertApkProtoToBinary(failing, tmpDir.resolve("failed.apk")));
+
+      Path output = tmpDir.resolve("output.apk");
+      pool.convertApkProtoToBinary(createInput("input.apk"), output);
+      assertThat(Files.exists(output)).isTrue();
+      assertThat(pool.getStatistics().getStartedDaemonCount()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void daemonCrashes_isRestarted() throws Exception {
+    try (Aapt2DaemonPool pool = new Aapt2DaemonPool(aapt2Path, /* maxDaemons= */ 1)) {
+      Path crashing = createInput("crash.apk");
+
+      // The command is retried once on a new daemon, which crashes again.
+      assertThrows(
+          Aapt2Exception.class,
+          () -> pool.convertApkProtoToBinary(crashing, tmpDir.resolve("crashed.apk")));
+
+      Path output = tmpDir.resolve("output.apk");
+      pool.convertApkProtoToBinary(createInput("input.apk"), output);
+      assertThat(Files.exists(output)).isTrue();
+      assertThat(pool.getStatistics().getStartedDaemonCount()).isEqualTo(3);
+    }
+  }
+
+  @Test
+  public void identity_dependsOnModeAndBinary() throws Exception {
+    Path otherAapt2Path = tmpDir.resolve("other-aapt2");
+    Files.write(otherAapt2Path, (FAKE_AAPT2 + "# Other version.\n").getBytes(UTF_8));
+
+    try (Aapt2DaemonPool pool = new Aapt2DaemonPool(aapt2Path, /* maxDaemons= */ 1);
+        Aapt2DaemonPool copyPool = new Aapt2DaemonPool(aapt2Path, /* maxDaemons= */ 2);
+        Aapt2DaemonPool otherPool = new Aapt2DaemonPool(otherAapt2Path, /* maxDaemons= */ 1)) {
+      assertThat(pool.getIdentity()).isEqualTo(copyPool.getIdentity());
+      assertThat(pool.getIdentity()).isNotEqualTo(otherPool.getIdentity());
+      assertThat(pool.getIdentity())
+          .isNotEqualTo(Aapt2Command.createFromExecutablePath(aapt2Path).getIdentity());
+      assertThat(pool.getStatistics().getStartedDaemonCount()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void closedPool_rejectsCommands() throws Exception {
+    Aapt2DaemonPool pool = new Aapt2DaemonPool(aapt2Path, /* maxDaemons= */ 1);
+    pool.convertApkProtoToBinary(createInput("input1.apk"), tmpDir.resolve("output1.apk"));
+    pool.close();
+
+    Path input = createInput("input2.apk");
+    Aapt2Exception exception =
+        assertThrows(
+            Aapt2Exception.class,
+            () -> pool.convertApkProtoToBinary(input, tmpDir.resolve("output2.apk")));
+
+    assertThat(exception).hasMessageThat().contains("closed");
+    assertThat(pool.getStatistics().getStartedDaemonCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void daemonStartedConcurrentlyWithClose_isDestroyed() throws Exception {
+    Path pidFile = tmpDir.resolve("aapt2.pid");
+    Path slowAapt2Path = tmpDir.resolve("slow-aapt2");
+    Files.write(
+        slowAapt2Path,
+        String.format("#!/bin/sh\necho $$ > '%s'\nsleep 1\nexec '%s' \"$@\"\n", pidFile, aapt2Path)
+            .getBytes(UTF_8));
+    Files.setPosixFilePermissions(slowAapt2Path, PosixFilePermissions.fromString("rwx------"));
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    Aapt2DaemonPool pool = new Aapt2DaemonPool(slowAapt2Path, /* maxDaemons= */ 1);
+    try {
+      Path input = createInput("input.apk");
+      Future<?> future =
+          executor.submit(() -> pool.convertApkProtoToBinary(input, tmpDir.resolve("output.apk")));
+      while (!Files.exists(pidFile) || Files.size(pidFile) == 0) {
+        Thread.sleep(10);
+      }
+
+      pool.close();
+
+      ExecutionException exception = assertThrows(ExecutionException.class, future::get);
+      assertThat(exception).hasCauseThat().isInstanceOf(Aapt2Exception.class);
+      String pid = new String(Files.readAllBytes(pidFile), UTF_8).trim();
+      Path daemonProcess = Paths.get("/proc", pid);
+      for (int i = 0; i < 500 && Files.exists(daemonProcess); i++) {
+        Thread.sleep(10);
+      }
+      assertThat(Files.exists(daemonProcess)).isFalse();
+    } finally {
+      executor.shutdownNow();
+      pool.close();
+    }
+  }
+
+  @Test
+  public void cancelledCommand_daemonKilledAndNotRestarted() throws Exception {
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    Aapt2DaemonPool pool = new Aapt2DaemonPool(aapt2Path, /* maxDaemons= */ 1);
+    try {
+      Path hanging = createInput("hang.apk");
+      Path output = tmpDir.resolve("hung.apk");
+      Future<?> future = executor.submit(() -> pool.convertApkProtoToBinary(hanging, output));
+      while (!Files.exists(output)) {
+        Thread.sleep(10);
+      }
+
+      future.cancel(/* mayInterruptIfRunning= */ true);
+      pool.close();
+      executor.shutdown();
+
+      assertThat(executor.awaitTermination(10, SECONDS)).isTrue();
+      assertThat(pool.getStatistics().getStartedDaemonCount()).isEqualTo(1);
+    } finally {
+      executor.shutdownNow();
+      pool.close();
+    }
+  }
+
+  private Path createInput(String name) throws Exception {
+    return Files.write(tmpDir.resolve(name), name.getBytes(UTF_8));
+  }
+}
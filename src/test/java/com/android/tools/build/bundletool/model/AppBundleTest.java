@@ -28,7 +28,9 @@ import com.android.bundle.Config.BundleConfig;
 import com.android.tools.build.bundletool.io.ZipBuilder;
 import com.android.tools.build.bundletool.testing.AppBundleBuilder;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import com.google.common.io.ByteStreams;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.Optional;
 import java.util.zip.ZipFile;
@@ -81,6 +83,29 @@ public class AppBundleTest {
         .containsExactly(BundleModuleName.create("base"), BundleModuleName.create("detail"));
   }
 
+  @Test
+  public void testMultipleModules_fromMappedZipFile() throws Exception {
+    createBasicZipBuilder(BUNDLE_CONFIG)
+        .addFileWithProtoContent(ZipPath.create("base/manifest/AndroidManifest.xml"), MANIFEST)
+        .addFileWithContent(ZipPath.create("base/dex/classes.dex"), DUMMY_CONTENT)
+        .addFileWithProtoContent(ZipPath.create("detail/manifest/AndroidManifest.xml"), MANIFEST)
+        .addFileWithContent(ZipPath.create("detail/assets/file.txt"), DUMMY_CONTENT)
+        .writeTo(bundleFile);
+
+    try (MappedZipFile bundleZip = MappedZipFile.open(bundleFile)) {
+      AppBundle appBundle = AppBundle.buildFromZip(bundleZip);
+
+      assertThat(appBundle.getModules().keySet())
+          .containsExactly(BundleModuleName.create("base"), BundleModuleName.create("detail"));
+      assertThat(appBundle.getBundleConfig()).isEqualTo(BUNDLE_CONFIG);
+      ModuleEntry dexEntry =
+          appBundle.getBaseModule().getEntry(ZipPath.create("dex/classes.dex")).get();
+      try (InputStream content = dexEntry.getContent()) {
+        assertThat(ByteStreams.toByteArray(content)).isEqualTo(DUMMY_CONTENT);
+      }
+    }
+  }
+
   @Test
   public void classFilesNotAddedToModule() throws Exception {
     createBasicZipBuilderWithManifest()
@@ -29,6 +29,11 @@ import static com.google.common.truth.Truth8.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
 import static java.util.stream.Collectors.toList;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.android.aapt.Resources.Package;
 import com.android.aapt.Resources.ResourceTable;
@@ -38,9 +43,17 @@ import com.android.bundle.Files.Assets;
 import com.android.bundle.Files.NativeLibraries;
 import com.android.bundle.Files.TargetedAssetsDirectory;
 import com.android.bundle.Files.TargetedNativeDirectory;
+import com.android.tools.build.bundletool.exceptions.ValidationException;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -80,14 +93,17 @@ public class BundleModuleTest {
   }
 
   @Test
-  public void incorrectAssetsProtoFile_throws() throws Exception {
+  public void incorrectAssetsProtoFile_throwsOnFirstAccess() throws Exception {
     byte[] badAssetsFile = new byte[] {'b', 'a', 'd'};
+    BundleModule bundleModule =
+        createMinimalModuleBuilder()
+            .addEntry(InMemoryModuleEntry.ofFile("assets.pb", badAssetsFile))
+            .build();
 
-    assertThrows(
-        IOException.class,
-        () ->
-            createMinimalModuleBuilder()
-                .addEntry(InMemoryModuleEntry.ofFile("assets.pb", badAssetsFile)));
+    ValidationException exception =
+        assertThrows(ValidationException.class, () -> bundleModule.getAssetsConfig());
+
+    assertThat(exception).hasMessageThat().contains("'assets.pb' of module 'testModule'");
   }
 
   @Test
@@ -113,14 +129,17 @@ public class BundleModuleTest {
   }
 
   @Test
-  public void incorrectNativeProtoFile_throws() throws Exception {
+  public void incorrectNativeProtoFile_throwsOnFirstAccess() throws Exception {
     byte[] badNativeFile = new byte[] {'b', 'a', 'd'};
+    BundleModule bundleModule =
+        createMinimalModuleBuilder()
+            .addEntry(InMemoryModuleEntry.ofFile("native.pb", badNativeFile))
+            .build();
 
-    assertThrows(
-        IOException.class,
-        () ->
-            createMinimalModuleBuilder()
-                .addEntry(InMemoryModuleEntry.ofFile("native.pb", badNativeFile)));
+    ValidationException exception =
+        assertThrows(ValidationException.class, () -> bundleModule.getNativeConfig());
+
+    assertThat(exception).hasMessageThat().contains("'native.pb' of module 'testModule'");
   }
 
   @Test
@@ -144,14 +163,43 @@ public class BundleModuleTest {
   }
 
   @Test
-  public void incorrectResourceTable_throws() throws Exception {
+  public void incorrectResourceTable_throwsOnFirstAccess() throws Exception {
     byte[] badResourcesFile = new byte[] {'b', 'a', 'd'};
+    BundleModule bundleModule =
+        createMinimalModuleBuilder()
+            .addEntry(InMemoryModuleEntry.ofFile("resources.pb", badResourcesFile))
+            .build();
 
-    assertThrows(
-        IOException.class,
-        () ->
-            createMinimalModuleBuilder()
-                .addEntry(InMemoryModuleEntry.ofFile("resources.pb", badResourcesFile)));
+    ValidationException exception =
+        assertThrows(ValidationException.class, () -> bundleModule.getResourceTable());
+
+    assertThat(exception).hasMessageThat().contains("'resources.pb' of module 'testModule'");
+  }
+
+  @Test
+  public void resourceTable_parsedOnceOnFirstAccess() throws Exception {
+    ResourceTable resourceTable =
+        ResourceTable.newBuilder().addPackage(Package.getDefaultInstance()).build();
+    ModuleEntry resourceTableEntry = mock(ModuleEntry.class);
+    when(resourceTableEntry.getPath()).thenReturn(ZipPath.create("resources.pb"));
+    when(resourceTableEntry.getContent())
+        .thenAnswer(invocation -> new ByteArrayInputStream(resourceTable.toByteArray()));
+
+    BundleModule bundleModule =
+        createMinimalModuleBuilder().addEntry(resourceTableEntry).build();
+    verify(resourceTableEntry, never()).getContent();
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Optional<ResourceTable>>> results =
+          executor.invokeAll(Collections.nCopies(8, bundleModule::getResourceTable));
+      for (Future<Optional<ResourceTable>> result : results) {
+        assertThat(result.get()).hasValue(resourceTable);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    verify(resourceTableEntry, times(1)).getContent();
   }
 
   @Test
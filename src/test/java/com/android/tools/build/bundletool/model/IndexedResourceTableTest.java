@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.model;
+
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.HDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.MDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.entry;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.fileReference;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.pkg;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.resourceTable;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.type;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.ResourceTable;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class IndexedResourceTableTest {
+
+  private static final ResourceTable TABLE =
+      resourceTable(
+          pkg(
+              0x7f,
+              "com.test.app",
+              type(
+                  0x01,
+                  "drawable",
+                  entry(
+                      0x00,
+                      "image",
+                      fileReference("res/drawable/image.png", Configuration.getDefaultInstance()),
+                      fileReference("res/drawable-mdpi/image.png", MDPI),
+                      fileReference("res/drawable-hdpi/image.png", HDPI)),
+                  entry(
+                      0x01,
+                      "icon",
+                      fileReference("res/drawable/icon.png", Configuration.getDefaultInstance()))),
+              type(
+                  0x02,
+                  "layout",
+                  entry(
+                      0x00,
+                      "main",
+                      fileReference("res/layout/main.xml", Configuration.getDefaultInstance())))));
+
+  @Test
+  public void create_indexesEntries() {
+    IndexedResourceTable table = IndexedResourceTable.create(TABLE);
+
+    assertThat(table.getEntryCount()).isEqualTo(3);
+    assertThat(table.getResourceId(0)).isEqualTo(0x7f010000);
+    assertThat(table.getResourceId(1)).isEqualTo(0x7f010001);
+    assertThat(table.getResourceId(2)).isEqualTo(0x7f020000);
+    assertThat(table.getEntry(1).getName()).isEqualTo("icon");
+    assertThat(table.getType(2).getName()).isEqualTo("layout");
+    assertThat(table.getConfigValues(0)).hasSize(3);
+    assertThat(table.isEmpty()).isFalse();
+  }
+
+  @Test
+  public void toResourceTable_noFiltering_reusesPackages() {
+    ResourceTable table = IndexedResourceTable.create(TABLE).toResourceTable();
+
+    assertThat(table).isEqualTo(TABLE);
+    assertThat(table.getPackage(0)).isSameAs(TABLE.getPackage(0));
+  }
+
+  @Test
+  public void toResourceTable_entriesWithoutConfigValues_removed() {
+    ResourceTable tableWithEmptyEntries =
+        resourceTable(
+            pkg(
+                0x7f,
+                "com.test.app",
+                type(
+                    0x01,
+                    "drawable",
+                    entry(
+                        0x00,
+                        "icon",
+                        fileReference("res/drawable/icon.png", Configuration.getDefaultInstance())),
+                    entry(0x01, "empty")),
+                type(0x02, "layout", entry(0x00, "empty"))),
+            pkg(0x80, "com.test.other", type(0x01, "drawable", entry(0x00, "empty"))));
+
+    ResourceTable table = IndexedResourceTable.create(tableWithEmptyEntries).toResourceTable();
+
+    assertThat(table)
+        .isEqualTo(
+            resourceTable(
+                pkg(
+                    0x7f,
+                    "com.test.app",
+                    type(
+                        0x01,
+                        "drawable",
+                        entry(
+                            0x00,
+                            "icon",
+                            fileReference(
+                                "res/drawable/icon.png", Configuration.getDefaultInstance()))))));
+  }
+
+  @Test
+  public void filter_keepsUntouchedTypes() {
+    IndexedResourceTable filtered =
+        IndexedResourceTable.create(TABLE)
+            .filter(
+                Predicates.alwaysFalse(),
+                (entry, configValues) ->
+                    configValues.stream()
+                        .filter(configValue -> !configValue.getConfig().equals(HDPI))
+                        .collect(toImmutableList()));
+
+    ResourceTable table = filtered.toResourceTable();
+
+    assertThat(table)
+        .isEqualTo(
+            resourceTable(
+                pkg(
+                    0x7f,
+                    "com.test.app",
+                    type(
+                        0x01,
+                        "drawable",
+                        entry(
+                            0x00,
+                            "image",
+                            fileReference(
+                                "res/drawable/image.png", Configuration.getDefaultInstance()),
+                            fileReference("res/drawable-mdpi/image.png", MDPI)),
+                        entry(
+                            0x01,
+                            "icon",
+                            fileReference(
+                                "res/drawable/icon.png", Configuration.getDefaultInstance()))),
+                    type(
+                        0x02,
+                        "layout",
+                        entry(
+                            0x00,
+                            "main",
+                            fileReference(
+                                "res/layout/main.xml", Configuration.getDefaultInstance()))))));
+    assertThat(table.getPackage(0).getType(0).getEntry(1))
+        .isSameAs(TABLE.getPackage(0).getType(0).getEntry(1));
+    assertThat(table.getPackage(0).getType(1)).isSameAs(TABLE.getPackage(0).getType(1));
+  }
+
+  @Test
+  public void filter_removesEmptyEntriesTypesAndPackages() {
+    IndexedResourceTable filtered =
+        IndexedResourceTable.create(TABLE)
+            .filter(
+                type -> type.getName().equals("layout"),
+                (entry, configValues) ->
+                    configValues.stream()
+                        .filter(configValue -> configValue.getConfig().equals(MDPI))
+                        .collect(toImmutableList()));
+
+    assertThat(filtered.toResourceTable())
+        .isEqualTo(
+            resourceTable(
+                pkg(
+                    0x7f,
+                    "com.test.app",
+                    type(
+                        0x01,
+                        "drawable",
+                        entry(
+                            0x00,
+                            "image",
+                            fileReference("res/drawable-mdpi/image.png", MDPI))))));
+
+    IndexedResourceTable empty =
+        filtered.filter(Predicates.alwaysFalse(), (entry, configValues) -> ImmutableList.of());
+    assertThat(empty.isEmpty()).isTrue();
+    assertThat(empty.toResourceTable()).isEqualTo(ResourceTable.getDefaultInstance());
+  }
+
+  @Test
+  public void filter_returnsMoreConfigValues_throws() {
+    IndexedResourceTable table = IndexedResourceTable.create(TABLE);
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            table.filter(
+                Predicates.alwaysFalse(),
+                (entry, configValues) ->
+                    ImmutableList.<ConfigValue>builder()
+                        .addAll(configValues)
+                        .addAll(configValues)
+                        .build()));
+  }
+
+  @Test
+  public void partition_assignsConfigValuesToPartitions() {
+    IndexedResourceTable table = IndexedResourceTable.create(TABLE);
+
+    // Partition 0: default density, partition 1: everything, partition 2: nothing.
+    ImmutableList<IndexedResourceTable> partitions =
+        table.partition(
+            3,
+            (type, entry, configValues) ->
+                ImmutableList.of(
+                    configValues.stream()
+                        .filter(
+                            configValue ->
+                                configValue.getConfig().equals(Configuration.getDefaultInstance()))
+                        .collect(toImmutableList()),
+                    configValues,
+                    ImmutableList.of()));
+
+    assertThat(partitions).hasSize(3);
+    assertThat(partitions.get(0).getConfigValues(0))
+        .containsExactly(
+            fileReference("res/drawable/image.png", Configuration.getDefaultInstance()));
+    assertThat(partitions.get(0).getConfigValues(1)).isEqualTo(table.getConfigValues(1));
+    assertThat(partitions.get(1).toResourceTable()).isEqualTo(TABLE);
+    assertThat(partitions.get(2).isEmpty()).isTrue();
+  }
+
+  @Test
+  public void partition_wrongPartitionCount_throws() {
+    IndexedResourceTable table = IndexedResourceTable.create(TABLE);
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> table.partition(2, (type, entry, configValues) -> ImmutableList.of(configValues)));
+  }
+}
@@ -37,8 +37,10 @@ import static com.android.tools.build.bundletool.testing.TargetingUtils.lPlusVar
 import static com.android.tools.build.bundletool.testing.TargetingUtils.languageTargeting;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.openGlVersionFrom;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.textureCompressionTargeting;
+import static com.android.tools.build.bundletool.testing.TargetingUtils.variantMinSdkTargeting;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.vulkanVersionFrom;
 import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth8.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -53,6 +55,7 @@ import com.android.bundle.Targeting.ScreenDensity;
 import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
 import com.android.bundle.Targeting.ScreenDensityTargeting;
 import com.android.bundle.Targeting.TextureCompressionFormat.TextureCompressionFormatAlias;
+import com.android.bundle.Targeting.VariantTargeting;
 import com.android.tools.build.bundletool.testing.BundleModuleBuilder;
 import com.android.tools.build.bundletool.utils.xmlproto.XmlProtoElement;
 import com.android.tools.build.bundletool.utils.xmlproto.XmlProtoNode;
@@ -385,6 +388,56 @@ public class ModuleSplitTest {
             xmlAttribute(ANDROID_NAMESPACE_URI, "name", NAME_RESOURCE_ID, "FooActivity"));
   }
 
+  @Test
+  public void fingerprint_sameContentInDifferentVariants_equal() {
+    ModuleSplit split = createLanguageSplit("fr", lPlusVariantTargeting());
+    ModuleSplit splitOfOtherVariant =
+        split.toBuilder().setVariantTargeting(variantMinSdkTargeting(23)).build();
+
+    assertThat(splitOfOtherVariant).isNotEqualTo(split);
+    assertThat(splitOfOtherVariant.getFingerprint()).isEqualTo(split.getFingerprint());
+    assertThat(splitOfOtherVariant.getFingerprint().hashCode())
+        .isEqualTo(split.getFingerprint().hashCode());
+  }
+
+  @Test
+  public void fingerprint_differentContent_notEqual() {
+    ModuleSplit split = createLanguageSplit("fr", lPlusVariantTargeting());
+
+    assertThat(createLanguageSplit("de", lPlusVariantTargeting()).getFingerprint())
+        .isNotEqualTo(split.getFingerprint());
+    assertThat(
+            split.toBuilder()
+                .setAndroidManifest(AndroidManifest.create(androidManifest("com.other.app")))
+                .build()
+                .getFingerprint())
+        .isNotEqualTo(split.getFingerprint());
+    assertThat(
+            split.toBuilder()
+                .setEntries(fakeEntriesOf("res/values-fr/strings.xml", "res/raw-fr/other.txt"))
+                .build()
+                .getFingerprint())
+        .isNotEqualTo(split.getFingerprint());
+  }
+
+  @Test
+  public void fingerprint_computedOnce() {
+    ModuleSplit split = createLanguageSplit("fr", lPlusVariantTargeting());
+
+    assertThat(split.getFingerprint()).isSameAs(split.getFingerprint());
+  }
+
+  private ModuleSplit createLanguageSplit(String language, VariantTargeting variantTargeting) {
+    return ModuleSplit.builder()
+        .setModuleName(BundleModuleName.create("base"))
+        .setEntries(fakeEntriesOf("res/values-" + language + "/strings.xml"))
+        .setAndroidManifest(AndroidManifest.create(androidManifest("com.test.app")))
+        .setVariantTargeting(variantTargeting)
+        .setApkTargeting(apkLanguageTargeting(language))
+        .setMasterSplit(false)
+        .build();
+  }
+
   private ImmutableList<ModuleEntry> fakeEntriesOf(String... entries) {
     return Arrays.stream(entries)
         .map(entry -> InMemoryModuleEntry.ofFile(entry, DUMMY_CONTENT))
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_STRING_POOL_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_CDATA_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_END_ELEMENT_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_END_NAMESPACE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_RESOURCE_MAP_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_START_ELEMENT_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_START_NAMESPACE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_INT_DEC;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_STRING;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.aapt.Resources.Item;
+import com.android.aapt.Resources.Primitive;
+import com.android.aapt.Resources.XmlAttribute;
+import com.android.aapt.Resources.XmlElement;
+import com.android.aapt.Resources.XmlNamespace;
+import com.android.aapt.Resources.XmlNode;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BinaryXmlEncoderTest {
+
+  private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+  private static final String TOOLS_NAMESPACE = "http://schemas.android.com/tools";
+  private static final int VERSION_CODE_RESOURCE_ID = 0x0101021b;
+  private static final int NAME_RESOURCE_ID = 0x01010003;
+
+  @Test
+  public void chunkStructure() {
+    byte[] encoded = BinaryXmlEncoder.forResourceFile().encode(createXml());
+    ChunkReader reader = new ChunkReader(encoded);
+
+    assertThat(reader.type(0)).isEqualTo(RES_XML_TYPE);
+    assertThat(reader.size(0)).isEqualTo(encoded.length);
+    ImmutableList<Integer> chunkTypes =
+        reader.childChunks(0).stream().map(reader::type).collect(toImmutableList());
+    assertThat(chunkTypes)
+        .containsExactly(
+            RES_STRING_POOL_TYPE,
+            RES_XML_RESOURCE_MAP_TYPE,
+            RES_XML_START_NAMESPACE_TYPE,
+            RES_XML_START_ELEMENT_TYPE,
+            RES_XML_START_ELEMENT_TYPE,
+            RES_XML_END_ELEMENT_TYPE,
+            RES_XML_CDATA_TYPE,
+            RES_XML_END_ELEMENT_TYPE,
+            RES_XML_END_NAMESPACE_TYPE)
+        .inOrder();
+  }
+
+  @Test
+  public void resourceMappedAttributeNamesComeFirstSortedById() {
+    byte[] encoded = BinaryXmlEncoder.forResourceFile().encode(createXml());
+    ChunkReader reader = new ChunkReader(encoded);
+    ImmutableList<Integer> chunks = reader.childChunks(0);
+
+    ImmutableList<String> strings = reader.strings(chunks.get(0));
+    assertThat(strings.subList(0, 2)).containsExactly("name", "versionCode").inOrder();
+
+    int resourceMap = chunks.get(1);
+    assertThat(reader.size(resourceMap)).isEqualTo(8 + 2 * 4);
+    assertThat(reader.getInt(resourceMap + 8)).isEqualTo(NAME_RESOURCE_ID);
+    assertThat(reader.getInt(resourceMap + 12)).isEqualTo(VERSION_CODE_RESOURCE_ID);
+  }
+
+  @Test
+  public void toolsAttributesAndWhitespaceTextAreDropped() {
+    byte[] encoded = BinaryXmlEncoder.forResourceFile().encode(createXml());
+    ChunkReader reader = new ChunkReader(encoded);
+
+    ImmutableList<String> strings = reader.strings(reader.childChunks(0).get(0));
+    assertThat(strings).doesNotContain(TOOLS_NAMESPACE);
+    assertThat(strings).doesNotContain("ignore");
+    assertThat(strings).doesNotContain("\n  ");
+    assertThat(strings).contains("Hello");
+  }
+
+  @Test
+  public void attributesAreSortedAndEncoded() {
+    byte[] encoded = BinaryXmlEncoder.forResourceFile().encode(createXml());
+    ChunkReader reader = new ChunkReader(encoded);
+    ImmutableList<Integer> chunks = reader.childChunks(0);
+    ImmutableList<String> strings = reader.strings(chunks.get(0));
+
+    int rootElement = chunks.get(3);
+    int attributesStart = rootElement + 16 + 20;
+    assertThat(reader.getShort(rootElement + 16 + 12)).isEqualTo(3); // attributeCount
+
+    // android:name (0x01010003) comes before android:versionCode (0x0101021b), then "package".
+    assertThat(strings.get(reader.getInt(attributesStart + 4))).isEqualTo("name");
+    assertThat(reader.getByte(attributesStart + 15)).isEqualTo(TYPE_STRING);
+    assertThat(strings.get(reader.getInt(attributesStart + 16))).isEqualTo("MyApp");
+
+    int versionCode = attributesStart + 20;
+    assertThat(strings.get(reader.getInt(versionCode + 4))).isEqualTo("versionCode");
+    assertThat(reader.getByte(versionCode + 15)).isEqualTo(TYPE_INT_DEC);
+    assertThat(reader.getInt(versionCode + 16)).isEqualTo(42);
+
+    int pkg = attributesStart + 40;
+    assertThat(reader.getInt(pkg)).isEqualTo(BinaryResourceConstants.NO_STRING);
+    assertThat(strings.get(reader.getInt(pkg + 4))).isEqualTo("package");
+    assertThat(strings.get(reader.getInt(pkg + 8))).isEqualTo("com.test.app");
+  }
+
+  @Test
+  public void manifestUsesUtf16_resourceFilesUseUtf8() {
+    ChunkReader manifest = new ChunkReader(BinaryXmlEncoder.forManifest().encode(createXml()));
+    ChunkReader resourceFile =
+        new ChunkReader(BinaryXmlEncoder.forResourceFile().encode(createXml()));
+
+    assertThat(manifest.isUtf8Pool(manifest.childChunks(0).get(0))).isFalse();
+    assertThat(resourceFile.isUtf8Pool(resourceFile.childChunks(0).get(0))).isTrue();
+    assertThat(manifest.strings(manifest.childChunks(0).get(0)))
+        .containsExactlyElementsIn(resourceFile.strings(resourceFile.childChunks(0).get(0)))
+        .inOrder();
+  }
+
+  @Test
+  public void rootNotAnElement_throws() {
+    XmlNode textNode = XmlNode.newBuilder().setText("text").build();
+
+    assertThrows(
+        UnsupportedResourceEncodingException.class,
+        () -> BinaryXmlEncoder.forResourceFile().encode(textNode));
+  }
+
+  private static XmlNode createXml() {
+    XmlElement child = XmlElement.newBuilder().setName("application").build();
+    return XmlNode.newBuilder()
+        .setElement(
+            XmlElement.newBuilder()
+                .setName("manifest")
+                .addNamespaceDeclaration(
+                    XmlNamespace.newBuilder().setPrefix("android").setUri(ANDROID_NAMESPACE))
+                .addAttribute(XmlAttribute.newBuilder().setName("package").setValue("com.test.app"))
+                .addAttribute(
+                    XmlAttribute.newBuilder()
+                        .setNamespaceUri(ANDROID_NAMESPACE)
+                        .setName("versionCode")
+                        .setResourceId(VERSION_CODE_RESOURCE_ID)
+                        .setCompiledItem(
+                            Item.newBuilder()
+                                .setPrim(Primitive.newBuilder().setIntDecimalValue(42))))
+                .addAttribute(
+                    XmlAttribute.newBuilder()
+                        .setNamespaceUri(ANDROID_NAMESPACE)
+                        .setName("name")
+                        .setResourceId(NAME_RESOURCE_ID)
+                        .setValue("MyApp"))
+                .addAttribute(
+                    XmlAttribute.newBuilder()
+                        .setNamespaceUri(TOOLS_NAMESPACE)
+                        .setName("ignore")
+                        .setValue("All"))
+                .addChild(XmlNode.newBuilder().setText("\n  "))
+                .addChild(XmlNode.newBuilder().setElement(child))
+                .addChild(XmlNode.newBuilder().setText("Hello")))
+        .build();
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.STRING_POOL_UTF8_FLAG;
+import static java.nio.charset.StandardCharsets.UTF_16LE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Minimal reader of binary resource chunks, used to verify the output of the encoders. */
+final class ChunkReader {
+
+  private final ByteBuffer buffer;
+
+  ChunkReader(byte[] data) {
+    this.buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  int type(int chunkOffset) {
+    return buffer.getShort(chunkOffset) & 0xFFFF;
+  }
+
+  int headerSize(int chunkOffset) {
+    return buffer.getShort(chunkOffset + 2) & 0xFFFF;
+  }
+
+  int size(int chunkOffset) {
+    return buffer.getInt(chunkOffset + 4);
+  }
+
+  int getInt(int offset) {
+    return buffer.getInt(offset);
+  }
+
+  int getShort(int offset) {
+    return buffer.getShort(offset) & 0xFFFF;
+  }
+
+  int getByte(int offset) {
+    return buffer.get(offset) & 0xFF;
+  }
+
+  /** Returns the offsets of the chunks directly contained in the given chunk. */
+  ImmutableList<Integer> childChunks(int chunkOffset) {
+    ImmutableList.Builder<Integer> children = ImmutableList.builder();
+    int end = chunkOffset + size(chunkOffset);
+    for (int offset = chunkOffset + headerSize(chunkOffset); offset < end; offset += size(offset)) {
+      children.add(offset);
+    }
+    return children.build();
+  }
+
+  boolean isUtf8Pool(int poolOffset) {
+    return (buffer.getInt(poolOffset + 16) & STRING_POOL_UTF8_FLAG) != 0;
+  }
+
+  int styleCount(int poolOffset) {
+    return buffer.getInt(poolOffset + 12);
+  }
+
+  /** Decodes all strings of the string pool chunk at the given offset. */
+  ImmutableList<String> strings(int poolOffset) {
+    int count = buffer.getInt(poolOffset + 8);
+    boolean utf8 = isUtf8Pool(poolOffset);
+    int stringsStart = poolOffset + buffer.getInt(poolOffset + 20);
+    int offsetsStart = poolOffset + headerSize(poolOffset);
+    ImmutableList.Builder<String> strings = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      int position = stringsStart + buffer.getInt(offsetsStart + 4 * i);
+      strings.add(utf8 ? readUtf8(position) : readUtf16(position));
+    }
+    return strings.build();
+  }
+
+  private String readUtf8(int position) {
+    // Skip the length in characters.
+    position += (buffer.get(position) & 0x80) != 0 ? 2 : 1;
+    int length = buffer.get(position) & 0xFF;
+    if ((length & 0x80) != 0) {
+      length = ((length & 0x7F) << 8) | (buffer.get(position + 1) & 0xFF);
+      position += 2;
+    } else {
+      position += 1;
+    }
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = buffer.get(position + i);
+    }
+    return new String(bytes, UTF_8);
+  }
+
+  private String readUtf16(int position) {
+    int length = buffer.getShort(position) & 0xFFFF;
+    if ((length & 0x8000) != 0) {
+      length = ((length & 0x7FFF) << 16) | (buffer.getShort(position + 2) & 0xFFFF);
+      position += 4;
+    } else {
+      position += 2;
+    }
+    byte[] bytes = new byte[2 * length];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(position + i);
+    }
+    return new String(bytes, UTF_16LE);
+  }
+}
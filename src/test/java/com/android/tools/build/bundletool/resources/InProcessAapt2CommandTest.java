@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_TABLE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_XML_TYPE;
+import static com.android.tools.build.bundletool.model.AndroidManifest.ANDROID_NAMESPACE_URI;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlAttribute;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlNamespace;
+import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.xmlNode;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.XHDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.entry;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.locale;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.mergeConfigs;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.pkg;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.resourceTable;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.type;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.value;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.Resources.Array;
+import com.android.aapt.Resources.Attribute;
+import com.android.aapt.Resources.CompoundValue;
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.FileReference;
+import com.android.aapt.Resources.Id;
+import com.android.aapt.Resources.Item;
+import com.android.aapt.Resources.Package;
+import com.android.aapt.Resources.Plural;
+import com.android.aapt.Resources.Primitive;
+import com.android.aapt.Resources.Reference;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.aapt.Resources.StyledString;
+import com.android.aapt.Resources.StyledString.Span;
+import com.android.aapt.Resources.Styleable;
+import com.android.aapt.Resources.Type;
+import com.android.aapt.Resources.Value;
+import com.android.aapt.Resources.XmlAttribute;
+import com.android.aapt.Resources.XmlElement;
+import com.android.aapt.Resources.XmlNode;
+import com.android.tools.build.bundletool.io.ZipBuilder;
+import com.android.tools.build.bundletool.io.ZipBuilder.EntryOption;
+import com.android.tools.build.bundletool.model.Aapt2Command;
+import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.testing.Aapt2Helper;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class InProcessAapt2CommandTest {
+
+  private static final String APP_NAMESPACE_URI = "http://schemas.android.com/apk/res-auto";
+  private static final Configuration DEFAULT_CONFIG = Configuration.getDefaultInstance();
+  private static final XmlNode DEFAULT_XML_CONFIG =
+      XmlNode.newBuilder().setElement(XmlElement.newBuilder().setName("config")).build();
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+
+  @Before
+  public void setUp() {
+    tmpDir = tmp.getRoot().toPath();
+  }
+
+  @Test
+  public void convertsProtoApk() throws Exception {
+    Path protoApk = writeProtoApk(createResourceTable(Configuration.getDefaultInstance()));
+    Path binaryApk = tmpDir.resolve("binary.apk");
+
+    new InProcessAapt2Command(InProcessAapt2CommandTest::failingFallback)
+        .convertApkProtoToBinary(protoApk, binaryApk);
+
+    try (ZipFile zipFile = new ZipFile(binaryApk.toFile())) {
+      assertThat(zipFile.getEntry("resources.pb")).isNull();
+      assertThat(zipFile.getEntry("resources.arsc").getMethod()).isEqualTo(ZipEntry.STORED);
+      assertThat(new ChunkReader(readEntry(zipFile, "resources.arsc")).type(0))
+          .isEqualTo(RES_TABLE_TYPE);
+      assertThat(new ChunkReader(readEntry(zipFile, "AndroidManifest.xml")).type(0))
+          .isEqualTo(RES_XML_TYPE);
+      assertThat(new ChunkReader(readEntry(zipFile, "res/xml/config.xml")).type(0))
+          .isEqualTo(RES_XML_TYPE);
+      assertThat(readEntry(zipFile, "res/raw/data.bin")).isEqualTo(new byte[] {1, 2, 3});
+      assertThat(zipFile.getEntry("res/raw/data.bin").getMethod()).isEqualTo(ZipEntry.STORED);
+    }
+  }
+
+  @Test
+  public void unsupportedInput_delegatesToFallback() throws Exception {
+    Path protoApk =
+        writeProtoApk(createResourceTable(Configuration.newBuilder().setProduct("tv").build()));
+    Path binaryApk = tmpDir.resolve("binary.apk");
+    List<Path> fallbackInputs = new ArrayList<>();
+    Aapt2Command fallback = (input, output) -> fallbackInputs.add(input);
+
+    new InProcessAapt2Command(() -> fallback).convertApkProtoToBinary(protoApk, binaryApk);
+
+    assertThat(fallbackInputs).containsExactly(protoApk);
+    assertThat(Files.exists(binaryApk)).isFalse();
+  }
+
+  @Test
+  public void stringTooLongForUtf8_delegatesToFallback() throws Exception {
+    Path protoApk =
+        writeProtoApk(
+            resourceTableWithXmlConfig(
+                type(
+                    1,
+                    "string",
+                    entry(0, "long", value(Strings.repeat("x", 0x8000), DEFAULT_CONFIG)))));
+    List<Path> fallbackInputs = new ArrayList<>();
+    Aapt2Command fallback = (input, output) -> fallbackInputs.add(input);
+
+    new InProcessAapt2Command(() -> fallback)
+        .convertApkProtoToBinary(protoApk, tmpDir.resolve("binary.apk"));
+
+    assertThat(fallbackInputs).containsExactly(protoApk);
+  }
+
+  @Test
+  public void identity_derivedFromFallback() throws Exception {
+    Aapt2Command fallback =
+        new Aapt2Command() {
+          @Override
+          public void convertApkProtoToBinary(Path protoApk, Path binaryApk) {}
+
+          @Override
+          public Optional<String> getIdentity() {
+            return Optional.of("process:0123");
+          }
+        };
+    Aapt2Command unidentifiedFallback = (protoApk, binaryApk) -> {};
+
+    assertThat(new InProcessAapt2Command(() -> fallback).getIdentity())
+        .hasValue("in-process:process:0123");
+    assertThat(new InProcessAapt2Command(() -> unidentifiedFallback).getIdentity()).isEmpty();
+  }
+
+  @Test
+  public void identity_givenFallbackIdentity_fallbackNotCreated() throws Exception {
+    InProcessAapt2Command command =
+        new InProcessAapt2Command(
+            () -> {
+              throw new AssertionError("Fallback created.");
+            },
+            () -> Optional.of("embedded:1.0"));
+
+    assertThat(command.getIdentity()).hasValue("in-process:embedded:1.0");
+  }
+
+  @Test
+  public void sameOutputAsAapt2() throws Exception {
+    assertSameOutputAsAapt2(createResourceTable(Configuration.getDefaultInstance()));
+  }
+
+  @Test
+  public void sameOutputAsAapt2_styledStrings() throws Exception {
+    Item styledString =
+        Item.newBuilder()
+            .setStyledStr(
+                StyledString.newBuilder()
+                    .setValue("Hello bold and italic world")
+                    .addSpan(Span.newBuilder().setTag("b").setFirstChar(6).setLastChar(9))
+                    .addSpan(Span.newBuilder().setTag("i").setFirstChar(15).setLastChar(20))
+                    .addSpan(
+                        Span.newBuilder().setTag("font;color=red").setFirstChar(0).setLastChar(4)))
+            .build();
+
+    assertSameOutputAsAapt2(
+        resourceTableWithXmlConfig(
+            type(
+                1,
+                "string",
+                entry(0, "plain", value("bold", DEFAULT_CONFIG)),
+                entry(1, "styled", itemValue(styledString, DEFAULT_CONFIG)))));
+  }
+
+  @Test
+  public void sameOutputAsAapt2_plurals() throws Exception {
+    Plural plural =
+        Plural.newBuilder()
+            .addEntry(pluralEntry(Plural.Arity.ZERO, "no apples"))
+            .addEntry(pluralEntry(Plural.Arity.ONE, "one apple"))
+            .addEntry(pluralEntry(Plural.Arity.FEW, "a few apples"))
+            .addEntry(pluralEntry(Plural.Arity.OTHER, "%d apples"))
+            .build();
+
+    assertSameOutputAsAapt2(
+        resourceTableWithXmlConfig(
+            type(
+                1,
+                "plurals",
+                entry(
+                    0,
+                    "apples",
+                    compoundValue(
+                        CompoundValue.newBuilder().setPlural(plural).build(), DEFAULT_CONFIG)))));
+  }
+
+  @Test
+  public void sameOutputAsAapt2_arrays() throws Exception {
+    Array stringArray =
+        Array.newBuilder()
+            .addElement(Array.Element.newBuilder().setItem(stringItem("first")))
+            .addElement(Array.Element.newBuilder().setItem(stringItem("second")))
+            .build();
+    Array intArray =
+        Array.newBuilder()
+            .addElement(Array.Element.newBuilder().setItem(intItem(1)))
+            .addElement(Array.Element.newBuilder().setItem(intItem(-42)))
+            .build();
+
+    assertSameOutputAsAapt2(
+        resourceTableWithXmlConfig(
+            type(
+                1,
+                "array",
+                entry(
+                    0,
+                    "strings",
+                    compoundValue(
+                        CompoundValue.newBuilder().setArray(stringArray).build(), DEFAULT_CONFIG)),
+                entry(
+                    1,
+                    "ints",
+                    compoundValue(
+                        CompoundValue.newBuilder().setArray(intArray).build(),
+                        DEFAULT_CONFIG)))));
+  }
+
+  @Test
+  public void sameOutputAsAapt2_attrs() throws Exception {
+    Attribute enumAttr =
+        Attribute.newBuilder()
+            .setFormatFlags(Attribute.FormatFlags.ENUM_VALUE)
+            .addSymbol(
+                Attribute.Symbol.newBuilder()
+                    .setName(Reference.newBuilder().setId(0x7f020000).setName("id/horizontal"))
+                    .setValue(0))
+            .addSymbol(
+                Attribute.Symbol.newBuilder()
+                    .setName(Reference.newBuilder().setId(0x7f020001).setName("id/vertical"))
+                    .setValue(1))
+            .build();
+    Attribute intAttr =
+        Attribute.newBuilder()
+            .setFormatFlags(Attribute.FormatFlags.INTEGER_VALUE)
+            .setMinInt(0)
+            .setMaxInt(100)
+            .build();
+    Attribute anyAttr =
+        Attribute.newBuilder()
+            .setFormatFlags(Attribute.FormatFlags.ANY_VALUE)
+            .setMinInt(Integer.MIN_VALUE)
+            .setMaxInt(Integer.MAX_VALUE)
+            .build();
+
+    assertSameOutputAsAapt2(
+        resourceTableWithXmlConfig(
+            type(
+                1,
+                "attr",
+                entry(0, "orientation", attrValue(enumAttr)),
+                entry(1, "percent", attrValue(intAttr)),
+                entry(2, "anything", attrValue(anyAttr))),
+            type(
+                2,
+                "id",
+                entry(0, "horizontal", itemValue(idItem(), DEFAULT_CONFIG)),
+                entry(1, "vertical", itemValue(idItem(), DEFAULT_CONFIG)))));
+  }
+
+  @Test
+  public void sameOutputAsAapt2_styleables() throws Exception {
+    Attribute intAttr =
+        Attribute.newBuilder().setFormatFlags(Attribute.FormatFlags.INTEGER_VALUE).build();
+    Styleable styleable =
+        Styleable.newBuilder()
+            .addEntry(
+                Styleable.Entry.newBuilder()
+                    .setAttr(Reference.newBuilder().setId(0x7f010000).setName("attr/size")))
+            .addEntry(
+                Styleable.Entry.newBuilder()
+                    .setAttr(Reference.newBuilder().setId(0x7f010001).setName("attr/count")))
+            .build();
+
+    assertSameOutputAsAapt2(
+        resourceTableWithXmlConfig(
+            type(
+                1,
+                "attr",
+                entry(0, "size", attrValue(intAttr)),
+                entry(1, "count", attrValue(intAttr))),
+            type(
+                2,
+                "styleable",
+                entry(
+                    0,
+                    "MyView",
+                    compoundValue(
+                        CompoundValue.newBuilder().setStyleable(styleable).build(),
+                        DEFAULT_CONFIG)))));
+  }
+
+  @Test
+  public void sameOutputAsAapt2_multipleConfigs() throws Exception {
+    assertSameOutputAsAapt2(
+        resourceTableWithXmlConfig(
+            type(
+                1,
+                "string",
+                entry(
+                    0,
+                    "title",
+                    value("Title", DEFAULT_CONFIG),
+                    value("Titre", locale("fr")),
+                    value("Titel", locale("de-DE")),
+                    value("Title (xhdpi)", XHDPI),
+                    value("Titre (xhdpi)", mergeConfigs(locale("fr"), XHDPI))),
+                entry(
+                    1,
+                    "subtitle",
+                    value("Subtitle", DEFAULT_CONFIG),
+                    value("Sous-titre", locale("fr"))))));
+  }
+
+  @Test
+  public void sameOutputAsAapt2_longAndNonAsciiStrings() throws Exception {
+    assertSameOutputAsAapt2(
+        resourceTableWithXmlConfig(
+            type(
+                1,
+                "string",
+                entry(0, "long", value(Strings.repeat("abcdefghij", 1000), DEFAULT_CONFIG)),
+                entry(1, "nonAscii", value("café 日本 \uD83D\uDE00", DEFAULT_CONFIG)),
+                entry(2, "empty", value("", DEFAULT_CONFIG)))));
+  }
+
+  @Test
+  public void sameOutputAsAapt2_binaryXml() throws Exception {
+    XmlNode xmlConfig =
+        xmlNode(
+            XmlElement.newBuilder()
+                .setName("config")
+                .addNamespaceDeclaration(xmlNamespace("android", ANDROID_NAMESPACE_URI))
+                .addNamespaceDeclaration(xmlNamespace("app", APP_NAMESPACE_URI))
+                .addAttribute(xmlAttribute("name", "root"))
+                .addAttribute(
+                    XmlAttribute.newBuilder()
+                        .setNamespaceUri(ANDROID_NAMESPACE_URI)
+                        .setName("label")
+                        .setResourceId(0x01010001)
+                        .setValue("@string/label")
+                        .setCompiledItem(
+                            Item.newBuilder()
+                                .setRef(Reference.newBuilder().setId(0x7f010000))))
+                .addAttribute(
+                    XmlAttribute.newBuilder()
+                        .setNamespaceUri(ANDROID_NAMESPACE_URI)
+                        .setName("enabled")
+                        .setResourceId(0x0101000e)
+                        .setValue("true")
+                        .setCompiledItem(
+                            Item.newBuilder()
+                                .setPrim(Primitive.newBuilder().setBooleanValue(true))))
+                .addAttribute(
+                    XmlAttribute.newBuilder()
+                        .setNamespaceUri(APP_NAMESPACE_URI)
+                        .setName("custom")
+                        .setValue("free text"))
+                .addChild(
+                    xmlNode(
+                        XmlElement.newBuilder()
+                            .setName("item")
+                            .addAttribute(xmlAttribute("key", "first"))
+                            .addChild(XmlNode.newBuilder().setText("First item"))
+                            .build()))
+                .addChild(XmlNode.newBuilder().setText("  "))
+                .addChild(
+                    xmlNode(
+                        XmlElement.newBuilder()
+                            .setName("item")
+                            .addAttribute(xmlAttribute("key", "second"))
+                            .addChild(
+                                xmlNode(XmlElement.newBuilder().setName("nested").build()))
+                            .build()))
+                .build());
+
+    assertSameOutputAsAapt2(createResourceTable(Configuration.getDefaultInstance()), xmlConfig);
+  }
+
+  private void assertSameOutputAsAapt2(ResourceTable resourceTable) throws Exception {
+    assertSameOutputAsAapt2(resourceTable, DEFAULT_XML_CONFIG);
+  }
+
+  private void assertSameOutputAsAapt2(ResourceTable resourceTable, XmlNode xmlConfig)
+      throws Exception {
+    Path protoApk = writeProtoApk(resourceTable, xmlConfig);
+    Path inProcessApk = tmpDir.resolve("in-process.apk");
+    Path aapt2Apk = tmpDir.resolve("aapt2.apk");
+
+    new InProcessAapt2Command(InProcessAapt2CommandTest::failingFallback)
+        .convertApkProtoToBinary(protoApk, inProcessApk);
+    Aapt2Helper.getAapt2Command().convertApkProtoToBinary(protoApk, aapt2Apk);
+
+    try (ZipFile inProcess = new ZipFile(inProcessApk.toFile());
+        ZipFile aapt2 = new ZipFile(aapt2Apk.toFile())) {
+      for (String name :
+          new String[] {"resources.arsc", "AndroidManifest.xml", "res/xml/config.xml"}) {
+        assertThat(readEntry(inProcess, name)).isEqualTo(readEntry(aapt2, name));
+      }
+    }
+  }
+
+  private Path writeProtoApk(ResourceTable resourceTable) throws Exception {
+    return writeProtoApk(resourceTable, DEFAULT_XML_CONFIG);
+  }
+
+  private Path writeProtoApk(ResourceTable resourceTable, XmlNode xmlConfig) throws Exception {
+    return new ZipBuilder()
+        .addFileWithProtoContent(
+            ZipPath.create("AndroidManifest.xml"), androidManifest("com.test.app"))
+        .addFileWithProtoContent(ZipPath.create("resources.pb"), resourceTable)
+        .addFileWithProtoContent(ZipPath.create("res/xml/config.xml"), xmlConfig)
+        .addFileWithContent(
+            ZipPath.create("res/raw/data.bin"), new byte[] {1, 2, 3}, EntryOption.UNCOMPRESSED)
+        .writeTo(tmpDir.resolve("proto.apk"));
+  }
+
+  private static ResourceTable createResourceTable(Configuration labelConfig) {
+    return resourceTableWithXmlConfig(
+        type(1, "string", entry(0, "label", value("Test App", labelConfig))));
+  }
+
+  /** Creates a table with the given types, followed by the type declaring the XML config file. */
+  private static ResourceTable resourceTableWithXmlConfig(Type... types) {
+    ConfigValue xmlFile =
+        itemValue(
+            Item.newBuilder()
+                .setFile(
+                    FileReference.newBuilder()
+                        .setPath("res/xml/config.xml")
+                        .setType(FileReference.Type.PROTO_XML))
+                .build(),
+            DEFAULT_CONFIG);
+    Package.Builder pkg = pkg(0x7f, "com.test.app", types).toBuilder();
+    pkg.addType(type(types.length + 1, "xml", entry(0, "config", xmlFile)));
+    return resourceTable(pkg.build());
+  }
+
+  private static ConfigValue itemValue(Item item, Configuration config) {
+    return ConfigValue.newBuilder()
+        .setConfig(config)
+        .setValue(Value.newBuilder().setItem(item))
+        .build();
+  }
+
+  private static ConfigValue compoundValue(CompoundValue compoundValue, Configuration config) {
+    return ConfigValue.newBuilder()
+        .setConfig(config)
+        .setValue(Value.newBuilder().setCompoundValue(compoundValue))
+        .build();
+  }
+
+  private static ConfigValue attrValue(Attribute attribute) {
+    return compoundValue(CompoundValue.newBuilder().setAttr(attribute).build(), DEFAULT_CONFIG);
+  }
+
+  private static Plural.Entry pluralEntry(Plural.Arity arity, String value) {
+    return Plural.Entry.newBuilder().setArity(arity).setItem(stringItem(value)).build();
+  }
+
+  private static Item stringItem(String value) {
+    return Item.newBuilder()
+        .setStr(com.android.aapt.Resources.String.newBuilder().setValue(value))
+        .build();
+  }
+
+  private static Item intItem(int value) {
+    return Item.newBuilder().setPrim(Primitive.newBuilder().setIntDecimalValue(value)).build();
+  }
+
+  private static Item idItem() {
+    return Item.newBuilder().setId(Id.getDefaultInstance()).build();
+  }
+
+  private static byte[] readEntry(ZipFile zipFile, String name) throws Exception {
+    try (InputStream is = zipFile.getInputStream(zipFile.getEntry(name))) {
+      return ByteStreams.toByteArray(is);
+    }
+  }
+
+  private static Aapt2Command failingFallback() {
+    throw new AssertionError("Fallback should not be used.");
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.CONFIG_SIZE;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.ConfigurationOuterClass.Configuration.ScreenRound;
+import com.android.aapt.ConfigurationOuterClass.Configuration.UiModeNight;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ResConfigEncoderTest {
+
+  @Test
+  public void defaultConfig_allZeros() {
+    ChunkReader reader = encode(Configuration.getDefaultInstance());
+
+    assertThat(reader.getInt(0)).isEqualTo(CONFIG_SIZE);
+    for (int offset = 4; offset < CONFIG_SIZE; offset += 4) {
+      assertThat(reader.getInt(offset)).isEqualTo(0);
+    }
+    assertThat(ResConfigEncoder.diffFromDefault(Configuration.getDefaultInstance())).isEqualTo(0);
+  }
+
+  @Test
+  public void localeWithRegionAndScript() {
+    ChunkReader reader = encode(Configuration.newBuilder().setLocale("sr-Latn-RS").build());
+
+    assertThat(reader.getByte(8)).isEqualTo('s');
+    assertThat(reader.getByte(9)).isEqualTo('r');
+    assertThat(reader.getByte(10)).isEqualTo('R');
+    assertThat(reader.getByte(11)).isEqualTo('S');
+    assertThat(reader.getByte(36)).isEqualTo('L');
+    assertThat(reader.getByte(39)).isEqualTo('n');
+  }
+
+  @Test
+  public void threeLetterLanguageIsPacked() {
+    ChunkReader reader = encode(Configuration.newBuilder().setLocale("fil").build());
+
+    // 'f' = 5, 'i' = 8, 'l' = 11 relative to 'a'.
+    assertThat(reader.getByte(8)).isEqualTo(0x80 | (11 << 2) | (8 >> 3));
+    assertThat(reader.getByte(9)).isEqualTo(((8 << 5) | 5) & 0xFF);
+  }
+
+  @Test
+  public void swappedEnumsAreTranslated() {
+    ChunkReader reader =
+        encode(
+            Configuration.newBuilder()
+                .setUiModeNight(UiModeNight.UI_MODE_NIGHT_NIGHT)
+                .setScreenRound(ScreenRound.SCREEN_ROUND_ROUND)
+                .build());
+
+    assertThat(reader.getByte(29)).isEqualTo(0x20); // uiMode
+    assertThat(reader.getByte(48)).isEqualTo(0x02); // screenLayout2
+  }
+
+  @Test
+  public void diffFromDefault() {
+    assertThat(
+            ResConfigEncoder.diffFromDefault(
+                Configuration.newBuilder().setLocale("fr").setDensity(240).build()))
+        .isEqualTo(0x0004 | 0x0100);
+  }
+
+  @Test
+  public void product_throws() {
+    assertThrows(
+        UnsupportedResourceEncodingException.class,
+        () -> encode(Configuration.newBuilder().setProduct("tablet").build()));
+  }
+
+  private static ChunkReader encode(Configuration config) {
+    ChunkBuffer out = new ChunkBuffer();
+    ResConfigEncoder.write(config, out);
+    assertThat(out.size()).isEqualTo(CONFIG_SIZE);
+    return new ChunkReader(out.toByteArray());
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.ENTRY_FLAG_COMPLEX;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.NO_ENTRY;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.PACKAGE_HEADER_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_STRING_POOL_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_TABLE_PACKAGE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_TABLE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_TABLE_TYPE_SPEC_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.RES_TABLE_TYPE_TYPE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.SPEC_PUBLIC;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_DIMENSION;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_HEADER_SIZE;
+import static com.android.tools.build.bundletool.resources.BinaryResourceConstants.TYPE_STRING;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.HDPI;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.entry;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.locale;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.pkg;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.resourceTable;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.type;
+import static com.android.tools.build.bundletool.testing.ResourcesTableFactory.value;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.aapt.ConfigurationOuterClass.Configuration;
+import com.android.aapt.Resources.Array;
+import com.android.aapt.Resources.CompoundValue;
+import com.android.aapt.Resources.ConfigValue;
+import com.android.aapt.Resources.Item;
+import com.android.aapt.Resources.Package;
+import com.android.aapt.Resources.Primitive;
+import com.android.aapt.Resources.Reference;
+import com.android.aapt.Resources.ResourceTable;
+import com.android.aapt.Resources.StyledString;
+import com.android.aapt.Resources.Styleable;
+import com.android.aapt.Resources.Value;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ResourceTableEncoderTest {
+
+  private static final Configuration DEFAULT_CONFIG = Configuration.getDefaultInstance();
+
+  @Test
+  public void chunkStructure() {
+    byte[] encoded = new ResourceTableEncoder().encode(createTable());
+    ChunkReader reader = new ChunkReader(encoded);
+
+    assertThat(reader.type(0)).isEqualTo(RES_TABLE_TYPE);
+    assertThat(reader.size(0)).isEqualTo(encoded.length);
+    assertThat(reader.getInt(8)).isEqualTo(1); // packageCount
+
+    ImmutableList<Integer> tableChunks = reader.childChunks(0);
+    assertThat(tableChunks.stream().map(reader::type).collect(toImmutableList()))
+        .containsExactly(RES_STRING_POOL_TYPE, RES_TABLE_PACKAGE_TYPE)
+        .inOrder();
+
+    int pkg = tableChunks.get(1);
+    assertThat(reader.headerSize(pkg)).isEqualTo(PACKAGE_HEADER_SIZE);
+    assertThat(reader.getInt(pkg + 8)).isEqualTo(0x7f);
+    ImmutableList<Integer> packageChunks = reader.childChunks(pkg);
+    assertThat(packageChunks.stream().map(reader::type).collect(toImmutableList()))
+        .containsExactly(
+            RES_STRING_POOL_TYPE, // Type names.
+            RES_STRING_POOL_TYPE, // Key names.
+            RES_TABLE_TYPE_SPEC_TYPE, // array
+            RES_TABLE_TYPE_TYPE, // array, default config
+            RES_TABLE_TYPE_SPEC_TYPE, // string
+            RES_TABLE_TYPE_TYPE, // string, default config
+            RES_TABLE_TYPE_TYPE, // string, fr
+            RES_TABLE_TYPE_SPEC_TYPE, // dimen
+            RES_TABLE_TYPE_TYPE) // dimen, hdpi
+        .inOrder();
+  }
+
+  @Test
+  public void stringPools() {
+    ChunkReader reader = new ChunkReader(new ResourceTableEncoder().encode(createTable()));
+    ImmutableList<Integer> tableChunks = reader.childChunks(0);
+    ImmutableList<Integer> packageChunks = reader.childChunks(tableChunks.get(1));
+
+    // Styled strings come first in the value pool.
+    int valuePool = tableChunks.get(0);
+    assertThat(reader.styleCount(valuePool)).isEqualTo(1);
+    assertThat(reader.strings(valuePool))
+        .containsExactly("Hello World", "first", "second", "Hello", "Bonjour", "b")
+        .inOrder();
+
+    // Type IDs without type are filled with a placeholder.
+    assertThat(reader.strings(packageChunks.get(0)))
+        .containsExactly("array", "?2", "string", "dimen")
+        .inOrder();
+    assertThat(reader.isUtf8Pool(packageChunks.get(0))).isFalse();
+    assertThat(reader.strings(packageChunks.get(1)))
+        .containsExactly("items", "greeting", "styled", "margin")
+        .inOrder();
+  }
+
+  @Test
+  public void typeSpecAndDenseEntries() {
+    ChunkReader reader = new ChunkReader(new ResourceTableEncoder().encode(createTable()));
+    ImmutableList<Integer> packageChunks = reader.childChunks(reader.childChunks(0).get(1));
+
+    int stringSpec = packageChunks.get(4);
+    assertThat(reader.getByte(stringSpec + 8)).isEqualTo(3); // type ID
+    assertThat(reader.getInt(stringSpec + 12)).isEqualTo(3); // entryCount
+    assertThat(reader.getInt(stringSpec + 16)).isEqualTo(SPEC_PUBLIC | 0x0004); // locale
+    assertThat(reader.getInt(stringSpec + 20)).isEqualTo(0); // no entry 1
+    assertThat(reader.getInt(stringSpec + 24)).isEqualTo(SPEC_PUBLIC);
+
+    // Default config: entries 0 and 2 exist, entry 1 is missing.
+    int defaultType = packageChunks.get(5);
+    assertThat(reader.getInt(defaultType + 12)).isEqualTo(3);
+    int entriesStart = defaultType + reader.getInt(defaultType + 16);
+    assertThat(reader.getInt(defaultType + TYPE_HEADER_SIZE)).isEqualTo(0);
+    assertThat(reader.getInt(defaultType + TYPE_HEADER_SIZE + 4)).isEqualTo(NO_ENTRY);
+    int greeting = entriesStart;
+    assertThat(reader.getShort(greeting)).isEqualTo(8);
+    assertThat(reader.getByte(greeting + 8 + 3)).isEqualTo(TYPE_STRING);
+    assertThat(reader.getInt(greeting + 8 + 4)).isEqualTo(3); // "Hello"
+
+    // French config: only entry 0.
+    int frenchType = packageChunks.get(6);
+    assertThat(reader.getByte(frenchType + 20 + 8)).isEqualTo('f');
+    assertThat(reader.getByte(frenchType + 20 + 9)).isEqualTo('r');
+    assertThat(reader.getInt(frenchType + TYPE_HEADER_SIZE + 4)).isEqualTo(NO_ENTRY);
+    assertThat(reader.getInt(frenchType + TYPE_HEADER_SIZE + 8)).isEqualTo(NO_ENTRY);
+
+    int dimenType = packageChunks.get(8);
+    assertThat(reader.getShort(dimenType + 20 + 14)).isEqualTo(240); // density
+    int margin = dimenType + reader.getInt(dimenType + 16);
+    assertThat(reader.getByte(margin + 8 + 3)).isEqualTo(TYPE_DIMENSION);
+  }
+
+  @Test
+  public void arrayIsEncodedAsMapEntry() {
+    ChunkReader reader = new ChunkReader(new ResourceTableEncoder().encode(createTable()));
+    ImmutableList<Integer> packageChunks = reader.childChunks(reader.childChunks(0).get(1));
+
+    int arrayType = packageChunks.get(3);
+    int items = arrayType + reader.getInt(arrayType + 16);
+    assertThat(reader.getShort(items)).isEqualTo(16);
+    assertThat(reader.getShort(items + 2) & ENTRY_FLAG_COMPLEX).isEqualTo(ENTRY_FLAG_COMPLEX);
+    assertThat(reader.getInt(items + 12)).isEqualTo(2); // count
+    assertThat(reader.getInt(items + 16)).isEqualTo(0x02000000);
+    assertThat(reader.getInt(items + 16 + 12)).isEqualTo(0x02000001);
+  }
+
+  @Test
+  public void styleableType_skipped() {
+    ConfigValue styleable =
+        ConfigValue.newBuilder()
+            .setValue(
+                Value.newBuilder()
+                    .setCompoundValue(
+                        CompoundValue.newBuilder()
+                            .setStyleable(
+                                Styleable.newBuilder()
+                                    .addEntry(
+                                        Styleable.Entry.newBuilder()
+                                            .setAttr(Reference.newBuilder().setId(0x7f010000))))))
+            .build();
+    ResourceTable table =
+        resourceTable(
+            pkg(
+                0x7f,
+                "com.test.app",
+                type(1, "attr", entry(0, "orientation", value("a", DEFAULT_CONFIG))),
+                type(2, "styleable", entry(0, "MyView", styleable)),
+                type(3, "transition", entry(0, "fade", value("b", DEFAULT_CONFIG)))));
+
+    ChunkReader reader = new ChunkReader(new ResourceTableEncoder().encode(table));
+    ImmutableList<Integer> packageChunks = reader.childChunks(reader.childChunks(0).get(1));
+
+    // The styleable type ID is a gap, and the styleable has no key nor type chunk.
+    assertThat(reader.strings(packageChunks.get(0)))
+        .containsExactly("attr", "?2", "transition")
+        .inOrder();
+    assertThat(reader.strings(packageChunks.get(1)))
+        .containsExactly("orientation", "fade")
+        .inOrder();
+    assertThat(packageChunks.stream().map(reader::type).collect(toImmutableList()))
+        .containsExactly(
+            RES_STRING_POOL_TYPE,
+            RES_STRING_POOL_TYPE,
+            RES_TABLE_TYPE_SPEC_TYPE,
+            RES_TABLE_TYPE_TYPE,
+            RES_TABLE_TYPE_SPEC_TYPE,
+            RES_TABLE_TYPE_TYPE)
+        .inOrder();
+    assertThat(reader.getByte(packageChunks.get(4) + 8)).isEqualTo(3); // type ID
+  }
+
+  @Test
+  public void packageWithoutId_throws() {
+    ResourceTable table =
+        ResourceTable.newBuilder().addPackage(Package.newBuilder().setPackageName("p")).build();
+
+    assertThrows(
+        UnsupportedResourceEncodingException.class,
+        () -> new ResourceTableEncoder().encode(table));
+  }
+
+  @Test
+  public void productConfig_throws() {
+    ResourceTable table =
+        resourceTable(
+            pkg(
+                0x7f,
+                "com.test.app",
+                type(
+                    1,
+                    "string",
+                    entry(
+                        0,
+                        "name",
+                        value("v", Configuration.newBuilder().setProduct("tablet").build())))));
+
+    assertThrows(
+        UnsupportedResourceEncodingException.class,
+        () -> new ResourceTableEncoder().encode(table));
+  }
+
+  private static ResourceTable createTable() {
+    Item first =
+        Item.newBuilder()
+            .setStr(com.android.aapt.Resources.String.newBuilder().setValue("first"))
+            .build();
+    Item second =
+        Item.newBuilder()
+            .setStr(com.android.aapt.Resources.String.newBuilder().setValue("second"))
+            .build();
+    ConfigValue array =
+        ConfigValue.newBuilder()
+            .setValue(
+                Value.newBuilder()
+                    .setCompoundValue(
+                        CompoundValue.newBuilder()
+                            .setArray(
+                                Array.newBuilder()
+                                    .addElement(Array.Element.newBuilder().setItem(first))
+                                    .addElement(Array.Element.newBuilder().setItem(second)))))
+            .build();
+    ConfigValue styled =
+        ConfigValue.newBuilder()
+            .setValue(
+                Value.newBuilder()
+                    .setItem(
+                        Item.newBuilder()
+                            .setStyledStr(
+                                StyledString.newBuilder()
+                                    .setValue("Hello World")
+                                    .addSpan(
+                                        StyledString.Span.newBuilder()
+                                            .setTag("b")
+                                            .setFirstChar(0)
+                                            .setLastChar(4)))))
+            .build();
+    ConfigValue margin =
+        ConfigValue.newBuilder()
+            .setConfig(HDPI)
+            .setValue(
+                Value.newBuilder()
+                    .setItem(
+                        Item.newBuilder()
+                            .setPrim(Primitive.newBuilder().setDimensionValue(0x1001))))
+            .build();
+    return resourceTable(
+        pkg(
+            0x7f,
+            "com.test.app",
+            type(1, "array", entry(0, "items", array)),
+            type(
+                3,
+                "string",
+                entry(
+                    0,
+                    "greeting",
+                    value("Hello", Configuration.getDefaultInstance()),
+                    value("Bonjour", locale("fr"))),
+                entry(2, "styled", styled)),
+            type(4, "dimen", entry(0, "margin", margin))));
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.resources;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.aapt.Resources.StyledString;
+import com.google.common.base.Strings;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StringPoolBuilderTest {
+
+  @Test
+  public void deduplicatesPlainStrings() {
+    StringPoolBuilder pool = new StringPoolBuilder(/* utf8= */ true);
+    pool.add("a");
+    pool.add("b");
+    pool.add("a");
+    pool.freeze();
+
+    assertThat(pool.size()).isEqualTo(2);
+    assertThat(pool.indexOf("a")).isEqualTo(0);
+    assertThat(pool.indexOf("b")).isEqualTo(1);
+  }
+
+  @Test
+  public void leadingStringsComeBeforePlainStrings() {
+    StringPoolBuilder pool = new StringPoolBuilder(/* utf8= */ true);
+    pool.add("plain");
+    int first = pool.addFirst("name");
+    int second = pool.addFirst("name");
+    pool.freeze();
+
+    assertThat(first).isEqualTo(0);
+    assertThat(second).isEqualTo(1);
+    assertThat(pool.indexOf("plain")).isEqualTo(2);
+  }
+
+  @Test
+  public void styledStringsComeFirst() {
+    StyledString styled =
+        StyledString.newBuilder()
+            .setValue("Hello")
+            .addSpan(StyledString.Span.newBuilder().setTag("i").setFirstChar(0).setLastChar(1))
+            .build();
+    StringPoolBuilder pool = new StringPoolBuilder(/* utf8= */ true);
+    pool.add("plain");
+    pool.addStyled(styled);
+
+    ChunkBuffer out = new ChunkBuffer();
+    pool.writeTo(out);
+    ChunkReader reader = new ChunkReader(out.toByteArray());
+
+    assertThat(reader.strings(0)).containsExactly("Hello", "plain", "i").inOrder();
+    assertThat(reader.styleCount(0)).isEqualTo(1);
+    assertThat(pool.indexOfStyled(styled)).isEqualTo(0);
+  }
+
+  @Test
+  public void encodesLongAndNonAsciiStrings() {
+    String longString = Strings.repeat("x", 300);
+    for (boolean utf8 : new boolean[] {true, false}) {
+      StringPoolBuilder pool = new StringPoolBuilder(utf8);
+      pool.add(longString);
+      pool.add("café 日本");
+      pool.add("");
+
+      ChunkBuffer out = new ChunkBuffer();
+      pool.writeTo(out);
+      ChunkReader reader = new ChunkReader(out.toByteArray());
+
+      assertThat(reader.isUtf8Pool(0)).isEqualTo(utf8);
+      assertThat(reader.size(0) % 4).isEqualTo(0);
+      assertThat(reader.strings(0))
+          .containsExactly(longString, "café 日本", "")
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void stringTooLongForUtf8Pool_throws() {
+    StringPoolBuilder pool = new StringPoolBuilder(/* utf8= */ true);
+    pool.add(Strings.repeat("x", 0x8000));
+
+    assertThrows(
+        UnsupportedResourceEncodingException.class, () -> pool.writeTo(new ChunkBuffer()));
+  }
+
+  @Test
+  public void stringTooLongForUtf8Pool_encodedInUtf16Pool() {
+    String longString = Strings.repeat("x", 0x8000);
+    StringPoolBuilder pool = new StringPoolBuilder(/* utf8= */ false);
+    pool.add(longString);
+
+    ChunkBuffer out = new ChunkBuffer();
+    pool.writeTo(out);
+
+    assertThat(new ChunkReader(out.toByteArray()).strings(0)).containsExactly(longString);
+  }
+
+  @Test
+  public void lookupBeforeFreeze_throws() {
+    StringPoolBuilder pool = new StringPoolBuilder(/* utf8= */ true);
+    pool.add("a");
+
+    assertThrows(IllegalStateException.class, () -> pool.indexOf("a"));
+  }
+}
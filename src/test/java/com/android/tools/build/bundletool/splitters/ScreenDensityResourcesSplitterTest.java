@@ -429,6 +429,70 @@ public class ScreenDensityResourcesSplitterTest {
         .withDensity(560);
   }
 
+  @Test
+  public void entriesWithSameDensities_splitIdentically() throws Exception {
+    ResourceTable table =
+        resourceTable(
+            pkg(
+                USER_PACKAGE_OFFSET,
+                "com.test.app",
+                type(
+                    0x01,
+                    "drawable",
+                    entry(
+                        0x01,
+                        "image1",
+                        fileReference("res/drawable-mdpi/image1.png", MDPI),
+                        fileReference("res/drawable-xxxhdpi/image1.png", XXXHDPI)),
+                    entry(
+                        0x02,
+                        "image2",
+                        fileReference("res/drawable-mdpi/image2.png", MDPI),
+                        fileReference("res/drawable-xxxhdpi/image2.png", XXXHDPI)),
+                    entry(
+                        0x03,
+                        "image3",
+                        fileReference("res/drawable-mdpi/image3.png", MDPI),
+                        fileReference("res/drawable-xxhdpi/image3.png", XXHDPI)))));
+    BundleModule module =
+        new BundleModuleBuilder("base")
+            .addFile("res/drawable-mdpi/image1.png")
+            .addFile("res/drawable-xxxhdpi/image1.png")
+            .addFile("res/drawable-mdpi/image2.png")
+            .addFile("res/drawable-xxxhdpi/image2.png")
+            .addFile("res/drawable-mdpi/image3.png")
+            .addFile("res/drawable-xxhdpi/image3.png")
+            .setResourceTable(table)
+            .setManifest(androidManifest("com.test.app"))
+            .build();
+
+    ImmutableCollection<ModuleSplit> densitySplits =
+        splitter.split(ModuleSplit.forResources(module));
+
+    ModuleSplit xxxhdpiSplit =
+        findModuleSplitWithScreenDensityTargeting(
+            densitySplits,
+            ScreenDensity.newBuilder().setDensityAlias(DensityAlias.XXXHDPI).build());
+    assertThat(xxxhdpiSplit.getResourceTable().get())
+        .containsResource("com.test.app:drawable/image1")
+        .onlyWithConfigs(XXXHDPI);
+    assertThat(xxxhdpiSplit.getResourceTable().get())
+        .containsResource("com.test.app:drawable/image2")
+        .onlyWithConfigs(XXXHDPI);
+    assertThat(xxxhdpiSplit.getResourceTable().get())
+        .containsResource("com.test.app:drawable/image3")
+        .onlyWithConfigs(XXHDPI);
+    assertThat(
+            xxxhdpiSplit.getEntries().stream()
+                .map(entry -> entry.getPath().toString())
+                .collect(toImmutableList()))
+        .containsExactly(
+            "res/drawable-xxxhdpi/image1.png",
+            "res/drawable-xxxhdpi/image2.png",
+            "res/drawable-xxhdpi/image3.png")
+        .inOrder();
+  }
+
   /**
    * An edge case where xxxhdpi split capturing devices from 527dpi and above should capture 512dpi
    * resources and above.
@@ -16,6 +16,11 @@
 
 package com.android.tools.build.bundletool.splitters;
 
+import static com.android.tools.build.bundletool.testing.DeviceFactory.abis;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.density;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.locales;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.mergeSpecs;
+import static com.android.tools.build.bundletool.testing.DeviceFactory.sdkVersion;
 import static com.android.tools.build.bundletool.testing.ManifestProtoUtils.androidManifest;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.lPlusVariantTargeting;
 import static com.android.tools.build.bundletool.testing.TargetingUtils.nativeDirectoryTargeting;
@@ -25,22 +30,35 @@ import static com.android.tools.build.bundletool.testing.TargetingUtils.variantM
 import static com.android.tools.build.bundletool.utils.Versions.ANDROID_L_API_VERSION;
 import static com.android.tools.build.bundletool.utils.Versions.ANDROID_M_API_VERSION;
 import static com.android.tools.build.bundletool.utils.Versions.ANDROID_P_API_VERSION;
+import static com.google.common.collect.ImmutableList.toImmutableList;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.android.bundle.Devices.DeviceSpec;
 import com.android.bundle.Targeting.Abi.AbiAlias;
+import com.android.bundle.Targeting.ScreenDensity.DensityAlias;
 import com.android.bundle.Targeting.VariantTargeting;
+import com.android.tools.build.bundletool.device.ApkMatcher;
+import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
 import com.android.tools.build.bundletool.model.BundleModule;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.android.tools.build.bundletool.model.ModuleSplit.SplitType;
+import com.android.tools.build.bundletool.model.OptimizationDimension;
 import com.android.tools.build.bundletool.testing.BundleModuleBuilder;
+import com.android.tools.build.bundletool.testing.ResourceTableBuilder;
 import com.android.tools.build.bundletool.version.BundleToolVersion;
 import com.android.tools.build.bundletool.version.Version;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.concurrent.Executors;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -84,6 +102,53 @@ public class SplitApksGeneratorTest {
     assertThat(testModule.getVariantTargeting()).isEqualTo(lPlusVariantTargeting());
   }
 
+  @Test
+  public void withExecutorService_sameSplitsInSameOrder() throws Exception {
+    ImmutableList.Builder<BundleModule> modules = ImmutableList.builder();
+    modules.add(
+        new BundleModuleBuilder("base")
+            .addFile("assets/leftover.txt")
+            .addFile("lib/x86_64/libsome.so")
+            .setManifest(androidManifest("com.test.app"))
+            .setNativeConfig(
+                nativeLibraries(
+                    targetedNativeDirectory(
+                        "lib/x86_64", nativeDirectoryTargeting(AbiAlias.X86_64))))
+            .build());
+    for (int i = 0; i < 10; i++) {
+      modules.add(
+          new BundleModuleBuilder("feature" + i)
+              .addFile("assets/feature" + i + ".txt")
+              .setManifest(androidManifest("com.test.app"))
+              .build());
+    }
+    ApkGenerationConfiguration apkGenerationConfiguration =
+        ApkGenerationConfiguration.builder()
+            .setEnableNativeLibraryCompressionSplitter(true)
+            .build();
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+
+    ImmutableList<ModuleSplit> sequentialSplits =
+        new SplitApksGenerator(modules.build(), BUNDLETOOL_VERSION, apkGenerationConfiguration)
+            .generateSplits();
+    ImmutableList<ModuleSplit> parallelSplits;
+    try {
+      parallelSplits =
+          new SplitApksGenerator(
+                  modules.build(), BUNDLETOOL_VERSION, apkGenerationConfiguration, executorService)
+              .generateSplits();
+    } finally {
+      executorService.shutdown();
+    }
+
+    // 11 modules for L and M variants.
+    assertThat(parallelSplits).hasSize(22);
+    assertThat(describeSplits(parallelSplits))
+        .containsExactlyElementsIn(describeSplits(sequentialSplits))
+        .inOrder();
+  }
+
   @Test
   public void multipleModules_withOnlyBaseModuleWithNativeLibraries() throws Exception {
 
@@ -287,6 +352,143 @@ public class SplitApksGeneratorTest {
     assertThat(isCompressed(testModule, "dex/classes.dex")).isTrue();
   }
 
+  @Test
+  public void nativeAndDexCompressionVariants_identicalSplitsShareFingerprint() throws Exception {
+    ImmutableList<BundleModule> bundleModule =
+        ImmutableList.of(
+            new BundleModuleBuilder("base")
+                .addFile("dex/classes.dex")
+                .addFile("lib/x86/libsome.so")
+                .addFile("lib/x86_64/libsome.so")
+                .setManifest(androidManifest("com.test.app"))
+                .setNativeConfig(
+                    nativeLibraries(
+                        targetedNativeDirectory("lib/x86", nativeDirectoryTargeting(AbiAlias.X86)),
+                        targetedNativeDirectory(
+                            "lib/x86_64", nativeDirectoryTargeting(AbiAlias.X86_64))))
+                .build());
+
+    ImmutableList<ModuleSplit> moduleSplits =
+        new SplitApksGenerator(
+                bundleModule,
+                BUNDLETOOL_VERSION,
+                ApkGenerationConfiguration.builder()
+                    .setOptimizationDimensions(ImmutableSet.of(OptimizationDimension.ABI))
+                    .setEnableNativeLibraryCompressionSplitter(true)
+                    .setEnableDexCompressionSplitter(true)
+                    .build())
+            .generateSplits();
+
+    ImmutableListMultimap<ModuleSplit.Fingerprint, ModuleSplit> splitsByFingerprint =
+        Multimaps.index(moduleSplits, ModuleSplit::getFingerprint);
+    // The ABI splits of the M and P variants both have uncompressed native libraries.
+    ImmutableList<ModuleSplit> abiSplitsOfMVariant =
+        moduleSplits.stream()
+            .filter(split -> !split.isMasterSplit())
+            .filter(split -> getVariantMinSdk(split) == ANDROID_M_API_VERSION)
+            .collect(toImmutableList());
+    assertThat(abiSplitsOfMVariant).hasSize(2);
+    for (ModuleSplit abiSplit : abiSplitsOfMVariant) {
+      assertThat(
+              splitsByFingerprint.get(abiSplit.getFingerprint()).stream()
+                  .map(SplitApksGeneratorTest::getVariantMinSdk)
+                  .collect(toImmutableList()))
+          .containsExactly(ANDROID_M_API_VERSION, ANDROID_P_API_VERSION);
+    }
+  }
+
+  @Test
+  public void withDeviceSpec_onlyMatchingVariantAndSplitsGenerated() throws Exception {
+    ImmutableList<BundleModule> bundleModule =
+        ImmutableList.of(
+            new BundleModuleBuilder("base")
+                .addFile("dex/classes.dex")
+                .addFile("lib/x86/libsome.so")
+                .addFile("lib/x86_64/libsome.so")
+                .setManifest(androidManifest("com.test.app"))
+                .setNativeConfig(
+                    nativeLibraries(
+                        targetedNativeDirectory("lib/x86", nativeDirectoryTargeting(AbiAlias.X86)),
+                        targetedNativeDirectory(
+                            "lib/x86_64", nativeDirectoryTargeting(AbiAlias.X86_64))))
+                .setResourceTable(
+                    new ResourceTableBuilder()
+                        .addPackage("com.test.app")
+                        .addStringResourceForMultipleLocales(
+                            "title", ImmutableMap.of("", "Title", "fr", "Titre", "de", "Titel"))
+                        .build())
+                .build());
+    ApkGenerationConfiguration.Builder apkGenerationConfiguration =
+        ApkGenerationConfiguration.builder()
+            .setOptimizationDimensions(
+                ImmutableSet.of(OptimizationDimension.ABI, OptimizationDimension.LANGUAGE))
+            .setEnableNativeLibraryCompressionSplitter(true)
+            .setEnableDexCompressionSplitter(true);
+    DeviceSpec deviceSpec =
+        mergeSpecs(
+            sdkVersion(ANDROID_M_API_VERSION),
+            abis("x86_64"),
+            locales("fr-FR"),
+            density(DensityAlias.XHDPI));
+
+    ImmutableList<ModuleSplit> allSplits =
+        new SplitApksGenerator(bundleModule, BUNDLETOOL_VERSION, apkGenerationConfiguration.build())
+            .generateSplits();
+    ImmutableList<ModuleSplit> deviceSplits =
+        new SplitApksGenerator(
+                bundleModule,
+                BUNDLETOOL_VERSION,
+                apkGenerationConfiguration.setDeviceSpec(deviceSpec).build())
+            .generateSplits();
+
+    // Only the M variant, without the x86 split. Language splits are all kept for splits.xml.
+    assertThat(
+            deviceSplits.stream()
+                .map(SplitApksGeneratorTest::getVariantMinSdk)
+                .collect(toImmutableSet()))
+        .containsExactly(ANDROID_M_API_VERSION);
+    assertThat(deviceSplits.stream().map(ModuleSplit::getSuffix).collect(toImmutableList()))
+        .containsExactly("", "x86_64", "fr", "de");
+    // Splits generated for the device are the same as when generated for all devices.
+    ApkMatcher apkMatcher = new ApkMatcher(deviceSpec);
+    assertThat(describeSplitsInDetail(deviceSplits))
+        .containsExactlyElementsIn(
+            describeSplitsInDetail(
+                allSplits.stream()
+                    .filter(
+                        split ->
+                            apkMatcher.matchesTargeting(
+                                split.getVariantTargeting(),
+                                split.getApkTargeting().toBuilder()
+                                    .clearLanguageTargeting()
+                                    .build()))
+                    .collect(toImmutableList())));
+  }
+
+  @Test
+  public void withDeviceSpec_incompatibleDevice_throws() throws Exception {
+    ImmutableList<BundleModule> bundleModule =
+        ImmutableList.of(
+            new BundleModuleBuilder("base")
+                .addFile("lib/x86/libsome.so")
+                .setManifest(androidManifest("com.test.app"))
+                .setNativeConfig(
+                    nativeLibraries(
+                        targetedNativeDirectory("lib/x86", nativeDirectoryTargeting(AbiAlias.X86))))
+                .build());
+    ApkGenerationConfiguration apkGenerationConfiguration =
+        ApkGenerationConfiguration.builder()
+            .setOptimizationDimensions(ImmutableSet.of(OptimizationDimension.ABI))
+            .setDeviceSpec(mergeSpecs(sdkVersion(ANDROID_M_API_VERSION), abis("arm64-v8a")))
+            .build();
+
+    assertThrows(
+        CommandExecutionException.class,
+        () ->
+            new SplitApksGenerator(bundleModule, BUNDLETOOL_VERSION, apkGenerationConfiguration)
+                .generateSplits());
+  }
+
   private static ModuleSplit getModuleSplit(
       ImmutableList<ModuleSplit> moduleSplits,
       VariantTargeting variantTargeting,
@@ -298,6 +500,15 @@ public class SplitApksGeneratorTest {
         .get();
   }
 
+  private static int getVariantMinSdk(ModuleSplit moduleSplit) {
+    return moduleSplit
+        .getVariantTargeting()
+        .getSdkVersionTargeting()
+        .getValue(0)
+        .getMin()
+        .getValue();
+  }
+
   private static ImmutableSet<String> getEntriesPaths(ModuleSplit moduleSplit) {
     return moduleSplit.getEntries().stream()
         .map(moduleEntry -> moduleEntry.getPath().toString())
@@ -307,4 +518,32 @@ public class SplitApksGeneratorTest {
   private static boolean isCompressed(ModuleSplit moduleSplit, String path) {
     return moduleSplit.findEntry(path).get().shouldCompress();
   }
+
+  private static ImmutableList<String> describeSplitsInDetail(ImmutableList<ModuleSplit> splits) {
+    return splits.stream()
+        .map(
+            split ->
+                split.getModuleName().getName()
+                    + " "
+                    + split.getVariantTargeting()
+                    + " "
+                    + split.getApkTargeting()
+                    + " "
+                    + split.getAndroidManifest().getManifestRoot().getProto()
+                    + " "
+                    + getEntriesPaths(split))
+        .collect(toImmutableList());
+  }
+
+  private static ImmutableList<String> describeSplits(ImmutableList<ModuleSplit> splits) {
+    return splits.stream()
+        .map(
+            split ->
+                split.getModuleName().getName()
+                    + " "
+                    + split.getVariantTargeting()
+                    + " "
+                    + getEntriesPaths(split))
+        .collect(toImmutableList());
+  }
 }
@@ -21,6 +21,8 @@ import static com.google.common.truth.Truth.assertThat;
 import com.android.tools.build.bundletool.model.ModuleSplit;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -58,6 +60,7 @@ public class SplittingPipelineTest {
   }
 
   @Mock ModuleSplit baseSplit;
+  @Mock ModuleSplit otherSplit;
 
   @Test
   public void testAllSplittersCalled() {
@@ -84,4 +87,33 @@ public class SplittingPipelineTest {
     assertThat(splits).hasSize(4);
     assertThat(splits).containsExactly(baseSplit, baseSplit, baseSplit, baseSplit);
   }
+
+  @Test
+  public void withFilter_rejectedSplitsNotSplitFurther() {
+    ModuleSplitSplitter splitter = split -> ImmutableList.of(split, otherSplit);
+    TrivialSplitter splitter2 = new TrivialSplitter();
+    List<ModuleSplit> droppedSplits = new ArrayList<>();
+
+    SplittingPipeline pipeline = SplittingPipeline.create(ImmutableList.of(splitter, splitter2));
+    ImmutableCollection<ModuleSplit> splits =
+        pipeline.split(baseSplit, split -> split != otherSplit, droppedSplits::add);
+
+    assertThat(splitter2.splitCallCount).isEqualTo(1);
+    assertThat(splits).containsExactly(baseSplit);
+    assertThat(droppedSplits).containsExactly(otherSplit);
+  }
+
+  @Test
+  public void withFilter_inputSplitRejected() {
+    TrivialSplitter splitter = new TrivialSplitter();
+    List<ModuleSplit> droppedSplits = new ArrayList<>();
+
+    SplittingPipeline pipeline = SplittingPipeline.create(ImmutableList.of(splitter));
+    ImmutableCollection<ModuleSplit> splits =
+        pipeline.split(baseSplit, split -> false, droppedSplits::add);
+
+    assertThat(splitter.splitCallCount).isEqualTo(0);
+    assertThat(splits).isEmpty();
+    assertThat(droppedSplits).containsExactly(baseSplit);
+  }
 }
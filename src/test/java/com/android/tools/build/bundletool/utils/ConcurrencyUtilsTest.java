@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.exceptions.CommandExecutionException;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ConcurrencyUtilsTest {
+
+  private ListeningExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void waitForAll_list_returnsResultsInOrder() {
+    ImmutableList<ListenableFuture<String>> futures =
+        ImmutableList.of(executor.submit(() -> "a"), executor.submit(() -> "b"));
+
+    assertThat(ConcurrencyUtils.waitForAll(futures)).containsExactly("a", "b").inOrder();
+  }
+
+  @Test
+  public void waitForAll_map_returnsResultsByKey() {
+    ImmutableMap<Integer, ListenableFuture<String>> futures =
+        ImmutableMap.of(1, executor.submit(() -> "a"), 2, executor.submit(() -> "b"));
+
+    assertThat(ConcurrencyUtils.waitForAll(futures))
+        .containsExactly(1, "a", 2, "b")
+        .inOrder();
+  }
+
+  @Test
+  public void waitForAll_list_failure_cancelsRunningTasksAndThrows() throws Exception {
+    CountDownLatch blockedTaskInterrupted = new CountDownLatch(1);
+    ListenableFuture<String> blockedTask = executor.submit(() -> block(blockedTaskInterrupted));
+    ListenableFuture<String> failingTask = executor.submit(ConcurrencyUtilsTest::fail);
+
+    // Would never return if waiting for the blocked task first.
+    CommandExecutionException exception =
+        assertThrows(
+            CommandExecutionException.class,
+            () -> ConcurrencyUtils.waitForAll(ImmutableList.of(blockedTask, failingTask)));
+
+    assertThat(exception).hasMessageThat().isEqualTo("Failure.");
+    assertThat(blockedTaskInterrupted.await(10, SECONDS)).isTrue();
+    assertThat(blockedTask.isCancelled()).isTrue();
+  }
+
+  @Test
+  public void waitForAll_map_failure_cancelsRunningTasksAndThrows() throws Exception {
+    CountDownLatch blockedTaskInterrupted = new CountDownLatch(1);
+    ListenableFuture<String> blockedTask = executor.submit(() -> block(blockedTaskInterrupted));
+    ListenableFuture<String> failingTask = executor.submit(ConcurrencyUtilsTest::fail);
+
+    assertThrows(
+        CommandExecutionException.class,
+        () -> ConcurrencyUtils.waitForAll(ImmutableMap.of(1, blockedTask, 2, failingTask)));
+
+    assertThat(blockedTaskInterrupted.await(10, SECONDS)).isTrue();
+    assertThat(blockedTask.isCancelled()).isTrue();
+  }
+
+  /** Blocks until interrupted. */
+  private static String block(CountDownLatch interrupted) {
+    try {
+      new CountDownLatch(1).await();
+      throw new IllegalStateException("Unreachable.");
+    } catch (InterruptedException e) {
+      interrupted.countDown();
+      return "interrupted";
+    }
+  }
+
+  private static String fail() {
+    throw CommandExecutionException.builder().withMessage("Failure.").build();
+  }
+}
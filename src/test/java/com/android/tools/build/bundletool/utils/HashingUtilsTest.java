@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.utils;
+
+import static com.android.tools.build.bundletool.utils.HashingUtils.putProto;
+import static com.android.tools.build.bundletool.utils.HashingUtils.putString;
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.bundle.Config.Compression;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class HashingUtilsTest {
+
+  @Test
+  public void putString_boundariesBetweenStringsAreHashed() {
+    Hasher hasher1 = Hashing.sha256().newHasher();
+    putString(hasher1, "ab");
+    putString(hasher1, "c");
+    Hasher hasher2 = Hashing.sha256().newHasher();
+    putString(hasher2, "a");
+    putString(hasher2, "bc");
+
+    assertThat(hasher1.hash()).isNotEqualTo(hasher2.hash());
+  }
+
+  @Test
+  public void putProto_equalProtos_sameHash() {
+    assertThat(hashProto(Compression.newBuilder().addUncompressedGlob("**.so").build()))
+        .isEqualTo(hashProto(Compression.newBuilder().addUncompressedGlob("**.so").build()));
+  }
+
+  @Test
+  public void putProto_differentProtos_differentHashes() {
+    assertThat(hashProto(Compression.newBuilder().addUncompressedGlob("**.so").build()))
+        .isNotEqualTo(hashProto(Compression.newBuilder().addUncompressedGlob("**.dex").build()));
+  }
+
+  private static HashCode hashProto(Compression proto) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    putProto(hasher, proto);
+    return hasher.hash();
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth8.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MappedZipFileTest {
+
+  private static final byte[] DEFLATED_CONTENT = Strings.repeat("dex", 1000).getBytes(UTF_8);
+  private static final byte[] STORED_CONTENT = Strings.repeat("res", 1000).getBytes(UTF_8);
+
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path zipPath;
+
+  @Before
+  public void setUp() throws Exception {
+    zipPath = tmp.getRoot().toPath().resolve("bundle.aab");
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zipPath))) {
+      out.putNextEntry(new ZipEntry("base/"));
+      addDeflatedEntry(out, "base/dex/classes.dex", DEFLATED_CONTENT);
+      addStoredEntry(out, "base/res/raw/file.bin", STORED_CONTENT);
+      addDeflatedEntry(out, "base/assets/empty.txt", new byte[0]);
+    }
+  }
+
+  @Test
+  public void entries_inCentralDirectoryOrder() throws Exception {
+    try (MappedZipFile zipFile = MappedZipFile.open(zipPath)) {
+      assertThat(zipFile.size()).isEqualTo(4);
+      assertThat(zipFile.getEntries().stream().map(MappedZipFile.Entry::getName).toArray())
+          .asList()
+          .containsExactly(
+              "base/", "base/dex/classes.dex", "base/res/raw/file.bin", "base/assets/empty.txt")
+          .inOrder();
+      assertThat(zipFile.getEntries().get(0).isDirectory()).isTrue();
+      assertThat(zipFile.getEntries().get(1).isDirectory()).isFalse();
+    }
+  }
+
+  @Test
+  public void getEntry() throws Exception {
+    try (MappedZipFile zipFile = MappedZipFile.open(zipPath)) {
+      assertThat(zipFile.getEntry("base/dex/classes.dex")).isPresent();
+      assertThat(zipFile.getEntry("base/dex/classes2.dex")).isEmpty();
+    }
+  }
+
+  @Test
+  public void getContent_deflatedEntry() throws Exception {
+    try (MappedZipFile zipFile = MappedZipFile.open(zipPath)) {
+      MappedZipFile.Entry entry = zipFile.getEntry("base/dex/classes.dex").get();
+
+      assertThat(entry.getMethod()).isEqualTo(ZipEntry.DEFLATED);
+      assertThat(entry.getSize()).isEqualTo(DEFLATED_CONTENT.length);
+      assertThat(entry.getCompressedSize()).isLessThan((long) DEFLATED_CONTENT.length);
+      assertThat(readContent(entry)).isEqualTo(DEFLATED_CONTENT);
+      assertThat(readContent(zipFile.getEntry("base/assets/empty.txt").get())).isEmpty();
+    }
+  }
+
+  @Test
+  public void getContent_storedEntry() throws Exception {
+    try (MappedZipFile zipFile = MappedZipFile.open(zipPath)) {
+      MappedZipFile.Entry entry = zipFile.getEntry("base/res/raw/file.bin").get();
+
+      assertThat(entry.getMethod()).isEqualTo(ZipEntry.STORED);
+      assertThat(readContent(entry)).isEqualTo(STORED_CONTENT);
+      ByteBuffer rawData = entry.getRawData();
+      byte[] rawBytes = new byte[rawData.remaining()];
+      rawData.get(rawBytes);
+      assertThat(rawBytes).isEqualTo(STORED_CONTENT);
+    }
+  }
+
+  @Test
+  public void getContent_entriesSpanningSegments() throws Exception {
+    try (MappedZipFile zipFile =
+        MappedZipFile.open(
+            zipPath, MappedZipFile.DEFAULT_INFLATED_CACHE_MAX_BYTES, /* segmentSize= */ 64)) {
+      assertThat(readContent(zipFile.getEntry("base/dex/classes.dex").get()))
+          .isEqualTo(DEFLATED_CONTENT);
+      assertThat(readContent(zipFile.getEntry("base/res/raw/file.bin").get()))
+          .isEqualTo(STORED_CONTENT);
+    }
+  }
+
+  @Test
+  public void getContent_deflatedEntryReadTwice_inflatedOnce() throws Exception {
+    try (MappedZipFile zipFile = MappedZipFile.open(zipPath)) {
+      MappedZipFile.Entry entry = zipFile.getEntry("base/dex/classes.dex").get();
+
+      assertThat(readContent(entry)).isEqualTo(DEFLATED_CONTENT);
+      assertThat(readContent(entry)).isEqualTo(DEFLATED_CONTENT);
+
+      assertThat(zipFile.getInflatedCacheStats().missCount()).isEqualTo(1);
+      assertThat(zipFile.getInflatedCacheStats().hitCount()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void getContent_inflatedCacheDisabled() throws Exception {
+    try (MappedZipFile zipFile = MappedZipFile.open(zipPath, /* inflatedCacheMaxBytes= */ 0)) {
+      MappedZipFile.Entry entry = zipFile.getEntry("base/dex/classes.dex").get();
+
+      assertThat(readContent(entry)).isEqualTo(DEFLATED_CONTENT);
+      assertThat(readContent(entry)).isEqualTo(DEFLATED_CONTENT);
+
+      assertThat(zipFile.getInflatedCacheStats().hitCount()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void zip64Archive() throws Exception {
+    // More than 65535 entries forces the Zip64 end of central directory record.
+    Path zip64Path = tmp.getRoot().toPath().resolve("zip64.zip");
+    int entryCount = 0x10000 + 10;
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip64Path))) {
+      for (int i = 0; i < entryCount; i++) {
+        addStoredEntry(out, "entry" + i, new byte[] {(byte) i});
+      }
+    }
+
+    try (MappedZipFile zipFile = MappedZipFile.open(zip64Path)) {
+      assertThat(zipFile.size()).isEqualTo(entryCount);
+      assertThat(readContent(zipFile.getEntry("entry" + (entryCount - 1)).get()))
+          .isEqualTo(new byte[] {(byte) (entryCount - 1)});
+    }
+  }
+
+  @Test
+  public void notAZipFile_throws() throws Exception {
+    Path notZip = Files.write(tmp.getRoot().toPath().resolve("not.zip"), STORED_CONTENT);
+
+    assertThrows(ZipException.class, () -> MappedZipFile.open(notZip));
+  }
+
+  private static byte[] readContent(MappedZipFile.Entry entry) throws Exception {
+    try (InputStream in = entry.getContent()) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  private static void addDeflatedEntry(ZipOutputStream out, String name, byte[] content)
+      throws Exception {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content);
+    out.closeEntry();
+  }
+
+  private static void addStoredEntry(ZipOutputStream out, String name, byte[] content)
+      throws Exception {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(content.length);
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    entry.setCrc(crc.getValue());
+    out.putNextEntry(entry);
+    out.write(content);
+    out.closeEntry();
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.tools.build.bundletool.utils;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.android.tools.build.bundletool.utils.MemoryBudget.Reservation;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MemoryBudgetTest {
+
+  private ListeningExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  @SuppressWarnings("try") // The resources are only held, never used.
+  public void reservationsFittingInBudget_grantedImmediately() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100);
+
+    try (Reservation first = budget.reserve(60);
+        Reservation second = budget.reserve(40)) {
+      assertThat(budget.getStatistics().getPeakReservedBytes()).isEqualTo(100);
+    }
+    assertThat(budget.getStatistics().getReservationCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void reservationNotFitting_waitsForRelease() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100);
+    Reservation first = budget.reserve(60);
+
+    ListenableFuture<Reservation> second = executor.submit(() -> budget.reserve(60));
+    assertThrows(TimeoutException.class, () -> second.get(100, MILLISECONDS));
+
+    first.close();
+    second.get(10, SECONDS).close();
+    assertThat(budget.getStatistics().getPeakReservedBytes()).isEqualTo(60);
+    assertThat(budget.getStatistics().getMaxWaitTime()).isAtLeast(Duration.ofMillis(100));
+  }
+
+  @Test
+  public void reservationLargerThanBudget_grantedWhenAlone() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100);
+    Reservation small = budget.reserve(10);
+
+    ListenableFuture<Reservation> large = executor.submit(() -> budget.reserve(1000));
+    assertThrows(TimeoutException.class, () -> large.get(100, MILLISECONDS));
+
+    small.close();
+    large.get(10, SECONDS).close();
+    assertThat(budget.getStatistics().getPeakReservedBytes()).isEqualTo(100);
+  }
+
+  @Test
+  public void reservationsGrantedInOrder() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100);
+    Reservation first = budget.reserve(60);
+    ListenableFuture<Reservation> large = executor.submit(() -> budget.reserve(80));
+    waitUntilWaiting(large);
+
+    // Would fit, but must not overtake the large reservation requested before.
+    ListenableFuture<Reservation> small = executor.submit(() -> budget.reserve(10));
+    assertThrows(TimeoutException.class, () -> small.get(100, MILLISECONDS));
+
+    first.close();
+    large.get(10, SECONDS).close();
+    small.get(10, SECONDS).close();
+  }
+
+  @Test
+  public void interruptedReservation_doesNotBlockNextOnes() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100);
+    Reservation first = budget.reserve(60);
+    ListenableFuture<Reservation> cancelled = executor.submit(() -> budget.reserve(80));
+    waitUntilWaiting(cancelled);
+    ListenableFuture<Reservation> small = executor.submit(() -> budget.reserve(10));
+
+    cancelled.cancel(/* mayInterruptIfRunning= */ true);
+
+    small.get(10, SECONDS).close();
+    first.close();
+  }
+
+  @Test
+  public void closingTwice_releasesOnce() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100);
+    Reservation first = budget.reserve(60);
+    Reservation second = budget.reserve(40);
+
+    first.close();
+    first.close();
+
+    ListenableFuture<Reservation> third = executor.submit(() -> budget.reserve(100));
+    assertThrows(TimeoutException.class, () -> third.get(100, MILLISECONDS));
+    second.close();
+    third.get(10, SECONDS).close();
+  }
+
+  @Test
+  public void negativeReservation_throws() {
+    MemoryBudget budget = new MemoryBudget(100);
+
+    assertThrows(IllegalArgumentException.class, () -> budget.reserve(-1));
+  }
+
+  private static void waitUntilWaiting(ListenableFuture<Reservation> reservation)
+      throws ExecutionException, InterruptedException {
+    assertThrows(TimeoutException.class, () -> reservation.get(100, MILLISECONDS));
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.utils.tracing;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.android.bundle.Trace.PhaseSummary;
+import com.android.bundle.Trace.TraceSummary;
+import com.android.tools.build.bundletool.utils.tracing.RecordingTracer.SpanRecord;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.StreamSupport;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RecordingTracerTest {
+
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path tmpDir;
+
+  @Before
+  public void setUp() {
+    tmpDir = tmp.getRoot().toPath();
+  }
+
+  @Test
+  @SuppressWarnings("try") // The resources are only held, never used.
+  public void closedSpans_recorded() {
+    RecordingTracer tracer = new RecordingTracer();
+
+    try (TraceSpan outer = tracer.startSpan("outer")) {
+      try (TraceSpan inner = tracer.startSpan("inner")) {
+        inner.addBytesRead(10);
+        inner.addBytesWritten(20);
+      }
+    }
+
+    ImmutableList<SpanRecord> spans = tracer.getSpans();
+    assertThat(spans.stream().map(SpanRecord::getName).collect(toImmutableList()))
+        .containsExactly("outer", "inner")
+        .inOrder();
+    SpanRecord outer = spans.get(0);
+    SpanRecord inner = spans.get(1);
+    assertThat(outer.getBytesRead()).isEqualTo(0);
+    assertThat(inner.getBytesRead()).isEqualTo(10);
+    assertThat(inner.getBytesWritten()).isEqualTo(20);
+    assertThat(inner.getStartMicros()).isAtLeast(outer.getStartMicros());
+    assertThat(outer.getWallTimeMicros()).isAtLeast(inner.getWallTimeMicros());
+    assertThat(inner.getThreadId()).isEqualTo(Thread.currentThread().getId());
+  }
+
+  @Test
+  public void spanNotClosed_notRecorded() {
+    RecordingTracer tracer = new RecordingTracer();
+
+    tracer.startSpan("open");
+
+    assertThat(tracer.getSpans()).isEmpty();
+  }
+
+  @Test
+  public void spanClosedTwice_recordedOnce() {
+    RecordingTracer tracer = new RecordingTracer();
+
+    TraceSpan span = tracer.startSpan("span");
+    span.close();
+    span.close();
+
+    assertThat(tracer.getSpans()).hasSize(1);
+  }
+
+  @Test
+  public void spanClosedOnOtherThread_noThreadCounters() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+
+    TraceSpan span = tracer.startSpan("span");
+    Thread thread = new Thread(span::close);
+    thread.start();
+    thread.join();
+
+    SpanRecord record = tracer.getSpans().get(0);
+    assertThat(record.getThreadId()).isEqualTo(Thread.currentThread().getId());
+    assertThat(record.getCpuTimeMicros()).isEqualTo(0);
+    assertThat(record.getAllocatedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void summary_aggregatesSpansByName() {
+    RecordingTracer tracer = new RecordingTracer();
+
+    try (TraceSpan span = tracer.startSpan("read")) {
+      span.addBytesRead(100);
+    }
+    for (int i = 0; i < 3; i++) {
+      try (TraceSpan span = tracer.startSpan("write")) {
+        span.addBytesWritten(10);
+      }
+    }
+    try (TraceSpan span = tracer.startSpan("read")) {
+      span.addBytesRead(50);
+    }
+
+    TraceSummary summary = tracer.getSummary();
+    assertThat(
+            summary.getPhaseList().stream().map(PhaseSummary::getName).collect(toImmutableList()))
+        .containsExactly("read", "write")
+        .inOrder();
+    PhaseSummary read = summary.getPhase(0);
+    assertThat(read.getSpanCount()).isEqualTo(2);
+    assertThat(read.getBytesRead()).isEqualTo(150);
+    assertThat(read.getBytesWritten()).isEqualTo(0);
+    PhaseSummary write = summary.getPhase(1);
+    assertThat(write.getSpanCount()).isEqualTo(3);
+    assertThat(write.getBytesWritten()).isEqualTo(30);
+    long totalSpanWallTime =
+        tracer.getSpans().stream().mapToLong(SpanRecord::getWallTimeMicros).sum();
+    assertThat(summary.getTotalWallTimeMicros()).isAtLeast(totalSpanWallTime);
+  }
+
+  @Test
+  public void summary_noSpans_empty() {
+    assertThat(new RecordingTracer().getSummary()).isEqualTo(TraceSummary.getDefaultInstance());
+  }
+
+  @Test
+  public void writeTo_writesSummary() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+    try (TraceSpan span = tracer.startSpan("phase")) {
+      span.addBytesWritten(42);
+    }
+
+    Path outputDir = tmpDir.resolve("trace");
+    tracer.writeTo(outputDir);
+
+    try (InputStream summaryInput =
+        Files.newInputStream(outputDir.resolve(RecordingTracer.SUMMARY_FILE_NAME))) {
+      assertThat(TraceSummary.parseFrom(summaryInput)).isEqualTo(tracer.getSummary());
+    }
+  }
+
+  @Test
+  public void writeTo_writesChromeTrace() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+    try (TraceSpan span = tracer.startSpan("phase \"quoted\"")) {
+      span.addBytesRead(7);
+    }
+
+    tracer.writeTo(tmpDir);
+
+    String json =
+        new String(
+            Files.readAllBytes(tmpDir.resolve(RecordingTracer.CHROME_TRACE_FILE_NAME)), UTF_8);
+    JsonArray events = new JsonParser().parse(json).getAsJsonObject().getAsJsonArray("traceEvents");
+    ImmutableList<JsonObject> completeEvents =
+        StreamSupport.stream(events.spliterator(), /* parallel= */ false)
+            .map(JsonElement::getAsJsonObject)
+            .filter(event -> event.get("ph").getAsString().equals("X"))
+            .collect(toImmutableList());
+    assertThat(completeEvents).hasSize(1);
+    JsonObject event = completeEvents.get(0);
+    assertThat(event.get("name").getAsString()).isEqualTo("phase \"quoted\"");
+    assertThat(event.get("tid").getAsLong()).isEqualTo(Thread.currentThread().getId());
+    assertThat(event.getAsJsonObject("args").get("bytesRead").getAsLong()).isEqualTo(7);
+  }
+
+  @Test
+  public void noOpTracer_returnsNoOpSpan() {
+    assertThat(Tracer.NO_OP.startSpan("span")).isSameAs(TraceSpan.NO_OP);
+  }
+}
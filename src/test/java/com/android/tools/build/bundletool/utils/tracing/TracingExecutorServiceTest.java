@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.android.tools.build.bundletool.utils.tracing;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.android.tools.build.bundletool.utils.tracing.RecordingTracer.SpanRecord;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TracingExecutorServiceTest {
+
+  private final ListeningExecutorService delegate =
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+
+  @After
+  public void tearDown() {
+    delegate.shutdownNow();
+  }
+
+  @Test
+  public void eachTaskRunsInSpanOnWorkerThread() throws Exception {
+    RecordingTracer tracer = new RecordingTracer();
+    ListeningExecutorService executor = new TracingExecutorService(delegate, tracer, "task");
+
+    List<Future<Long>> futures = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      futures.add(executor.submit(() -> Thread.currentThread().getId()));
+    }
+    List<Long> workerThreadIds = new ArrayList<>();
+    for (Future<Long> future : futures) {
+      workerThreadIds.add(future.get());
+    }
+    // Spans are closed after the results of the tasks are set.
+    delegate.shutdown();
+    assertThat(delegate.awaitTermination(10, SECONDS)).isTrue();
+
+    ImmutableList<SpanRecord> spans = tracer.getSpans();
+    assertThat(spans.stream().map(SpanRecord::getName).collect(toImmutableList()))
+        .containsExactly("task", "task", "task", "task", "task");
+    assertThat(workerThreadIds).doesNotContain(Thread.currentThread().getId());
+    assertThat(workerThreadIds)
+        .containsAllIn(
+            spans.stream().map(SpanRecord::getThreadId).collect(toImmutableList()));
+  }
+
+  @Test
+  public void shutdown_shutsDownDelegate() {
+    new TracingExecutorService(delegate, Tracer.NO_OP, "task").shutdown();
+
+    assertThat(delegate.isShutdown()).isTrue();
+  }
+}
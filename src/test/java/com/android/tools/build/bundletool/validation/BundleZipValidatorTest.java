@@ -22,11 +22,9 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import com.android.tools.build.bundletool.exceptions.ValidationException;
 import com.android.tools.build.bundletool.io.ZipBuilder;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
+import com.google.common.collect.ImmutableList;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -54,8 +52,8 @@ public class BundleZipValidatorTest {
             .addDirectory(ZipPath.create("directory"))
             .writeTo(tempFolder.resolve("bundle.aab"));
 
-    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
-      ArrayList<? extends ZipEntry> entries = Collections.list(bundleZip.entries());
+    try (MappedZipFile bundleZip = MappedZipFile.open(bundlePath)) {
+      ImmutableList<MappedZipFile.Entry> entries = bundleZip.getEntries();
       // Sanity check.
       assertThat(entries).hasSize(1);
 
@@ -75,8 +73,8 @@ public class BundleZipValidatorTest {
             .addFileWithContent(ZipPath.create("file.txt"), DUMMY_CONTENT)
             .writeTo(tempFolder.resolve("bundle.aab"));
 
-    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
-      ArrayList<? extends ZipEntry> entries = Collections.list(bundleZip.entries());
+    try (MappedZipFile bundleZip = MappedZipFile.open(bundlePath)) {
+      ImmutableList<MappedZipFile.Entry> entries = bundleZip.getEntries();
       // Sanity check.
       assertThat(entries).hasSize(1);
 
@@ -23,6 +23,7 @@ import com.android.tools.build.bundletool.exceptions.BundleFileTypesException.Ma
 import com.android.tools.build.bundletool.exceptions.BundleFileTypesException.MandatoryModuleFileMissingException;
 import com.android.tools.build.bundletool.io.ZipBuilder;
 import com.android.tools.build.bundletool.model.ZipPath;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import java.nio.file.Path;
 import java.util.zip.ZipFile;
 import org.junit.Before;
@@ -83,7 +84,7 @@ public class MandatoryFilesPresenceValidatorTest {
             .addFileWithContent(ZipPath.create("base/manifest/AndroidManifest.xml"), DUMMY_CONTENT)
             .writeTo(tempFolder.resolve("bundle.aab"));
 
-    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+    try (MappedZipFile bundleZip = MappedZipFile.open(bundlePath)) {
       MandatoryBundleFileMissingException exception =
           assertThrows(
               MandatoryBundleFileMissingException.class,
@@ -101,7 +102,7 @@ public class MandatoryFilesPresenceValidatorTest {
             .addFileWithContent(ZipPath.create("BundleConfig.pb"), DUMMY_CONTENT)
             .writeTo(tempFolder.resolve("bundle.aab"));
 
-    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+    try (MappedZipFile bundleZip = MappedZipFile.open(bundlePath)) {
       MandatoryModuleFileMissingException exception =
           assertThrows(
               MandatoryModuleFileMissingException.class,
@@ -121,7 +122,7 @@ public class MandatoryFilesPresenceValidatorTest {
             .addFileWithContent(ZipPath.create("BundleConfig.pb"), DUMMY_CONTENT)
             .writeTo(tempFolder.resolve("bundle.aab"));
 
-    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+    try (MappedZipFile bundleZip = MappedZipFile.open(bundlePath)) {
       new MandatoryFilesPresenceValidator().validateBundleZipFile(bundleZip);
     }
   }
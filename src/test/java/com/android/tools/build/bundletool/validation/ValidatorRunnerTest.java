@@ -33,11 +33,13 @@ import com.android.bundle.Files.NativeLibraries;
 import com.android.tools.build.bundletool.io.ZipBuilder;
 import com.android.tools.build.bundletool.model.AppBundle;
 import com.android.tools.build.bundletool.model.BundleModule;
+import com.android.tools.build.bundletool.model.BundleModuleName;
 import com.android.tools.build.bundletool.model.ZipPath;
 import com.android.tools.build.bundletool.testing.BundleConfigBuilder;
+import com.android.tools.build.bundletool.utils.MappedZipFile;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import java.nio.file.Path;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import org.junit.Before;
 import org.junit.Rule;
@@ -77,17 +79,18 @@ public class ValidatorRunnerTest {
             .addFileWithContent(ZipPath.create("file.txt"), DUMMY_CONTENT)
             .writeTo(tempFolder.resolve("bundle.aab"));
 
-    try (ZipFile bundleZip = new ZipFile(bundlePath.toFile())) {
+    try (MappedZipFile bundleZip = MappedZipFile.open(bundlePath)) {
       new ValidatorRunner(ImmutableList.of(validator)).validateBundleZipFile(bundleZip);
 
-      ArgumentCaptor<ZipEntry> zipEntryArgs = ArgumentCaptor.forClass(ZipEntry.class);
+      ArgumentCaptor<MappedZipFile.Entry> zipEntryArgs =
+          ArgumentCaptor.forClass(MappedZipFile.Entry.class);
 
       verify(validator).validateBundleZipFile(eq(bundleZip));
       verify(validator, atLeastOnce())
           .validateBundleZipEntry(eq(bundleZip), zipEntryArgs.capture());
       verifyNoMoreInteractions(validator);
 
-      assertThat(zipEntryArgs.getAllValues().stream().map(ZipEntry::getName))
+      assertThat(zipEntryArgs.getAllValues().stream().map(MappedZipFile.Entry::getName))
           .containsExactly("directory/", "file.txt");
     }
   }
@@ -168,6 +171,38 @@ public class ValidatorRunnerTest {
     order.verifyNoMoreInteractions();
   }
 
+  @Test
+  public void validateBundleModules_validModulesOnlyValidatedWithOtherModules() throws Exception {
+    Path bundlePath =
+        new ZipBuilder()
+            .addFileWithContent(ZipPath.create("BundleConfig.pb"), BUNDLE_CONFIG.toByteArray())
+            .addFileWithProtoContent(
+                ZipPath.create("moduleX/manifest/AndroidManifest.xml"),
+                androidManifest("com.test.app"))
+            .addFileWithContent(ZipPath.create("moduleX/assets/x.txt"), DUMMY_CONTENT)
+            .addFileWithProtoContent(
+                ZipPath.create("moduleY/manifest/AndroidManifest.xml"),
+                androidManifest("com.test.app"))
+            .addFileWithContent(ZipPath.create("moduleY/assets/y.txt"), DUMMY_CONTENT)
+            .writeTo(tempFolder.resolve("bundle.aab"));
+    AppBundle bundle = AppBundle.buildFromZip(new ZipFile(bundlePath.toFile()));
+    ImmutableList<BundleModule> bundleModules = ImmutableList.copyOf(bundle.getModules().values());
+
+    new ValidatorRunner(ImmutableList.of(validator))
+        .validateBundleModules(bundleModules, ImmutableSet.of(BundleModuleName.create("moduleX")));
+
+    ArgumentCaptor<BundleModule> moduleArgs = ArgumentCaptor.forClass(BundleModule.class);
+    ArgumentCaptor<ZipPath> fileArgs = ArgumentCaptor.forClass(ZipPath.class);
+
+    verify(validator).validateAllModules(eq(bundleModules));
+    verify(validator).validateModule(moduleArgs.capture());
+    verify(validator).validateModuleFile(fileArgs.capture());
+    verifyNoMoreInteractions(validator);
+
+    assertThat(moduleArgs.getValue().getName()).isEqualTo(BundleModuleName.create("moduleY"));
+    assertThat(fileArgs.getValue().toString()).isEqualTo("assets/y.txt");
+  }
+
   @Test
   public void validateModuleZipFile_invokesRightSubValidatorMethods() throws Exception {
     Path modulePath =